@@ -16,27 +16,61 @@
  */
 package yaraifyapi;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import net.lingala.zip4j.ZipFile;
-import net.lingala.zip4j.exception.ZipException;
-import net.lingala.zip4j.io.inputstream.ZipInputStream;
-import net.lingala.zip4j.model.FileHeader;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.entity.mime.content.ByteArrayBody;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.apache.http.entity.mime.content.FileBody;
 import org.json.JSONObject;
+import yaraifyapi.cache.YaraifyCache;
+import yaraifyapi.cache.YaraifyCacheEndpoint;
+import yaraifyapi.filter.KnownHashSet;
+import yaraifyapi.filter.SubmittedHashFilter;
 import yaraifyapi.json.JsonParser;
 import yaraifyapi.model.YaraifyIdentifierFilter;
 import yaraifyapi.model.YaraifyIdentifierResult;
 import yaraifyapi.model.YaraifyMetadata;
 import yaraifyapi.model.YaraifyYaraRuleMetadata;
+import yaraifyapi.model.YaraifyTask;
 import yaraifyapi.model.YaraifyTaskResult;
+import yaraifyapi.network.ByteBufferBody;
+import yaraifyapi.network.FileChannelBody;
+import yaraifyapi.network.SizedInputStreamBody;
+import yaraifyapi.network.YaraifyConditionalResponse;
 import yaraifyapi.network.YaraifyConnector;
+import yaraifyapi.network.YaraifyStreamingResponse;
+import yaraifyapi.store.YaraifyMetadataStore;
+import yaraifyapi.store.YaraifyRuleStore;
+import yaraifyapi.store.YaraifySampleStore;
+import yaraifyapi.util.HashUtil;
+import yaraifyapi.zip.YaraifyArchiveIterator;
+import yaraifyapi.zip.ZipExtractor;
 
 /**
  * This class is the only required class to instantiate to connect with
@@ -57,6 +91,11 @@ public class YaraifyApi {
      */
     private JsonParser jsonParser;
 
+    /**
+     * The object to extract downloaded ZIP archives with
+     */
+    private ZipExtractor zipExtractor;
+
     /**
      * A valid Malpedia API key, which is used when querying the Yaraify
      * endpoints
@@ -68,6 +107,83 @@ public class YaraifyApi {
      */
     private boolean malpediaEnabled;
 
+    /**
+     * The cache for hash, task, and pivot lookups, or null if caching is
+     * disabled
+     */
+    private volatile YaraifyCache cache;
+
+    /**
+     * The persistent store for metadata and task results, or null if there
+     * is none
+     */
+    private volatile YaraifyMetadataStore metadataStore;
+
+    /**
+     * The persistent store for downloaded samples, or null if there is none
+     */
+    private volatile YaraifySampleStore sampleStore;
+
+    /**
+     * The persistent store for downloaded Yara rules, or null if there is none
+     */
+    private volatile YaraifyRuleStore ruleStore;
+
+    /**
+     * The set of hashes of files that are known to be benign, which are not
+     * uploaded when scanning files, or null if there is none
+     */
+    private volatile KnownHashSet knownHashSet;
+
+    /**
+     * The filter of hashes of files that were submitted in earlier scans, or
+     * null if there is none
+     */
+    private volatile SubmittedHashFilter submittedHashFilter;
+
+    /**
+     * The number of rules that are downloaded concurrently by default
+     */
+    private static final int DEFAULT_RULE_DOWNLOAD_PARALLELISM = 8;
+
+    /**
+     * The URL of the archive that contains all downloadable Yara rules
+     */
+    private static final String RULE_ARCHIVE_URL = "https://yaraify-api.abuse.ch/download/yaraify-rules.zip";
+
+    /**
+     * The lock that guards the cached rule archive
+     */
+    private final Object ruleArchiveLock = new Object();
+
+    /**
+     * The folder in which a copy of the rule archive is kept, or null if the
+     * archive is only kept in memory
+     */
+    private File ruleArchiveCacheFolder;
+
+    /**
+     * The cached rule archive, or null if it has not been downloaded yet
+     */
+    private byte[] ruleArchive;
+
+    /**
+     * The ETag of the cached rule archive, or null if there is none
+     */
+    private String ruleArchiveEtag;
+
+    /**
+     * The Last-Modified value of the cached rule archive, or null if there is
+     * none
+     */
+    private String ruleArchiveLastModified;
+
+    /**
+     * The rules that were extracted from the cached rule archive, or null if
+     * the archive has not been extracted yet
+     */
+    private List<String> decodedRules;
+
     /**
      * Creates an API instance with the given key, which can then be used to
      * interact with Yaraify's API endpoints
@@ -78,6 +194,7 @@ public class YaraifyApi {
      */
     public YaraifyApi(String yaraifyApiKey, String malpediaApiKey) {
         this.jsonParser = new JsonParser();
+        this.zipExtractor = new ZipExtractor();
         String apiUrl = "https://yaraify-api.abuse.ch/api/v1/";
         this.connector = new YaraifyConnector(yaraifyApiKey, apiUrl);
         this.malpediaApiKey = malpediaApiKey;
@@ -92,6 +209,7 @@ public class YaraifyApi {
      */
     public YaraifyApi(String yaraifyApiKey) {
         this.jsonParser = new JsonParser();
+        this.zipExtractor = new ZipExtractor();
         String apiUrl = "https://yaraify-api.abuse.ch/api/v1/";
         this.connector = new YaraifyConnector(yaraifyApiKey, apiUrl);
         this.malpediaApiKey = null;
@@ -117,6 +235,212 @@ public class YaraifyApi {
         return limit;
     }
 
+    /**
+     * Sets the cache that is used for hash, task, and pivot lookups, as well
+     * as for Yara rule downloads. Each lookup consults the cache prior to
+     * making a request, and stores the response afterwards. Responses without
+     * results are only cached if the cache has negative caching enabled.
+     * Returned lists are copies, but the objects in them, as well as returned
+     * task results, are shared with the cache, and must not be altered by the
+     * caller.
+     *
+     * @param cache the cache to use, or null to disable caching
+     */
+    public void setCache(YaraifyCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Gets the cache that is used for hash, task, and pivot lookups, which
+     * can be used to obtain the cache statistics, or to invalidate entries
+     *
+     * @return the cache, or null if caching is disabled
+     */
+    public YaraifyCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Sets the persistent store for metadata and task results. Hash and task
+     * lookups read through the store: a stored result is returned without
+     * making a request, and results from requests are written to the store.
+     * The metadata of all samples returned by pivot queries is written to the
+     * store as well. Stored hash lookups expire after the store's maximum
+     * age, as new tasks for a file can be created at any time. The in-memory
+     * cache, if any, is consulted before the store.
+     *
+     * @param metadataStore the store to use, or null to disable the store
+     */
+    public void setMetadataStore(YaraifyMetadataStore metadataStore) {
+        this.metadataStore = metadataStore;
+    }
+
+    /**
+     * Gets the persistent store for metadata and task results
+     *
+     * @return the store, or null if there is none
+     */
+    public YaraifyMetadataStore getMetadataStore() {
+        return metadataStore;
+    }
+
+    /**
+     * Sets the persistent store for downloaded samples. Sample downloads read
+     * through the store: a stored sample is returned without making a
+     * request, and downloaded samples are written to the store. Unpacked
+     * samples are not stored, as their content does not match the hash they
+     * are requested with.
+     *
+     * @param sampleStore the store to use, or null to disable the store
+     */
+    public void setSampleStore(YaraifySampleStore sampleStore) {
+        this.sampleStore = sampleStore;
+    }
+
+    /**
+     * Gets the persistent store for downloaded samples
+     *
+     * @return the store, or null if there is none
+     */
+    public YaraifySampleStore getSampleStore() {
+        return sampleStore;
+    }
+
+    /**
+     * Sets the persistent store for downloaded Yara rules. Rule downloads read
+     * through the store: a stored rule is returned without making a request,
+     * and downloaded rules are written to the store.
+     *
+     * @param ruleStore the store to use, or null to disable the store
+     */
+    public void setRuleStore(YaraifyRuleStore ruleStore) {
+        this.ruleStore = ruleStore;
+    }
+
+    /**
+     * Gets the persistent store for downloaded Yara rules
+     *
+     * @return the store, or null if there is none
+     */
+    public YaraifyRuleStore getRuleStore() {
+        return ruleStore;
+    }
+
+    /**
+     * Sets the set of hashes of files that are known to be benign. When
+     * scanning multiple files, each file is hashed locally first, and files
+     * whose hash is in the set are skipped rather than uploaded.
+     *
+     * @param knownHashSet the set to use, or null to scan all files
+     */
+    public void setKnownHashSet(KnownHashSet knownHashSet) {
+        this.knownHashSet = knownHashSet;
+    }
+
+    /**
+     * Gets the set of hashes of files that are known to be benign
+     *
+     * @return the set, or null if there is none
+     */
+    public KnownHashSet getKnownHashSet() {
+        return knownHashSet;
+    }
+
+    /**
+     * Sets the filter of hashes of files that were submitted before. When
+     * scanning multiple files with known files being skipped, each file is
+     * hashed locally first. If the filter might contain the hash, it is looked
+     * up on Yaraify, and the existing results are used if the file is known.
+     * Files that are uploaded are added to the filter.
+     *
+     * @param submittedHashFilter the filter to use, or null to upload all
+     * files
+     */
+    public void setSubmittedHashFilter(SubmittedHashFilter submittedHashFilter) {
+        this.submittedHashFilter = submittedHashFilter;
+    }
+
+    /**
+     * Gets the filter of hashes of files that were submitted before
+     *
+     * @return the filter, or null if there is none
+     */
+    public SubmittedHashFilter getSubmittedHashFilter() {
+        return submittedHashFilter;
+    }
+
+    /**
+     * Checks if the given response indicates that there are no results
+     *
+     * @param response the response to check
+     * @return true if the query status is "no_results", false if not
+     */
+    private boolean isNoResults(String response) {
+        return "no_results".equalsIgnoreCase(jsonParser.getString(response, "query_status"));
+    }
+
+    /**
+     * Performs a query that results in a list of metadata objects, such as a
+     * query for all samples that match a given Yara rule or import hash. If a
+     * cache is set, it is consulted prior to making the request. Any limit
+     * value which is lower than or equal to zero, is set to the default value
+     * of 25. Any value over 1000 is set to 1000.
+     *
+     * @param query the name of the query
+     * @param endpoint the endpoint to use in the cache
+     * @param searchTerm the value to search for
+     * @param limit any value between 0 and 1000, where the default is 25
+     * @return the results for the given search term
+     * @throws IOException if the query status in the response indicates the
+     * request was not successful
+     */
+    private List<YaraifyMetadata> queryMetadatas(String query, YaraifyCacheEndpoint endpoint, String searchTerm, int limit) throws IOException {
+        limit = checkLimit(limit);
+
+        YaraifyCache activeCache = cache;
+        String cacheKey = searchTerm + "|" + limit;
+        if (activeCache != null) {
+            Object cached = activeCache.get(endpoint, cacheKey);
+            if (cached == YaraifyCache.NO_RESULTS) {
+                return new ArrayList<>();
+            } else if (cached != null) {
+                //Only lists of metadata are cached for these endpoints
+                @SuppressWarnings("unchecked")
+                List<YaraifyMetadata> cachedMetadatas = (List<YaraifyMetadata>) cached;
+                //Return a copy to keep the cached list intact if the caller alters the returned list
+                return new ArrayList<>(cachedMetadatas);
+            }
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("query", query);
+        json.put("search_term", searchTerm);
+        json.put("result_max", limit);
+
+        String response = new String(connector.post(json.toString()));
+        if (jsonParser.checkQueryStatus(response) == false) {
+            throw new IOException(new JSONObject(json).optString("query_status"));
+        }
+
+        List<YaraifyMetadata> metadatas = jsonParser.getMetadatas(response);
+        YaraifyMetadataStore activeStore = metadataStore;
+        if (activeStore != null) {
+            for (YaraifyMetadata metadata : metadatas) {
+                if (metadata.getSha256() != null && metadata.getSha256().isEmpty() == false) {
+                    activeStore.putMetadata(metadata);
+                }
+            }
+        }
+        if (activeCache != null) {
+            if (isNoResults(response)) {
+                activeCache.putNoResults(endpoint, cacheKey);
+            } else {
+                activeCache.put(endpoint, cacheKey, new ArrayList<>(metadatas));
+            }
+        }
+        return metadatas;
+    }
+
     /**
      * Creates the an identifier, which is returned if the call is successful
      *
@@ -148,6 +472,40 @@ public class YaraifyApi {
      * anything goes wrong with the HTTP request
      */
     public List<YaraifyIdentifierResult> queryIdentifier(String identifier, YaraifyIdentifierFilter filter) throws IOException {
+        return jsonParser.parseIdentifier(requestIdentifier(identifier, filter));
+    }
+
+    /**
+     * Query an identifier to get the results, with any of the filters in the
+     * enumeration, but only returns the tasks which are not present in the
+     * given known statuses, or of which the status differs. Tasks that did not
+     * change since a previous query are skipped while parsing the response.
+     *
+     * @param identifier the identifier to search for
+     * @param filter the filter to apply (server-sided) on the identifier
+     * results
+     * @param knownStatuses the previously seen status per task ID, where the
+     * key is the task ID and the value is the task status
+     * @return the new and changed results in a list
+     * @throws IOException if the identifier is null, does not exist, or if
+     * anything goes wrong with the HTTP request
+     */
+    public List<YaraifyIdentifierResult> queryIdentifier(String identifier, YaraifyIdentifierFilter filter, Map<String, String> knownStatuses) throws IOException {
+        return jsonParser.parseIdentifier(requestIdentifier(identifier, filter), knownStatuses);
+    }
+
+    /**
+     * Requests the tasks of an identifier, with any of the filters in the
+     * enumeration
+     *
+     * @param identifier the identifier to search for
+     * @param filter the filter to apply (server-sided) on the identifier
+     * results
+     * @return the raw response
+     * @throws IOException if the identifier is null, does not exist, or if
+     * anything goes wrong with the HTTP request
+     */
+    private String requestIdentifier(String identifier, YaraifyIdentifierFilter filter) throws IOException {
         JSONObject json = new JSONObject();
         json.put("query", "list_tasks");
         json.put("identifier", identifier);
@@ -173,7 +531,7 @@ public class YaraifyApi {
             throw new IOException(new JSONObject(json).optString("query_status"));
         }
 
-        return jsonParser.parseIdentifier(response);
+        return response;
     }
 
     /**
@@ -210,6 +568,187 @@ public class YaraifyApi {
             throw new IOException("The given file object refers to a folder!");
         }
 
+        return scan(new FileBody(file), identifier, clamav, unpack, shareFile, skipKnown, skipNoisy);
+    }
+
+    /**
+     * Uploads the content of the given stream to Yaraify and scans it,
+     * according to the given parameters. The stream is read in chunks while
+     * the request is sent, meaning the content is never staged on the disk or
+     * fully loaded in memory. The stream is read until its end, but is not
+     * closed.
+     *
+     * @param inputStream the stream to upload
+     * @param length the number of bytes in the stream, or -1 if unknown. If the
+     * length is unknown, the request is sent using chunked transfer encoding.
+     * If it is known, exactly that many bytes are uploaded, and the upload
+     * fails if the stream ends early.
+     * @param fileName the file name to use for the upload
+     * @param identifier the private identifier to bind this upload with, for
+     * later reference, can be null
+     * @param clamav true if ClamAV signatures should be used to scan this file,
+     * false if not
+     * @param unpack true if the sample should be unpacked, false if not
+     * @param shareFile true if the file can be shared, false if not
+     * @param skipKnown true if the file should only be scanned by Yaraify if it
+     * hasn't been uploaded on the platform before, false if it should be
+     * scanned anyway
+     * @param skipNoisy true if the file should be skipped if it has been
+     * uploaded at least 10 times in the past 24 hours, false if it should be
+     * scanned anyway
+     * @return the provided metadata
+     * @throws IOException if the stream or file name is null, or if anything
+     * with regards to the HTTP request goes wrong
+     */
+    public YaraifyMetadata scanFile(InputStream inputStream, long length, String fileName, String identifier, boolean clamav, boolean unpack, boolean shareFile, boolean skipKnown, boolean skipNoisy) throws IOException {
+        if (inputStream == null) {
+            throw new IOException("The given input stream is null!");
+        }
+        checkFileName(fileName);
+
+        return scan(new SizedInputStreamBody(inputStream, length, fileName), identifier, clamav, unpack, shareFile, skipKnown, skipNoisy);
+    }
+
+    /**
+     * Uploads the given bytes to Yaraify and scans them, according to the
+     * given parameters.
+     *
+     * @param content the raw file to upload
+     * @param fileName the file name to use for the upload
+     * @param identifier the private identifier to bind this upload with, for
+     * later reference, can be null
+     * @param clamav true if ClamAV signatures should be used to scan this file,
+     * false if not
+     * @param unpack true if the sample should be unpacked, false if not
+     * @param shareFile true if the file can be shared, false if not
+     * @param skipKnown true if the file should only be scanned by Yaraify if it
+     * hasn't been uploaded on the platform before, false if it should be
+     * scanned anyway
+     * @param skipNoisy true if the file should be skipped if it has been
+     * uploaded at least 10 times in the past 24 hours, false if it should be
+     * scanned anyway
+     * @return the provided metadata
+     * @throws IOException if the content or file name is null, or if anything
+     * with regards to the HTTP request goes wrong
+     */
+    public YaraifyMetadata scanFile(byte[] content, String fileName, String identifier, boolean clamav, boolean unpack, boolean shareFile, boolean skipKnown, boolean skipNoisy) throws IOException {
+        if (content == null) {
+            throw new IOException("The given content is null!");
+        }
+        checkFileName(fileName);
+
+        return scan(new ByteArrayBody(content, ContentType.DEFAULT_BINARY, fileName), identifier, clamav, unpack, shareFile, skipKnown, skipNoisy);
+    }
+
+    /**
+     * Uploads the remaining bytes of the given buffer (from its position up
+     * until its limit) to Yaraify and scans them, according to the given
+     * parameters. Both heap and direct buffers (including memory-mapped
+     * buffers) are supported. The position of the given buffer is not altered.
+     *
+     * @param content the buffer to upload
+     * @param fileName the file name to use for the upload
+     * @param identifier the private identifier to bind this upload with, for
+     * later reference, can be null
+     * @param clamav true if ClamAV signatures should be used to scan this file,
+     * false if not
+     * @param unpack true if the sample should be unpacked, false if not
+     * @param shareFile true if the file can be shared, false if not
+     * @param skipKnown true if the file should only be scanned by Yaraify if it
+     * hasn't been uploaded on the platform before, false if it should be
+     * scanned anyway
+     * @param skipNoisy true if the file should be skipped if it has been
+     * uploaded at least 10 times in the past 24 hours, false if it should be
+     * scanned anyway
+     * @return the provided metadata
+     * @throws IOException if the buffer or file name is null, or if anything
+     * with regards to the HTTP request goes wrong
+     */
+    public YaraifyMetadata scanFile(ByteBuffer content, String fileName, String identifier, boolean clamav, boolean unpack, boolean shareFile, boolean skipKnown, boolean skipNoisy) throws IOException {
+        if (content == null) {
+            throw new IOException("The given buffer is null!");
+        }
+        checkFileName(fileName);
+
+        return scan(new ByteBufferBody(content, fileName), identifier, clamav, unpack, shareFile, skipKnown, skipNoisy);
+    }
+
+    /**
+     * Uploads the given region of a file channel to Yaraify and scans it,
+     * according to the given parameters. The region is transferred directly
+     * from the channel, which allows a single sample to be uploaded from within
+     * a larger file (such as a container or an archive that is stored without
+     * compression). The channel's position is not altered, and the channel is
+     * not closed.
+     *
+     * @param channel the channel to read the region from
+     * @param position the offset of the region within the channel
+     * @param size the size of the region in bytes
+     * @param fileName the file name to use for the upload
+     * @param identifier the private identifier to bind this upload with, for
+     * later reference, can be null
+     * @param clamav true if ClamAV signatures should be used to scan this file,
+     * false if not
+     * @param unpack true if the sample should be unpacked, false if not
+     * @param shareFile true if the file can be shared, false if not
+     * @param skipKnown true if the file should only be scanned by Yaraify if it
+     * hasn't been uploaded on the platform before, false if it should be
+     * scanned anyway
+     * @param skipNoisy true if the file should be skipped if it has been
+     * uploaded at least 10 times in the past 24 hours, false if it should be
+     * scanned anyway
+     * @return the provided metadata
+     * @throws IOException if the channel or file name is null, if the region
+     * lies (partially) outside of the channel, or if anything with regards to
+     * the HTTP request goes wrong
+     */
+    public YaraifyMetadata scanFile(FileChannel channel, long position, long size, String fileName, String identifier, boolean clamav, boolean unpack, boolean shareFile, boolean skipKnown, boolean skipNoisy) throws IOException {
+        if (channel == null) {
+            throw new IOException("The given file channel is null!");
+        }
+        checkFileName(fileName);
+        if (position < 0 || size < 0 || position + size > channel.size()) {
+            throw new IOException("The given region is not within the bounds of the file channel!");
+        }
+
+        return scan(new FileChannelBody(channel, position, size, fileName), identifier, clamav, unpack, shareFile, skipKnown, skipNoisy);
+    }
+
+    /**
+     * Checks if the given file name can be used for an upload
+     *
+     * @param fileName the file name to check
+     * @throws IOException if the file name is null or blank
+     */
+    private void checkFileName(String fileName) throws IOException {
+        if (fileName == null || fileName.isBlank()) {
+            throw new IOException("The given file name is null or empty!");
+        }
+    }
+
+    /**
+     * Uploads the given body part to Yaraify and scans it, according to the
+     * given parameters. All scan overloads use this function, regardless of
+     * the source of the data.
+     *
+     * @param body the body part that contains the file to upload
+     * @param identifier the private identifier to bind this upload with, for
+     * later reference, can be null
+     * @param clamav true if ClamAV signatures should be used to scan this file,
+     * false if not
+     * @param unpack true if the sample should be unpacked, false if not
+     * @param shareFile true if the file can be shared, false if not
+     * @param skipKnown true if the file should only be scanned by Yaraify if it
+     * hasn't been uploaded on the platform before, false if it should be
+     * scanned anyway
+     * @param skipNoisy true if the file should be skipped if it has been
+     * uploaded at least 10 times in the past 24 hours, false if it should be
+     * scanned anyway
+     * @return the provided metadata
+     * @throws IOException if anything with regards to the HTTP request goes
+     * wrong
+     */
+    private YaraifyMetadata scan(ContentBody body, String identifier, boolean clamav, boolean unpack, boolean shareFile, boolean skipKnown, boolean skipNoisy) throws IOException {
         JSONObject json = new JSONObject();
 
         if (identifier != null && identifier.isBlank() == false) {
@@ -247,7 +786,7 @@ public class YaraifyApi {
         }
 
         MultipartEntityBuilder builder = MultipartEntityBuilder.create();
-        builder.addBinaryBody("file", file);
+        builder.addPart("file", body);
         builder.addTextBody("json_data", json.toString());
 
         String response = new String(connector.postNew(builder));
@@ -284,7 +823,11 @@ public class YaraifyApi {
      * be scanned anyway
      * @param suppressExceptions true to ignore exceptions, false to throw any
      * encountered exception to the caller of this function
-     * @return the provided metadata
+     * @return the provided metadata, which excludes files whose hash is in the
+     * known hash set, if one is set. If known files are skipped, the metadata
+     * of the existing file on Yaraify, with the ID of its newest task, is
+     * returned for files that were submitted before according to the
+     * submitted hash filter, if one is set.
      * @throws IOException if any of the file objects is null, does not exist,
      * or points to a folder, or if anything with regards to the HTTP requests
      * goes wrong
@@ -298,8 +841,10 @@ public class YaraifyApi {
 
         for (File file : files) {
             try {
-                YaraifyMetadata metadata = scanFile(file, identifier, clamav, unpack, shareFile, skipKnown, skipNoisy);
-                mapping.put(file, metadata);
+                YaraifyMetadata metadata = scanFileUnlessKnown(file, identifier, clamav, unpack, shareFile, skipKnown, skipNoisy);
+                if (metadata != null) {
+                    mapping.put(file, metadata);
+                }
             } catch (IOException ex) {
                 if (suppressExceptions == false) {
                     throw ex;
@@ -330,7 +875,11 @@ public class YaraifyApi {
      * be scanned anyway
      * @param suppressExceptions true to ignore exceptions, false to throw any
      * encountered exception to the caller of this function
-     * @return the provided metadata
+     * @return the provided metadata, which excludes files whose hash is in the
+     * known hash set, if one is set. If known files are skipped, the metadata
+     * of the existing file on Yaraify, with the ID of its newest task, is
+     * returned for files that were submitted before according to the
+     * submitted hash filter, if one is set.
      * @throws IOException if any of the file objects is null, does not exist,
      * or points to a folder, or if anything with regards to the HTTP requests
      * goes wrong
@@ -348,8 +897,10 @@ public class YaraifyApi {
         for (File file : folder.listFiles()) {
             if (file.isFile()) {
                 try {
-                    YaraifyMetadata metadata = scanFile(file, identifier, clamav, unpack, shareFile, skipKnown, skipNoisy);
-                    mapping.put(file, metadata);
+                    YaraifyMetadata metadata = scanFileUnlessKnown(file, identifier, clamav, unpack, shareFile, skipKnown, skipNoisy);
+                    if (metadata != null) {
+                        mapping.put(file, metadata);
+                    }
                 } catch (IOException ex) {
                     if (suppressExceptions == false) {
                         throw ex;
@@ -360,6 +911,90 @@ public class YaraifyApi {
         return mapping;
     }
 
+    /**
+     * Scans the given file, unless it is known to be benign or was submitted
+     * before. The file is only hashed locally if a known hash set or a
+     * submitted hash filter is set. If known files are to be skipped, a file
+     * that might have been submitted before is looked up, and is uploaded if
+     * the lookup does not confirm that Yaraify knows it.
+     *
+     * @param file the file to scan
+     * @param identifier the private identifier to bind the upload with, can be
+     * null
+     * @param clamav true if ClamAV signatures should be used, false if not
+     * @param unpack true if the sample should be unpacked, false if not
+     * @param shareFile true if the file can be shared, false if not
+     * @param skipKnown true if the file should only be scanned if it hasn't
+     * been uploaded before, false if not
+     * @param skipNoisy true if the file should be skipped if it is noisy,
+     * false if not
+     * @return the metadata of the upload or of the existing file, which then
+     * contains the ID of its newest task, or null if the file is known to be
+     * benign
+     * @throws IOException if the file cannot be read, if the lookup of a file
+     * that might have been submitted fails for any other reason than an
+     * unknown hash, or if the upload fails
+     */
+    private YaraifyMetadata scanFileUnlessKnown(File file, String identifier, boolean clamav, boolean unpack, boolean shareFile, boolean skipKnown, boolean skipNoisy) throws IOException {
+        KnownHashSet knownSet = knownHashSet;
+        SubmittedHashFilter submittedFilter = submittedHashFilter;
+        if ((knownSet == null && submittedFilter == null) || file == null || file.isFile() == false) {
+            return scanFile(file, identifier, clamav, unpack, shareFile, skipKnown, skipNoisy);
+        }
+
+        String sha256 = HashUtil.sha256(file.toPath());
+        if (knownSet != null && knownSet.contains(sha256)) {
+            return null;
+        }
+        //A file is only to be scanned again if known files are not skipped
+        if (skipKnown && submittedFilter != null && submittedFilter.mightContain(sha256)) {
+            try {
+                YaraifyTaskResult result = queryFileHash(sha256);
+                if (result != null && result.getMetadata() != null && result.getTasks() != null && result.getTasks().isEmpty() == false) {
+                    return withNewestTaskId(result);
+                }
+            } catch (IOException e) {
+                //An unknown hash means the filter gave a false positive, in which case the file is to be uploaded
+                if ("no_results".equals(e.getMessage()) == false) {
+                    throw e;
+                }
+            }
+        }
+
+        YaraifyMetadata metadata = scanFile(file, identifier, clamav, unpack, shareFile, skipKnown, skipNoisy);
+        if (submittedFilter != null) {
+            try {
+                submittedFilter.add(sha256);
+            } catch (IOException e) {
+                //The file has been uploaded, so failing to record it only costs a lookup in a later scan
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * Copies the metadata of the given lookup result, and sets the ID of its
+     * newest task, as the metadata of a lookup does not contain a task ID. The
+     * metadata is copied, as the result may be shared with the cache.
+     *
+     * @param result the result of a file hash lookup, which contains at least
+     * one task
+     * @return a copy of the metadata, with the ID of the newest task
+     */
+    private YaraifyMetadata withNewestTaskId(YaraifyTaskResult result) {
+        YaraifyTask newest = null;
+        for (YaraifyTask task : result.getTasks()) {
+            //The timestamps are formatted as "yyyy-MM-dd HH:mm:ss", meaning they sort lexicographically
+            if (newest == null || (task.getTimestamp() != null && (newest.getTimestamp() == null || task.getTimestamp().compareTo(newest.getTimestamp()) > 0))) {
+                newest = task;
+            }
+        }
+        YaraifyMetadata metadata = result.getMetadata();
+        YaraifyMetadata copy = new YaraifyMetadata(metadata.getFileName(), metadata.getFileSize(), metadata.getFileTypeMime(), metadata.getFirstSeen(), metadata.getLastSeen(), metadata.getSightings(), metadata.getSha256(), metadata.getMd5(), metadata.getSha1(), metadata.getSha3_384(), metadata.getImportHash(), metadata.getSsdeep(), metadata.getTlsh(), metadata.getTelfHash(), metadata.getGimpHash(), metadata.getDhashIcon());
+        copy.setTaskId(newest.getTaskId());
+        return copy;
+    }
+
     /**
      * Queries a task based on the given ID
      *
@@ -369,6 +1004,24 @@ public class YaraifyApi {
      * request was not successful
      */
     public YaraifyTaskResult queryTaskId(String taskId) throws IOException {
+        YaraifyCache activeCache = cache;
+        if (activeCache != null) {
+            Object cached = activeCache.get(YaraifyCacheEndpoint.TASK_ID, taskId);
+            if (cached != null) {
+                return (YaraifyTaskResult) cached;
+            }
+        }
+        YaraifyMetadataStore activeStore = metadataStore;
+        if (activeStore != null) {
+            YaraifyTaskResult stored = activeStore.getTaskResult(taskId);
+            if (stored != null) {
+                if (activeCache != null) {
+                    activeCache.put(YaraifyCacheEndpoint.TASK_ID, taskId, stored);
+                }
+                return stored;
+            }
+        }
+
         JSONObject json = new JSONObject();
         json.put("query", "get_results");
         json.put("task_id", taskId);
@@ -381,10 +1034,21 @@ public class YaraifyApi {
             throw new IOException(new JSONObject(json).optString("query_status"));
         }
 
+        //The absence of results is not cached, as a queued task will have results later on
+        if (isNoResults(response)) {
+            throw new IOException("no_results");
+        }
+
         YaraifyTaskResult result = jsonParser.getQueryTaskId(taskId, response);
         if (result == null) {
             throw new IOException("Failure when parsing the returned JSON");
         } else {
+            if (activeStore != null) {
+                activeStore.putTaskResult(taskId, result);
+            }
+            if (activeCache != null) {
+                activeCache.put(YaraifyCacheEndpoint.TASK_ID, taskId, result);
+            }
             return result;
         }
     }
@@ -398,6 +1062,28 @@ public class YaraifyApi {
      * request was not successful
      */
     public YaraifyTaskResult queryFileHash(String fileHash) throws IOException {
+        YaraifyCache activeCache = cache;
+        //Hashes are case insensitive, so the same hash in a different case uses the same cache entry
+        String cacheKey = fileHash == null ? null : fileHash.toLowerCase();
+        if (activeCache != null && cacheKey != null) {
+            Object cached = activeCache.get(YaraifyCacheEndpoint.FILE_HASH, cacheKey);
+            if (cached == YaraifyCache.NO_RESULTS) {
+                throw new IOException("no_results");
+            } else if (cached != null) {
+                return (YaraifyTaskResult) cached;
+            }
+        }
+        YaraifyMetadataStore activeStore = metadataStore;
+        if (activeStore != null && cacheKey != null) {
+            YaraifyTaskResult stored = activeStore.getFileHashResult(cacheKey);
+            if (stored != null) {
+                if (activeCache != null) {
+                    activeCache.put(YaraifyCacheEndpoint.FILE_HASH, cacheKey, stored);
+                }
+                return stored;
+            }
+        }
+
         JSONObject json = new JSONObject();
         json.put("query", "lookup_hash");
         json.put("search_term", fileHash);
@@ -410,10 +1096,26 @@ public class YaraifyApi {
             throw new IOException(new JSONObject(json).optString("query_status"));
         }
 
+        if (isNoResults(response)) {
+            if (activeCache != null && cacheKey != null) {
+                activeCache.putNoResults(YaraifyCacheEndpoint.FILE_HASH, cacheKey);
+            }
+            throw new IOException("no_results");
+        }
+
         YaraifyTaskResult result = jsonParser.getQueryFileHash(response);
         if (result == null) {
             throw new IOException("Failure when parsing the returned JSON");
         } else {
+            if (activeStore != null && cacheKey != null) {
+                activeStore.putFileHashResult(cacheKey, result);
+                if (result.getMetadata() != null && result.getMetadata().getSha256() != null && result.getMetadata().getSha256().isEmpty() == false) {
+                    activeStore.putMetadata(result.getMetadata());
+                }
+            }
+            if (activeCache != null && cacheKey != null) {
+                activeCache.put(YaraifyCacheEndpoint.FILE_HASH, cacheKey, result);
+            }
             return result;
         }
     }
@@ -430,19 +1132,7 @@ public class YaraifyApi {
      * request was not successful
      */
     public List<YaraifyMetadata> queryYaraRule(String yaraRuleName, int limit) throws IOException {
-        limit = checkLimit(limit);
-
-        JSONObject json = new JSONObject();
-        json.put("query", "get_yara");
-        json.put("search_term", yaraRuleName);
-        json.put("result_max", limit);
-
-        String response = new String(connector.post(json.toString()));
-        if (jsonParser.checkQueryStatus(response) == false) {
-            throw new IOException(new JSONObject(json).optString("query_status"));
-        }
-
-        return jsonParser.getMetadatas(response);
+        return queryMetadatas("get_yara", YaraifyCacheEndpoint.YARA_RULE, yaraRuleName, limit);
     }
 
     /**
@@ -494,19 +1184,7 @@ public class YaraifyApi {
      * request was not successful
      */
     public List<YaraifyMetadata> queryClamAvRule(String clamAvRuleName, int limit) throws IOException {
-        limit = checkLimit(limit);
-
-        JSONObject json = new JSONObject();
-        json.put("query", "get_clamav");
-        json.put("search_term", clamAvRuleName);
-        json.put("result_max", limit);
-
-        String response = new String(connector.post(json.toString()));
-        if (jsonParser.checkQueryStatus(response) == false) {
-            throw new IOException(new JSONObject(json).optString("query_status"));
-        }
-
-        return jsonParser.getMetadatas(response);
+        return queryMetadatas("get_clamav", YaraifyCacheEndpoint.CLAMAV_RULE, clamAvRuleName, limit);
     }
 
     /**
@@ -549,28 +1227,16 @@ public class YaraifyApi {
     /**
      * Returns the results for a given import hash. Any limit value which is
      * lower than or equal to zero, is set to the default value of 25. Any value
-     * over 1000 is set to 1000.
-     *
-     * @param importHash the given import hash
-     * @param limit any value between 0 and 1000, where the default is 25
-     * @return the results for the given ClamAV rule
-     * @throws IOException if the query status in the response indicates the
-     * request was not successful
-     */
-    public List<YaraifyMetadata> queryImportHash(String importHash, int limit) throws IOException {
-        limit = checkLimit(limit);
-
-        JSONObject json = new JSONObject();
-        json.put("query", "get_imphash");
-        json.put("search_term", importHash);
-        json.put("result_max", limit);
-
-        String response = new String(connector.post(json.toString()));
-        if (jsonParser.checkQueryStatus(response) == false) {
-            throw new IOException(new JSONObject(json).optString("query_status"));
-        }
-
-        return jsonParser.getMetadatas(response);
+     * over 1000 is set to 1000.
+     *
+     * @param importHash the given import hash
+     * @param limit any value between 0 and 1000, where the default is 25
+     * @return the results for the given ClamAV rule
+     * @throws IOException if the query status in the response indicates the
+     * request was not successful
+     */
+    public List<YaraifyMetadata> queryImportHash(String importHash, int limit) throws IOException {
+        return queryMetadatas("get_imphash", YaraifyCacheEndpoint.IMPORT_HASH, importHash, limit);
     }
 
     /**
@@ -622,19 +1288,7 @@ public class YaraifyApi {
      * request was not successful
      */
     public List<YaraifyMetadata> queryTlsh(String tlsh, int limit) throws IOException {
-        limit = checkLimit(limit);
-
-        JSONObject json = new JSONObject();
-        json.put("query", "get_tlsh");
-        json.put("search_term", tlsh);
-        json.put("result_max", limit);
-
-        String response = new String(connector.post(json.toString()));
-        if (jsonParser.checkQueryStatus(response) == false) {
-            throw new IOException(new JSONObject(json).optString("query_status"));
-        }
-
-        return jsonParser.getMetadatas(response);
+        return queryMetadatas("get_tlsh", YaraifyCacheEndpoint.TLSH, tlsh, limit);
     }
 
     /**
@@ -686,19 +1340,7 @@ public class YaraifyApi {
      * request was not successful
      */
     public List<YaraifyMetadata> queryTelfHash(String telfHash, int limit) throws IOException {
-        limit = checkLimit(limit);
-
-        JSONObject json = new JSONObject();
-        json.put("query", "get_telfhash");
-        json.put("search_term", telfHash);
-        json.put("result_max", limit);
-
-        String response = new String(connector.post(json.toString()));
-        if (jsonParser.checkQueryStatus(response) == false) {
-            throw new IOException(new JSONObject(json).optString("query_status"));
-        }
-
-        return jsonParser.getMetadatas(response);
+        return queryMetadatas("get_telfhash", YaraifyCacheEndpoint.TELF_HASH, telfHash, limit);
     }
 
     /**
@@ -750,19 +1392,7 @@ public class YaraifyApi {
      * request was not successful
      */
     public List<YaraifyMetadata> queryGimpHash(String gimpHash, int limit) throws IOException {
-        limit = checkLimit(limit);
-
-        JSONObject json = new JSONObject();
-        json.put("query", "get_gimphash");
-        json.put("search_term", gimpHash);
-        json.put("result_max", limit);
-
-        String response = new String(connector.post(json.toString()));
-        if (jsonParser.checkQueryStatus(response) == false) {
-            throw new IOException(new JSONObject(json).optString("query_status"));
-        }
-
-        return jsonParser.getMetadatas(response);
+        return queryMetadatas("get_gimphash", YaraifyCacheEndpoint.GIMP_HASH, gimpHash, limit);
     }
 
     /**
@@ -814,19 +1444,7 @@ public class YaraifyApi {
      * request was not successful
      */
     public List<YaraifyMetadata> queryIconDhash(String iconDhash, int limit) throws IOException {
-        limit = checkLimit(limit);
-
-        JSONObject json = new JSONObject();
-        json.put("query", "get_dhash_icon");
-        json.put("search_term", iconDhash);
-        json.put("result_max", limit);
-
-        String response = new String(connector.post(json.toString()));
-        if (jsonParser.checkQueryStatus(response) == false) {
-            throw new IOException(new JSONObject(json).optString("query_status"));
-        }
-
-        return jsonParser.getMetadatas(response);
+        return queryMetadatas("get_dhash_icon", YaraifyCacheEndpoint.ICON_DHASH, iconDhash, limit);
     }
 
     /**
@@ -889,36 +1507,121 @@ public class YaraifyApi {
      * the platform.
      *
      * @param sha256 the SHA-256 hash of the file to download
-     * @param tempPath the temporary path to store the ZIP archive. The archive
-     * will be deleted before the function returns, regardless if there is an
-     * exception
+     * @param tempPath unused, as the ZIP archive is extracted in memory
      * @return the raw file
      * @throws IOException if the query status in the response indicates the
      * request was not successful
+     * @deprecated the ZIP archive is no longer written to the disk, use
+     * {@link #downloadSample(java.lang.String)} instead
      */
+    @Deprecated
     public byte[] downloadSample(String sha256, String tempPath) throws IOException {
+        return downloadSample(sha256);
+    }
+
+    /**
+     * Downloads the file of which the hash is given, if the file is present on
+     * the platform, and writes it to the given path. The response is streamed
+     * through the decryption and extraction of the ZIP archive into the file,
+     * meaning neither the archive nor the file is held in memory. This is the
+     * preferred way to download large samples.<br>
+     * <br>
+     * The file is written to a temporary file next to the given path, and
+     * only moved to the given path once its SHA-256 hash matches the requested
+     * hash. An existing file at the given path is replaced.
+     *
+     * @param sha256 the SHA-256 hash of the file to download
+     * @param destination the path to write the file to
+     * @return the size of the file in bytes
+     * @throws IOException if the query status in the response indicates the
+     * request was not successful, if the downloaded file does not match the
+     * requested hash, or if the file cannot be written
+     */
+    public long downloadSampleTo(String sha256, Path destination) throws IOException {
+        Path folder = destination.toAbsolutePath().getParent();
+        Files.createDirectories(folder);
+        Path temporaryPath = Files.createTempFile(folder, destination.getFileName().toString(), ".tmp");
+
+        try {
+            long size;
+            try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                size = downloadSampleTo(sha256, channel);
+            }
+            Files.move(temporaryPath, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return size;
+        } finally {
+            Files.deleteIfExists(temporaryPath);
+        }
+    }
+
+    /**
+     * Downloads the file of which the hash is given, if the file is present on
+     * the platform, and writes it to the given channel. The response is
+     * streamed through the decryption and extraction of the ZIP archive into
+     * the channel, meaning neither the archive nor the file is held in
+     * memory.<br>
+     * <br>
+     * The file is hashed while it is written. If its hash does not match the
+     * requested hash, an exception is thrown once the file is written, in
+     * which case the caller must discard the written data.
+     *
+     * @param sha256 the SHA-256 hash of the file to download
+     * @param channel the channel to write the file to, which is not closed
+     * @return the size of the file in bytes
+     * @throws IOException if the query status in the response indicates the
+     * request was not successful, if the downloaded file does not match the
+     * requested hash, or if the channel cannot be written to
+     */
+    public long downloadSampleTo(String sha256, WritableByteChannel channel) throws IOException {
+        if (HashUtil.isSha256(sha256) == false) {
+            throw new IOException("The given hash is not a valid SHA-256 hash!");
+        }
+
         JSONObject json = new JSONObject();
         json.put("query", "get_file");
         json.put("sha256_hash", sha256);
 
-        byte[] rawResponse = connector.post(json.toString());
+        try (YaraifyStreamingResponse response = connector.postForStream(json.toString())) {
+            //If the sample cannot be downloaded, the API responds with JSON instead of a ZIP archive
+            if (response.isJson()) {
+                String body = new String(response.getContent().readAllBytes(), StandardCharsets.UTF_8);
+                throw new IOException("The sample could not be downloaded, the query status is \"" + jsonParser.getString(body, "query_status") + "\"!");
+            }
 
-        List<byte[]> files = readZipArchive(rawResponse, tempPath, "infected");
-        if (!files.isEmpty()) {
-            return files.get(0);
-        } else {
-            throw new IOException("No such file found in the downloaded ZIP archive!");
+            MessageDigest digest = HashUtil.newSha256Digest();
+            long size = zipExtractor.extractFirst(response.getContent(), "infected", channel, digest);
+
+            if (HashUtil.toHex(digest.digest()).equalsIgnoreCase(sha256) == false) {
+                throw new IOException("The downloaded sample does not match the requested SHA-256 hash!");
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Writes the given sample to the given store. A sample that cannot be
+     * stored (i.e. because it does not match the requested hash) is still
+     * returned to the caller, as it was before the store was used.
+     *
+     * @param activeStore the store to write to, or null if there is none
+     * @param sha256 the SHA-256 hash with which the sample was requested
+     * @param sample the downloaded sample
+     */
+    private void storeSample(YaraifySampleStore activeStore, String sha256, byte[] sample) {
+        if (activeStore == null) {
+            return;
+        }
+        try {
+            activeStore.put(sha256, sample);
+        } catch (IOException e) {
+            //The store is a shortcut for future downloads, a failure to write to it does not affect this download
         }
     }
 
     /**
      * Downloads the file of which the hash is given, if the file is present on
-     * the platform.<br>
-     * <br>
-     * The temporary file is saved in the temporary folder of the operating
-     * system, using the given SHA-256 hash as its file name. This method is not
-     * thread safe if the same hash is downloaded at the same time. Use another
-     * overload to provide a custom path instead!
+     * the platform. The ZIP archive is extracted in memory, meaning concurrent
+     * downloads (of the same hash) are thread safe.
      *
      * @param sha256 the SHA-256 hash of the file to download
      * @return the raw file
@@ -926,17 +1629,25 @@ public class YaraifyApi {
      * request was not successful
      */
     public byte[] downloadSample(String sha256) throws IOException {
+        YaraifySampleStore activeStore = sampleStore;
+        if (activeStore != null) {
+            byte[] stored = activeStore.get(sha256);
+            if (stored != null) {
+                return stored;
+            }
+        }
+
         JSONObject json = new JSONObject();
         json.put("query", "get_file");
         json.put("sha256_hash", sha256);
 
         byte[] rawResponse = connector.post(json.toString());
 
-        String tempPath = System.getProperty("java.io.tmpdir") + System.getProperty("file.separator") + sha256;
-
-        List<byte[]> files = readZipArchive(rawResponse, tempPath, "infected");
+        List<byte[]> files = readZipArchive(rawResponse, "infected");
         if (!files.isEmpty()) {
-            return files.get(0);
+            byte[] sample = files.get(0);
+            storeSample(activeStore, sha256, sample);
+            return sample;
         } else {
             throw new IOException("No such file found in the downloaded ZIP archive!");
         }
@@ -965,36 +1676,23 @@ public class YaraifyApi {
      * service), if the file is present on the platform.
      *
      * @param sha256 the SHA-256 hash of the file to download
-     * @param tempPath the temporary path to store the ZIP archive. The archive
-     * will be deleted before the function returns, regardless if there is an
-     * exception
+     * @param tempPath unused, as the ZIP archive is extracted in memory
      * @return the raw unpacked file
      * @throws IOException if the query status in the response indicates the
      * request was not successful
+     * @deprecated the ZIP archive is no longer written to the disk, use
+     * {@link #downloadUnpackedSample(java.lang.String)} instead
      */
+    @Deprecated
     public byte[] downloadUnpackedSample(String sha256, String tempPath) throws IOException {
-        JSONObject json = new JSONObject();
-        json.put("query", "get_unpacked");
-        json.put("sha256_hash", sha256);
-
-        byte[] rawResponse = connector.post(json.toString());
-
-        List<byte[]> files = readZipArchive(rawResponse, tempPath, "infected");
-        if (files.isEmpty() == false) {
-            return files.get(0);
-        } else {
-            throw new IOException("No such file found in the downloaded ZIP archive!");
-        }
+        return downloadUnpackedSample(sha256);
     }
 
     /**
      * Downloads the file of which the hash is given (which is unpacked by the
-     * service), if the file is present on the platform.<br>
-     * <br>
-     * The temporary file is saved in the temporary folder of the operating
-     * system, using the given SHA-256 hash as its file name. This method is not
-     * thread safe if the same hash is downloaded at the same time. Use another
-     * overload to provide a custom path instead!
+     * service), if the file is present on the platform. The ZIP archive is
+     * extracted in memory, meaning concurrent downloads (of the same hash) are
+     * thread safe.
      *
      * @param sha256 the SHA-256 hash of the file to download
      * @return the raw unpacked file
@@ -1002,20 +1700,40 @@ public class YaraifyApi {
      * request was not successful
      */
     public byte[] downloadUnpackedSample(String sha256) throws IOException {
+        //Only the first file is returned, so the other files are never inflated
+        try (YaraifyArchiveIterator iterator = iterateUnpackedSample(sha256)) {
+            if (iterator.hasNext()) {
+                return iterator.next().readAllBytes();
+            } else {
+                throw new IOException("No such file found in the downloaded ZIP archive!");
+            }
+        }
+    }
+
+    /**
+     * Downloads the files which the service unpacked from the file of which
+     * the hash is given, if the file is present on the platform. The files are
+     * returned as a lazy iterator, which only decrypts and inflates a file
+     * when its stream is read. This allows all unpacked files to be processed
+     * one at a time, and files which are not needed to be skipped without
+     * inflating them. Only the downloaded (compressed) archive is kept in
+     * memory, until the iterator is closed.
+     *
+     * @param sha256 the SHA-256 hash of the file of which the unpacked files
+     * should be downloaded
+     * @return an iterator over the unpacked files, which must be closed
+     * @throws IOException if the query status in the response indicates the
+     * request was not successful, or if the response is not a valid ZIP
+     * archive
+     */
+    public YaraifyArchiveIterator iterateUnpackedSample(String sha256) throws IOException {
         JSONObject json = new JSONObject();
         json.put("query", "get_unpacked");
         json.put("sha256_hash", sha256);
 
         byte[] rawResponse = connector.post(json.toString());
 
-        String tempPath = System.getProperty("java.io.tmpdir") + System.getProperty("file.separator") + sha256;
-
-        List<byte[]> files = readZipArchive(rawResponse, tempPath, "infected");
-        if (files.isEmpty() == false) {
-            return files.get(0);
-        } else {
-            throw new IOException("No such file found in the downloaded ZIP archive!");
-        }
+        return new YaraifyArchiveIterator(rawResponse, "infected");
     }
 
     /**
@@ -1050,16 +1768,17 @@ public class YaraifyApi {
      * request was not successful
      */
     public String downloadYaraRule(String uuid) throws IOException {
-        JSONObject json = new JSONObject();
-        json.put("query", "get_yara_rule");
-        json.put("uuid", uuid);
-
-        return new String(connector.post(json.toString()));
+        String rule = getStoredYaraRule(uuid);
+        if (rule != null) {
+            return rule;
+        }
+        return fetchYaraRule(uuid);
     }
 
     /**
      * Downloads Yara rules based on the given UUIDs.The rule's author needs to
-     * allow the download of rules, as set in the TLP-level of this rule.
+     * allow the download of rules, as set in the TLP-level of this rule. Up to
+     * 8 rules are downloaded concurrently.
      *
      * @param uuids the UUIDs of the Yara rules to download
      * @param suppressExceptions true to ignore exceptions, false to throw any
@@ -1070,16 +1789,41 @@ public class YaraifyApi {
      * request was not successful
      */
     public Map<String, String> downloadYaraRules(List<String> uuids, boolean suppressExceptions) throws IOException {
+        return downloadYaraRules(uuids, suppressExceptions, DEFAULT_RULE_DOWNLOAD_PARALLELISM);
+    }
+
+    /**
+     * Downloads Yara rules based on the given UUIDs, of which at most the
+     * given number are downloaded concurrently. The rule's author needs to
+     * allow the download of rules, as set in the TLP-level of this rule. Rules
+     * which are cached or stored are returned without making a request, and
+     * duplicate UUIDs are only downloaded once.
+     *
+     * @param uuids the UUIDs of the Yara rules to download
+     * @param suppressExceptions true to ignore exceptions, false to throw any
+     * encountered exception to the caller of this function
+     * @param parallelism the maximum number of concurrent downloads
+     * @return a mapping with all downloaded rules, where the map's key is the
+     * UUID, and the value for the given key is the rule
+     * @throws IOException if the query status in the response indicates the
+     * request was not successful, or if the calling thread is interrupted
+     * while waiting for the downloads
+     */
+    public Map<String, String> downloadYaraRules(List<String> uuids, boolean suppressExceptions, int parallelism) throws IOException {
         if (uuids == null || uuids.size() < 1) {
             throw new IOException("The given list of UUIDs is null or empty!");
         }
 
         Map<String, String> rules = new HashMap<>();
-
-        for (String uuid : uuids) {
+        List<String> missing = new ArrayList<>();
+        for (String uuid : new LinkedHashSet<>(uuids)) {
             try {
-                String rule = downloadYaraRule(uuid);
-                rules.put(uuid, rule);
+                String rule = getStoredYaraRule(uuid);
+                if (rule != null) {
+                    rules.put(uuid, rule);
+                } else {
+                    missing.add(uuid);
+                }
             } catch (IOException e) {
                 if (suppressExceptions == false) {
                     throw e;
@@ -1087,21 +1831,259 @@ public class YaraifyApi {
             }
         }
 
+        if (missing.isEmpty()) {
+            return rules;
+        }
+
+        if (parallelism <= 1 || missing.size() == 1) {
+            for (String uuid : missing) {
+                try {
+                    rules.put(uuid, fetchYaraRule(uuid));
+                } catch (IOException e) {
+                    if (suppressExceptions == false) {
+                        throw e;
+                    }
+                }
+            }
+            return rules;
+        }
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService downloaders = Executors.newFixedThreadPool(Math.min(parallelism, missing.size()), runnable -> {
+            Thread thread = new Thread(runnable, "yaraify-rule-download-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Map<String, Future<String>> downloads = new LinkedHashMap<>();
+            for (String uuid : missing) {
+                downloads.put(uuid, downloaders.submit(() -> fetchYaraRule(uuid)));
+            }
+            for (Map.Entry<String, Future<String>> download : downloads.entrySet()) {
+                try {
+                    rules.put(download.getKey(), download.getValue().get());
+                } catch (ExecutionException e) {
+                    if (suppressExceptions == false) {
+                        Throwable cause = e.getCause();
+                        throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading the Yara rules!");
+        } finally {
+            //Stops the remaining downloads if an exception is thrown, and the idle threads otherwise
+            downloaders.shutdownNow();
+        }
+
         return rules;
     }
 
+    /**
+     * Gets the rule with the given UUID from the cache, or from the rule store
+     * if it is not cached. A rule that is only found in the store is added to
+     * the cache.
+     *
+     * @param uuid the UUID of the Yara rule
+     * @return the rule, or null if it is neither cached nor stored
+     * @throws IOException if the store cannot be read
+     */
+    private String getStoredYaraRule(String uuid) throws IOException {
+        if (uuid == null) {
+            return null;
+        }
+        YaraifyCache activeCache = cache;
+        if (activeCache != null) {
+            Object cached = activeCache.get(YaraifyCacheEndpoint.YARA_RULE_DOWNLOAD, uuid);
+            if (cached != null && cached != YaraifyCache.NO_RESULTS) {
+                return (String) cached;
+            }
+        }
+        YaraifyRuleStore activeStore = ruleStore;
+        if (activeStore != null) {
+            String stored = activeStore.get(uuid);
+            if (stored != null) {
+                if (activeCache != null) {
+                    activeCache.put(YaraifyCacheEndpoint.YARA_RULE_DOWNLOAD, uuid, stored);
+                }
+                return stored;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Requests the rule with the given UUID, and writes it to the cache and
+     * the rule store, if any
+     *
+     * @param uuid the UUID of the Yara rule
+     * @return the complete Yara rule
+     * @throws IOException if the query status in the response indicates the
+     * request was not successful
+     */
+    private String fetchYaraRule(String uuid) throws IOException {
+        JSONObject json = new JSONObject();
+        json.put("query", "get_yara_rule");
+        json.put("uuid", uuid);
+
+        String rule = new String(connector.post(json.toString()));
+        //A rule is returned as plain text, whereas a refusal (such as due to the TLP-level) is a JSON object
+        if (rule.stripLeading().startsWith("{") && jsonParser.checkQueryStatus(rule) == false) {
+            throw new IOException(new JSONObject(rule).optString("query_status"));
+        }
+
+        if (uuid != null) {
+            YaraifyCache activeCache = cache;
+            if (activeCache != null) {
+                activeCache.put(YaraifyCacheEndpoint.YARA_RULE_DOWNLOAD, uuid, rule);
+            }
+            YaraifyRuleStore activeStore = ruleStore;
+            if (activeStore != null) {
+                try {
+                    activeStore.put(uuid, rule);
+                } catch (IOException e) {
+                    //The store is a shortcut for future downloads, a failure to write to it does not affect this download
+                }
+            }
+        }
+        return rule;
+    }
+
+    /**
+     * Sets the folder in which a copy of the rule archive is kept, along with
+     * its validators. This allows the conditional download of the rule archive
+     * to continue after a restart, rather than downloading the archive again.
+     * The in-memory copy is used regardless of this setting.
+     *
+     * @param ruleArchiveCacheFolder the folder to keep the rule archive in, or
+     * null to only keep the archive in memory
+     */
+    public void setRuleArchiveCacheFolder(File ruleArchiveCacheFolder) {
+        synchronized (ruleArchiveLock) {
+            this.ruleArchiveCacheFolder = ruleArchiveCacheFolder;
+        }
+    }
+
+    /**
+     * Requests the rule archive, using the validators of the cached copy (if
+     * any). If the server reports that the archive was not modified, the
+     * cached copy is kept. Otherwise, the cached copy and its validators are
+     * replaced, and the decoded rules are discarded. The caller must hold the
+     * rule archive lock.
+     *
+     * @return true if the archive changed, false if the cached copy is still
+     * up to date
+     * @throws IOException if the download failed due to any reason
+     */
+    private boolean refreshRuleArchive() throws IOException {
+        if (ruleArchive == null) {
+            loadRuleArchiveCache();
+        }
+
+        YaraifyConditionalResponse response;
+        if (ruleArchive == null) {
+            response = connector.get(RULE_ARCHIVE_URL, null, null);
+        } else {
+            response = connector.get(RULE_ARCHIVE_URL, ruleArchiveEtag, ruleArchiveLastModified);
+        }
+
+        if (response.isNotModified()) {
+            return false;
+        }
+
+        ruleArchive = response.getBody();
+        ruleArchiveEtag = response.getEtag();
+        ruleArchiveLastModified = response.getLastModified();
+        decodedRules = null;
+        saveRuleArchiveCache();
+        return true;
+    }
+
+    /**
+     * Loads the copy of the rule archive and its validators from the cache
+     * folder, if the folder is set and contains a copy. A copy without
+     * validators is ignored, as it cannot be validated. The caller must hold
+     * the rule archive lock.
+     */
+    private void loadRuleArchiveCache() {
+        if (ruleArchiveCacheFolder == null) {
+            return;
+        }
+        File archive = new File(ruleArchiveCacheFolder, "yaraify-rules.zip");
+        File validators = new File(ruleArchiveCacheFolder, "yaraify-rules.properties");
+        if (archive.isFile() == false || validators.isFile() == false) {
+            return;
+        }
+        try (InputStream inputStream = Files.newInputStream(validators.toPath())) {
+            Properties properties = new Properties();
+            properties.load(inputStream);
+            String etag = properties.getProperty("etag");
+            String lastModified = properties.getProperty("last-modified");
+            if (etag == null && lastModified == null) {
+                return;
+            }
+            ruleArchive = Files.readAllBytes(archive.toPath());
+            ruleArchiveEtag = etag;
+            ruleArchiveLastModified = lastModified;
+        } catch (IOException e) {
+            //An unreadable copy is the same as no copy, the archive is simply downloaded again
+        }
+    }
+
+    /**
+     * Writes the rule archive and its validators to the cache folder, if the
+     * folder is set. Both files are written to a temporary file first, and
+     * then moved in place. The caller must hold the rule archive lock.
+     *
+     * @throws IOException if the files cannot be written
+     */
+    private void saveRuleArchiveCache() throws IOException {
+        if (ruleArchiveCacheFolder == null) {
+            return;
+        }
+        ruleArchiveCacheFolder.mkdirs();
+        Properties properties = new Properties();
+        if (ruleArchiveEtag != null) {
+            properties.setProperty("etag", ruleArchiveEtag);
+        }
+        if (ruleArchiveLastModified != null) {
+            properties.setProperty("last-modified", ruleArchiveLastModified);
+        }
+
+        Path archive = new File(ruleArchiveCacheFolder, "yaraify-rules.zip").toPath();
+        Path validators = new File(ruleArchiveCacheFolder, "yaraify-rules.properties").toPath();
+        Path temporaryArchive = archive.resolveSibling("yaraify-rules.zip.tmp");
+        Path temporaryValidators = validators.resolveSibling("yaraify-rules.properties.tmp");
+
+        Files.write(temporaryArchive, ruleArchive);
+        try (OutputStream outputStream = Files.newOutputStream(temporaryValidators)) {
+            properties.store(outputStream, "Validators of the cached Yaraify rule archive");
+        }
+        Files.move(temporaryArchive, archive, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(temporaryValidators, validators, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
     /**
      * Download all Yara rules which are present on Yaraify bundeled in a ZIP
      * archive. A new list is generated every 5 minutes, keep that in mind when
      * polling. Only rules with the appropriate TLP-level are included in this
-     * download.
+     * download.<br>
+     * <br>
+     * The archive is kept in memory (and in the rule archive cache folder, if
+     * set), and subsequent calls perform a conditional request. If the archive
+     * was not modified, the server responds without sending the archive again,
+     * and the cached copy is returned.
      *
      * @return all downloadable Yara rules on Yaraify in a single ZIP archive
      * @throws IOException if the download failed due to any reason
      */
     public byte[] downloadAllYaraRulesAsArchive() throws IOException {
-        byte[] allYaraRules = connector.get("https://yaraify-api.abuse.ch/download/yaraify-rules.zip");
-        return allYaraRules;
+        synchronized (ruleArchiveLock) {
+            refreshRuleArchive();
+            //Return a copy, to keep the cached archive intact if the caller alters the returned array
+            return ruleArchive.clone();
+        }
     }
 
     /**
@@ -1109,24 +2091,16 @@ public class YaraifyApi {
      * generated every 5 minutes, keep that in mind when polling. Only rules
      * with the appropriate TLP-level are included in this download.
      *
-     * @param tempPath the path to temporarily write the ZIP archive towards. It
-     * is deleted once this function returns, regardless if an error occurs.
+     * @param tempPath unused, as the ZIP archive is extracted in memory
      * @return all downloadable Yara rules on Yaraify, one rule per string in
      * the given list
      * @throws IOException if the download failed due to any reason
+     * @deprecated the ZIP archive is no longer written to the disk, use
+     * {@link #downloadAllYaraRules()} instead
      */
+    @Deprecated
     public List<String> downloadAllYaraRules(String tempPath) throws IOException {
-        List<String> rules = new ArrayList<>();
-        //String tempPath = System.getProperty("java.io.tmpdir") + System.getProperty("file.separator") + sha256;
-        byte[] zip = connector.get("https://yaraify-api.abuse.ch/download/yaraify-rules.zip");
-
-        List<byte[]> rawFiles = readZipArchive(zip, tempPath);
-
-        for (byte[] rawFile : rawFiles) {
-            String rule = new String(rawFile);
-            rules.add(rule);
-        }
-        return rules;
+        return downloadAllYaraRules();
     }
 
     /**
@@ -1134,108 +2108,48 @@ public class YaraifyApi {
      * generated every 5 minutes, keep that in mind when polling. Only rules
      * with the appropriate TLP-level are included in this download.<br>
      * <br>
-     * This function is not thread safe, as it uses a specific file path to
-     * temporary file path. If you want to use this function in a threaded way,
-     * use the overload with a unique path per thread.
+     * The archive is downloaded conditionally, as described in
+     * {@link #downloadAllYaraRulesAsArchive()}. If the archive was not
+     * modified, the rules that were extracted from it during a previous call
+     * are returned, without extracting the archive again. The archive is
+     * extracted in memory, meaning this function is thread safe.
      *
      * @return all downloadable Yara rules on Yaraify, one rule per string in
      * the given list
      * @throws IOException if the download failed due to any reason
      */
     public List<String> downloadAllYaraRules() throws IOException {
-        String tempPath = System.getProperty("java.io.tmpdir") + System.getProperty("file.separator") + "all_yara_rules.zip";
-
-        return downloadAllYaraRules(tempPath);
-    }
-
-    /**
-     * Reads the contents of the given ZIP archive (passed as a byte array). It
-     * is temporarily written to the disk at the given path. The given password
-     * is only used if the ZIP is encrypted, if it is not null nor empty. The
-     * ZIP archive is removed from the disk prior to returning from this
-     * function, regardless if an error occurs.
-     *
-     * @param zip the ZIP archive as a byte array
-     * @param tempPath the temporary path to save the ZIP archive
-     * @param password the password with which the ZIP archive is protected
-     * @return a list of byte arrays, one for each of the ZIP files in the
-     * archive
-     * @throws IOException if the temporary path is not writeable, or if
-     * something goes wrong with the ZIP archive extraction
-     */
-    private List<byte[]> readZipArchive(byte[] zip, String tempPath, String password) throws IOException {
-        List<byte[]> files = new ArrayList<>();
-        File localFile = new File(tempPath);
-        localFile.getParentFile().mkdirs();
-        Files.write(localFile.toPath(), zip); //overwrites if it exists, not thread safe when downloading the same data, unless a unique path is given
-
-        try {
-            ZipFile zipFile = new ZipFile(localFile);
-            if (zipFile.isEncrypted() && password != null && password.isEmpty() == false) {
-                zipFile.setPassword(password.toCharArray());
+        synchronized (ruleArchiveLock) {
+            boolean changed = refreshRuleArchive();
+            if (changed == false && decodedRules != null) {
+                return new ArrayList<>(decodedRules);
             }
 
-            List<FileHeader> headers = zipFile.getFileHeaders();
+            List<String> rules = new ArrayList<>();
+            List<byte[]> rawFiles = readZipArchive(ruleArchive, null);
 
-            for (FileHeader header : headers) {
-                byte[] bytes = readFileFromZipArchive(zipFile, header);
-
-                //Ignore errors
-                if (bytes == null) {
-                    continue;
-                }
-                files.add(bytes);
+            for (byte[] rawFile : rawFiles) {
+                String rule = new String(rawFile);
+                rules.add(rule);
             }
-
-            //If all went well, delete the file
-            localFile.delete();
-
-            return files;
-        } catch (ZipException e) {
-            //Also delete the file if there is an error to avoid automated systems filling up over time
-            localFile.delete();
-            throw new IOException("Error whilst handling the (now deleted) ZIP archive:\n" + e.getMessage());
+            decodedRules = rules;
+            return new ArrayList<>(rules);
         }
     }
 
     /**
-     * Reads the contents of the given ZIP archive (passed as a byte array). It
-     * is temporarily written to the disk at the given path. The ZIP archive is
-     * removed from the disk prior to returning from this function, regardless
-     * if an error occurs.
+     * Reads the contents of the given ZIP archive (passed as a byte array). The
+     * archive is extracted in memory, without writing it to the disk. The given
+     * password is only used if it is not null nor empty.
      *
      * @param zip the ZIP archive as a byte array
-     * @param tempPath the temporary path to save the ZIP archive
-     * @return a list of byte arrays, one for each of the ZIP files in the
-     * archive
-     * @throws IOException if the temporary path is not writeable, or if
-     * something goes wrong with the ZIP archive extraction
-     */
-    private List<byte[]> readZipArchive(byte[] zip, String tempPath) throws IOException {
-        return readZipArchive(zip, tempPath, null);
-    }
-
-    /**
-     * Reads a file based on the given header from the given ZIP file
-     *
-     * @param zipFile the ZIP file to read the file from
-     * @param header the specific file to read from the ZIP archive
-     * @return the raw bytes of the file that was read, or null if an error
-     * occurred
+     * @param password the password with which the ZIP archive is protected, or
+     * null if it is not protected
+     * @return a list of byte arrays, one for each of the files in the archive
+     * @throws IOException if something goes wrong with the ZIP archive
+     * extraction
      */
-    private byte[] readFileFromZipArchive(ZipFile zipFile, FileHeader header) {
-        try {
-            ZipInputStream inputStream = zipFile.getInputStream(header);
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-
-            int offset = -1;
-            byte[] buff = new byte[1024];
-            while ((offset = inputStream.read(buff)) != -1) {
-                outputStream.write(buff, 0, offset);
-            }
-            return outputStream.toByteArray();
-        } catch (IOException e) {
-            return null;
-        }
+    private List<byte[]> readZipArchive(byte[] zip, String password) throws IOException {
+        return zipExtractor.extract(zip, password);
     }
 }
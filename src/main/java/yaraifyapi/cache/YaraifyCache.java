@@ -0,0 +1,439 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.cache;
+
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+
+/**
+ * A size bounded, in-memory cache for API responses. When the cache is full,
+ * expired entries are dropped first. If none have expired, the least
+ * frequently used entry is evicted, where the least recently used entry is
+ * evicted among entries with the same frequency. Each endpoint has
+ * its own time to live, after which an entry is no longer returned.<br>
+ * <br>
+ * Optionally, the absence of results (a "no_results" response) is cached as
+ * well, using a separate time to live. Such entries are returned as
+ * {@link #NO_RESULTS}.<br>
+ * <br>
+ * Values are stored and returned by reference, meaning a returned value must
+ * not be altered. Lookups take constant time, while stores and the
+ * invalidation of a single key take logarithmic time, as the entries are also
+ * ordered by their expiration time. An eviction that follows removals may
+ * scan the distinct access frequencies to find the new minimum, and the
+ * invalidation of an endpoint scans all entries. All operations are thread safe.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class YaraifyCache {
+
+    /**
+     * The value that is returned for cached lookups which had no results
+     */
+    public static final Object NO_RESULTS = new Object();
+
+    /**
+     * The key of a cache entry, which consists of the endpoint and the key
+     * within that endpoint
+     */
+    private static final class CacheKey {
+
+        private final YaraifyCacheEndpoint endpoint;
+        private final String key;
+
+        CacheKey(YaraifyCacheEndpoint endpoint, String key) {
+            this.endpoint = endpoint;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (this == object) {
+                return true;
+            }
+            if (object instanceof CacheKey == false) {
+                return false;
+            }
+            CacheKey other = (CacheKey) object;
+            return endpoint == other.endpoint && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(endpoint, key);
+        }
+    }
+
+    /**
+     * A cached value, with its key, expiration time and access frequency. The
+     * sequence number orders entries which expire at the same time.
+     */
+    private static final class CacheEntry {
+
+        private final CacheKey key;
+        private final Object value;
+        private final long expiresAt;
+        private final long sequence;
+        private int frequency;
+
+        CacheEntry(CacheKey key, Object value, long expiresAt, long sequence) {
+            this.key = key;
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.sequence = sequence;
+            this.frequency = 1;
+        }
+    }
+
+    private final int maximumSize;
+    private final Map<CacheKey, CacheEntry> entries;
+
+    /**
+     * The keys per access frequency, in the order of their last access
+     */
+    private final Map<Integer, LinkedHashSet<CacheKey>> frequencies;
+
+    /**
+     * The lowest frequency of any entry in the cache
+     */
+    private int minimumFrequency;
+
+    /**
+     * All entries, ordered by their expiration time, which allows expired
+     * entries to be dropped before a valid entry is evicted
+     */
+    private final TreeSet<CacheEntry> expiryOrder;
+    private long sequence;
+
+    private final Map<YaraifyCacheEndpoint, Long> ttls;
+    private boolean negativeCaching;
+    private long negativeTtlMillis;
+
+    private long hits;
+    private long negativeHits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    /**
+     * Creates a cache with the given maximum number of entries. By default,
+     * task results and downloaded Yara rules are kept for a day (as neither
+     * changes often), file hash lookups for an hour, and all other lookups for
+     * fifteen minutes. Negative caching is enabled, with a time to live of five
+     * minutes.
+     *
+     * @param maximumSize the maximum number of entries
+     */
+    public YaraifyCache(int maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("The maximum size of the cache must be at least one!");
+        }
+        this.maximumSize = maximumSize;
+        this.entries = new HashMap<>();
+        this.frequencies = new HashMap<>();
+        this.minimumFrequency = 0;
+        this.expiryOrder = new TreeSet<>(Comparator.comparingLong((CacheEntry entry) -> entry.expiresAt).thenComparingLong(entry -> entry.sequence));
+        this.sequence = 0;
+        this.ttls = new EnumMap<>(YaraifyCacheEndpoint.class);
+        for (YaraifyCacheEndpoint endpoint : YaraifyCacheEndpoint.values()) {
+            ttls.put(endpoint, 15 * 60 * 1000L);
+        }
+        ttls.put(YaraifyCacheEndpoint.TASK_ID, 24 * 60 * 60 * 1000L);
+        ttls.put(YaraifyCacheEndpoint.FILE_HASH, 60 * 60 * 1000L);
+        ttls.put(YaraifyCacheEndpoint.YARA_RULE_DOWNLOAD, 24 * 60 * 60 * 1000L);
+        this.negativeCaching = true;
+        this.negativeTtlMillis = 5 * 60 * 1000L;
+    }
+
+    /**
+     * Gets the cached value for the given key
+     *
+     * @param endpoint the endpoint the key belongs to
+     * @param key the key to look up
+     * @return the cached value, {@link #NO_RESULTS} if the absence of results
+     * is cached, or null if there is no (valid) cached value
+     */
+    public synchronized Object get(YaraifyCacheEndpoint endpoint, String key) {
+        CacheKey cacheKey = new CacheKey(endpoint, key);
+        CacheEntry entry = entries.get(cacheKey);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            remove(cacheKey, entry);
+            expirations++;
+            misses++;
+            return null;
+        }
+
+        touch(cacheKey, entry);
+        hits++;
+        if (entry.value == NO_RESULTS) {
+            negativeHits++;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Stores the given value, replacing any existing value for the same key
+     *
+     * @param endpoint the endpoint the key belongs to
+     * @param key the key to store the value under
+     * @param value the value to store
+     */
+    public synchronized void put(YaraifyCacheEndpoint endpoint, String key, Object value) {
+        if (value == null) {
+            return;
+        }
+        store(new CacheKey(endpoint, key), value, ttls.get(endpoint));
+    }
+
+    /**
+     * Stores the absence of results for the given key, if negative caching is
+     * enabled
+     *
+     * @param endpoint the endpoint the key belongs to
+     * @param key the key which has no results
+     */
+    public synchronized void putNoResults(YaraifyCacheEndpoint endpoint, String key) {
+        if (negativeCaching == false) {
+            return;
+        }
+        store(new CacheKey(endpoint, key), NO_RESULTS, negativeTtlMillis);
+    }
+
+    /**
+     * Removes the cached value for the given key, if any
+     *
+     * @param endpoint the endpoint the key belongs to
+     * @param key the key to remove
+     */
+    public synchronized void invalidate(YaraifyCacheEndpoint endpoint, String key) {
+        CacheKey cacheKey = new CacheKey(endpoint, key);
+        CacheEntry entry = entries.get(cacheKey);
+        if (entry != null) {
+            remove(cacheKey, entry);
+        }
+    }
+
+    /**
+     * Removes all cached values of the given endpoint
+     *
+     * @param endpoint the endpoint to remove the values of
+     */
+    public synchronized void invalidate(YaraifyCacheEndpoint endpoint) {
+        Iterator<Map.Entry<CacheKey, CacheEntry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<CacheKey, CacheEntry> entry = iterator.next();
+            if (entry.getKey().endpoint == endpoint) {
+                iterator.remove();
+                expiryOrder.remove(entry.getValue());
+                removeFrequency(entry.getKey(), entry.getValue().frequency);
+            }
+        }
+    }
+
+    /**
+     * Removes all cached values
+     */
+    public synchronized void invalidateAll() {
+        entries.clear();
+        frequencies.clear();
+        expiryOrder.clear();
+        minimumFrequency = 0;
+    }
+
+    /**
+     * Takes a snapshot of the statistics of this cache
+     *
+     * @return the statistics of this cache
+     */
+    public synchronized YaraifyCacheStatistics getStatistics() {
+        return new YaraifyCacheStatistics(hits, negativeHits, misses, evictions, expirations, entries.size());
+    }
+
+    /**
+     * Gets the time to live of the given endpoint
+     *
+     * @param endpoint the endpoint to get the time to live of
+     * @return the time to live in milliseconds
+     */
+    public synchronized long getTtlMillis(YaraifyCacheEndpoint endpoint) {
+        return ttls.get(endpoint);
+    }
+
+    /**
+     * Sets the time to live of the given endpoint. Entries that are already
+     * cached keep their original expiration time.
+     *
+     * @param endpoint the endpoint to set the time to live of
+     * @param ttlMillis the time to live in milliseconds
+     */
+    public synchronized void setTtlMillis(YaraifyCacheEndpoint endpoint, long ttlMillis) {
+        ttls.put(endpoint, ttlMillis);
+    }
+
+    public synchronized boolean isNegativeCaching() {
+        return negativeCaching;
+    }
+
+    public synchronized void setNegativeCaching(boolean negativeCaching) {
+        this.negativeCaching = negativeCaching;
+    }
+
+    public synchronized long getNegativeTtlMillis() {
+        return negativeTtlMillis;
+    }
+
+    public synchronized void setNegativeTtlMillis(long negativeTtlMillis) {
+        this.negativeTtlMillis = negativeTtlMillis;
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Stores the given value. If the cache is full, the expired entries are
+     * dropped, and if none have expired, the least frequently used entry is
+     * evicted.
+     *
+     * @param cacheKey the key to store the value under
+     * @param value the value to store
+     * @param ttlMillis the time to live of the value
+     */
+    private void store(CacheKey cacheKey, Object value, long ttlMillis) {
+        if (ttlMillis <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        CacheEntry existing = entries.get(cacheKey);
+        if (existing != null) {
+            remove(cacheKey, existing);
+        } else if (entries.size() >= maximumSize) {
+            removeExpired(now);
+            if (entries.size() >= maximumSize) {
+                evict();
+            }
+        }
+
+        CacheEntry entry = new CacheEntry(cacheKey, value, now + ttlMillis, sequence++);
+        //A replaced value keeps the frequency of the value it replaces
+        if (existing != null) {
+            entry.frequency = existing.frequency;
+        }
+        entries.put(cacheKey, entry);
+        expiryOrder.add(entry);
+        frequencies.computeIfAbsent(entry.frequency, key -> new LinkedHashSet<>()).add(cacheKey);
+        if (existing == null || entry.frequency < minimumFrequency || entries.size() == 1) {
+            minimumFrequency = entry.frequency;
+        }
+    }
+
+    /**
+     * Increments the frequency of the given entry
+     *
+     * @param cacheKey the key of the entry
+     * @param entry the entry that was accessed
+     */
+    private void touch(CacheKey cacheKey, CacheEntry entry) {
+        int frequency = entry.frequency;
+        LinkedHashSet<CacheKey> keys = frequencies.get(frequency);
+        keys.remove(cacheKey);
+        if (keys.isEmpty()) {
+            frequencies.remove(frequency);
+            if (minimumFrequency == frequency) {
+                minimumFrequency = frequency + 1;
+            }
+        }
+        //Saturate rather than overflow for extremely popular entries
+        if (entry.frequency < Integer.MAX_VALUE) {
+            entry.frequency++;
+        }
+        frequencies.computeIfAbsent(entry.frequency, key -> new LinkedHashSet<>()).add(cacheKey);
+    }
+
+    /**
+     * Removes all entries which have expired
+     *
+     * @param now the current time in milliseconds
+     */
+    private void removeExpired(long now) {
+        while (expiryOrder.isEmpty() == false && expiryOrder.first().expiresAt <= now) {
+            CacheEntry entry = expiryOrder.first();
+            remove(entry.key, entry);
+            expirations++;
+        }
+    }
+
+    /**
+     * Evicts the least recently used entry among the least frequently used
+     * entries
+     */
+    private void evict() {
+        LinkedHashSet<CacheKey> keys = frequencies.get(minimumFrequency);
+        if (keys == null || keys.isEmpty()) {
+            //The minimum is stale after removals, so it is recomputed
+            if (frequencies.isEmpty()) {
+                return;
+            }
+            minimumFrequency = Integer.MAX_VALUE;
+            for (Integer frequency : frequencies.keySet()) {
+                minimumFrequency = Math.min(minimumFrequency, frequency);
+            }
+            keys = frequencies.get(minimumFrequency);
+        }
+        CacheKey victim = keys.iterator().next();
+        remove(victim, entries.get(victim));
+        evictions++;
+    }
+
+    /**
+     * Removes the given entry
+     *
+     * @param cacheKey the key of the entry
+     * @param entry the entry to remove
+     */
+    private void remove(CacheKey cacheKey, CacheEntry entry) {
+        entries.remove(cacheKey);
+        expiryOrder.remove(entry);
+        removeFrequency(cacheKey, entry.frequency);
+    }
+
+    /**
+     * Removes the given key from the given frequency bucket
+     *
+     * @param cacheKey the key to remove
+     * @param frequency the frequency of the key
+     */
+    private void removeFrequency(CacheKey cacheKey, int frequency) {
+        LinkedHashSet<CacheKey> keys = frequencies.get(frequency);
+        if (keys != null) {
+            keys.remove(cacheKey);
+            if (keys.isEmpty()) {
+                frequencies.remove(frequency);
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.cache;
+
+/**
+ * The API endpoints of which the responses can be cached. Each endpoint has
+ * its own time to live.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public enum YaraifyCacheEndpoint {
+    FILE_HASH,
+    TASK_ID,
+    YARA_RULE,
+    YARA_RULE_DOWNLOAD,
+    CLAMAV_RULE,
+    IMPORT_HASH,
+    TLSH,
+    TELF_HASH,
+    GIMP_HASH,
+    ICON_DHASH
+}
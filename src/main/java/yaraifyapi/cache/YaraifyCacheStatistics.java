@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.cache;
+
+/**
+ * A snapshot of the statistics of a cache, taken at the moment the statistics
+ * were requested
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class YaraifyCacheStatistics {
+
+    private final long hits;
+    private final long negativeHits;
+    private final long misses;
+    private final long evictions;
+    private final long expirations;
+    private final int size;
+
+    public YaraifyCacheStatistics(long hits, long negativeHits, long misses, long evictions, long expirations, int size) {
+        this.hits = hits;
+        this.negativeHits = negativeHits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.expirations = expirations;
+        this.size = size;
+    }
+
+    /**
+     * Gets the number of lookups that were answered with a cached value,
+     * including the cached absence of results
+     *
+     * @return the number of hits
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of lookups that were answered with the cached absence
+     * of results
+     *
+     * @return the number of negative hits
+     */
+    public long getNegativeHits() {
+        return negativeHits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Gets the number of entries that were removed to make room for new
+     * entries
+     *
+     * @return the number of evictions
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Gets the number of entries that were removed because their time to live
+     * had passed
+     *
+     * @return the number of expirations
+     */
+    public long getExpirations() {
+        return expirations;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the fraction of lookups that were hits
+     *
+     * @return the hit rate between 0 and 1, or 0 if no lookups were made
+     */
+    public double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d (negative=%d), misses=%d, evictions=%d, expirations=%d, size=%d, hit rate=%.2f", hits, negativeHits, misses, evictions, expirations, size, getHitRate());
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.download;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import yaraifyapi.YaraifyApi;
+
+/**
+ * Downloads many samples concurrently, while limiting the number of bytes
+ * that are held in memory. Each sample is streamed from the response into
+ * memory, reserving its bytes from a (possibly shared) memory budget. If the
+ * budget is exhausted, the sample is spilled to a file in the spill folder
+ * instead. Each finished download is reported to the listener as soon as it
+ * finishes, and every sample is verified against its hash.<br>
+ * <br>
+ * The memory of a result is only returned to the budget once the result is
+ * closed, so callers should close each result once it is processed.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class BulkSampleDownloader {
+
+    /**
+     * The API instance to make the requests with
+     */
+    private final YaraifyApi api;
+
+    /**
+     * The budget of bytes that may be held in memory
+     */
+    private final MemoryBudget budget;
+
+    /**
+     * The folder in which samples are stored if the budget is exhausted
+     */
+    private final Path spillFolder;
+
+    /**
+     * The threads that perform the downloads
+     */
+    private final ExecutorService downloaders;
+
+    /**
+     * Creates a bulk downloader
+     *
+     * @param api the API instance to make the requests with
+     * @param threads the maximum number of concurrent downloads
+     * @param budget the budget of bytes that may be held in memory, which may
+     * be shared with other downloaders
+     * @param spillFolder the folder in which samples are stored if the budget
+     * is exhausted
+     */
+    public BulkSampleDownloader(YaraifyApi api, int threads, MemoryBudget budget, Path spillFolder) {
+        this.api = api;
+        this.budget = budget;
+        this.spillFolder = spillFolder;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.downloaders = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "yaraify-downloader-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Downloads the samples with the given hashes concurrently. Duplicate
+     * hashes are only downloaded once. The listener (if any) is notified of
+     * each download as soon as it finishes, while this function returns once
+     * all downloads finished.
+     *
+     * @param sha256Hashes the SHA-256 hashes of the samples to download
+     * @param listener the listener to notify of each finished download, or
+     * null if there is none
+     * @return the results of the downloads, in the order of the given hashes
+     * @throws InterruptedException if the thread is interrupted while waiting
+     * for the downloads to finish
+     */
+    public List<SampleDownload> download(Collection<String> sha256Hashes, SampleDownloadListener listener) throws InterruptedException {
+        try {
+            return downloadAsync(sha256Hashes, listener).get();
+        } catch (ExecutionException e) {
+            //Failed downloads are reported in their results, so this cannot occur
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Downloads the samples with the given hashes concurrently, without
+     * waiting for the downloads to finish. Duplicate hashes are only
+     * downloaded once. The listener (if any) is notified of each download as
+     * soon as it finishes.
+     *
+     * @param sha256Hashes the SHA-256 hashes of the samples to download
+     * @param listener the listener to notify of each finished download, or
+     * null if there is none
+     * @return a future which completes with the results of the downloads, in
+     * the order of the given hashes, once all downloads finished
+     */
+    public CompletableFuture<List<SampleDownload>> downloadAsync(Collection<String> sha256Hashes, SampleDownloadListener listener) {
+        Set<String> unique = new LinkedHashSet<>();
+        for (String sha256 : sha256Hashes) {
+            unique.add(sha256.toLowerCase(Locale.ROOT));
+        }
+
+        List<CompletableFuture<SampleDownload>> futures = new ArrayList<>();
+        for (String sha256 : unique) {
+            futures.add(CompletableFuture.supplyAsync(() -> download(sha256, listener), downloaders));
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            List<SampleDownload> downloads = new ArrayList<>();
+            for (CompletableFuture<SampleDownload> future : futures) {
+                downloads.add(future.join());
+            }
+            return downloads;
+        });
+    }
+
+    /**
+     * Downloads a single sample into memory, or into a spill file if the
+     * budget is exhausted, and notifies the listener
+     *
+     * @param sha256 the SHA-256 hash of the sample to download
+     * @param listener the listener to notify, or null if there is none
+     * @return the result of the download
+     */
+    private SampleDownload download(String sha256, SampleDownloadListener listener) {
+        SampleDownload download;
+        SpillingChannel channel = new SpillingChannel(budget, spillFolder, sha256);
+        try {
+            api.downloadSampleTo(sha256, channel);
+            download = channel.finish();
+        } catch (IOException e) {
+            channel.discard();
+            download = new SampleDownload(sha256, null, null, 0, e, budget);
+        }
+
+        if (listener != null) {
+            try {
+                listener.onDownloadFinished(download);
+            } catch (RuntimeException e) {
+                //A failing listener must not prevent the result from being returned
+            }
+        }
+        return download;
+    }
+
+    /**
+     * Gets the budget of bytes that may be held in memory
+     *
+     * @return the memory budget
+     */
+    public MemoryBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * Stops all downloads. Pending downloads are not started, meaning the
+     * futures of bulk downloads which are still running never complete.
+     */
+    public void shutdown() {
+        downloaders.shutdownNow();
+    }
+}
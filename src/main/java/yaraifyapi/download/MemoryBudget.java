@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.download;
+
+/**
+ * A budget of bytes which may be held in memory, which can be shared between
+ * several downloaders. Bytes are reserved before they are held in memory, and
+ * released once they are no longer needed. Reservations never block: if the
+ * budget is exhausted, the reservation fails and the caller has to store the
+ * data elsewhere.<br>
+ * <br>
+ * All functions are thread safe.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class MemoryBudget {
+
+    private final long capacity;
+    private long used;
+
+    /**
+     * Creates a budget of the given size
+     *
+     * @param capacity the maximum number of bytes which may be reserved at the
+     * same time
+     */
+    public MemoryBudget(long capacity) {
+        this.capacity = Math.max(0, capacity);
+        this.used = 0;
+    }
+
+    /**
+     * Reserves the given number of bytes, if the budget allows it
+     *
+     * @param bytes the number of bytes to reserve
+     * @return true if the bytes are reserved, false if the budget does not
+     * have enough bytes available
+     */
+    public synchronized boolean tryReserve(long bytes) {
+        if (bytes < 0 || used + bytes > capacity) {
+            return false;
+        }
+        used += bytes;
+        return true;
+    }
+
+    /**
+     * Releases the given number of bytes, which must have been reserved before
+     *
+     * @param bytes the number of bytes to release
+     */
+    public synchronized void release(long bytes) {
+        used = Math.max(0, used - bytes);
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    public synchronized long getAvailable() {
+        return capacity - used;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.download;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The result of a single download of a bulk download. A successfully
+ * downloaded sample is either held in memory, or spilled to a file if the
+ * memory budget was exhausted. Closing the result releases its share of the
+ * memory budget and deletes the spilled file, if any. Results which are not
+ * closed keep their share of the budget, causing subsequent downloads to be
+ * spilled to the disk.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class SampleDownload implements Closeable {
+
+    private final String sha256;
+    private final byte[] data;
+    private final Path path;
+    private final long size;
+    private final IOException exception;
+    private final MemoryBudget budget;
+    private boolean closed;
+
+    SampleDownload(String sha256, byte[] data, Path path, long size, IOException exception, MemoryBudget budget) {
+        this.sha256 = sha256;
+        this.data = data;
+        this.path = path;
+        this.size = size;
+        this.exception = exception;
+        this.budget = budget;
+        this.closed = false;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    /**
+     * Checks if the sample was downloaded
+     *
+     * @return true if the sample was downloaded, false if the download failed
+     */
+    public boolean isSuccessful() {
+        return exception == null;
+    }
+
+    /**
+     * Gets the reason why the download failed
+     *
+     * @return the exception, or null if the download succeeded
+     */
+    public IOException getException() {
+        return exception;
+    }
+
+    /**
+     * Checks if the sample was spilled to a file, rather than held in memory
+     *
+     * @return true if the sample is stored in a file, false if not
+     */
+    public boolean isSpilled() {
+        return path != null;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the sample if it is held in memory
+     *
+     * @return the sample, or null if it was spilled to a file or if the
+     * download failed
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Gets the file that the sample was spilled to
+     *
+     * @return the path of the file, or null if the sample is held in memory or
+     * if the download failed
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Opens a stream of the sample, regardless if it is held in memory or
+     * spilled to a file
+     *
+     * @return the sample
+     * @throws IOException if the download failed, if this result is closed,
+     * or if the spilled file cannot be opened
+     */
+    public synchronized InputStream openInputStream() throws IOException {
+        if (exception != null) {
+            throw exception;
+        }
+        if (closed) {
+            throw new IOException("The downloaded sample is closed!");
+        }
+        if (path != null) {
+            return Files.newInputStream(path);
+        }
+        return new ByteArrayInputStream(data);
+    }
+
+    /**
+     * Releases the share of the memory budget that this result holds, and
+     * deletes the spilled file, if any. Closing a result more than once has no
+     * effect.
+     *
+     * @throws IOException if the spilled file cannot be deleted
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (data != null) {
+            budget.release(data.length);
+        }
+        if (path != null) {
+            Files.deleteIfExists(path);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.download;
+
+/**
+ * A listener which is notified of each finished download of a bulk download.
+ * It is called from the thread that performed the download, meaning it must
+ * be thread safe.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public interface SampleDownloadListener {
+
+    /**
+     * Called once the download of a sample finished, regardless if it
+     * succeeded
+     *
+     * @param download the result of the download
+     */
+    void onDownloadFinished(SampleDownload download);
+}
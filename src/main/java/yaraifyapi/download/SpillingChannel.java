@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.download;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A channel which collects the written data in memory, for as long as the
+ * memory budget allows. Once the budget is exhausted, the data that was
+ * collected so far is written to a file, its share of the budget is released,
+ * and all subsequent data is written to that file as well.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+class SpillingChannel implements WritableByteChannel {
+
+    /**
+     * The initial capacity of the in-memory buffer
+     */
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    private final MemoryBudget budget;
+    private final Path spillFolder;
+    private final String sha256;
+    private byte[] buffer;
+    private int count;
+    private Path spillPath;
+    private FileChannel spillChannel;
+    private boolean open;
+
+    /**
+     * Creates a channel which reserves its memory from the given budget
+     *
+     * @param budget the budget to reserve the memory from
+     * @param spillFolder the folder to create the spill file in
+     * @param sha256 the hash of the sample, which is used as the prefix of
+     * the spill file's name
+     */
+    SpillingChannel(MemoryBudget budget, Path spillFolder, String sha256) {
+        this.budget = budget;
+        this.spillFolder = spillFolder;
+        this.sha256 = sha256;
+        this.buffer = new byte[0];
+        this.count = 0;
+        this.open = true;
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        if (open == false) {
+            throw new IOException("The channel is closed!");
+        }
+        int length = source.remaining();
+        if (spillChannel == null && ensureCapacity(count + length)) {
+            source.get(buffer, count, length);
+            count += length;
+            return length;
+        }
+        if (spillChannel == null) {
+            spill();
+        }
+        while (source.hasRemaining()) {
+            spillChannel.write(source);
+        }
+        return length;
+    }
+
+    /**
+     * Grows the in-memory buffer to hold at least the given number of bytes,
+     * if the budget allows it. The capacity grows in steps, to avoid copying
+     * the buffer for every write.
+     *
+     * @param required the number of bytes the buffer has to hold
+     * @return true if the buffer can hold the given number of bytes, false if
+     * the budget does not allow it
+     */
+    private boolean ensureCapacity(int required) {
+        if (required < 0) {
+            return false;
+        }
+        if (required <= buffer.length) {
+            return true;
+        }
+        int capacity = Math.max(required, Math.max(INITIAL_CAPACITY, buffer.length * 2));
+        if (capacity < 0 || budget.tryReserve(capacity - buffer.length) == false) {
+            //Retry with exactly the required capacity, before giving up on the budget
+            if (budget.tryReserve(required - buffer.length) == false) {
+                return false;
+            }
+            capacity = required;
+        }
+        buffer = Arrays.copyOf(buffer, capacity);
+        return true;
+    }
+
+    /**
+     * Moves the collected data to a new spill file, and releases its share of
+     * the budget
+     *
+     * @throws IOException if the spill file cannot be written
+     */
+    private void spill() throws IOException {
+        Files.createDirectories(spillFolder);
+        spillPath = Files.createTempFile(spillFolder, sha256, ".sample");
+        spillChannel = FileChannel.open(spillPath, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer collected = ByteBuffer.wrap(buffer, 0, count);
+        while (collected.hasRemaining()) {
+            spillChannel.write(collected);
+        }
+        budget.release(buffer.length);
+        buffer = null;
+    }
+
+    /**
+     * Closes the channel and creates the result of the download. An in-memory
+     * buffer is trimmed to the written data, and the budget of the unused
+     * capacity is released.
+     *
+     * @return the result of the download
+     * @throws IOException if the spill file cannot be closed
+     */
+    SampleDownload finish() throws IOException {
+        close();
+        if (spillPath != null) {
+            return new SampleDownload(sha256, null, spillPath, Files.size(spillPath), null, budget);
+        }
+        byte[] data = buffer;
+        if (data.length != count) {
+            data = Arrays.copyOf(buffer, count);
+            budget.release(buffer.length - count);
+        }
+        buffer = null;
+        return new SampleDownload(sha256, data, null, count, null, budget);
+    }
+
+    /**
+     * Closes the channel, and discards the written data
+     */
+    void discard() {
+        try {
+            close();
+        } catch (IOException e) {
+            //The data is discarded, so a failure to close the spill file is irrelevant
+        }
+        if (buffer != null) {
+            budget.release(buffer.length);
+            buffer = null;
+        }
+        if (spillPath != null) {
+            try {
+                Files.deleteIfExists(spillPath);
+            } catch (IOException e) {
+                //The file is in the spill folder, which the caller can clean up
+            }
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        open = false;
+        if (spillChannel != null) {
+            spillChannel.close();
+        }
+    }
+}
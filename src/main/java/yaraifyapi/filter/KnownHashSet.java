@@ -0,0 +1,510 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.filter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import yaraifyapi.util.HashUtil;
+
+/**
+ * A read-only set of SHA-256 hashes of files that are known to be benign, such
+ * as the hashes in a vendor or operating system allowlist. The set is stored in
+ * a flat file that is memory mapped, meaning that the hashes are never loaded
+ * on the heap, regardless of the size of the set, and that multiple processes
+ * share the same pages.
+ * <br>
+ * <br>
+ * The file starts with a header and a table of 65536 offsets, one for each
+ * value of the first two bytes of a hash, which is followed by the sorted raw
+ * hashes. A lookup uses the table to find the range of hashes with the same
+ * first two bytes, which is then binary searched. As SHA-256 hashes are
+ * uniformly distributed, the range contains roughly one in 65536 hashes, and a
+ * lookup in a set of a hundred million hashes takes about eleven comparisons.
+ * <br>
+ * <br>
+ * The file is created with {@link #build(java.nio.file.Path, java.nio.file.Path)}
+ * from a text file with one hash per line. Instances are safe to use from
+ * multiple threads.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class KnownHashSet {
+
+    /**
+     * The magic value at the start of each file, which is "YKHS" in ASCII
+     */
+    private static final int MAGIC = 0x594B4853;
+
+    /**
+     * The version of the file format
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The size of a raw SHA-256 hash in bytes
+     */
+    private static final int SHA256_SIZE = 32;
+
+    /**
+     * The number of distinct values of the first two bytes of a hash
+     */
+    private static final int PREFIX_COUNT = 1 << 16;
+
+    /**
+     * The size of the header, which consists of the magic value, the version,
+     * the number of hashes, and the offset table
+     */
+    private static final long HEADER_SIZE = 16 + (PREFIX_COUNT + 1) * 8L;
+
+    /**
+     * The shift that corresponds with the size of a mapped segment. A single
+     * buffer cannot map more than 2 GB, so larger files are mapped in segments
+     * of 1 GB. As this is a multiple of the hash size, no hash spans two
+     * segments.
+     */
+    private static final int SEGMENT_SHIFT = 30;
+
+    /**
+     * The mask to get the offset within a segment
+     */
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    /**
+     * The index of the first hash for each prefix, where the last entry is the
+     * number of hashes
+     */
+    private final long[] offsets;
+
+    /**
+     * The mapped segments that contain the sorted hashes
+     */
+    private final MappedByteBuffer[] segments;
+
+    /**
+     * The number of hashes in the set
+     */
+    private final long count;
+
+    /**
+     * Opens the known hash set in the given file, as created by
+     * {@link #build(java.nio.file.Path, java.nio.file.Path)}. The file is
+     * mapped in memory, and must not be modified while this set is in use.
+     *
+     * @param path the file to open
+     * @throws IOException if the file cannot be read, or is not a valid known
+     * hash set
+     */
+    public KnownHashSet(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("The given file is not a valid known hash set!");
+            }
+            ByteBuffer header = ByteBuffer.allocate((int) HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) == -1) {
+                    throw new IOException("The given file is not a valid known hash set!");
+                }
+            }
+            header.flip();
+
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("The given file is not a valid known hash set!");
+            }
+            count = header.getLong();
+            if (count < 0 || channel.size() != HEADER_SIZE + count * SHA256_SIZE) {
+                throw new IOException("The given file is not a valid known hash set!");
+            }
+
+            offsets = new long[PREFIX_COUNT + 1];
+            for (int i = 0; i <= PREFIX_COUNT; i++) {
+                offsets[i] = header.getLong();
+                //The offsets are to be ascending, and within the bounds of the set
+                if (offsets[i] < (i == 0 ? 0 : offsets[i - 1]) || offsets[i] > count) {
+                    throw new IOException("The given file is not a valid known hash set!");
+                }
+            }
+            if (offsets[0] != 0 || offsets[PREFIX_COUNT] != count) {
+                throw new IOException("The given file is not a valid known hash set!");
+            }
+
+            segments = map(channel, HEADER_SIZE, count * SHA256_SIZE, FileChannel.MapMode.READ_ONLY);
+        }
+    }
+
+    /**
+     * Checks if the given hash is in the set
+     *
+     * @param sha256 the hexadecimal SHA-256 hash to check, in either lower or
+     * upper case
+     * @return true if the hash is in the set, false if not, or if the given
+     * string is not a valid SHA-256 hash
+     */
+    public boolean contains(String sha256) {
+        if (HashUtil.isSha256(sha256) == false) {
+            return false;
+        }
+        return contains(HashUtil.fromHex(sha256));
+    }
+
+    /**
+     * Checks if the given raw hash is in the set
+     *
+     * @param rawSha256 the raw SHA-256 hash to check
+     * @return true if the hash is in the set, false if not, or if the given
+     * array is not 32 bytes long
+     */
+    public boolean contains(byte[] rawSha256) {
+        if (rawSha256 == null || rawSha256.length != SHA256_SIZE) {
+            return false;
+        }
+        ByteBuffer key = ByteBuffer.wrap(rawSha256);
+        int prefix = key.getShort(0) & 0xFFFF;
+
+        long low = offsets[prefix];
+        long high = offsets[prefix + 1] - 1;
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+            int comparison = compare(segments, middle, key);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the number of hashes in the set
+     *
+     * @return the number of hashes
+     */
+    public long size() {
+        return count;
+    }
+
+    /**
+     * Creates a known hash set from the given text file, and writes it to the
+     * given path. Each line of the text file starts with a hexadecimal SHA-256
+     * hash, which may be followed by whitespace or a comma and any other text,
+     * such as the file name in the output of sha256sum. Lines that do not start
+     * with a hash, such as comments and headers, are ignored, as are duplicate
+     * hashes.
+     * <br>
+     * <br>
+     * The hashes are sorted outside of the heap: the text file is read twice,
+     * first to count the hashes per prefix, and then to place each hash in its
+     * prefix range within a memory mapped scratch file. Each range is then
+     * sorted on its own, which means that the memory usage is bound by the
+     * largest range rather than the number of hashes. The set is written next
+     * to the given path, and moved in place once it is complete.
+     *
+     * @param hashList the text file to read the hashes from
+     * @param path the file to write the set to
+     * @return the number of distinct hashes in the set
+     * @throws IOException if the text file cannot be read, if it is modified
+     * while the set is created, or if the set cannot be written
+     */
+    public static long build(Path hashList, Path path) throws IOException {
+        //Count the hashes per prefix
+        long[] starts = new long[PREFIX_COUNT + 1];
+        long total = 0;
+        try (BufferedReader reader = Files.newBufferedReader(hashList, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                byte[] rawSha256 = parseLine(line);
+                if (rawSha256 != null) {
+                    starts[prefixOf(rawSha256) + 1]++;
+                    total++;
+                }
+            }
+        }
+        for (int i = 0; i < PREFIX_COUNT; i++) {
+            starts[i + 1] += starts[i];
+        }
+
+        Path scratch = path.resolveSibling(path.getFileName() + ".unsorted");
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        long distinct = 0;
+        try {
+            try (FileChannel scratchChannel = FileChannel.open(scratch, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer[] scratchSegments = map(scratchChannel, 0, total * SHA256_SIZE, FileChannel.MapMode.READ_WRITE);
+
+                //Place each hash within the range of its prefix
+                long[] cursors = new long[PREFIX_COUNT];
+                System.arraycopy(starts, 0, cursors, 0, PREFIX_COUNT);
+                try (BufferedReader reader = Files.newBufferedReader(hashList, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        byte[] rawSha256 = parseLine(line);
+                        if (rawSha256 != null) {
+                            int prefix = prefixOf(rawSha256);
+                            if (cursors[prefix] == starts[prefix + 1]) {
+                                throw new IOException("The given hash list was modified while the known hash set was created!");
+                            }
+                            long position = cursors[prefix]++ * SHA256_SIZE;
+                            MappedByteBuffer segment = scratchSegments[(int) (position >>> SEGMENT_SHIFT)];
+                            int offset = (int) (position & SEGMENT_MASK);
+                            for (int i = 0; i < SHA256_SIZE; i++) {
+                                segment.put(offset + i, rawSha256[i]);
+                            }
+                        }
+                    }
+                }
+
+                //Sort each range, and write the distinct hashes in order
+                long[] offsets = new long[PREFIX_COUNT + 1];
+                try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    ByteBuffer output = ByteBuffer.allocate(1 << 16);
+                    channel.position(HEADER_SIZE);
+                    for (int prefix = 0; prefix < PREFIX_COUNT; prefix++) {
+                        offsets[prefix] = distinct;
+                        long rangeSize = starts[prefix + 1] - starts[prefix];
+                        if (rangeSize > Integer.MAX_VALUE / 4) {
+                            throw new IOException("The given hash list contains too many hashes with the same prefix!");
+                        }
+                        long[] range = readRange(scratchSegments, starts[prefix], (int) rangeSize);
+                        sort(range, 0, (int) rangeSize - 1);
+                        for (int i = 0; i < rangeSize; i++) {
+                            if (i > 0 && compare(range, i, range, i - 1) == 0) {
+                                continue;
+                            }
+                            if (output.remaining() < SHA256_SIZE) {
+                                write(channel, output);
+                            }
+                            for (int j = 0; j < 4; j++) {
+                                output.putLong(range[i * 4 + j]);
+                            }
+                            distinct++;
+                        }
+                    }
+                    offsets[PREFIX_COUNT] = distinct;
+                    write(channel, output);
+
+                    ByteBuffer header = ByteBuffer.allocate((int) HEADER_SIZE);
+                    header.putInt(MAGIC);
+                    header.putInt(VERSION);
+                    header.putLong(distinct);
+                    for (long offset : offsets) {
+                        header.putLong(offset);
+                    }
+                    header.flip();
+                    channel.position(0);
+                    while (header.hasRemaining()) {
+                        channel.write(header);
+                    }
+                    channel.force(true);
+                }
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+            Files.deleteIfExists(scratch);
+        }
+        return distinct;
+    }
+
+    /**
+     * Maps the given region of the channel in segments of at most 1 GB
+     *
+     * @param channel the channel to map
+     * @param position the start of the region
+     * @param size the size of the region
+     * @param mode the mode to map the region with
+     * @return the mapped segments
+     * @throws IOException if the region cannot be mapped
+     */
+    private static MappedByteBuffer[] map(FileChannel channel, long position, long size, FileChannel.MapMode mode) throws IOException {
+        int segmentCount = (int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+        MappedByteBuffer[] mapped = new MappedByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            long start = (long) i << SEGMENT_SHIFT;
+            mapped[i] = channel.map(mode, position + start, Math.min(1L << SEGMENT_SHIFT, size - start));
+        }
+        return mapped;
+    }
+
+    /**
+     * Compares the hash at the given index with the given key, using the
+     * unsigned byte order
+     *
+     * @param segments the segments that contain the hashes
+     * @param index the index of the hash to compare
+     * @param key the raw hash to compare with
+     * @return a negative number, zero, or a positive number if the hash is
+     * respectively smaller than, equal to, or larger than the key
+     */
+    private static int compare(MappedByteBuffer[] segments, long index, ByteBuffer key) {
+        long position = index * SHA256_SIZE;
+        MappedByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)];
+        int offset = (int) (position & SEGMENT_MASK);
+        for (int i = 0; i < SHA256_SIZE; i += 8) {
+            int comparison = Long.compareUnsigned(segment.getLong(offset + i), key.getLong(i));
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Compares two hashes that are stored as four longs each, using the
+     * unsigned byte order
+     *
+     * @param a the array that contains the first hash
+     * @param aIndex the index of the first hash
+     * @param b the array that contains the second hash
+     * @param bIndex the index of the second hash
+     * @return a negative number, zero, or a positive number if the first hash
+     * is respectively smaller than, equal to, or larger than the second hash
+     */
+    private static int compare(long[] a, int aIndex, long[] b, int bIndex) {
+        for (int i = 0; i < 4; i++) {
+            int comparison = Long.compareUnsigned(a[aIndex * 4 + i], b[bIndex * 4 + i]);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Reads the given range of hashes from the scratch segments, as four longs
+     * per hash
+     *
+     * @param segments the scratch segments
+     * @param start the index of the first hash in the range
+     * @param size the number of hashes in the range
+     * @return the hashes in the range
+     */
+    private static long[] readRange(MappedByteBuffer[] segments, long start, int size) {
+        long[] range = new long[size * 4];
+        for (int i = 0; i < size; i++) {
+            long position = (start + i) * SHA256_SIZE;
+            MappedByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)];
+            int offset = (int) (position & SEGMENT_MASK);
+            for (int j = 0; j < 4; j++) {
+                range[i * 4 + j] = segment.getLong(offset + j * 8);
+            }
+        }
+        return range;
+    }
+
+    /**
+     * Sorts the hashes between the given indices, both inclusive, with a
+     * quicksort. The recursion only descends into the smaller partition, which
+     * bounds the depth of the stack.
+     *
+     * @param hashes the hashes, stored as four longs each
+     * @param low the index of the first hash to sort
+     * @param high the index of the last hash to sort
+     */
+    private static void sort(long[] hashes, int low, int high) {
+        while (high - low > 16) {
+            swap(hashes, (low + high) >>> 1, high);
+            int store = low;
+            for (int i = low; i < high; i++) {
+                if (compare(hashes, i, hashes, high) < 0) {
+                    swap(hashes, i, store++);
+                }
+            }
+            swap(hashes, store, high);
+            if (store - low < high - store) {
+                sort(hashes, low, store - 1);
+                low = store + 1;
+            } else {
+                sort(hashes, store + 1, high);
+                high = store - 1;
+            }
+        }
+
+        //Small ranges are sorted with an insertion sort
+        for (int i = low + 1; i <= high; i++) {
+            for (int j = i; j > low && compare(hashes, j, hashes, j - 1) < 0; j--) {
+                swap(hashes, j, j - 1);
+            }
+        }
+    }
+
+    /**
+     * Swaps two hashes
+     *
+     * @param hashes the hashes, stored as four longs each
+     * @param a the index of the first hash
+     * @param b the index of the second hash
+     */
+    private static void swap(long[] hashes, int a, int b) {
+        for (int i = 0; i < 4; i++) {
+            long value = hashes[a * 4 + i];
+            hashes[a * 4 + i] = hashes[b * 4 + i];
+            hashes[b * 4 + i] = value;
+        }
+    }
+
+    /**
+     * Writes and clears the given buffer
+     *
+     * @param channel the channel to write to
+     * @param buffer the buffer to write
+     * @throws IOException if the buffer cannot be written
+     */
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Parses the hash at the start of the given line
+     *
+     * @param line the line to parse
+     * @return the raw hash, or null if the line does not start with a hash
+     */
+    private static byte[] parseLine(String line) {
+        String trimmed = line.trim();
+        if (trimmed.length() < 64 || (trimmed.length() > 64 && Character.isWhitespace(trimmed.charAt(64)) == false && trimmed.charAt(64) != ',')) {
+            return null;
+        }
+        String sha256 = trimmed.substring(0, 64);
+        if (HashUtil.isSha256(sha256) == false) {
+            return null;
+        }
+        return HashUtil.fromHex(sha256);
+    }
+
+    /**
+     * Gets the first two bytes of the given raw hash as a number
+     *
+     * @param rawSha256 the raw hash
+     * @return the prefix of the hash
+     */
+    private static int prefixOf(byte[] rawSha256) {
+        return ((rawSha256[0] & 0xFF) << 8) | (rawSha256[1] & 0xFF);
+    }
+}
@@ -0,0 +1,480 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.filter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import yaraifyapi.util.HashUtil;
+
+/**
+ * A persistent, scalable Bloom filter of the SHA-256 hashes of files that were
+ * submitted to Yaraify, which retains the submissions across runs. A Bloom
+ * filter never reports a submitted hash as absent, but may report a hash that
+ * was never submitted as present, meaning a positive answer is to be confirmed
+ * with Yaraify before an upload is skipped.
+ * <br>
+ * <br>
+ * The filter starts with a single Bloom filter that fits the initial capacity.
+ * Once it is full, a filter that is twice as large is added, with a false
+ * positive rate that is half as large. The false positive rate of all filters
+ * combined therefore never exceeds the configured rate, regardless of the
+ * number of hashes that are added.
+ * <br>
+ * <br>
+ * The filter is stored in a snapshot file, and each added hash is appended to
+ * a journal file next to it, which is replayed when the filter is opened. A
+ * partially written entry at the end of the journal is discarded. Once
+ * the journal grows large, a new snapshot is written and the journal is
+ * cleared. Instances are safe to use from multiple threads, but a file must
+ * not be used by more than one instance at a time.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class SubmittedHashFilter {
+
+    /**
+     * The magic value at the start of each snapshot, which is "YSBF" in ASCII
+     */
+    private static final int SNAPSHOT_MAGIC = 0x59534246;
+
+    /**
+     * The version of the snapshot format
+     */
+    private static final int SNAPSHOT_VERSION = 1;
+
+    /**
+     * The size of a raw SHA-256 hash in bytes
+     */
+    private static final int SHA256_SIZE = 32;
+
+    /**
+     * The number of journal entries after which a new snapshot is written
+     */
+    private static final int MAXIMUM_JOURNAL_ENTRIES = 65536;
+
+    /**
+     * The snapshot file
+     */
+    private final Path snapshotFile;
+
+    /**
+     * The journal file, which contains the raw hashes that were added after
+     * the snapshot was written
+     */
+    private final Path journalFile;
+
+    /**
+     * The number of hashes that the first filter is sized for
+     */
+    private final long initialCapacity;
+
+    /**
+     * The maximum false positive rate of all filters combined
+     */
+    private final double falsePositiveRate;
+
+    /**
+     * The filters, of which only the last one is added to
+     */
+    private final List<BloomFilter> filters;
+
+    /**
+     * The number of entries in the journal
+     */
+    private int journalEntries;
+
+    /**
+     * The lock that guards the filters and the files
+     */
+    private final ReentrantReadWriteLock lock;
+
+    /**
+     * Opens the filter that is stored in the given file, or creates a new
+     * filter if the file does not exist. An existing filter keeps the initial
+     * capacity and false positive rate it was created with, and the given
+     * values are only used when a new filter is created.
+     *
+     * @param path the snapshot file of the filter, next to which the journal
+     * is stored
+     * @param initialCapacity the number of hashes that the first filter is
+     * sized for, which must be positive
+     * @param falsePositiveRate the maximum false positive rate, which must be
+     * larger than 0 and smaller than 1
+     * @throws IOException if the filter cannot be read, or is not a valid
+     * filter
+     */
+    public SubmittedHashFilter(Path path, long initialCapacity, double falsePositiveRate) throws IOException {
+        if (initialCapacity <= 0) {
+            throw new IllegalArgumentException("The initial capacity must be positive!");
+        }
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("The false positive rate must be larger than 0 and smaller than 1!");
+        }
+        this.snapshotFile = path;
+        this.journalFile = path.resolveSibling(path.getFileName() + ".journal");
+        this.filters = new ArrayList<>();
+        this.lock = new ReentrantReadWriteLock();
+        this.journalEntries = 0;
+
+        if (Files.exists(snapshotFile)) {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile), 1 << 16))) {
+                if (input.readInt() != SNAPSHOT_MAGIC || input.readInt() != SNAPSHOT_VERSION) {
+                    throw new IOException("The given file is not a valid submitted hash filter!");
+                }
+                this.initialCapacity = input.readLong();
+                this.falsePositiveRate = input.readDouble();
+                int filterCount = input.readInt();
+                if (this.initialCapacity <= 0 || (this.falsePositiveRate > 0 && this.falsePositiveRate < 1) == false || filterCount < 1 || filterCount > 62) {
+                    throw new IOException("The given file is not a valid submitted hash filter!");
+                }
+                for (int i = 0; i < filterCount; i++) {
+                    BloomFilter filter = createFilter(i);
+                    filter.count = input.readLong();
+                    int wordCount = input.readInt();
+                    if (filter.count < 0 || wordCount != filter.words.length) {
+                        throw new IOException("The given file is not a valid submitted hash filter!");
+                    }
+                    for (int j = 0; j < wordCount; j++) {
+                        filter.words[j] = input.readLong();
+                    }
+                    filters.add(filter);
+                }
+            }
+        } else {
+            this.initialCapacity = initialCapacity;
+            this.falsePositiveRate = falsePositiveRate;
+            filters.add(createFilter(0));
+        }
+
+        if (Files.exists(journalFile)) {
+            byte[] journal = Files.readAllBytes(journalFile);
+            for (int offset = 0; offset + SHA256_SIZE <= journal.length; offset += SHA256_SIZE) {
+                ByteBuffer hash = ByteBuffer.wrap(journal, offset, SHA256_SIZE).slice();
+                if (mightContain(hash) == false) {
+                    insert(hash);
+                }
+                journalEntries++;
+            }
+            //A partially written entry at the end of the journal is removed, as the entries that are appended later would be misaligned otherwise
+            if (journal.length % SHA256_SIZE != 0) {
+                try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+                    channel.truncate((long) journalEntries * SHA256_SIZE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if the given hash might have been submitted. A negative answer is
+     * always correct, while a positive answer is wrong with a probability of
+     * at most the false positive rate.
+     *
+     * @param sha256 the hexadecimal SHA-256 hash to check, in either lower or
+     * upper case
+     * @return true if the hash might have been submitted, false if it has not
+     * been submitted, or if the given string is not a valid SHA-256 hash
+     */
+    public boolean mightContain(String sha256) {
+        if (HashUtil.isSha256(sha256) == false) {
+            return false;
+        }
+        lock.readLock().lock();
+        try {
+            return mightContain(ByteBuffer.wrap(HashUtil.fromHex(sha256)));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the given hash to the filter, and appends it to the journal
+     *
+     * @param sha256 the hexadecimal SHA-256 hash of the submitted file, in
+     * either lower or upper case
+     * @return true if the hash was added, false if the filter might already
+     * contain it
+     * @throws IOException if the given hash is not a valid SHA-256 hash, or if
+     * the journal or snapshot cannot be written
+     */
+    public boolean add(String sha256) throws IOException {
+        if (HashUtil.isSha256(sha256) == false) {
+            throw new IOException("The given hash is not a valid SHA-256 hash!");
+        }
+        byte[] rawSha256 = HashUtil.fromHex(sha256);
+        ByteBuffer hash = ByteBuffer.wrap(rawSha256);
+        lock.writeLock().lock();
+        try {
+            if (mightContain(hash)) {
+                return false;
+            }
+            Files.write(journalFile, rawSha256, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            insert(hash);
+            journalEntries++;
+            if (journalEntries >= MAXIMUM_JOURNAL_ENTRIES) {
+                writeSnapshot();
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes a snapshot of the filter and clears the journal, which makes the
+     * next start faster. This is done automatically once the journal grows
+     * large.
+     *
+     * @throws IOException if the snapshot cannot be written, or if the journal
+     * cannot be cleared
+     */
+    public void compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            writeSnapshot();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of hashes that were added to the filter
+     *
+     * @return the number of hashes
+     */
+    public long size() {
+        lock.readLock().lock();
+        try {
+            long size = 0;
+            for (BloomFilter filter : filters) {
+                size += filter.count;
+            }
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of Bloom filters, which grows as hashes are added
+     *
+     * @return the number of filters
+     */
+    public int getFilterCount() {
+        lock.readLock().lock();
+        try {
+            return filters.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the size of all filters combined
+     *
+     * @return the size in bytes
+     */
+    public long getSizeInBytes() {
+        lock.readLock().lock();
+        try {
+            long bytes = 0;
+            for (BloomFilter filter : filters) {
+                bytes += filter.words.length * 8L;
+            }
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getInitialCapacity() {
+        return initialCapacity;
+    }
+
+    public double getFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    /**
+     * Writes the filters to a snapshot file, which is moved in place once it
+     * is complete, after which the journal is cleared. The write lock is to
+     * be held by the caller.
+     *
+     * @throws IOException if the snapshot cannot be written, or if the journal
+     * cannot be cleared
+     */
+    private void writeSnapshot() throws IOException {
+        Path temporary = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+            output.writeInt(SNAPSHOT_MAGIC);
+            output.writeInt(SNAPSHOT_VERSION);
+            output.writeLong(initialCapacity);
+            output.writeDouble(falsePositiveRate);
+            output.writeInt(filters.size());
+            for (BloomFilter filter : filters) {
+                output.writeLong(filter.count);
+                output.writeInt(filter.words.length);
+                for (long word : filter.words) {
+                    output.writeLong(word);
+                }
+            }
+        }
+        Files.move(temporary, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        //Replaying an entry that is already in the snapshot has no effect, so a failure past this point loses nothing
+        Files.deleteIfExists(journalFile);
+        journalEntries = 0;
+    }
+
+    /**
+     * Checks if any of the filters might contain the given raw hash. The lock
+     * is to be held by the caller.
+     *
+     * @param hash the raw hash to check
+     * @return true if the hash might be in the filter, false if not
+     */
+    private boolean mightContain(ByteBuffer hash) {
+        long first = hash.getLong(0);
+        long second = hash.getLong(8) | 1;
+        //The newest filter contains the most hashes, and is checked first
+        for (int i = filters.size() - 1; i >= 0; i--) {
+            if (filters.get(i).mightContain(first, second)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the given raw hash to the newest filter, and adds a new filter if
+     * the newest one is full. The write lock is to be held by the caller.
+     *
+     * @param hash the raw hash to add
+     */
+    private void insert(ByteBuffer hash) {
+        BloomFilter filter = filters.get(filters.size() - 1);
+        filter.add(hash.getLong(0), hash.getLong(8) | 1);
+        if (filter.count >= filter.capacity) {
+            filters.add(createFilter(filters.size()));
+        }
+    }
+
+    /**
+     * Creates an empty filter at the given position in the sequence of
+     * filters. Each filter has twice the capacity of the previous one, and
+     * half of its false positive rate, so the rates of all filters sum up to
+     * at most the configured rate.
+     *
+     * @param index the position of the filter
+     * @return the filter
+     */
+    private BloomFilter createFilter(int index) {
+        long capacity = initialCapacity << index;
+        double rate = falsePositiveRate / (2L << index);
+        //The optimal number of bits and hash functions for the given capacity and rate
+        long bitCount = (long) Math.ceil(capacity * -Math.log(rate) / (Math.log(2) * Math.log(2)));
+        int hashCount = (int) Math.max(1, Math.round((double) bitCount / capacity * Math.log(2)));
+        long wordCount = Math.max(1, (bitCount + 63) >>> 6);
+        if (wordCount > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("The submitted hash filter cannot grow any further!");
+        }
+        return new BloomFilter(capacity, hashCount, new long[(int) wordCount]);
+    }
+
+    /**
+     * A single Bloom filter with a fixed capacity. As the SHA-256 hashes are
+     * uniformly distributed, the bit positions are derived from the first
+     * sixteen bytes of the hash with double hashing, rather than by hashing
+     * the hash again.
+     */
+    private static class BloomFilter {
+
+        /**
+         * The number of hashes after which the filter is full
+         */
+        private final long capacity;
+
+        /**
+         * The number of bits that are set per hash
+         */
+        private final int hashCount;
+
+        /**
+         * The bits of the filter
+         */
+        private final long[] words;
+
+        /**
+         * The number of hashes that were added
+         */
+        private long count;
+
+        private BloomFilter(long capacity, int hashCount, long[] words) {
+            this.capacity = capacity;
+            this.hashCount = hashCount;
+            this.words = words;
+            this.count = 0;
+        }
+
+        /**
+         * Checks if all bits of the given hash are set
+         *
+         * @param first the first part of the hash
+         * @param second the second part of the hash, which is odd
+         * @return true if the hash might be in the filter, false if not
+         */
+        private boolean mightContain(long first, long second) {
+            long bitCount = words.length * 64L;
+            long position = first;
+            for (int i = 0; i < hashCount; i++) {
+                long bit = Long.remainderUnsigned(position, bitCount);
+                if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
+                position += second;
+            }
+            return true;
+        }
+
+        /**
+         * Sets all bits of the given hash
+         *
+         * @param first the first part of the hash
+         * @param second the second part of the hash, which is odd
+         */
+        private void add(long first, long second) {
+            long bitCount = words.length * 64L;
+            long position = first;
+            for (int i = 0; i < hashCount; i++) {
+                long bit = Long.remainderUnsigned(position, bitCount);
+                words[(int) (bit >>> 6)] |= 1L << bit;
+                position += second;
+            }
+            count++;
+        }
+    }
+}
@@ -19,6 +19,7 @@ package yaraifyapi.json;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import yaraifyapi.model.YaraifyIdentifierResult;
@@ -57,6 +58,20 @@ public class JsonParser {
     }
 
     public List<YaraifyIdentifierResult> parseIdentifier(String json) {
+        return parseIdentifier(json, null);
+    }
+
+    /**
+     * Parses the tasks of an identifier, but only creates result objects for
+     * tasks of which the status differs from the given known status. Tasks
+     * that are unchanged since a previous request are skipped.
+     *
+     * @param json the response to parse
+     * @param knownStatuses the known status per task ID, or null to include
+     * all tasks
+     * @return the tasks which are new, or of which the status changed
+     */
+    public List<YaraifyIdentifierResult> parseIdentifier(String json, Map<String, String> knownStatuses) {
         List<YaraifyIdentifierResult> results = new ArrayList<>();
 
         if (json == null) {
@@ -79,6 +94,9 @@ public class JsonParser {
 
             String taskId = item.optString("task_id");
             String taskSTatus = item.optString("task_status");
+            if (knownStatuses != null && taskSTatus.equalsIgnoreCase(knownStatuses.get(taskId))) {
+                continue;
+            }
             String md5 = item.optString("md5_hash");
             String sha256 = item.optString("sha256_hash");
             String fileName = item.optString("file_name");
@@ -118,7 +136,10 @@ public class JsonParser {
         String telfHash = json.optString("telfhash");
         String gimpHash = json.optString("gimphash");
         String dhashIcon = json.optString("dhash_icon");
-        return new YaraifyMetadata(fileName, fileSize, fileTypeMime, firstSeen, lastSeen, sightings, sha256, md5, sha1, sha3_384, importHash, ssdeep, tlsh, telfHash, gimpHash, dhashIcon);
+        YaraifyMetadata metadata = new YaraifyMetadata(fileName, fileSize, fileTypeMime, firstSeen, lastSeen, sightings, sha256, md5, sha1, sha3_384, importHash, ssdeep, tlsh, telfHash, gimpHash, dhashIcon);
+        //Only present in the response of a file upload
+        metadata.setTaskId(json.optString("task_id"));
+        return metadata;
     }
 
     public List<YaraifyMetadata> getMetadatas(String json) {
@@ -200,6 +221,10 @@ public class JsonParser {
             return null;
         }
         YaraifyMetadata metadata = getMetadata(data.optJSONObject("metadata"));
+        //A task which is still queued has no metadata yet
+        if (metadata == null) {
+            return null;
+        }
 
         List<YaraifyTask> yaraifyTasks = new ArrayList<>();
 
@@ -226,6 +251,22 @@ public class JsonParser {
         JSONObject jsonObject = new JSONObject(json);
 
         JSONObject data = jsonObject.optJSONObject("data");
+        if (data == null) {
+            return null;
+        }
+        return getTaskResult(data, jsonObject.optJSONArray("clamav_results"));
+    }
+
+    /**
+     * Parses the "data" object of a hash lookup response, or the output of
+     * the {@link JsonSerializer} for a task result
+     *
+     * @param data the object that contains the metadata and the tasks
+     * @param defaultClamAvResults the ClamAV results to use for tasks which
+     * do not contain ClamAV results themselves, can be null
+     * @return the parsed task result
+     */
+    public YaraifyTaskResult getTaskResult(JSONObject data, JSONArray defaultClamAvResults) {
         if (data == null) {
             return null;
         }
@@ -247,7 +288,11 @@ public class JsonParser {
                 String timestamp = task.optString("time_stamp");
                 String fileName = task.optString("file_name");
 
-                List<String> clamAvResults = getClamAvResults(jsonObject.optJSONArray("clamav_results"));
+                JSONArray clamAvArray = task.optJSONArray("clamav_results");
+                if (clamAvArray == null) {
+                    clamAvArray = defaultClamAvResults;
+                }
+                List<String> clamAvResults = getClamAvResults(clamAvArray);
 
                 List<YaraifyYaraResult> staticResults = getYaraResult(task.optJSONArray("static_results"));
 
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.json;
+
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import yaraifyapi.model.YaraifyMetadata;
+import yaraifyapi.model.YaraifyTask;
+import yaraifyapi.model.YaraifyTaskResult;
+import yaraifyapi.model.YaraifyUnpackResult;
+import yaraifyapi.model.YaraifyYaraResult;
+
+/**
+ * Converts model objects back into JSON, using the same field names as the
+ * API responses. The output can be parsed with the {@link JsonParser}, which
+ * allows model objects to be stored locally and restored later on.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class JsonSerializer {
+
+    public JSONObject toJson(YaraifyMetadata metadata) {
+        JSONObject json = new JSONObject();
+        if (metadata == null) {
+            return json;
+        }
+        json.put("file_name", metadata.getFileName());
+        json.put("file_size", metadata.getFileSize());
+        json.put("file_type_mime", metadata.getFileTypeMime());
+        json.put("first_seen", metadata.getFirstSeen());
+        json.put("last_seen", metadata.getLastSeen());
+        json.put("sightings", metadata.getSightings());
+        json.put("sha256_hash", metadata.getSha256());
+        json.put("md5_hash", metadata.getMd5());
+        json.put("sha1_hash", metadata.getSha1());
+        json.put("sha3_384", metadata.getSha3_384());
+        json.put("imphash", metadata.getImportHash());
+        json.put("ssdeep", metadata.getSsdeep());
+        json.put("tlsh", metadata.getTlsh());
+        json.put("telfhash", metadata.getTelfHash());
+        json.put("gimphash", metadata.getGimpHash());
+        json.put("dhash_icon", metadata.getDhashIcon());
+        json.put("task_id", metadata.getTaskId());
+        return json;
+    }
+
+    /**
+     * Converts the given task result into the "data" object of a hash lookup
+     * response. The ClamAV results are stored per task.
+     *
+     * @param result the task result to convert
+     * @return the JSON representation of the given task result
+     */
+    public JSONObject toJson(YaraifyTaskResult result) {
+        JSONObject json = new JSONObject();
+        if (result == null) {
+            return json;
+        }
+        json.put("metadata", toJson(result.getMetadata()));
+
+        JSONArray tasks = new JSONArray();
+        if (result.getTasks() != null) {
+            for (YaraifyTask task : result.getTasks()) {
+                tasks.put(toJson(task));
+            }
+        }
+        json.put("tasks", tasks);
+        return json;
+    }
+
+    public JSONObject toJson(YaraifyTask task) {
+        JSONObject json = new JSONObject();
+        json.put("task_id", task.getTaskId());
+        json.put("time_stamp", task.getTimestamp());
+        json.put("file_name", task.getFileName());
+        json.put("clamav_results", new JSONArray(task.getClamAvResults()));
+        json.put("static_results", toJson(task.getStaticResults()));
+
+        JSONArray unpackResults = new JSONArray();
+        if (task.getUnpackResults() != null) {
+            for (YaraifyUnpackResult unpackResult : task.getUnpackResults()) {
+                JSONObject item = new JSONObject();
+                item.put("unpacked_file_name", unpackResult.getUnpackedFileName());
+                item.put("unpacked_md5", unpackResult.getUnpackedMd5());
+                item.put("unpacked_sha256", unpackResult.getUnpackedSha256());
+                item.put("unpacked_yara_matches", toJson(unpackResult.getYaraResults()));
+                unpackResults.put(item);
+            }
+        }
+        json.put("unpacker_results", unpackResults);
+        return json;
+    }
+
+    public JSONArray toJson(List<YaraifyYaraResult> yaraResults) {
+        JSONArray json = new JSONArray();
+        if (yaraResults == null) {
+            return json;
+        }
+        for (YaraifyYaraResult yaraResult : yaraResults) {
+            JSONObject item = new JSONObject();
+            item.put("rule_name", yaraResult.getRuleName());
+            item.put("author", yaraResult.getAuthor());
+            item.put("description", yaraResult.getDescription());
+            item.put("reference", yaraResult.getReference());
+            item.put("tlp", yaraResult.getTlp());
+            json.put(item);
+        }
+        return json;
+    }
+}
@@ -38,6 +38,7 @@ public class YaraifyMetadata {
     private String telfHash;
     private String gimpHash;
     private String dhashIcon;
+    private String taskId;
 
     public YaraifyMetadata(String fileName, int fileSize, String fileTypeMime, String firstSeen, String lastSeen, int sightings, String sha256, String md5, String sha1, String sha3_384, String importHash, String ssdeep, String tlsh, String telfHash, String gimpHash, String dhashIcon) {
         this.fileName = fileName;
@@ -185,4 +186,19 @@ public class YaraifyMetadata {
     public void setDhashIcon(String dhashIcon) {
         this.dhashIcon = dhashIcon;
     }
+
+    /**
+     * Gets the ID of the task that was created for this file. This value is
+     * only present when the metadata is returned by a file upload, and is an
+     * empty string otherwise.
+     *
+     * @return the task ID, or an empty string if there is none
+     */
+    public String getTaskId() {
+        return taskId;
+    }
+
+    public void setTaskId(String taskId) {
+        this.taskId = taskId;
+    }
 }
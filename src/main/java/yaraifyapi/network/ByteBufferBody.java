@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MIME;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+
+/**
+ * A multipart body part which is backed by a byte buffer. The remaining bytes
+ * of the buffer (between its position and limit) are written directly to the
+ * request, without copying them into an intermediate array first. Heap and
+ * direct buffers are both supported. The given buffer's position is never
+ * changed, meaning the body can be written more than once (i.e. when a request
+ * is retried).
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class ByteBufferBody extends AbstractContentBody {
+
+    /**
+     * The buffer to write
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * The file name to use in the multipart body
+     */
+    private final String fileName;
+
+    /**
+     * Creates a body part for the remaining bytes in the given buffer
+     *
+     * @param buffer the buffer to upload, from its position up until its limit
+     * @param fileName the file name to use in the multipart body
+     */
+    public ByteBufferBody(ByteBuffer buffer, String fileName) {
+        super(ContentType.DEFAULT_BINARY);
+        this.buffer = buffer;
+        this.fileName = fileName;
+    }
+
+    @Override
+    public String getFilename() {
+        return fileName;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        //Use a duplicate to leave the position of the given buffer untouched
+        ByteBuffer duplicate = buffer.duplicate();
+        if (duplicate.hasArray()) {
+            //Heap buffers can be written in one go, without any copy
+            out.write(duplicate.array(), duplicate.arrayOffset() + duplicate.position(), duplicate.remaining());
+        } else {
+            WritableByteChannel channel = Channels.newChannel(out);
+            while (duplicate.hasRemaining()) {
+                channel.write(duplicate);
+            }
+        }
+        out.flush();
+    }
+
+    @Override
+    public String getTransferEncoding() {
+        return MIME.ENC_BINARY;
+    }
+
+    @Override
+    public long getContentLength() {
+        return buffer.remaining();
+    }
+}
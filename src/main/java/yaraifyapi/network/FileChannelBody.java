@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MIME;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+
+/**
+ * A multipart body part which is backed by a region of a file channel. The
+ * region is transferred using {@link FileChannel#transferTo}, which allows the
+ * operating system to move the data without copying it onto the heap. The
+ * channel's position is never changed, and the channel is not closed by this
+ * class.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class FileChannelBody extends AbstractContentBody {
+
+    /**
+     * The channel to read the region from
+     */
+    private final FileChannel channel;
+
+    /**
+     * The offset of the region in the channel
+     */
+    private final long position;
+
+    /**
+     * The size of the region in bytes
+     */
+    private final long size;
+
+    /**
+     * The file name to use in the multipart body
+     */
+    private final String fileName;
+
+    /**
+     * Creates a body part for the given region of the given channel
+     *
+     * @param channel the channel to read from
+     * @param position the offset of the region within the channel
+     * @param size the size of the region in bytes
+     * @param fileName the file name to use in the multipart body
+     */
+    public FileChannelBody(FileChannel channel, long position, long size, String fileName) {
+        super(ContentType.DEFAULT_BINARY);
+        this.channel = channel;
+        this.position = position;
+        this.size = size;
+        this.fileName = fileName;
+    }
+
+    @Override
+    public String getFilename() {
+        return fileName;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        long transferred = 0;
+        while (transferred < size) {
+            long count = channel.transferTo(position + transferred, size - transferred, target);
+            //A count of zero means the end of the file was reached prematurely
+            if (count <= 0) {
+                throw new IOException("The file channel ended before the given region was fully transferred!");
+            }
+            transferred += count;
+        }
+        out.flush();
+    }
+
+    @Override
+    public String getTransferEncoding() {
+        return MIME.ENC_BINARY;
+    }
+
+    @Override
+    public long getContentLength() {
+        return size;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.content.InputStreamBody;
+import yaraifyapi.util.BufferPool;
+
+/**
+ * A multipart body part which is backed by an input stream of which the length
+ * is known beforehand. The default input stream body reports an unknown
+ * length, which forces the request to use chunked transfer encoding. Providing
+ * the length allows the request to be sent with a Content-Length header
+ * instead, while the stream is still read in chunks rather than staged. As the
+ * header has to match the body, exactly the given number of bytes is written.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class SizedInputStreamBody extends InputStreamBody {
+
+    /**
+     * The number of bytes the stream contains, or -1 if unknown
+     */
+    private final long length;
+
+    /**
+     * Creates a body part for the given stream
+     *
+     * @param inputStream the stream to upload
+     * @param length the number of bytes to upload from the stream, or -1 if
+     * the length is unknown, in which case the stream is read until its end
+     * @param fileName the file name to use in the multipart body
+     */
+    public SizedInputStreamBody(InputStream inputStream, long length, String fileName) {
+        super(inputStream, ContentType.DEFAULT_BINARY, fileName);
+        this.length = length;
+    }
+
+    /**
+     * Writes the stream to the given output stream. If the length is known,
+     * exactly that many bytes are written, and otherwise the stream is read
+     * until its end. The stream is not closed, as it is owned by the caller.
+     *
+     * @param out the stream to write to
+     * @throws IOException if the stream cannot be read, if it ends before the
+     * given length is reached, or if the output cannot be written
+     */
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        InputStream inputStream = getInputStream();
+        byte[] buffer = BufferPool.getShared().acquireHeap();
+        try {
+            if (length < 0) {
+                int read;
+                while ((read = inputStream.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } else {
+                long remaining = length;
+                while (remaining > 0) {
+                    int read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read == -1) {
+                        throw new IOException("The input stream ended " + remaining + " bytes before the given length was reached!");
+                    }
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            }
+            out.flush();
+        } finally {
+            BufferPool.getShared().releaseHeap(buffer);
+        }
+    }
+
+    @Override
+    public long getContentLength() {
+        return length;
+    }
+}
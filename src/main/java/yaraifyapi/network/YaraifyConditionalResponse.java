@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.network;
+
+/**
+ * The response to a conditional HTTP GET request. If the resource was not
+ * modified since the given validators, the body is empty and the validators
+ * are those that were sent.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class YaraifyConditionalResponse {
+
+    private final boolean notModified;
+    private final byte[] body;
+    private final String etag;
+    private final String lastModified;
+
+    public YaraifyConditionalResponse(boolean notModified, byte[] body, String etag, String lastModified) {
+        this.notModified = notModified;
+        this.body = body;
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Checks if the server responded with "304 Not Modified"
+     *
+     * @return true if the resource was not modified, false if the body
+     * contains the (new) resource
+     */
+    public boolean isNotModified() {
+        return notModified;
+    }
+
+    /**
+     * Gets the body of the response
+     *
+     * @return the body, which is empty if the resource was not modified
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Gets the ETag of the resource
+     *
+     * @return the ETag, or null if the server did not provide one
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    /**
+     * Gets the moment the resource was last modified, as provided by the
+     * server
+     *
+     * @return the Last-Modified value, or null if the server did not provide
+     * one
+     */
+    public String getLastModified() {
+        return lastModified;
+    }
+}
@@ -16,8 +16,9 @@
  */
 package yaraifyapi.network;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
@@ -26,6 +27,7 @@ import org.apache.http.entity.StringEntity;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import yaraifyapi.util.BufferPool;
 
 /**
  * The class to send HTTP GET and POST requests to Malware Bazaar's API
@@ -75,6 +77,25 @@ public class YaraifyConnector {
         }
     }
 
+    /**
+     * Reads the body of the given response entity, using a pooled buffer. If
+     * the server sent a Content-Length, the output is allocated at that size,
+     * avoiding the growing and the final copy of the output. The content
+     * stream is closed afterwards.
+     *
+     * @param responseEntity the entity to read
+     * @return the body of the response
+     * @throws IOException if the body cannot be read
+     */
+    private byte[] read(HttpEntity responseEntity) throws IOException {
+        if (responseEntity == null) {
+            return new byte[0];
+        }
+        try (InputStream content = responseEntity.getContent()) {
+            return BufferPool.getShared().readFully(content, responseEntity.getContentLength());
+        }
+    }
+
     /**
      * Performs a generic HTTP GET request to the given URL. The response is
      * returned as a byte array, which can be converted into several data types,
@@ -99,17 +120,62 @@ public class YaraifyConnector {
         //Checks if the status code is valid
         checkStatusCode(url, responseObject.getStatusLine().getStatusCode());
 
-        //Read the response, although the size is unknown, its read in chunks of 1024 bytes
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        int offset;
-        byte[] data = new byte[1024];
-        while ((offset = responseEntity.getContent().read(data, 0, data.length)) != -1) {
-            buffer.write(data, 0, offset);
-        }
-        //Flush the buffer
-        buffer.flush();
+        //Read the response, using a pooled buffer and an output sized to the Content-Length (if known)
+        byte[] body = read(responseEntity);
         //Return the byte array
-        return buffer.toByteArray();
+        return body;
+    }
+
+    /**
+     * Performs a conditional HTTP GET request to the given URL. The given
+     * validators are sent as the If-None-Match and If-Modified-Since headers,
+     * which allows the server to respond with "304 Not Modified" instead of
+     * sending the resource again.
+     *
+     * @param url the URL to request
+     * @param etag the ETag of the cached copy of the resource, or null if
+     * there is none
+     * @param lastModified the Last-Modified value of the cached copy of the
+     * resource, or null if there is none
+     * @return the response, which includes the validators of the resource
+     * @throws IOException if anything goes wrong with the HTTP GET connection
+     */
+    public YaraifyConditionalResponse get(String url, String etag, String lastModified) throws IOException {
+        //Create the request based on the URL
+        HttpGet request = new HttpGet(url);
+        //Set the authorisation bearer header
+        request.setHeader("API-KEY", key);
+        if (etag != null) {
+            request.setHeader("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            request.setHeader("If-Modified-Since", lastModified);
+        }
+        //Create a HTTP client
+        CloseableHttpClient httpClient = HttpClients.createDefault();
+        //Execute the request
+        CloseableHttpResponse responseObject = httpClient.execute(request);
+
+        int statusCode = responseObject.getStatusLine().getStatusCode();
+        if (statusCode == 304) {
+            responseObject.close();
+            return new YaraifyConditionalResponse(true, new byte[0], etag, lastModified);
+        }
+
+        //Checks if the status code is valid
+        checkStatusCode(url, statusCode);
+
+        Header etagHeader = responseObject.getFirstHeader("ETag");
+        Header lastModifiedHeader = responseObject.getFirstHeader("Last-Modified");
+
+        //Get the response
+        HttpEntity responseEntity = responseObject.getEntity();
+
+        //Read the response, using a pooled buffer and an output sized to the Content-Length (if known)
+        byte[] body = read(responseEntity);
+        responseObject.close();
+
+        return new YaraifyConditionalResponse(false, body, etagHeader == null ? null : etagHeader.getValue(), lastModifiedHeader == null ? null : lastModifiedHeader.getValue());
     }
 
     /**
@@ -141,17 +207,55 @@ public class YaraifyConnector {
         //Checks if the status code is valid
         checkStatusCode(url, responseObject.getStatusLine().getStatusCode());
 
-        //Read the response in chunks of 1024 bytes
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        int offset;
-        byte[] data = new byte[1024];
-        while ((offset = responseEntity.getContent().read(data, 0, data.length)) != -1) {
-            buffer.write(data, 0, offset);
-        }
-        //Flush the buffer
-        buffer.flush();
+        //Read the response, using a pooled buffer and an output sized to the Content-Length (if known)
+        byte[] body = read(responseEntity);
         //Return the byte array
-        return buffer.toByteArray();
+        return body;
+    }
+
+    /**
+     * Performs a generic HTTP POST request based on the given request. The
+     * response is not read, but returned as a stream, which allows large
+     * responses to be processed without holding them in memory. The caller
+     * must close the returned response.
+     *
+     * @param json the JSON body of the post request
+     * @return the web server's response, of which the body can be streamed
+     * @throws IOException if anything goes wrong with the HTTP POST connection
+     */
+    public YaraifyStreamingResponse postForStream(String json) throws IOException {
+        StringEntity entity = new StringEntity(json);
+        //Create a HTTP client
+        CloseableHttpClient httpClient = HttpClients.createDefault();
+        //Create a HTTP post object for the given URL
+        HttpPost httpPost = new HttpPost(url);
+        //Add the API key to the request
+        httpPost.setHeader("API-KEY", key);
+        httpPost.setHeader("Content-type", "application/json");
+        httpPost.setEntity(entity);
+        CloseableHttpResponse responseObject = null;
+        try {
+            //Execute the HTTP POST request
+            responseObject = httpClient.execute(httpPost);
+
+            //Checks if the status code is valid
+            checkStatusCode(url, responseObject.getStatusLine().getStatusCode());
+
+            //Get the response, which is handed over to the caller without reading it
+            HttpEntity responseEntity = responseObject.getEntity();
+            if (responseEntity == null) {
+                throw new IOException("The response of \"" + url + "\" has no body!");
+            }
+            Header contentType = responseEntity.getContentType();
+            return new YaraifyStreamingResponse(httpClient, responseObject, responseEntity.getContent(), contentType == null ? null : contentType.getValue(), responseEntity.getContentLength());
+        } catch (IOException e) {
+            //Only close the connection on failure, as the caller closes it otherwise
+            if (responseObject != null) {
+                responseObject.close();
+            }
+            httpClient.close();
+            throw e;
+        }
     }
 
     /**
@@ -184,17 +288,10 @@ public class YaraifyConnector {
         //Checks if the status code is valid
         checkStatusCode(url, responseObject.getStatusLine().getStatusCode());
 
-        //Read the response in chunks of 1024 bytes
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        int offset;
-        byte[] data = new byte[1024];
-        while ((offset = responseEntity.getContent().read(data, 0, data.length)) != -1) {
-            buffer.write(data, 0, offset);
-        }
-        //Flush the buffer
-        buffer.flush();
+        //Read the response, using a pooled buffer and an output sized to the Content-Length (if known)
+        byte[] body = read(responseEntity);
         //Return the byte array
-        return buffer.toByteArray();
+        return body;
     }
     
     /**
@@ -225,16 +322,9 @@ public class YaraifyConnector {
         //Checks if the status code is valid
         checkStatusCode(url, responseObject.getStatusLine().getStatusCode());
 
-        //Read the response in chunks of 1024 bytes
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        int offset;
-        byte[] data = new byte[1024];
-        while ((offset = responseEntity.getContent().read(data, 0, data.length)) != -1) {
-            buffer.write(data, 0, offset);
-        }
-        //Flush the buffer
-        buffer.flush();
+        //Read the response, using a pooled buffer and an output sized to the Content-Length (if known)
+        byte[] body = read(responseEntity);
         //Return the byte array
-        return buffer.toByteArray();
+        return body;
     }
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.network;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+/**
+ * A response of which the body is read as a stream, rather than buffered in
+ * memory. The response (and the client that made the request) remains open
+ * until this object is closed.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class YaraifyStreamingResponse implements Closeable {
+
+    private final CloseableHttpClient httpClient;
+    private final CloseableHttpResponse response;
+    private final InputStream content;
+    private final String contentType;
+    private final long contentLength;
+
+    public YaraifyStreamingResponse(CloseableHttpClient httpClient, CloseableHttpResponse response, InputStream content, String contentType, long contentLength) {
+        this.httpClient = httpClient;
+        this.response = response;
+        this.content = content;
+        this.contentType = contentType;
+        this.contentLength = contentLength;
+    }
+
+    /**
+     * Gets the stream of the response's body
+     *
+     * @return the body of the response
+     */
+    public InputStream getContent() {
+        return content;
+    }
+
+    /**
+     * Gets the content type of the response
+     *
+     * @return the content type, or null if the server did not provide one
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Gets the length of the response's body
+     *
+     * @return the length in bytes, or a negative number if it is unknown
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Checks if the body of the response is JSON, which the API returns
+     * instead of a file if the request was not successful
+     *
+     * @return true if the content type is JSON, false if not
+     */
+    public boolean isJson() {
+        return contentType != null && contentType.toLowerCase().contains("json");
+    }
+
+    /**
+     * Closes the response and the client that made the request
+     *
+     * @throws IOException if the connection cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            response.close();
+        } finally {
+            httpClient.close();
+        }
+    }
+}
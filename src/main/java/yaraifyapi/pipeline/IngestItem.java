@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.pipeline;
+
+import java.io.File;
+import yaraifyapi.model.YaraifyMetadata;
+import yaraifyapi.model.YaraifyTaskResult;
+
+/**
+ * A single file that moves through the ingest pipeline. Each stage fills in
+ * the fields it is responsible for, after which the item is handed to the next
+ * stage.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class IngestItem {
+
+    private final File file;
+    private volatile String sha256;
+    private volatile YaraifyMetadata uploadMetadata;
+    private volatile String taskId;
+    private volatile YaraifyTaskResult result;
+    private volatile IngestStatus status;
+    private volatile Exception exception;
+
+    public IngestItem(File file) {
+        this.file = file;
+        this.status = IngestStatus.PENDING;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    public void setSha256(String sha256) {
+        this.sha256 = sha256;
+    }
+
+    /**
+     * Gets the metadata that was returned when the file was uploaded
+     *
+     * @return the metadata, or null if the file was not uploaded
+     */
+    public YaraifyMetadata getUploadMetadata() {
+        return uploadMetadata;
+    }
+
+    public void setUploadMetadata(YaraifyMetadata uploadMetadata) {
+        this.uploadMetadata = uploadMetadata;
+    }
+
+    public String getTaskId() {
+        return taskId;
+    }
+
+    public void setTaskId(String taskId) {
+        this.taskId = taskId;
+    }
+
+    /**
+     * Gets the results of the file, which are either the results of the task
+     * that was created when uploading the file, or the existing results if the
+     * file was already known
+     *
+     * @return the results, or null if there are none
+     */
+    public YaraifyTaskResult getResult() {
+        return result;
+    }
+
+    public void setResult(YaraifyTaskResult result) {
+        this.result = result;
+    }
+
+    public IngestStatus getStatus() {
+        return status;
+    }
+
+    public void setStatus(IngestStatus status) {
+        this.status = status;
+    }
+
+    /**
+     * Gets the exception that caused this item to fail
+     *
+     * @return the exception, or null if the item did not fail
+     */
+    public Exception getException() {
+        return exception;
+    }
+
+    public void setException(Exception exception) {
+        this.exception = exception;
+    }
+}
@@ -0,0 +1,451 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import yaraifyapi.YaraifyApi;
+import yaraifyapi.filter.KnownHashSet;
+import yaraifyapi.filter.SubmittedHashFilter;
+import yaraifyapi.model.YaraifyMetadata;
+import yaraifyapi.model.YaraifyTaskResult;
+import yaraifyapi.task.TaskPoller;
+import yaraifyapi.util.HashUtil;
+
+/**
+ * A staged pipeline that ingests files into Yaraify. Each file passes through
+ * the following stages, each of which has its own thread pool and bounded
+ * queue:
+ * <ol>
+ * <li>walk: recursively lists the files in the submitted folders</li>
+ * <li>hash: computes the SHA-256 hash of each file locally, and skips files
+ * whose hash is in the configured known hash set</li>
+ * <li>lookup: checks if the hash is already known to Yaraify, in which case
+ * the existing results are used and the file is not uploaded</li>
+ * <li>upload: uploads the file to Yaraify, which creates a task</li>
+ * <li>poll: hands the task to a {@link TaskPoller}, which retrieves the
+ * results once the task has been processed</li>
+ * <li>persist: hands the outcome to the given sink</li>
+ * </ol>
+ * A stage with a full queue blocks the stage before it, which keeps the memory
+ * usage bounded regardless of the number of files, while the thread counts
+ * determine how hard the API is used. The metrics of each stage can be
+ * requested at any time.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class IngestPipeline {
+
+    /**
+     * The API instance to make the requests with
+     */
+    private final YaraifyApi api;
+
+    /**
+     * The sink to hand the outcome of each file to
+     */
+    private final IngestSink sink;
+
+    /**
+     * The configuration of this pipeline
+     */
+    private final IngestPipelineConfiguration configuration;
+
+    /**
+     * The stage that lists the files in the submitted folders
+     */
+    private final PipelineStage<Path> walkStage;
+
+    /**
+     * The stage that computes the SHA-256 hash of each file
+     */
+    private final PipelineStage<IngestItem> hashStage;
+
+    /**
+     * The stage that checks if a file is already known to Yaraify
+     */
+    private final PipelineStage<IngestItem> lookupStage;
+
+    /**
+     * The stage that uploads each file to Yaraify
+     */
+    private final PipelineStage<IngestItem> uploadStage;
+
+    /**
+     * The stage that hands the tasks of the uploaded files to the poller
+     */
+    private final PipelineStage<IngestItem> pollStage;
+
+    /**
+     * The stage that hands the outcome of each file to the sink
+     */
+    private final PipelineStage<IngestItem> persistStage;
+
+    /**
+     * The poller that waits for the uploaded tasks to be processed, which
+     * avoids blocking a poll thread while waiting
+     */
+    private final TaskPoller poller;
+
+    /**
+     * The number of folders and files which have been submitted, but which
+     * have not been fully handled yet
+     */
+    private long inFlight;
+
+    /**
+     * The lock that guards the in flight counter
+     */
+    private final Object inFlightLock;
+
+    /**
+     * Creates a pipeline, of which the threads are started immediately
+     *
+     * @param api the API instance to make the requests with
+     * @param sink the sink to hand the outcome of each file to
+     * @param configuration the configuration of the pipeline
+     */
+    public IngestPipeline(YaraifyApi api, IngestSink sink, IngestPipelineConfiguration configuration) {
+        this.api = api;
+        this.sink = sink;
+        this.configuration = configuration;
+        this.inFlight = 0;
+        this.inFlightLock = new Object();
+
+        walkStage = new PipelineStage<>("walk", configuration.getThreads(IngestStage.WALK), configuration.getQueueCapacity(IngestStage.WALK), this::walk, (path, exception) -> {
+            //The walk has already finished its unit of work when it throws
+        });
+        hashStage = createStage(IngestStage.HASH, this::hash);
+        lookupStage = createStage(IngestStage.LOOKUP, this::lookup);
+        uploadStage = createStage(IngestStage.UPLOAD, this::upload);
+        pollStage = createStage(IngestStage.POLL, this::poll);
+        persistStage = new PipelineStage<>("persist", configuration.getThreads(IngestStage.PERSIST), configuration.getQueueCapacity(IngestStage.PERSIST), this::persist, (item, exception) -> {
+            //The item has already been finished, and the failure is visible in the stage's metrics
+        });
+
+        poller = new TaskPoller(api, configuration.getIdentifier(), configuration.getThreads(IngestStage.POLL));
+        poller.setMinimumIntervalMillis(configuration.getMinimumPollIntervalMillis());
+        poller.setTimeoutMillis(configuration.getPollTimeoutMillis());
+    }
+
+    /**
+     * Creates a stage which forwards failed items to the persist stage
+     *
+     * @param stage the stage to create
+     * @param handler the work to perform for each item
+     * @return the newly created stage
+     */
+    private PipelineStage<IngestItem> createStage(IngestStage stage, PipelineStage.Handler<IngestItem> handler) {
+        return new PipelineStage<>(stage.name().toLowerCase(), configuration.getThreads(stage), configuration.getQueueCapacity(stage), handler, this::fail);
+    }
+
+    /**
+     * Submits a file or folder to the pipeline. Folders are walked
+     * recursively, and every regular file in them is ingested. This function
+     * blocks if the walk stage's queue is full.
+     *
+     * @param root the file or folder to ingest
+     * @throws IOException if the given file is null or does not exist
+     * @throws InterruptedException if the calling thread is interrupted while
+     * waiting for room in the queue
+     */
+    public void submit(File root) throws IOException, InterruptedException {
+        if (root == null) {
+            throw new IOException("The given file object is null!");
+        }
+        if (root.exists() == false) {
+            throw new IOException("The given file or folder does not exist!");
+        }
+        start();
+        try {
+            walkStage.submit(root.toPath());
+        } catch (InterruptedException e) {
+            finish();
+            throw e;
+        }
+    }
+
+    /**
+     * Submits all given files and folders to the pipeline
+     *
+     * @param roots the files and folders to ingest
+     * @throws IOException if any of the given files is null or does not exist
+     * @throws InterruptedException if the calling thread is interrupted while
+     * waiting for room in the queue
+     */
+    public void submit(List<File> roots) throws IOException, InterruptedException {
+        if (roots == null) {
+            throw new IOException("The given list of files is null!");
+        }
+        for (File root : roots) {
+            submit(root);
+        }
+    }
+
+    /**
+     * Waits until every submitted file has been handed to the sink
+     *
+     * @throws InterruptedException if the calling thread is interrupted while
+     * waiting
+     */
+    public void awaitCompletion() throws InterruptedException {
+        synchronized (inFlightLock) {
+            while (inFlight > 0) {
+                inFlightLock.wait();
+            }
+        }
+    }
+
+    /**
+     * Takes a snapshot of the metrics of every stage
+     *
+     * @return the metrics per stage, in the order of the stages
+     */
+    public Map<IngestStage, StageMetrics> getMetrics() {
+        Map<IngestStage, StageMetrics> metrics = new EnumMap<>(IngestStage.class);
+        metrics.put(IngestStage.WALK, walkStage.getMetrics());
+        metrics.put(IngestStage.HASH, hashStage.getMetrics());
+        metrics.put(IngestStage.LOOKUP, lookupStage.getMetrics());
+        metrics.put(IngestStage.UPLOAD, uploadStage.getMetrics());
+        metrics.put(IngestStage.POLL, pollStage.getMetrics());
+        metrics.put(IngestStage.PERSIST, persistStage.getMetrics());
+        return metrics;
+    }
+
+    /**
+     * Stops all stages immediately. Files which have not been handed to the
+     * sink yet are discarded. Use {@link #awaitCompletion()} prior to calling
+     * this function to finish all submitted work first.
+     */
+    public void shutdown() {
+        poller.shutdown();
+        walkStage.shutdownNow();
+        hashStage.shutdownNow();
+        lookupStage.shutdownNow();
+        uploadStage.shutdownNow();
+        pollStage.shutdownNow();
+        persistStage.shutdownNow();
+    }
+
+    /**
+     * Marks the start of a unit of work
+     */
+    private void start() {
+        synchronized (inFlightLock) {
+            inFlight++;
+        }
+    }
+
+    /**
+     * Marks the end of a unit of work, and wakes up the threads that wait for
+     * completion if no work is left
+     */
+    private void finish() {
+        synchronized (inFlightLock) {
+            inFlight--;
+            if (inFlight <= 0) {
+                inFlightLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Walks the given file or folder recursively, and submits every regular
+     * file to the hash stage
+     *
+     * @param root the file or folder to walk
+     * @throws IOException if the walk fails
+     */
+    private void walk(Path root) throws IOException {
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                    if (attributes.isRegularFile()) {
+                        start();
+                        try {
+                            hashStage.submit(new IngestItem(file.toFile()));
+                        } catch (InterruptedException e) {
+                            finish();
+                            throw new InterruptedIOException("Interrupted whilst walking " + root);
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exception) {
+                    //Unreadable files and folders are skipped, rather than aborting the whole walk
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } finally {
+            finish();
+        }
+    }
+
+    /**
+     * Computes the SHA-256 hash of the item's file. If the hash is in the
+     * known hash set, the item is handed to the persist stage directly. If
+     * known files are not looked up, files that the submitted hash filter
+     * might contain are looked up regardless.
+     *
+     * @param item the item to hash
+     * @throws Exception if the file cannot be read, or if the thread is
+     * interrupted
+     */
+    private void hash(IngestItem item) throws Exception {
+        item.setSha256(HashUtil.sha256(item.getFile().toPath()));
+        KnownHashSet knownHashSet = configuration.getKnownHashSet();
+        if (knownHashSet != null && knownHashSet.contains(item.getSha256())) {
+            item.setStatus(IngestStatus.SKIPPED);
+            persistStage.submit(item);
+        } else if (configuration.isLookupKnownFiles() || mightBeSubmitted(item.getSha256())) {
+            lookupStage.submit(item);
+        } else {
+            uploadStage.submit(item);
+        }
+    }
+
+    /**
+     * Looks up the item's hash on Yaraify. If the file is known, the existing
+     * results are used and the item skips the upload and poll stages.
+     *
+     * @param item the item to look up
+     * @throws Exception if the lookup fails for any other reason than an
+     * unknown hash, or if the thread is interrupted
+     */
+    private void lookup(IngestItem item) throws Exception {
+        YaraifyTaskResult result = null;
+        try {
+            result = api.queryFileHash(item.getSha256());
+        } catch (IOException e) {
+            //An unknown hash means the file is to be uploaded, while any other failure fails the item
+            if ("no_results".equals(e.getMessage()) == false) {
+                throw e;
+            }
+        }
+
+        if (result != null && result.getTasks() != null && result.getTasks().isEmpty() == false) {
+            item.setResult(result);
+            item.setStatus(IngestStatus.KNOWN);
+            persistStage.submit(item);
+        } else {
+            uploadStage.submit(item);
+        }
+    }
+
+    /**
+     * Uploads the item's file to Yaraify, after which the item is handed to
+     * the poll stage
+     *
+     * @param item the item to upload
+     * @throws Exception if the upload fails, or if the thread is interrupted
+     */
+    private void upload(IngestItem item) throws Exception {
+        YaraifyMetadata metadata = api.scanFile(item.getFile(), configuration.getIdentifier(), configuration.isClamav(), configuration.isUnpack(), configuration.isShareFile(), configuration.isSkipKnown(), configuration.isSkipNoisy());
+        item.setUploadMetadata(metadata);
+        if (metadata.getTaskId() == null || metadata.getTaskId().isEmpty()) {
+            throw new IOException("The upload response of " + item.getFile() + " does not contain a task ID!");
+        }
+        item.setTaskId(metadata.getTaskId());
+        SubmittedHashFilter submittedHashFilter = configuration.getSubmittedHashFilter();
+        if (submittedHashFilter != null) {
+            try {
+                submittedHashFilter.add(item.getSha256());
+            } catch (IOException e) {
+                //The file has been uploaded, so failing to record it only costs a lookup in a later run
+            }
+        }
+        pollStage.submit(item);
+    }
+
+    /**
+     * Checks if the submitted hash filter might contain the given hash
+     *
+     * @param sha256 the hash to check
+     * @return true if the filter might contain the hash, false if not, or if
+     * there is no filter
+     */
+    private boolean mightBeSubmitted(String sha256) {
+        SubmittedHashFilter submittedHashFilter = configuration.getSubmittedHashFilter();
+        return submittedHashFilter != null && submittedHashFilter.mightContain(sha256);
+    }
+
+    /**
+     * Hands the item's task to the poller. Once the task has been processed,
+     * the item is handed to the persist stage.
+     *
+     * @param item the item to poll
+     */
+    private void poll(IngestItem item) {
+        poller.await(item.getTaskId()).whenComplete((result, exception) -> {
+            if (exception != null) {
+                fail(item, exception instanceof Exception ? (Exception) exception : new IOException(exception));
+                return;
+            }
+            item.setResult(result);
+            item.setStatus(IngestStatus.PROCESSED);
+            try {
+                persistStage.submit(item);
+            } catch (Exception e) {
+                fail(item, e);
+            }
+        });
+    }
+
+    /**
+     * Hands the item to the sink, after which the item is finished
+     *
+     * @param item the item to persist
+     * @throws IOException if the sink fails to store the item
+     */
+    private void persist(IngestItem item) throws IOException {
+        try {
+            sink.persist(item);
+        } finally {
+            finish();
+        }
+    }
+
+    /**
+     * Marks the given item as failed, and hands it to the persist stage so the
+     * sink is informed about the failure
+     *
+     * @param item the item that failed
+     * @param exception the cause of the failure
+     */
+    private void fail(IngestItem item, Exception exception) {
+        item.setStatus(IngestStatus.FAILED);
+        item.setException(exception);
+        try {
+            persistStage.submit(item);
+        } catch (Exception e) {
+            //The persist stage is no longer available, meaning the item can only be dropped
+            finish();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.pipeline;
+
+import java.util.EnumMap;
+import java.util.Map;
+import yaraifyapi.filter.KnownHashSet;
+import yaraifyapi.filter.SubmittedHashFilter;
+
+/**
+ * The configuration of an ingest pipeline. The thread count and queue capacity
+ * can be set per stage, the other settings are used when uploading files and
+ * polling for their results. All settings have sensible defaults.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class IngestPipelineConfiguration {
+
+    private final Map<IngestStage, Integer> threads;
+    private final Map<IngestStage, Integer> queueCapacities;
+    private String identifier;
+    private boolean clamav;
+    private boolean unpack;
+    private boolean shareFile;
+    private boolean skipKnown;
+    private boolean skipNoisy;
+    private boolean lookupKnownFiles;
+    private KnownHashSet knownHashSet;
+    private SubmittedHashFilter submittedHashFilter;
+    private long minimumPollIntervalMillis;
+    private long pollTimeoutMillis;
+
+    /**
+     * Creates a configuration with the default values. Hashing uses one thread
+     * per available processor, uploading and polling use four threads, and
+     * walking and persisting use a single thread. Known files are looked up
+     * prior to uploading, tasks are polled at most once every five seconds, and
+     * tasks time out after an hour.
+     */
+    public IngestPipelineConfiguration() {
+        threads = new EnumMap<>(IngestStage.class);
+        queueCapacities = new EnumMap<>(IngestStage.class);
+
+        threads.put(IngestStage.WALK, 1);
+        threads.put(IngestStage.HASH, Runtime.getRuntime().availableProcessors());
+        threads.put(IngestStage.LOOKUP, 4);
+        threads.put(IngestStage.UPLOAD, 4);
+        threads.put(IngestStage.POLL, 4);
+        threads.put(IngestStage.PERSIST, 1);
+
+        queueCapacities.put(IngestStage.WALK, 64);
+        queueCapacities.put(IngestStage.HASH, 256);
+        queueCapacities.put(IngestStage.LOOKUP, 256);
+        queueCapacities.put(IngestStage.UPLOAD, 64);
+        queueCapacities.put(IngestStage.POLL, 1024);
+        queueCapacities.put(IngestStage.PERSIST, 256);
+
+        identifier = null;
+        clamav = false;
+        unpack = false;
+        shareFile = false;
+        skipKnown = false;
+        skipNoisy = false;
+        lookupKnownFiles = true;
+        knownHashSet = null;
+        submittedHashFilter = null;
+        minimumPollIntervalMillis = 5_000;
+        pollTimeoutMillis = 3_600_000;
+    }
+
+    public int getThreads(IngestStage stage) {
+        return threads.get(stage);
+    }
+
+    public void setThreads(IngestStage stage, int threadCount) {
+        threads.put(stage, threadCount);
+    }
+
+    public int getQueueCapacity(IngestStage stage) {
+        return queueCapacities.get(stage);
+    }
+
+    public void setQueueCapacity(IngestStage stage, int capacity) {
+        queueCapacities.put(stage, capacity);
+    }
+
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    public void setIdentifier(String identifier) {
+        this.identifier = identifier;
+    }
+
+    public boolean isClamav() {
+        return clamav;
+    }
+
+    public void setClamav(boolean clamav) {
+        this.clamav = clamav;
+    }
+
+    public boolean isUnpack() {
+        return unpack;
+    }
+
+    public void setUnpack(boolean unpack) {
+        this.unpack = unpack;
+    }
+
+    public boolean isShareFile() {
+        return shareFile;
+    }
+
+    public void setShareFile(boolean shareFile) {
+        this.shareFile = shareFile;
+    }
+
+    public boolean isSkipKnown() {
+        return skipKnown;
+    }
+
+    public void setSkipKnown(boolean skipKnown) {
+        this.skipKnown = skipKnown;
+    }
+
+    public boolean isSkipNoisy() {
+        return skipNoisy;
+    }
+
+    public void setSkipNoisy(boolean skipNoisy) {
+        this.skipNoisy = skipNoisy;
+    }
+
+    /**
+     * Gets whether the hash of each file is looked up on Yaraify before it is
+     * uploaded. If the file is known, its existing results are used and the
+     * file is not uploaded.
+     *
+     * @return true if known files are looked up, false if not
+     */
+    public boolean isLookupKnownFiles() {
+        return lookupKnownFiles;
+    }
+
+    public void setLookupKnownFiles(boolean lookupKnownFiles) {
+        this.lookupKnownFiles = lookupKnownFiles;
+    }
+
+    /**
+     * Gets the set of hashes of files that are known to be benign. Files whose
+     * hash is in the set are skipped after they are hashed, meaning they are
+     * neither looked up nor uploaded.
+     *
+     * @return the set, or null if no files are skipped
+     */
+    public KnownHashSet getKnownHashSet() {
+        return knownHashSet;
+    }
+
+    public void setKnownHashSet(KnownHashSet knownHashSet) {
+        this.knownHashSet = knownHashSet;
+    }
+
+    /**
+     * Gets the filter of hashes of files that were submitted before. Uploaded
+     * files are added to the filter. If known files are not looked up, files
+     * that the filter might contain are still looked up, which avoids
+     * uploading them again in a later run.
+     *
+     * @return the filter, or null if there is none
+     */
+    public SubmittedHashFilter getSubmittedHashFilter() {
+        return submittedHashFilter;
+    }
+
+    public void setSubmittedHashFilter(SubmittedHashFilter submittedHashFilter) {
+        this.submittedHashFilter = submittedHashFilter;
+    }
+
+    /**
+     * Gets the minimum interval between two polls of the same task. The
+     * actual interval adapts to the observed completion times.
+     *
+     * @return the minimum poll interval in milliseconds
+     */
+    public long getMinimumPollIntervalMillis() {
+        return minimumPollIntervalMillis;
+    }
+
+    public void setMinimumPollIntervalMillis(long minimumPollIntervalMillis) {
+        this.minimumPollIntervalMillis = minimumPollIntervalMillis;
+    }
+
+    /**
+     * Gets the maximum time to wait for a task to be processed, after which
+     * the item fails
+     *
+     * @return the poll timeout in milliseconds
+     */
+    public long getPollTimeoutMillis() {
+        return pollTimeoutMillis;
+    }
+
+    public void setPollTimeoutMillis(long pollTimeoutMillis) {
+        this.pollTimeoutMillis = pollTimeoutMillis;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.pipeline;
+
+import java.io.IOException;
+
+/**
+ * The final stage of the ingest pipeline, which stores the outcome of each
+ * file. Every file that enters the pipeline is passed to the sink exactly
+ * once, including files that were skipped or failed. Implementations are
+ * called from the persist stage's thread pool, and must be thread safe if that
+ * stage uses more than one thread.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public interface IngestSink {
+
+    /**
+     * Stores the outcome of the given item
+     *
+     * @param item the item to store, of which the status is never
+     * {@link IngestStatus#PENDING}
+     * @throws IOException if the item cannot be stored
+     */
+    void persist(IngestItem item) throws IOException;
+}
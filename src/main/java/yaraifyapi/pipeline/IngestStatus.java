@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.pipeline;
+
+/**
+ * The status of a file within the ingest pipeline
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public enum IngestStatus {
+    /**
+     * The file is still moving through the pipeline
+     */
+    PENDING,
+    /**
+     * The file was already known to Yaraify, and its existing results were
+     * used instead of uploading it
+     */
+    KNOWN,
+    /**
+     * The hash of the file is in the known hash set, meaning the file is known
+     * to be benign and is neither looked up nor uploaded
+     */
+    SKIPPED,
+    /**
+     * The file was uploaded, and the results of its task were retrieved
+     */
+    PROCESSED,
+    /**
+     * An error occurred in one of the stages, the exception is stored in the
+     * item
+     */
+    FAILED
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.pipeline;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single stage of a pipeline, which consists of a fixed size thread pool
+ * and a bounded queue. Submitting an item to a stage of which the queue is full
+ * blocks the caller until there is room, which propagates backpressure to the
+ * stages before it. The stage keeps track of its own metrics.
+ *
+ * @param <T> the type of the items this stage handles
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class PipelineStage<T> {
+
+    /**
+     * The work that a stage performs for each item
+     *
+     * @param <T> the type of the items the handler handles
+     */
+    public interface Handler<T> {
+
+        /**
+         * Handles the given item, and hands it to the next stage if need be
+         *
+         * @param item the item to handle
+         * @throws Exception if the item cannot be handled
+         */
+        void handle(T item) throws Exception;
+    }
+
+    /**
+     * The callback that is invoked when a handler throws an exception
+     *
+     * @param <T> the type of the items the handler handles
+     */
+    public interface FailureHandler<T> {
+
+        /**
+         * Handles the failure of the given item
+         *
+         * @param item the item that failed
+         * @param exception the exception that was thrown by the handler
+         */
+        void failed(T item, Exception exception);
+    }
+
+    /**
+     * The name of the stage
+     */
+    private final String name;
+
+    /**
+     * The bounded queue of the executor, to which items are added directly
+     */
+    private final BlockingQueue<Runnable> queue;
+
+    /**
+     * The maximum number of items in the queue
+     */
+    private final int queueCapacity;
+
+    /**
+     * The thread pool that handles the queued items
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * The work to perform for each item
+     */
+    private final Handler<T> handler;
+
+    /**
+     * The callback that is invoked when the handler throws an exception
+     */
+    private final FailureHandler<T> failureHandler;
+
+    /**
+     * The number of items that were submitted to this stage
+     */
+    private final AtomicLong submitted;
+
+    /**
+     * The number of items that were handled successfully
+     */
+    private final AtomicLong completed;
+
+    /**
+     * The number of items of which the handler threw an exception
+     */
+    private final AtomicLong failed;
+
+    /**
+     * The moment the first item was submitted, in nanoseconds, or 0 if no item
+     * has been submitted yet
+     */
+    private volatile long startTime;
+
+    /**
+     * Creates a stage, of which the threads are started immediately
+     *
+     * @param name the name of the stage, which is used in the thread names and
+     * the metrics
+     * @param threads the number of threads that handle items concurrently
+     * @param queueCapacity the maximum number of items that can be waiting in
+     * the queue
+     * @param handler the work to perform for each item
+     * @param failureHandler the callback that is invoked if the handler throws
+     * an exception
+     */
+    public PipelineStage(String name, int threads, int queueCapacity, Handler<T> handler, FailureHandler<T> failureHandler) {
+        if (threads < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("A stage requires at least one thread and a queue capacity of at least one!");
+        }
+        this.name = name;
+        this.queueCapacity = queueCapacity;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.handler = handler;
+        this.failureHandler = failureHandler;
+        this.submitted = new AtomicLong();
+        this.completed = new AtomicLong();
+        this.failed = new AtomicLong();
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "yaraify-" + name + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, queue, threadFactory);
+        //All work goes through the queue, which is what makes the queue depth meaningful
+        this.executor.prestartAllCoreThreads();
+    }
+
+    /**
+     * Submits the given item to this stage, blocking until there is room in
+     * the queue
+     *
+     * @param item the item to submit
+     * @throws InterruptedException if the calling thread is interrupted while
+     * waiting for room in the queue
+     * @throws RejectedExecutionException if the stage has been shut down
+     */
+    public void submit(T item) throws InterruptedException {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("The " + name + " stage has been shut down!");
+        }
+        if (startTime == 0) {
+            startTime = System.nanoTime();
+        }
+        submitted.incrementAndGet();
+        //Putting the task in the queue directly blocks when the queue is full, which the executor's rejection would not
+        Runnable task = () -> run(item);
+        queue.put(task);
+        //A shutdown during the put may have stopped the threads already, in which case the task would never run
+        if (executor.isShutdown() && queue.remove(task)) {
+            submitted.decrementAndGet();
+            throw new RejectedExecutionException("The " + name + " stage has been shut down!");
+        }
+    }
+
+    /**
+     * Runs the handler for the given item, and updates the metrics accordingly
+     *
+     * @param item the item to handle
+     */
+    private void run(T item) {
+        try {
+            handler.handle(item);
+            completed.incrementAndGet();
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            failureHandler.failed(item, e);
+        }
+    }
+
+    /**
+     * Takes a snapshot of the metrics of this stage
+     *
+     * @return the metrics of this stage
+     */
+    public StageMetrics getMetrics() {
+        long done = completed.get();
+        long errors = failed.get();
+        double throughput = 0;
+        long start = startTime;
+        if (start != 0) {
+            double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+            if (seconds > 0) {
+                throughput = (done + errors) / seconds;
+            }
+        }
+        return new StageMetrics(name, submitted.get(), done, errors, queue.size(), queueCapacity, executor.getActiveCount(), throughput);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Stops accepting new items. Items that are already queued are still
+     * handled.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Stops accepting new items, and attempts to interrupt the items that are
+     * being handled. Queued items are discarded.
+     */
+    public void shutdownNow() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Waits until all items in this stage have been handled, after a shutdown
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true if the stage terminated, false if the timeout elapsed
+     * @throws InterruptedException if the calling thread is interrupted while
+     * waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+}
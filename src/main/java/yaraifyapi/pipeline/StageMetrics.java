@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.pipeline;
+
+/**
+ * A snapshot of the metrics of a single pipeline stage, taken at the moment
+ * the metrics were requested
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class StageMetrics {
+
+    private final String name;
+    private final long submitted;
+    private final long completed;
+    private final long failed;
+    private final int queueDepth;
+    private final int queueCapacity;
+    private final int activeThreads;
+    private final double throughput;
+
+    public StageMetrics(String name, long submitted, long completed, long failed, int queueDepth, int queueCapacity, int activeThreads, double throughput) {
+        this.name = name;
+        this.submitted = submitted;
+        this.completed = completed;
+        this.failed = failed;
+        this.queueDepth = queueDepth;
+        this.queueCapacity = queueCapacity;
+        this.activeThreads = activeThreads;
+        this.throughput = throughput;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the number of items that were handed to this stage
+     *
+     * @return the number of submitted items
+     */
+    public long getSubmitted() {
+        return submitted;
+    }
+
+    /**
+     * Gets the number of items that were handled without an error
+     *
+     * @return the number of completed items
+     */
+    public long getCompleted() {
+        return completed;
+    }
+
+    /**
+     * Gets the number of items that failed in this stage
+     *
+     * @return the number of failed items
+     */
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * Gets the number of items that are waiting in the stage's queue
+     *
+     * @return the number of queued items
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Gets the number of threads that are currently handling an item
+     *
+     * @return the number of busy threads
+     */
+    public int getActiveThreads() {
+        return activeThreads;
+    }
+
+    /**
+     * Gets the average number of items (both completed and failed) this stage
+     * handled per second, since the first item was submitted
+     *
+     * @return the throughput in items per second
+     */
+    public double getThroughput() {
+        return throughput;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: submitted=%d, completed=%d, failed=%d, queue=%d/%d, active=%d, throughput=%.2f/s", name, submitted, completed, failed, queueDepth, queueCapacity, activeThreads, throughput);
+    }
+}
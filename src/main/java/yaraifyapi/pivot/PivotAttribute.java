@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.pivot;
+
+/**
+ * The attributes of a sample that can be used to pivot to other samples. The
+ * name of each attribute equals the field name in the API responses.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public enum PivotAttribute {
+    IMPORT_HASH("imphash"),
+    TLSH("tlsh"),
+    TELF_HASH("telfhash"),
+    GIMP_HASH("gimphash"),
+    ICON_DHASH("dhash_icon");
+
+    private final String name;
+
+    private PivotAttribute(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
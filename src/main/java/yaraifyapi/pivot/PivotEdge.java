@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.pivot;
+
+/**
+ * An edge in a pivot graph, which connects a sample to one of its attribute
+ * values
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class PivotEdge {
+
+    private final String sha256;
+    private final PivotValue value;
+
+    public PivotEdge(String sha256, PivotValue value) {
+        this.sha256 = sha256;
+        this.value = value;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    public PivotValue getValue() {
+        return value;
+    }
+}
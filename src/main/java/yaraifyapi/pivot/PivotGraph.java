@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.pivot;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import yaraifyapi.json.JsonSerializer;
+import yaraifyapi.model.YaraifyMetadata;
+
+/**
+ * The outcome of a pivot graph expansion: a graph of samples and the
+ * attribute values they share. Each sample is connected to the values of its
+ * attributes, meaning two samples which share a value are connected through
+ * that value. The graph can be exported as JSON or in the DOT format.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class PivotGraph {
+
+    /**
+     * The metadata of each sample, where the key is the lower case SHA-256
+     * hash, in order of discovery
+     */
+    private final Map<String, YaraifyMetadata> samples;
+
+    /**
+     * The hop at which each sample was discovered, where the seeds are at hop
+     * zero
+     */
+    private final Map<String, Integer> depths;
+
+    /**
+     * The values in the graph, in order of discovery, along with whether the
+     * value was queried
+     */
+    private final Map<PivotValue, Boolean> values;
+
+    /**
+     * The values of which the query returned as many samples as were
+     * requested, meaning there may be more samples
+     */
+    private final Set<PivotValue> truncatedValues;
+
+    private final Set<String> edgeKeys;
+    private final List<PivotEdge> edges;
+
+    /**
+     * The failed lookups and queries, where the key is the seed hash or the
+     * pivot value
+     */
+    private final Map<Object, IOException> failures;
+
+    private int requestCount;
+    private boolean budgetExhausted;
+
+    PivotGraph() {
+        this.samples = new LinkedHashMap<>();
+        this.depths = new LinkedHashMap<>();
+        this.values = new LinkedHashMap<>();
+        this.truncatedValues = new HashSet<>();
+        this.edgeKeys = new HashSet<>();
+        this.edges = new ArrayList<>();
+        this.failures = new LinkedHashMap<>();
+        this.requestCount = 0;
+        this.budgetExhausted = false;
+    }
+
+    /**
+     * Gets the metadata of each sample in the graph
+     *
+     * @return the metadata per sample, where the key is the lower case
+     * SHA-256 hash, in order of discovery
+     */
+    public Map<String, YaraifyMetadata> getSamples() {
+        return Collections.unmodifiableMap(samples);
+    }
+
+    /**
+     * Gets the hop at which the given sample was discovered
+     *
+     * @param sha256 the SHA-256 hash of the sample
+     * @return the hop, where the seeds are at hop zero, or -1 if the sample is
+     * not in the graph
+     */
+    public int getDepth(String sha256) {
+        Integer depth = sha256 == null ? null : depths.get(sha256.toLowerCase(Locale.ROOT));
+        return depth == null ? -1 : depth;
+    }
+
+    /**
+     * Gets the attribute values in the graph, which includes the values that
+     * were not queried due to the limits of the expansion
+     *
+     * @return the values, in order of discovery
+     */
+    public Set<PivotValue> getValues() {
+        return Collections.unmodifiableSet(values.keySet());
+    }
+
+    /**
+     * Checks if the given value was queried, rather than only seen as an
+     * attribute of a sample
+     *
+     * @param value the value to check
+     * @return true if the value was queried, false if not
+     */
+    public boolean isExpanded(PivotValue value) {
+        return Boolean.TRUE.equals(values.get(value));
+    }
+
+    /**
+     * Checks if the query of the given value returned as many samples as were
+     * requested, meaning more samples may share the value
+     *
+     * @param value the value to check
+     * @return true if the results of the value may be incomplete, false if
+     * not
+     */
+    public boolean isTruncated(PivotValue value) {
+        return truncatedValues.contains(value);
+    }
+
+    public List<PivotEdge> getEdges() {
+        return Collections.unmodifiableList(edges);
+    }
+
+    /**
+     * Gets the lookups of seeds and the queries of values that failed
+     *
+     * @return the exception per seed hash or pivot value
+     */
+    public Map<Object, IOException> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * Gets the number of requests that the expansion made
+     *
+     * @return the number of requests
+     */
+    public int getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * Checks if the expansion stopped because the request budget was used up,
+     * rather than because the maximum depth was reached or no new samples
+     * were found
+     *
+     * @return true if the budget was exhausted, false if not
+     */
+    public boolean isBudgetExhausted() {
+        return budgetExhausted;
+    }
+
+    /**
+     * Converts the graph into JSON, with a list of samples (including their
+     * metadata), a list of values, and a list of edges
+     *
+     * @return the JSON representation of the graph
+     */
+    public JSONObject toJson() {
+        JsonSerializer serializer = new JsonSerializer();
+        JSONArray sampleArray = new JSONArray();
+        for (Map.Entry<String, YaraifyMetadata> sample : samples.entrySet()) {
+            JSONObject json = new JSONObject();
+            json.put("sha256_hash", sample.getKey());
+            json.put("depth", depths.get(sample.getKey()));
+            json.put("metadata", serializer.toJson(sample.getValue()));
+            sampleArray.put(json);
+        }
+
+        JSONArray valueArray = new JSONArray();
+        for (Map.Entry<PivotValue, Boolean> value : values.entrySet()) {
+            JSONObject json = new JSONObject();
+            json.put("attribute", value.getKey().getAttribute().getName());
+            json.put("value", value.getKey().getValue());
+            json.put("expanded", value.getValue());
+            json.put("truncated", truncatedValues.contains(value.getKey()));
+            valueArray.put(json);
+        }
+
+        JSONArray edgeArray = new JSONArray();
+        for (PivotEdge edge : edges) {
+            JSONObject json = new JSONObject();
+            json.put("sha256_hash", edge.getSha256());
+            json.put("attribute", edge.getValue().getAttribute().getName());
+            json.put("value", edge.getValue().getValue());
+            edgeArray.put(json);
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("samples", sampleArray);
+        json.put("values", valueArray);
+        json.put("edges", edgeArray);
+        json.put("request_count", requestCount);
+        json.put("budget_exhausted", budgetExhausted);
+        return json;
+    }
+
+    /**
+     * Converts the graph into the DOT format, which can be rendered with
+     * Graphviz. Samples are drawn as boxes, which are labelled with (at most)
+     * the first 16 characters of their hash, and values as ellipses, of which
+     * the values that were not queried are dashed.
+     *
+     * @return the DOT representation of the graph
+     */
+    public String toDot() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("graph pivots {\n");
+        for (String sha256 : samples.keySet()) {
+            builder.append("  \"").append(sha256).append("\" [shape=box, label=\"").append(sha256, 0, Math.min(16, sha256.length())).append("\\n(hop ").append(depths.get(sha256)).append(")\"];\n");
+        }
+        for (Map.Entry<PivotValue, Boolean> value : values.entrySet()) {
+            builder.append("  \"").append(escape(value.getKey().toString())).append("\" [shape=ellipse, label=\"")
+                    .append(value.getKey().getAttribute().getName()).append("\\n").append(escape(value.getKey().getValue())).append("\"");
+            if (value.getValue() == false) {
+                builder.append(", style=dashed");
+            }
+            builder.append("];\n");
+        }
+        for (PivotEdge edge : edges) {
+            builder.append("  \"").append(edge.getSha256()).append("\" -- \"").append(escape(edge.getValue().toString())).append("\";\n");
+        }
+        builder.append("}\n");
+        return builder.toString();
+    }
+
+    /**
+     * Adds the given sample, unless it is in the graph already
+     *
+     * @param sha256 the lower case SHA-256 hash of the sample
+     * @param metadata the metadata of the sample
+     * @param depth the hop at which the sample was discovered
+     * @return true if the sample was added, false if it was in the graph
+     */
+    boolean addSample(String sha256, YaraifyMetadata metadata, int depth) {
+        if (samples.containsKey(sha256)) {
+            return false;
+        }
+        samples.put(sha256, metadata);
+        depths.put(sha256, depth);
+        return true;
+    }
+
+    /**
+     * Adds the given value, unless it is in the graph already
+     *
+     * @param value the value to add
+     * @return true if the value was added, false if it was in the graph
+     */
+    boolean addValue(PivotValue value) {
+        return values.putIfAbsent(value, false) == null;
+    }
+
+    void markExpanded(PivotValue value, boolean truncated) {
+        values.put(value, true);
+        if (truncated) {
+            truncatedValues.add(value);
+        }
+    }
+
+    void addEdge(String sha256, PivotValue value) {
+        if (edgeKeys.add(sha256 + "|" + value)) {
+            edges.add(new PivotEdge(sha256, value));
+        }
+    }
+
+    void addFailure(Object key, IOException exception) {
+        failures.put(key, exception);
+    }
+
+    void addRequests(int count) {
+        requestCount += count;
+    }
+
+    void setBudgetExhausted(boolean budgetExhausted) {
+        this.budgetExhausted = budgetExhausted;
+    }
+
+    /**
+     * Escapes the quotes and backslashes in the given text, for use in a DOT
+     * string
+     *
+     * @param text the text to escape
+     * @return the escaped text
+     */
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.pivot;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import yaraifyapi.YaraifyApi;
+import yaraifyapi.model.YaraifyMetadata;
+import yaraifyapi.model.YaraifyTaskResult;
+
+/**
+ * Expands a set of seed hashes into a pivot graph, by repeatedly querying the
+ * samples which share an attribute value (such as an import hash) with the
+ * samples found so far. The expansion is breadth-first: each hop queries the
+ * new values of the samples that were found in the previous hop, and the
+ * queries of a single hop are made concurrently. Samples and values which
+ * were seen before are not queried again.<br>
+ * <br>
+ * The expansion is bounded in three ways: the maximum number of hops, the
+ * maximum number of values that are queried per hop, and the total number of
+ * requests. Values which are not queried due to these limits are still added
+ * to the graph, but are marked as not expanded. By default, the expansion
+ * goes two hops deep, queries up to 25 values per hop, requests up to 25
+ * samples per value, and makes at most 100 requests.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class PivotGraphExpander {
+
+    /**
+     * The API instance to make the requests with
+     */
+    private final YaraifyApi api;
+
+    /**
+     * The threads that make the requests of a hop
+     */
+    private final ExecutorService requesters;
+
+    private volatile int maximumDepth;
+    private volatile int maximumValuesPerHop;
+    private volatile int maximumSamplesPerValue;
+    private volatile int requestBudget;
+    private volatile Set<PivotAttribute> attributes;
+
+    /**
+     * Creates an expander which pivots on all attributes
+     *
+     * @param api the API instance to make the requests with
+     * @param threads the maximum number of concurrent requests
+     */
+    public PivotGraphExpander(YaraifyApi api, int threads) {
+        this.api = api;
+        this.maximumDepth = 2;
+        this.maximumValuesPerHop = 25;
+        this.maximumSamplesPerValue = 25;
+        this.requestBudget = 100;
+        this.attributes = EnumSet.allOf(PivotAttribute.class);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.requesters = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "yaraify-pivot-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Expands the given seeds into a pivot graph. The seeds are looked up
+     * first, which costs one request per seed. Seeds that cannot be looked up
+     * are recorded as failures.
+     *
+     * @param seeds the hashes (MD5, SHA-1, or SHA-256) of the samples to start
+     * from
+     * @return the graph
+     * @throws IOException if no seeds are given
+     * @throws InterruptedException if the calling thread is interrupted while
+     * waiting for the requests of a hop
+     */
+    public PivotGraph expand(Collection<String> seeds) throws IOException, InterruptedException {
+        if (seeds == null || seeds.isEmpty()) {
+            throw new IOException("The given collection of seeds is null or empty!");
+        }
+        int depthLimit = maximumDepth;
+        int valueLimit = maximumValuesPerHop;
+        int sampleLimit = maximumSamplesPerValue;
+        int budget = requestBudget;
+        Set<PivotAttribute> pivotAttributes = attributes;
+
+        PivotGraph graph = new PivotGraph();
+        List<YaraifyMetadata> frontier = new ArrayList<>();
+
+        //Hop zero: look up the seeds themselves
+        List<String> lookups = new ArrayList<>();
+        for (String seed : new LinkedHashSet<>(seeds)) {
+            if (seed == null || seed.isBlank()) {
+                continue;
+            }
+            if (lookups.size() >= budget) {
+                graph.setBudgetExhausted(true);
+                break;
+            }
+            lookups.add(seed.trim());
+        }
+        Map<String, Future<YaraifyTaskResult>> seedResults = new LinkedHashMap<>();
+        for (String seed : lookups) {
+            seedResults.put(seed, requesters.submit(() -> api.queryFileHash(seed)));
+        }
+        graph.addRequests(lookups.size());
+        for (Map.Entry<String, Future<YaraifyTaskResult>> entry : seedResults.entrySet()) {
+            try {
+                YaraifyMetadata metadata = entry.getValue().get().getMetadata();
+                if (metadata != null && metadata.getSha256() != null && metadata.getSha256().isEmpty() == false && graph.addSample(metadata.getSha256().toLowerCase(Locale.ROOT), metadata, 0)) {
+                    frontier.add(metadata);
+                }
+            } catch (ExecutionException e) {
+                graph.addFailure(entry.getKey(), toIOException(e));
+            }
+        }
+
+        for (int depth = 1; depth <= depthLimit && frontier.isEmpty() == false; depth++) {
+            //Connect the samples of the previous hop to their values, and select the new values to query
+            List<PivotValue> pending = new ArrayList<>();
+            for (YaraifyMetadata metadata : frontier) {
+                String sha256 = metadata.getSha256().toLowerCase(Locale.ROOT);
+                for (PivotAttribute attribute : pivotAttributes) {
+                    PivotValue value = getValue(metadata, attribute);
+                    if (value == null) {
+                        continue;
+                    }
+                    if (graph.addValue(value)) {
+                        pending.add(value);
+                    }
+                    graph.addEdge(sha256, value);
+                }
+            }
+
+            int remaining = budget - graph.getRequestCount();
+            int queryCount = Math.min(pending.size(), Math.min(valueLimit, remaining));
+            if (remaining < Math.min(pending.size(), valueLimit)) {
+                graph.setBudgetExhausted(true);
+            }
+
+            Map<PivotValue, Future<List<YaraifyMetadata>>> queries = new LinkedHashMap<>();
+            for (PivotValue value : pending.subList(0, queryCount)) {
+                queries.put(value, requesters.submit(() -> query(value, sampleLimit)));
+            }
+            graph.addRequests(queryCount);
+
+            List<YaraifyMetadata> next = new ArrayList<>();
+            for (Map.Entry<PivotValue, Future<List<YaraifyMetadata>>> entry : queries.entrySet()) {
+                PivotValue value = entry.getKey();
+                List<YaraifyMetadata> results;
+                try {
+                    results = entry.getValue().get();
+                } catch (ExecutionException e) {
+                    graph.addFailure(value, toIOException(e));
+                    continue;
+                }
+                graph.markExpanded(value, results.size() >= sampleLimit);
+                for (YaraifyMetadata metadata : results) {
+                    if (metadata == null || metadata.getSha256() == null || metadata.getSha256().isEmpty()) {
+                        continue;
+                    }
+                    String sha256 = metadata.getSha256().toLowerCase(Locale.ROOT);
+                    graph.addEdge(sha256, value);
+                    if (graph.addSample(sha256, metadata, depth)) {
+                        next.add(metadata);
+                    }
+                }
+            }
+            frontier = next;
+
+            if (graph.isBudgetExhausted()) {
+                break;
+            }
+        }
+
+        //Connect the samples of the last hop to their values, without querying them
+        for (YaraifyMetadata metadata : frontier) {
+            String sha256 = metadata.getSha256().toLowerCase(Locale.ROOT);
+            for (PivotAttribute attribute : pivotAttributes) {
+                PivotValue value = getValue(metadata, attribute);
+                if (value != null) {
+                    graph.addValue(value);
+                    graph.addEdge(sha256, value);
+                }
+            }
+        }
+        return graph;
+    }
+
+    public int getMaximumDepth() {
+        return maximumDepth;
+    }
+
+    /**
+     * Sets the maximum number of hops from the seeds
+     *
+     * @param maximumDepth the maximum number of hops, where zero only looks up
+     * the seeds
+     */
+    public void setMaximumDepth(int maximumDepth) {
+        this.maximumDepth = Math.max(0, maximumDepth);
+    }
+
+    public int getMaximumValuesPerHop() {
+        return maximumValuesPerHop;
+    }
+
+    /**
+     * Sets the maximum number of values that are queried per hop. Values are
+     * queried in order of discovery.
+     *
+     * @param maximumValuesPerHop the maximum number of values per hop
+     */
+    public void setMaximumValuesPerHop(int maximumValuesPerHop) {
+        this.maximumValuesPerHop = Math.max(1, maximumValuesPerHop);
+    }
+
+    public int getMaximumSamplesPerValue() {
+        return maximumSamplesPerValue;
+    }
+
+    /**
+     * Sets the maximum number of samples that are requested per value, which
+     * is passed as the limit of the query
+     *
+     * @param maximumSamplesPerValue the maximum number of samples, between 1
+     * and 1000
+     */
+    public void setMaximumSamplesPerValue(int maximumSamplesPerValue) {
+        this.maximumSamplesPerValue = Math.min(1000, Math.max(1, maximumSamplesPerValue));
+    }
+
+    public int getRequestBudget() {
+        return requestBudget;
+    }
+
+    /**
+     * Sets the maximum number of requests of a single expansion, including
+     * the lookups of the seeds
+     *
+     * @param requestBudget the maximum number of requests
+     */
+    public void setRequestBudget(int requestBudget) {
+        this.requestBudget = Math.max(0, requestBudget);
+    }
+
+    public Set<PivotAttribute> getAttributes() {
+        return EnumSet.copyOf(attributes);
+    }
+
+    /**
+     * Sets the attributes to pivot on
+     *
+     * @param attributes the attributes to pivot on
+     */
+    public void setAttributes(Collection<PivotAttribute> attributes) {
+        this.attributes = attributes.isEmpty() ? EnumSet.noneOf(PivotAttribute.class) : EnumSet.copyOf(attributes);
+    }
+
+    /**
+     * Stops the threads that make the requests
+     */
+    public void shutdown() {
+        requesters.shutdownNow();
+    }
+
+    /**
+     * Gets the value of the given attribute of the given sample
+     *
+     * @param metadata the metadata of the sample
+     * @param attribute the attribute to get
+     * @return the value, or null if the sample has no value for the attribute
+     */
+    private PivotValue getValue(YaraifyMetadata metadata, PivotAttribute attribute) {
+        String value;
+        switch (attribute) {
+            case IMPORT_HASH:
+                value = metadata.getImportHash();
+                break;
+            case TLSH:
+                value = metadata.getTlsh();
+                break;
+            case TELF_HASH:
+                value = metadata.getTelfHash();
+                break;
+            case GIMP_HASH:
+                value = metadata.getGimpHash();
+                break;
+            case ICON_DHASH:
+                value = metadata.getDhashIcon();
+                break;
+            default:
+                return null;
+        }
+        //Missing values are returned as empty strings or as "null" by the API
+        if (value == null || value.isBlank() || value.equalsIgnoreCase("null")) {
+            return null;
+        }
+        return new PivotValue(attribute, value.trim());
+    }
+
+    /**
+     * Queries the samples that share the given value
+     *
+     * @param value the value to query
+     * @param limit the maximum number of samples
+     * @return the samples that share the value
+     * @throws IOException if the query status in the response indicates the
+     * request was not successful
+     */
+    private List<YaraifyMetadata> query(PivotValue value, int limit) throws IOException {
+        List<YaraifyMetadata> results;
+        switch (value.getAttribute()) {
+            case IMPORT_HASH:
+                results = api.queryImportHash(value.getValue(), limit);
+                break;
+            case TLSH:
+                results = api.queryTlsh(value.getValue(), limit);
+                break;
+            case TELF_HASH:
+                results = api.queryTelfHash(value.getValue(), limit);
+                break;
+            case GIMP_HASH:
+                results = api.queryGimpHash(value.getValue(), limit);
+                break;
+            case ICON_DHASH:
+                results = api.queryIconDhash(value.getValue(), limit);
+                break;
+            default:
+                throw new IOException("Unknown pivot attribute!");
+        }
+        return results == null ? new ArrayList<>() : results;
+    }
+
+    /**
+     * Unwraps the cause of the given exception
+     *
+     * @param exception the exception of a request
+     * @return the cause as an IOException
+     */
+    private static IOException toIOException(ExecutionException exception) {
+        Throwable cause = exception.getCause();
+        return cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    }
+}
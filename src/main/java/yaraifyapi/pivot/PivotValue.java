@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.pivot;
+
+import java.util.Objects;
+
+/**
+ * A value of a pivot attribute, such as a specific import hash, which is
+ * shared by one or more samples in a pivot graph
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class PivotValue {
+
+    private final PivotAttribute attribute;
+    private final String value;
+
+    public PivotValue(PivotAttribute attribute, String value) {
+        this.attribute = attribute;
+        this.value = value;
+    }
+
+    public PivotAttribute getAttribute() {
+        return attribute;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (object instanceof PivotValue == false) {
+            return false;
+        }
+        PivotValue other = (PivotValue) object;
+        return attribute == other.attribute && value.equals(other.value);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(attribute, value);
+    }
+
+    @Override
+    public String toString() {
+        return attribute.getName() + ":" + value;
+    }
+}
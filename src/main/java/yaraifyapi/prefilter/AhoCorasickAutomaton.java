@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.prefilter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * An Aho-Corasick automaton over bytes, which finds all of its patterns in a
+ * single pass over the data. Matching ignores the case of ASCII letters. The
+ * transitions of the root state are stored in a dense table, while the
+ * transitions of all other states are stored in compact sorted arrays, which
+ * keeps the automaton small for large pattern sets.<br>
+ * <br>
+ * Once built, the automaton is immutable, and can be used by any number of
+ * threads at the same time.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class AhoCorasickAutomaton {
+
+    /**
+     * Maps each byte to its case folded (lower case) value
+     */
+    private static final int[] FOLD = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            FOLD[i] = (i >= 'A' && i <= 'Z') ? i + ('a' - 'A') : i;
+        }
+    }
+
+    private final int[] rootTransitions;
+    private final int[] rawRootTransitions;
+    private final int[] transitionStart;
+    private final byte[] transitionBytes;
+    private final int[] transitionTargets;
+    private final int[] failure;
+    private final int[] outputStart;
+    private final int[] outputPatterns;
+    private final int[] outputLink;
+    private final boolean[] reportable;
+    private final int patternCount;
+    private final int maximumPatternLength;
+
+    /**
+     * Builds an automaton for the given patterns. The index of a pattern in
+     * the given list is the ID that is reported when it is found.
+     *
+     * @param patterns the patterns to find
+     */
+    public AhoCorasickAutomaton(List<byte[]> patterns) {
+        //Build the trie with a first-child, next-sibling representation
+        IntList firstChild = new IntList();
+        IntList nextSibling = new IntList();
+        IntList label = new IntList();
+        List<IntList> outputs = new ArrayList<>();
+        firstChild.add(-1);
+        nextSibling.add(-1);
+        label.add(-1);
+        outputs.add(null);
+
+        int maximumLength = 0;
+        for (int id = 0; id < patterns.size(); id++) {
+            byte[] pattern = patterns.get(id);
+            maximumLength = Math.max(maximumLength, pattern.length);
+            int state = 0;
+            for (byte b : pattern) {
+                int value = FOLD[b & 0xFF];
+                int child = firstChild.get(state);
+                while (child != -1 && label.get(child) != value) {
+                    child = nextSibling.get(child);
+                }
+                if (child == -1) {
+                    child = label.size();
+                    firstChild.add(-1);
+                    nextSibling.add(firstChild.get(state));
+                    label.add(value);
+                    outputs.add(null);
+                    firstChild.set(state, child);
+                }
+                state = child;
+            }
+            if (outputs.get(state) == null) {
+                outputs.set(state, new IntList());
+            }
+            outputs.get(state).add(id);
+        }
+
+        int stateCount = label.size();
+        this.patternCount = patterns.size();
+        this.maximumPatternLength = maximumLength;
+
+        //Freeze the transitions into sorted arrays
+        this.transitionStart = new int[stateCount + 1];
+        for (int state = 0; state < stateCount; state++) {
+            int count = 0;
+            for (int child = firstChild.get(state); child != -1; child = nextSibling.get(child)) {
+                count++;
+            }
+            transitionStart[state + 1] = transitionStart[state] + count;
+        }
+        this.transitionBytes = new byte[transitionStart[stateCount]];
+        this.transitionTargets = new int[transitionStart[stateCount]];
+        for (int state = 0; state < stateCount; state++) {
+            int offset = transitionStart[state];
+            int count = transitionStart[state + 1] - offset;
+            long[] sorted = new long[count];
+            int index = 0;
+            for (int child = firstChild.get(state); child != -1; child = nextSibling.get(child)) {
+                sorted[index++] = ((long) label.get(child) << 32) | child;
+            }
+            Arrays.sort(sorted);
+            for (int i = 0; i < count; i++) {
+                transitionBytes[offset + i] = (byte) (sorted[i] >>> 32);
+                transitionTargets[offset + i] = (int) sorted[i];
+            }
+        }
+
+        this.rootTransitions = new int[256];
+        for (int i = transitionStart[0]; i < transitionStart[1]; i++) {
+            rootTransitions[transitionBytes[i] & 0xFF] = transitionTargets[i];
+        }
+
+        //The root transitions for unfolded bytes, which saves the folding of bytes that start no pattern
+        this.rawRootTransitions = new int[256];
+        for (int i = 0; i < 256; i++) {
+            rawRootTransitions[i] = rootTransitions[FOLD[i]];
+        }
+
+        //Compute the failure and output links in breadth-first order
+        this.failure = new int[stateCount];
+        this.outputLink = new int[stateCount];
+        Arrays.fill(outputLink, -1);
+        int[] queue = new int[stateCount];
+        int head = 0;
+        int tail = 0;
+        for (int i = transitionStart[0]; i < transitionStart[1]; i++) {
+            queue[tail++] = transitionTargets[i];
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            for (int i = transitionStart[state]; i < transitionStart[state + 1]; i++) {
+                int value = transitionBytes[i] & 0xFF;
+                int child = transitionTargets[i];
+                int fallback = failure[state];
+                int target = find(fallback, value);
+                while (target == -1 && fallback != 0) {
+                    fallback = failure[fallback];
+                    target = find(fallback, value);
+                }
+                failure[child] = target == -1 ? 0 : target;
+                int link = failure[child];
+                outputLink[child] = outputs.get(link) != null ? link : outputLink[link];
+                queue[tail++] = child;
+            }
+        }
+
+        this.outputStart = new int[stateCount + 1];
+        IntList flattened = new IntList();
+        this.reportable = new boolean[stateCount];
+        for (int state = 0; state < stateCount; state++) {
+            IntList own = outputs.get(state);
+            if (own != null) {
+                for (int i = 0; i < own.size(); i++) {
+                    flattened.add(own.get(i));
+                }
+            }
+            outputStart[state + 1] = flattened.size();
+            reportable[state] = own != null || outputLink[state] != -1;
+        }
+        this.outputPatterns = flattened.toArray();
+    }
+
+    /**
+     * Finds the transition of the given state for the given byte, without
+     * following failure links
+     *
+     * @param state the state to transition from
+     * @param value the (case folded) byte
+     * @return the target state, or -1 if there is no transition
+     */
+    private int find(int state, int value) {
+        if (state == 0) {
+            int target = rootTransitions[value];
+            return target == 0 ? -1 : target;
+        }
+        int low = transitionStart[state];
+        int high = transitionStart[state + 1] - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int candidate = transitionBytes[middle] & 0xFF;
+            if (candidate < value) {
+                low = middle + 1;
+            } else if (candidate > value) {
+                high = middle - 1;
+            } else {
+                return transitionTargets[middle];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Scans the remaining bytes of the given buffer, and marks the IDs of the
+     * patterns that were found. The position of the buffer is not changed.
+     *
+     * @param buffer the data to scan
+     * @param found the set in which the IDs of the found patterns are marked
+     */
+    public void scan(ByteBuffer buffer, BitSet found) {
+        int state = 0;
+        int end = buffer.limit();
+        int i = buffer.position();
+        while (i < end) {
+            if (state == 0) {
+                //Most bytes do not start a pattern, so the root state is handled in a tight loop
+                int target = 0;
+                while (i < end && (target = rawRootTransitions[buffer.get(i) & 0xFF]) == 0) {
+                    i++;
+                }
+                if (i == end) {
+                    break;
+                }
+                state = target;
+                i++;
+            } else {
+                int value = FOLD[buffer.get(i) & 0xFF];
+                int target = find(state, value);
+                while (target == -1 && state != 0) {
+                    state = failure[state];
+                    target = find(state, value);
+                }
+                state = target == -1 ? 0 : target;
+                i++;
+            }
+            if (reportable[state]) {
+                report(state, found);
+            }
+        }
+    }
+
+    /**
+     * Marks the patterns of the given state, and of all states that its output
+     * links lead to
+     *
+     * @param state the state to report
+     * @param found the set in which the IDs of the found patterns are marked
+     */
+    private void report(int state, BitSet found) {
+        for (int current = state; current != -1; current = outputLink[current]) {
+            for (int i = outputStart[current]; i < outputStart[current + 1]; i++) {
+                found.set(outputPatterns[i]);
+            }
+        }
+    }
+
+    public int getPatternCount() {
+        return patternCount;
+    }
+
+    public int getStateCount() {
+        return failure.length;
+    }
+
+    /**
+     * Gets the length of the longest pattern, which is the overlap that is
+     * needed when data is scanned in separate segments
+     *
+     * @return the length of the longest pattern
+     */
+    public int getMaximumPatternLength() {
+        return maximumPatternLength;
+    }
+
+    /**
+     * A growable list of primitive integers, to keep the construction of
+     * large automata free of boxing
+     */
+    private static class IntList {
+
+        private int[] values = new int[16];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+
+        void set(int index, int value) {
+            values[index] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,576 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.prefilter;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import yaraifyapi.rules.YaraRule;
+
+/**
+ * Extracts the literal byte sequences (atoms) from the strings of Yara rules.
+ * Each string yields at most one atom (or two, if both its ASCII and its wide
+ * form can match), which is a byte sequence that must be present in a file
+ * for the string to match. Text strings yield (a part of) their text, hex
+ * strings yield their longest run of fixed bytes, and regular expressions
+ * yield their longest mandatory literal run.<br>
+ * <br>
+ * A rule is only filterable if each of its strings yields an atom, and if its
+ * condition cannot be satisfied without any of its strings. The latter is
+ * determined conservatively: conditions which use "or", "not", "none", or
+ * "false", which do not reference a string, or which use a string count in
+ * any other way than as a lower bound that requires a match (such as
+ * "#a &gt; 0" or "#a &gt;= 2"), are considered to be satisfiable without
+ * strings. Rules which are not filterable are always candidates.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class YaraLiteralExtractor {
+
+    /**
+     * The minimum length of an atom, as shorter atoms match in nearly every
+     * file
+     */
+    public static final int MINIMUM_ATOM_LENGTH = 3;
+
+    /**
+     * The maximum length of an atom. Longer literals are reduced to their
+     * most distinctive window of this length.
+     */
+    public static final int MAXIMUM_ATOM_LENGTH = 32;
+
+    /**
+     * Matches the words in a condition which make it satisfiable without any
+     * string matching
+     */
+    private static final Pattern UNFILTERABLE_CONDITION = Pattern.compile("\\b(or|not|none|defined|false)\\b|\\b0\\s+of\\b");
+
+    /**
+     * Matches a string count, and the comparison that directly follows it, if
+     * it is a lower bound on the count
+     */
+    private static final Pattern STRING_COUNT = Pattern.compile("#\\w*(\\s*(>=|>)\\s*(\\d+))?");
+
+    /**
+     * Matches a reference to a string, its offset, or its length
+     */
+    private static final Pattern STRING_REFERENCE = Pattern.compile("[$@!]\\w|\\$|\\bthem\\b");
+
+    /**
+     * The literals of a single rule
+     */
+    public static class RuleLiterals {
+
+        private final List<byte[]> atoms;
+        private final boolean filterable;
+
+        RuleLiterals(List<byte[]> atoms, boolean filterable) {
+            this.atoms = atoms;
+            this.filterable = filterable;
+        }
+
+        /**
+         * Gets the atoms of the rule, of which at least one must be present in
+         * a file for the rule to match (if the rule is filterable)
+         *
+         * @return the atoms of the rule
+         */
+        public List<byte[]> getAtoms() {
+            return atoms;
+        }
+
+        /**
+         * Checks if the rule can be filtered based on its atoms
+         *
+         * @return true if the rule can only match files that contain at least
+         * one of its atoms, false if the rule can match any file
+         */
+        public boolean isFilterable() {
+            return filterable;
+        }
+    }
+
+    private String section;
+    private int position;
+
+    /**
+     * Extracts the literals from the given rule
+     *
+     * @param rule the rule to extract the literals from
+     * @return the literals of the rule
+     */
+    public RuleLiterals extract(YaraRule rule) {
+        section = rule.getStringsSection();
+        position = 0;
+        List<byte[]> atoms = new ArrayList<>();
+        boolean filterable = true;
+        int stringCount = 0;
+
+        while (true) {
+            skipWhitespaceAndComments();
+            if (position >= section.length()) {
+                break;
+            }
+            if (section.charAt(position) != '$') {
+                //Unexpected text, which cannot be interpreted safely
+                filterable = false;
+                break;
+            }
+            position++;
+            readWord();
+            skipWhitespaceAndComments();
+            if (peek() != '=') {
+                filterable = false;
+                break;
+            }
+            position++;
+            skipWhitespaceAndComments();
+            stringCount++;
+
+            byte[] literal;
+            char type = peek();
+            if (type == '"') {
+                literal = readText();
+            } else if (type == '{') {
+                literal = readHex();
+            } else if (type == '/') {
+                literal = readRegularExpression();
+            } else {
+                filterable = false;
+                break;
+            }
+
+            boolean ascii = false;
+            boolean wide = false;
+            boolean transformed = false;
+            while (true) {
+                skipWhitespaceAndComments();
+                String modifier = readWord();
+                if (modifier == null) {
+                    break;
+                }
+                if (modifier.equals("ascii")) {
+                    ascii = true;
+                } else if (modifier.equals("wide")) {
+                    wide = true;
+                } else if (modifier.equals("xor") || modifier.startsWith("base64")) {
+                    transformed = true;
+                }
+                skipWhitespaceAndComments();
+                if (peek() == '(') {
+                    skipArguments();
+                }
+            }
+
+            if (literal == null || transformed) {
+                filterable = false;
+                continue;
+            }
+            byte[] atom = selectWindow(literal);
+            if (wide == false || ascii) {
+                atoms.add(atom);
+            }
+            if (wide) {
+                atoms.add(selectWindow(toWide(literal)));
+            }
+        }
+
+        if (stringCount == 0 || isFilterableCondition(rule.getCondition()) == false) {
+            filterable = false;
+        }
+        section = null;
+        return new RuleLiterals(atoms, filterable);
+    }
+
+    /**
+     * Checks if the given condition requires at least one string to match.
+     * The condition may only consist of terms that are joined by "and", as
+     * any other construct is rejected. A string count is only accepted if it
+     * is compared as a term on its own, with a lower bound that requires at
+     * least one match. Any other use, such as "#a == 0", "0 &lt; #a", or the
+     * range "(1..#a)" of a loop, which is vacuously true without matches,
+     * makes the condition unfilterable.
+     *
+     * @param condition the condition to check
+     * @return true if the condition cannot be satisfied without a match,
+     * false if it can, or if this cannot be determined
+     */
+    private boolean isFilterableCondition(String condition) {
+        if (UNFILTERABLE_CONDITION.matcher(condition).find()) {
+            return false;
+        }
+        boolean countBound = false;
+        Matcher count = STRING_COUNT.matcher(condition);
+        while (count.find()) {
+            if (count.group(1) == null || isTerm(condition, count.start(), count.end()) == false) {
+                return false;
+            }
+            String bound = count.group(3);
+            //A bound of zero only requires a match if the count has to exceed it
+            boolean zero = bound.replace("0", "").isEmpty();
+            if (zero && count.group(2).equals(">=")) {
+                return false;
+            }
+            countBound = true;
+        }
+        return countBound || STRING_REFERENCE.matcher(condition).find();
+    }
+
+    /**
+     * Checks if the given part of a condition is a term on its own, meaning it
+     * is not part of a larger expression such as a sum or a range
+     *
+     * @param condition the condition
+     * @param start the start of the part
+     * @param end the end of the part
+     * @return true if the part is preceded by the start of the condition, an
+     * opening parenthesis, or "and", and followed by the end of the
+     * condition, a closing parenthesis, or "and", false if not
+     */
+    private boolean isTerm(String condition, int start, int end) {
+        String before = condition.substring(0, start).trim();
+        String after = condition.substring(end).trim();
+        boolean separatedBefore = before.isEmpty() || before.endsWith("(") || before.matches("(?s).*\\band");
+        boolean separatedAfter = after.isEmpty() || after.startsWith(")") || after.matches("(?s)and\\b.*");
+        return separatedBefore && separatedAfter;
+    }
+
+    /**
+     * Reads a text string, and converts it into its bytes
+     *
+     * @return the bytes of the string, or null if it is too short
+     */
+    private byte[] readText() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        position++;
+        while (position < section.length()) {
+            char c = section.charAt(position++);
+            if (c == '"') {
+                break;
+            }
+            if (c == '\\' && position < section.length()) {
+                char escaped = section.charAt(position++);
+                if (escaped == 'n') {
+                    bytes.write('\n');
+                } else if (escaped == 't') {
+                    bytes.write('\t');
+                } else if (escaped == 'r') {
+                    bytes.write('\r');
+                } else if (escaped == 'x' && position + 2 <= section.length()) {
+                    int value = parseHexByte(section.charAt(position), section.charAt(position + 1));
+                    if (value == -1) {
+                        return null;
+                    }
+                    bytes.write(value);
+                    position += 2;
+                } else {
+                    bytes.write(escaped);
+                }
+                continue;
+            }
+            byte[] encoded = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+            bytes.write(encoded, 0, encoded.length);
+        }
+        return minimum(bytes.toByteArray());
+    }
+
+    /**
+     * Reads a hexadecimal string, and returns its longest run of fixed bytes.
+     * Wildcards, jumps, negations, and alternations interrupt a run.
+     *
+     * @return the longest run of fixed bytes, or null if it is too short
+     */
+    private byte[] readHex() {
+        position++;
+        ByteArrayOutputStream run = new ByteArrayOutputStream();
+        byte[] longest = new byte[0];
+        int groupDepth = 0;
+        while (position < section.length()) {
+            char c = section.charAt(position);
+            if (c == '}') {
+                position++;
+                break;
+            }
+            if (c == '/' && position + 1 < section.length() && (section.charAt(position + 1) == '*' || section.charAt(position + 1) == '/')) {
+                skipWhitespaceAndComments();
+                continue;
+            }
+            if (Character.isWhitespace(c)) {
+                position++;
+                continue;
+            }
+            int value = position + 1 < section.length() ? parseHexByte(c, section.charAt(position + 1)) : -1;
+            if (value != -1 && groupDepth == 0) {
+                run.write(value);
+                position += 2;
+                continue;
+            }
+
+            //Anything other than a fixed byte outside of a group ends the current run
+            if (run.size() > longest.length) {
+                longest = run.toByteArray();
+            }
+            run.reset();
+            if (c == '(') {
+                groupDepth++;
+            } else if (c == ')') {
+                groupDepth = Math.max(0, groupDepth - 1);
+            } else if (c == '[') {
+                int end = section.indexOf(']', position);
+                position = end == -1 ? section.length() : end;
+            } else if (c == '~' || c == '?') {
+                //Skip the negated or masked byte as a whole
+                position++;
+                if (position < section.length() && (Character.digit(section.charAt(position), 16) != -1 || section.charAt(position) == '?')) {
+                    position++;
+                }
+                continue;
+            } else if (value != -1) {
+                position += 2;
+                continue;
+            }
+            position++;
+        }
+        if (run.size() > longest.length) {
+            longest = run.toByteArray();
+        }
+        return minimum(longest);
+    }
+
+    /**
+     * Reads a regular expression, and returns its longest mandatory literal
+     * run. Expressions with alternations yield no literal, and the contents of
+     * groups and classes, as well as optional characters, interrupt a run.
+     *
+     * @return the longest mandatory literal run, or null if there is none (or
+     * if it is too short)
+     */
+    private byte[] readRegularExpression() {
+        position++;
+        StringBuilder expression = new StringBuilder();
+        while (position < section.length()) {
+            char c = section.charAt(position++);
+            if (c == '\\' && position < section.length()) {
+                expression.append(c).append(section.charAt(position++));
+                continue;
+            }
+            if (c == '/') {
+                break;
+            }
+            expression.append(c);
+        }
+        //Skip the flags of the expression
+        while (position < section.length() && Character.isLetter(section.charAt(position))) {
+            position++;
+        }
+
+        String regex = expression.toString();
+        ByteArrayOutputStream run = new ByteArrayOutputStream();
+        byte[] longest = new byte[0];
+        int depth = 0;
+        int i = 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            int literal = -1;
+            int length = 1;
+            if (c == '|') {
+                return null;
+            } else if (c == '\\' && i + 1 < regex.length()) {
+                char escaped = regex.charAt(i + 1);
+                length = 2;
+                if (escaped == 'x' && i + 3 < regex.length()) {
+                    literal = parseHexByte(regex.charAt(i + 2), regex.charAt(i + 3));
+                    length = 4;
+                } else if (escaped == 'n') {
+                    literal = '\n';
+                } else if (escaped == 't') {
+                    literal = '\t';
+                } else if (escaped == 'r') {
+                    literal = '\r';
+                } else if (Character.isLetterOrDigit(escaped) == false) {
+                    literal = escaped;
+                }
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth = Math.max(0, depth - 1);
+            } else if (c == '[') {
+                //Skip the class, of which a closing bracket directly after the opening bracket is a literal
+                int end = regex.indexOf(']', i + 2);
+                length = end == -1 ? regex.length() - i : end - i + 1;
+            } else if (".*+?{}^$".indexOf(c) == -1 && c < 0x80) {
+                literal = c;
+            }
+
+            //A literal that is followed by an optional quantifier is not mandatory
+            int next = i + length;
+            boolean optional = next < regex.length() && "?*{".indexOf(regex.charAt(next)) != -1;
+            if (literal != -1 && depth == 0 && optional == false) {
+                run.write(literal);
+            } else {
+                if (run.size() > longest.length) {
+                    longest = run.toByteArray();
+                }
+                run.reset();
+            }
+            if (c == '{' || (next < regex.length() && regex.charAt(next) == '{')) {
+                //Skip the quantifier's bounds
+                int end = regex.indexOf('}', next);
+                next = end == -1 ? regex.length() : end + 1;
+                if (run.size() > longest.length) {
+                    longest = run.toByteArray();
+                }
+                run.reset();
+            }
+            i = next;
+        }
+        if (run.size() > longest.length) {
+            longest = run.toByteArray();
+        }
+        return minimum(longest);
+    }
+
+    /**
+     * Converts the given literal into its wide form, i.e. each byte followed
+     * by a zero byte
+     *
+     * @param literal the literal to convert
+     * @return the wide form of the literal
+     */
+    private byte[] toWide(byte[] literal) {
+        byte[] wide = new byte[literal.length * 2];
+        for (int i = 0; i < literal.length; i++) {
+            wide[i * 2] = literal[i];
+        }
+        return wide;
+    }
+
+    /**
+     * Selects the most distinctive window of the maximum atom length from the
+     * given literal. Bytes which are common in files (zero, space, 0xFF, and
+     * padding bytes) make a window less distinctive.
+     *
+     * @param literal the literal to select a window from
+     * @return the literal itself if it is short enough, otherwise its most
+     * distinctive window
+     */
+    private byte[] selectWindow(byte[] literal) {
+        if (literal.length <= MAXIMUM_ATOM_LENGTH) {
+            return literal;
+        }
+        int bestStart = 0;
+        int bestScore = Integer.MIN_VALUE;
+        int score = 0;
+        for (int i = 0; i < literal.length; i++) {
+            score += distinctiveness(literal[i]);
+            if (i >= MAXIMUM_ATOM_LENGTH) {
+                score -= distinctiveness(literal[i - MAXIMUM_ATOM_LENGTH]);
+            }
+            if (i >= MAXIMUM_ATOM_LENGTH - 1 && score > bestScore) {
+                bestScore = score;
+                bestStart = i - MAXIMUM_ATOM_LENGTH + 1;
+            }
+        }
+        byte[] window = new byte[MAXIMUM_ATOM_LENGTH];
+        System.arraycopy(literal, bestStart, window, 0, MAXIMUM_ATOM_LENGTH);
+        return window;
+    }
+
+    private int distinctiveness(byte b) {
+        int value = b & 0xFF;
+        if (value == 0x00 || value == 0x20 || value == 0xFF || value == 0x90 || value == 0xCC) {
+            return 0;
+        }
+        return 1;
+    }
+
+    private byte[] minimum(byte[] literal) {
+        if (literal == null || literal.length < MINIMUM_ATOM_LENGTH) {
+            return null;
+        }
+        return literal;
+    }
+
+    private int parseHexByte(char high, char low) {
+        int h = Character.digit(high, 16);
+        int l = Character.digit(low, 16);
+        if (h == -1 || l == -1) {
+            return -1;
+        }
+        return (h << 4) | l;
+    }
+
+    /**
+     * Skips the arguments of a modifier, including strings that contain
+     * parentheses
+     */
+    private void skipArguments() {
+        int depth = 0;
+        while (position < section.length()) {
+            char c = section.charAt(position++);
+            if (c == '"') {
+                while (position < section.length()) {
+                    char s = section.charAt(position++);
+                    if (s == '\\') {
+                        position++;
+                    } else if (s == '"') {
+                        break;
+                    }
+                }
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+                if (depth == 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private String readWord() {
+        int start = position;
+        while (position < section.length() && (Character.isLetterOrDigit(section.charAt(position)) || section.charAt(position) == '_')) {
+            position++;
+        }
+        return position == start ? null : section.substring(start, position);
+    }
+
+    private char peek() {
+        return position < section.length() ? section.charAt(position) : 0;
+    }
+
+    private void skipWhitespaceAndComments() {
+        while (position < section.length()) {
+            char c = section.charAt(position);
+            if (Character.isWhitespace(c)) {
+                position++;
+            } else if (c == '/' && position + 1 < section.length() && section.charAt(position + 1) == '/') {
+                int end = section.indexOf('\n', position);
+                position = end == -1 ? section.length() : end + 1;
+            } else if (c == '/' && position + 1 < section.length() && section.charAt(position + 1) == '*') {
+                int end = section.indexOf("*/", position + 2);
+                position = end == -1 ? section.length() : end + 2;
+            } else {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.prefilter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import yaraifyapi.rules.YaraRule;
+import yaraifyapi.rules.YaraRuleIndex;
+
+/**
+ * A local prefilter for files, based on the literal strings of Yara rules
+ * (i.e. those returned by
+ * {@link yaraifyapi.YaraifyApi#downloadAllYaraRules()}). The literals of all
+ * rules are compiled into a single Aho-Corasick automaton, which finds all of
+ * them in a single pass over a file. Files are memory-mapped and scanned in
+ * segments in parallel, including segments of the same file.<br>
+ * <br>
+ * The prefilter reports which rules could possibly match a file. A file which
+ * contains none of the literals of a filterable rule cannot match that rule,
+ * and does not need to be uploaded for that rule. Rules which cannot be
+ * filtered (see {@link YaraLiteralExtractor}) are reported separately, as
+ * they could match any file.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class YaraPrefilter {
+
+    /**
+     * The size of the segments in which files are scanned
+     */
+    static final long SEGMENT_SIZE = 32 * 1024 * 1024;
+
+    private final AhoCorasickAutomaton automaton;
+    private final List<String> ruleNames;
+    private final int[][] patternRules;
+    private final List<String> unfilterableRules;
+    private final int threads;
+    private final ExecutorService scanners;
+
+    /**
+     * Creates a prefilter for all rules in the given index
+     *
+     * @param index the index of the rules to filter for
+     * @param threads the number of threads that scan segments concurrently
+     */
+    public YaraPrefilter(YaraRuleIndex index, int threads) {
+        this(index.getRules(), threads);
+    }
+
+    /**
+     * Creates a prefilter for the given rules
+     *
+     * @param rules the rules to filter for
+     * @param threads the number of threads that scan segments concurrently
+     */
+    public YaraPrefilter(Collection<YaraRule> rules, int threads) {
+        this.ruleNames = new ArrayList<>();
+        this.unfilterableRules = new ArrayList<>();
+        List<byte[]> patterns = new ArrayList<>();
+        List<List<Integer>> rulesPerPattern = new ArrayList<>();
+        //Identical atoms of different rules share a single pattern
+        Map<String, Integer> patternIds = new HashMap<>();
+
+        YaraLiteralExtractor extractor = new YaraLiteralExtractor();
+        for (YaraRule rule : rules) {
+            YaraLiteralExtractor.RuleLiterals literals = extractor.extract(rule);
+            if (literals.isFilterable() == false) {
+                unfilterableRules.add(rule.getName());
+                continue;
+            }
+            int ruleId = ruleNames.size();
+            ruleNames.add(rule.getName());
+            for (byte[] atom : literals.getAtoms()) {
+                String key = foldKey(atom);
+                Integer patternId = patternIds.get(key);
+                if (patternId == null) {
+                    patternId = patterns.size();
+                    patternIds.put(key, patternId);
+                    patterns.add(atom);
+                    rulesPerPattern.add(new ArrayList<>(1));
+                }
+                List<Integer> owners = rulesPerPattern.get(patternId);
+                if (owners.isEmpty() || owners.get(owners.size() - 1) != ruleId) {
+                    owners.add(ruleId);
+                }
+            }
+        }
+
+        this.automaton = new AhoCorasickAutomaton(patterns);
+        this.patternRules = new int[patterns.size()][];
+        for (int i = 0; i < patterns.size(); i++) {
+            List<Integer> owners = rulesPerPattern.get(i);
+            patternRules[i] = new int[owners.size()];
+            for (int j = 0; j < owners.size(); j++) {
+                patternRules[i][j] = owners.get(j);
+            }
+        }
+
+        this.threads = Math.max(1, threads);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.scanners = Executors.newFixedThreadPool(this.threads, runnable -> {
+            Thread thread = new Thread(runnable, "yaraify-prefilter-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Converts the given atom into a key which is equal for atoms that only
+     * differ in the case of ASCII letters, matching the case folding of the
+     * automaton
+     *
+     * @param atom the atom to convert
+     * @return the key of the atom
+     */
+    private String foldKey(byte[] atom) {
+        char[] key = new char[atom.length];
+        for (int i = 0; i < atom.length; i++) {
+            int value = atom[i] & 0xFF;
+            key[i] = (char) ((value >= 'A' && value <= 'Z') ? value + ('a' - 'A') : value);
+        }
+        return new String(key);
+    }
+
+    /**
+     * Scans the given file. Large files are scanned in segments, which are
+     * scanned in parallel.
+     *
+     * @param file the file to scan
+     * @return the result of the scan, which contains the exception if the file
+     * could not be scanned
+     * @throws InterruptedException if the thread is interrupted while waiting
+     * for the scan to finish
+     */
+    public YaraPrefilterResult scan(Path file) throws InterruptedException {
+        return scan(Collections.singletonList(file)).get(file);
+    }
+
+    /**
+     * Scans the given files. All segments of all files are scanned in
+     * parallel.
+     *
+     * @param files the files to scan
+     * @return the result per file, in the order of the given files
+     * @throws InterruptedException if the thread is interrupted while waiting
+     * for the scans to finish
+     */
+    public Map<Path, YaraPrefilterResult> scan(Collection<Path> files) throws InterruptedException {
+        Map<Path, List<Future<BitSet>>> segments = new LinkedHashMap<>();
+        Map<Path, IOException> failures = new HashMap<>();
+        for (Path file : files) {
+            List<Future<BitSet>> futures = new ArrayList<>();
+            segments.put(file, futures);
+            long size;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                size = channel.size();
+            } catch (IOException e) {
+                failures.put(file, e);
+                continue;
+            }
+            if (automaton.getPatternCount() == 0) {
+                continue;
+            }
+            for (long start = 0; start < size; start += SEGMENT_SIZE) {
+                long segmentStart = start;
+                long segmentEnd = Math.min(size, start + SEGMENT_SIZE);
+                futures.add(scanners.submit(() -> scanSegment(file, segmentStart, segmentEnd)));
+            }
+        }
+
+        Map<Path, YaraPrefilterResult> results = new LinkedHashMap<>();
+        for (Map.Entry<Path, List<Future<BitSet>>> entry : segments.entrySet()) {
+            Path file = entry.getKey();
+            BitSet found = new BitSet(automaton.getPatternCount());
+            IOException exception = failures.get(file);
+            for (Future<BitSet> future : entry.getValue()) {
+                try {
+                    found.or(future.get());
+                } catch (ExecutionException e) {
+                    if (exception == null) {
+                        exception = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                    }
+                }
+            }
+            results.put(file, toResult(file, found, exception));
+        }
+        return results;
+    }
+
+    /**
+     * Scans a segment of a file. The scan starts before the segment, by the
+     * length of the longest pattern minus one, to find patterns which cross
+     * the start of the segment.
+     *
+     * @param file the file to scan
+     * @param start the start of the segment
+     * @param end the end of the segment
+     * @return the IDs of the patterns which were found
+     * @throws IOException if the file cannot be mapped
+     */
+    private BitSet scanSegment(Path file, long start, long end) throws IOException {
+        long scanStart = Math.max(0, start - (automaton.getMaximumPatternLength() - 1));
+        BitSet found = new BitSet(automaton.getPatternCount());
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, scanStart, end - scanStart);
+            automaton.scan(buffer, found);
+        }
+        return found;
+    }
+
+    /**
+     * Converts the IDs of the found patterns into a result
+     *
+     * @param file the file that was scanned
+     * @param found the IDs of the patterns which were found
+     * @param exception the exception that occurred, or null if there was none
+     * @return the result of the scan
+     */
+    private YaraPrefilterResult toResult(Path file, BitSet found, IOException exception) {
+        BitSet matched = new BitSet(ruleNames.size());
+        for (int pattern = found.nextSetBit(0); pattern >= 0; pattern = found.nextSetBit(pattern + 1)) {
+            for (int rule : patternRules[pattern]) {
+                matched.set(rule);
+            }
+        }
+        List<String> matchedRules = new ArrayList<>();
+        for (int rule = matched.nextSetBit(0); rule >= 0; rule = matched.nextSetBit(rule + 1)) {
+            matchedRules.add(ruleNames.get(rule));
+        }
+        List<String> candidateRules = new ArrayList<>(matchedRules);
+        candidateRules.addAll(unfilterableRules);
+        return new YaraPrefilterResult(file, matchedRules, candidateRules, exception);
+    }
+
+    /**
+     * Measures the throughput of the prefilter on generated data. The data is
+     * scanned once by a single thread, and once in equal parts by all threads
+     * of this prefilter, after a warm up.
+     *
+     * @param megabytes the size of the generated data in MB
+     * @param rounds the number of times the data is scanned per measurement
+     * @return the measured throughput
+     * @throws InterruptedException if the thread is interrupted while waiting
+     * for the parallel measurement to finish
+     */
+    public YaraPrefilterBenchmark benchmark(int megabytes, int rounds) throws InterruptedException {
+        int size = Math.max(1, megabytes) * 1024 * 1024;
+        int repetitions = Math.max(1, rounds);
+        ByteBuffer data = ByteBuffer.allocateDirect(size);
+        //Mix random bytes with lower case text, which exercises the automaton beyond its root state
+        Random random = new Random(0);
+        byte[] chunk = new byte[4096];
+        while (data.hasRemaining()) {
+            random.nextBytes(chunk);
+            if (random.nextBoolean()) {
+                for (int i = 0; i < chunk.length; i++) {
+                    chunk[i] = (byte) ('a' + ((chunk[i] & 0xFF) % 26));
+                }
+            }
+            data.put(chunk, 0, Math.min(chunk.length, data.remaining()));
+        }
+        data.flip();
+
+        //Warm up, to measure compiled code rather than the interpreter
+        automaton.scan(data.duplicate(), new BitSet());
+
+        long singleStart = System.nanoTime();
+        for (int round = 0; round < repetitions; round++) {
+            automaton.scan(data.duplicate(), new BitSet());
+        }
+        double singleSeconds = (System.nanoTime() - singleStart) / 1e9;
+
+        List<ByteBuffer> slices = new ArrayList<>();
+        int sliceSize = size / threads;
+        for (int i = 0; i < threads; i++) {
+            ByteBuffer slice = data.duplicate();
+            slice.position(i * sliceSize);
+            slice.limit(i == threads - 1 ? size : (i + 1) * sliceSize);
+            slices.add(slice.slice());
+        }
+        List<Future<?>> futures = new ArrayList<>();
+        long parallelStart = System.nanoTime();
+        for (ByteBuffer slice : slices) {
+            futures.add(scanners.submit(() -> {
+                for (int round = 0; round < repetitions; round++) {
+                    automaton.scan(slice.duplicate(), new BitSet());
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        double parallelSeconds = (System.nanoTime() - parallelStart) / 1e9;
+
+        double megabytesScanned = (double) size * repetitions / (1024 * 1024);
+        return new YaraPrefilterBenchmark(threads, size, megabytesScanned / singleSeconds, megabytesScanned / parallelSeconds);
+    }
+
+    /**
+     * Gets the rules which cannot be filtered, and which are therefore
+     * candidates for every file
+     *
+     * @return the names of the rules which cannot be filtered
+     */
+    public List<String> getUnfilterableRules() {
+        return Collections.unmodifiableList(unfilterableRules);
+    }
+
+    /**
+     * Gets the number of rules which can be filtered
+     *
+     * @return the number of filterable rules
+     */
+    public int getFilterableRuleCount() {
+        return ruleNames.size();
+    }
+
+    /**
+     * Gets the automaton which contains the atoms of all filterable rules
+     *
+     * @return the automaton
+     */
+    public AhoCorasickAutomaton getAutomaton() {
+        return automaton;
+    }
+
+    /**
+     * Stops all scans. Pending scans are not started.
+     */
+    public void shutdown() {
+        scanners.shutdownNow();
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.prefilter;
+
+/**
+ * The throughput of a prefilter, as measured by
+ * {@link YaraPrefilter#benchmark(int, int)}
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class YaraPrefilterBenchmark {
+
+    private final int threads;
+    private final long bytesScanned;
+    private final double singleThreadMegabytesPerSecond;
+    private final double parallelMegabytesPerSecond;
+
+    public YaraPrefilterBenchmark(int threads, long bytesScanned, double singleThreadMegabytesPerSecond, double parallelMegabytesPerSecond) {
+        this.threads = threads;
+        this.bytesScanned = bytesScanned;
+        this.singleThreadMegabytesPerSecond = singleThreadMegabytesPerSecond;
+        this.parallelMegabytesPerSecond = parallelMegabytesPerSecond;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Gets the number of bytes that were scanned per measurement
+     *
+     * @return the number of scanned bytes
+     */
+    public long getBytesScanned() {
+        return bytesScanned;
+    }
+
+    /**
+     * Gets the throughput of a single thread, which is the throughput per
+     * core
+     *
+     * @return the throughput in MB/s
+     */
+    public double getSingleThreadMegabytesPerSecond() {
+        return singleThreadMegabytesPerSecond;
+    }
+
+    /**
+     * Gets the combined throughput of all threads
+     *
+     * @return the throughput in MB/s
+     */
+    public double getParallelMegabytesPerSecond() {
+        return parallelMegabytesPerSecond;
+    }
+
+    /**
+     * Gets the combined throughput of all threads, divided by the number of
+     * threads
+     *
+     * @return the throughput per thread in MB/s
+     */
+    public double getParallelMegabytesPerSecondPerThread() {
+        return parallelMegabytesPerSecond / threads;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d thread(s), %d bytes: %.1f MB/s single threaded, %.1f MB/s parallel (%.1f MB/s per thread)", threads, bytesScanned, singleThreadMegabytesPerSecond, parallelMegabytesPerSecond, getParallelMegabytesPerSecondPerThread());
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.prefilter;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * The outcome of prefiltering a single file
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class YaraPrefilterResult {
+
+    private final Path file;
+    private final List<String> matchedRules;
+    private final List<String> candidateRules;
+    private final IOException exception;
+
+    public YaraPrefilterResult(Path file, List<String> matchedRules, List<String> candidateRules, IOException exception) {
+        this.file = file;
+        this.matchedRules = matchedRules;
+        this.candidateRules = candidateRules;
+        this.exception = exception;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Gets the filterable rules of which at least one atom was found in the
+     * file
+     *
+     * @return the names of the rules of which an atom was found
+     */
+    public List<String> getMatchedRules() {
+        return matchedRules;
+    }
+
+    /**
+     * Gets all rules which could possibly match the file: the rules of which
+     * an atom was found, and the rules that cannot be filtered
+     *
+     * @return the names of the rules which could match the file
+     */
+    public List<String> getCandidateRules() {
+        return candidateRules;
+    }
+
+    /**
+     * Checks if any filterable rule could match the file, meaning the file is
+     * worth uploading. Rules that cannot be filtered are not taken into
+     * account, as they would make every file a candidate.
+     *
+     * @return true if an atom of at least one rule was found, false if not
+     */
+    public boolean hasMatchedRules() {
+        return matchedRules.isEmpty() == false;
+    }
+
+    /**
+     * Gets the reason why the file could not be scanned
+     *
+     * @return the exception, or null if the file was scanned
+     */
+    public IOException getException() {
+        return exception;
+    }
+}
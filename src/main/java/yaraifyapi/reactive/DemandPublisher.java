@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.reactive;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A publisher which performs API calls on demand. Each subscription iterates
+ * over its own copy of the inputs, and only performs the next call once all
+ * results of the previous call have been delivered and the subscriber has
+ * requested more. At most one call is in flight per subscription, and at most
+ * the results of a single call are buffered, regardless of how slow the
+ * subscriber is.
+ *
+ * @param <T> the type of the inputs
+ * @param <R> the type of the published results
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class DemandPublisher<T, R> implements Flow.Publisher<R> {
+
+    private final Iterable<T> inputs;
+    private final YaraifyCall<T, R> call;
+    private final Executor executor;
+    private final boolean suppressExceptions;
+
+    /**
+     * Creates a publisher which performs the given call for each input
+     *
+     * @param inputs the inputs to perform the call for, which are iterated
+     * once per subscription
+     * @param call the call to perform
+     * @param executor the executor on which the calls are performed and the
+     * results are delivered
+     * @param suppressExceptions true to skip inputs for which the call fails,
+     * false to end the subscription with the exception
+     */
+    public DemandPublisher(Iterable<T> inputs, YaraifyCall<T, R> call, Executor executor, boolean suppressExceptions) {
+        this.inputs = inputs;
+        this.call = call;
+        this.executor = executor;
+        this.suppressExceptions = suppressExceptions;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super R> subscriber) {
+        Objects.requireNonNull(subscriber, "The given subscriber is null!");
+        DemandSubscription subscription = new DemandSubscription(subscriber, inputs.iterator());
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * The subscription of a single subscriber. All signals to the subscriber
+     * are sent from the drain loop, which never runs concurrently with itself.
+     */
+    private class DemandSubscription implements Flow.Subscription, Runnable {
+
+        private final Flow.Subscriber<? super R> subscriber;
+        private final Iterator<T> iterator;
+        private final ArrayDeque<R> buffer;
+        private final AtomicLong requested;
+        private final AtomicInteger wip;
+        private volatile boolean cancelled;
+        private volatile Throwable invalidRequest;
+        private boolean done;
+
+        DemandSubscription(Flow.Subscriber<? super R> subscriber, Iterator<T> iterator) {
+            this.subscriber = subscriber;
+            this.iterator = iterator;
+            this.buffer = new ArrayDeque<>();
+            this.requested = new AtomicLong();
+            this.wip = new AtomicInteger();
+            this.cancelled = false;
+            this.done = false;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("The requested amount must be positive, but was " + n);
+            } else {
+                //Add the demand, capped at the maximum, which means unbounded
+                requested.getAndUpdate(current -> {
+                    long sum = current + n;
+                    return sum < 0 ? Long.MAX_VALUE : sum;
+                });
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Schedules the drain loop, unless it is already running, in which
+         * case the running loop performs another pass
+         */
+        private void schedule() {
+            if (wip.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                drain();
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /**
+         * Delivers buffered results and performs calls for as long as there
+         * is demand
+         */
+        private void drain() {
+            while (cancelled == false && done == false) {
+                if (invalidRequest != null) {
+                    terminate(invalidRequest);
+                    return;
+                }
+                if (requested.get() == 0) {
+                    return;
+                }
+
+                R result = buffer.poll();
+                if (result != null) {
+                    if (requested.get() != Long.MAX_VALUE) {
+                        requested.decrementAndGet();
+                    }
+                    subscriber.onNext(result);
+                    continue;
+                }
+
+                if (iterator.hasNext() == false) {
+                    done = true;
+                    subscriber.onComplete();
+                    return;
+                }
+
+                T input = iterator.next();
+                try {
+                    List<R> results = call.call(input);
+                    if (results != null) {
+                        for (R item : results) {
+                            //Null values are not allowed as signals
+                            if (item != null) {
+                                buffer.add(item);
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    if (suppressExceptions == false) {
+                        terminate(e);
+                        return;
+                    }
+                } catch (RuntimeException e) {
+                    terminate(e);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Ends the subscription with the given error
+         *
+         * @param error the error to signal
+         */
+        private void terminate(Throwable error) {
+            done = true;
+            buffer.clear();
+            subscriber.onError(error);
+        }
+    }
+}
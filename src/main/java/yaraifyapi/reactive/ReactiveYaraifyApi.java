@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.reactive;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import yaraifyapi.YaraifyApi;
+import yaraifyapi.model.YaraifyMetadata;
+import yaraifyapi.model.YaraifyTaskResult;
+
+/**
+ * A reactive facade over the API, which exposes uploads and queries as
+ * {@link Flow.Publisher} instances. The publishers are cold: no request is
+ * made until a subscriber requests results, and a request is only made when
+ * the subscriber has outstanding demand. A slow subscriber therefore slows
+ * down the requests, rather than causing results to pile up in memory.<br>
+ * <br>
+ * The query publishers for pivot values (such as Yara rule names or import
+ * hashes) emit every matching sample separately, where the results of a single
+ * request are buffered until they are requested.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class ReactiveYaraifyApi {
+
+    /**
+     * The API instance to make the requests with
+     */
+    private final YaraifyApi api;
+
+    /**
+     * The executor on which the requests are made and the results are
+     * delivered
+     */
+    private final Executor executor;
+
+    /**
+     * Creates a reactive facade
+     *
+     * @param api the API instance to make the requests with
+     * @param executor the executor on which the requests are made and the
+     * results are delivered. Each subscription uses at most one thread at a
+     * time
+     */
+    public ReactiveYaraifyApi(YaraifyApi api, Executor executor) {
+        this.api = api;
+        this.executor = executor;
+    }
+
+    /**
+     * Uploads the given files to Yaraify and scans them, one file per
+     * requested result
+     *
+     * @param files the files to upload
+     * @param identifier the private identifier to bind these uploads with, for
+     * later reference, can be null
+     * @param clamav true if ClamAV signatures should be used to scan the files,
+     * false if not
+     * @param unpack true if any of the samples should be unpacked, false if not
+     * @param shareFile true if any of the files can be shared, false if not
+     * @param skipKnown true if any of the the files should only be scanned by
+     * Yaraify if it hasn't been uploaded on the platform before, false if it
+     * should be scanned anyway
+     * @param skipNoisy true if any of the files should be skipped if it has
+     * been uploaded at least 10 times in the past 24 hours, false if it should
+     * be scanned anyway
+     * @param suppressExceptions true to skip files that fail to upload, false
+     * to end the subscription with the exception
+     * @return a publisher of the metadata of each upload
+     */
+    public Flow.Publisher<YaraifyMetadata> scanFiles(Iterable<File> files, String identifier, boolean clamav, boolean unpack, boolean shareFile, boolean skipKnown, boolean skipNoisy, boolean suppressExceptions) {
+        return new DemandPublisher<>(files, file -> Collections.singletonList(api.scanFile(file, identifier, clamav, unpack, shareFile, skipKnown, skipNoisy)), executor, suppressExceptions);
+    }
+
+    /**
+     * Queries the given task IDs, one task per requested result
+     *
+     * @param taskIds the task IDs to query
+     * @param suppressExceptions true to skip tasks that cannot be queried,
+     * false to end the subscription with the exception
+     * @return a publisher of the result of each task
+     */
+    public Flow.Publisher<YaraifyTaskResult> queryTaskIds(Iterable<String> taskIds, boolean suppressExceptions) {
+        return new DemandPublisher<>(taskIds, taskId -> Collections.singletonList(api.queryTaskId(taskId)), executor, suppressExceptions);
+    }
+
+    /**
+     * Queries the given file hashes, one hash per requested result
+     *
+     * @param fileHashes the file hashes to query
+     * @param suppressExceptions true to skip hashes that cannot be queried,
+     * false to end the subscription with the exception
+     * @return a publisher of the result of each hash
+     */
+    public Flow.Publisher<YaraifyTaskResult> queryFileHashes(Iterable<String> fileHashes, boolean suppressExceptions) {
+        return new DemandPublisher<>(fileHashes, fileHash -> Collections.singletonList(api.queryFileHash(fileHash)), executor, suppressExceptions);
+    }
+
+    /**
+     * Queries the given Yara rule names, and publishes each matching sample
+     *
+     * @param yaraRules the Yara rule names to query
+     * @param limit the limit to use per rule name, between 0 and 1000
+     * @param suppressExceptions true to skip rule names that cannot be
+     * queried, false to end the subscription with the exception
+     * @return a publisher of the matching samples
+     */
+    public Flow.Publisher<YaraifyMetadata> queryYaraRules(Iterable<String> yaraRules, int limit, boolean suppressExceptions) {
+        return new DemandPublisher<>(yaraRules, yaraRule -> api.queryYaraRule(yaraRule, limit), executor, suppressExceptions);
+    }
+
+    /**
+     * Queries the given ClamAV rule names, and publishes each matching sample
+     *
+     * @param clamAvRules the ClamAV rule names to query
+     * @param limit the limit to use per rule name, between 0 and 1000
+     * @param suppressExceptions true to skip rule names that cannot be
+     * queried, false to end the subscription with the exception
+     * @return a publisher of the matching samples
+     */
+    public Flow.Publisher<YaraifyMetadata> queryClamAvRules(Iterable<String> clamAvRules, int limit, boolean suppressExceptions) {
+        return new DemandPublisher<>(clamAvRules, clamAvRule -> api.queryClamAvRule(clamAvRule, limit), executor, suppressExceptions);
+    }
+
+    /**
+     * Queries the given import hashes, and publishes each matching sample
+     *
+     * @param importHashes the import hashes to query
+     * @param limit the limit to use per hash, between 0 and 1000
+     * @param suppressExceptions true to skip hashes that cannot be queried,
+     * false to end the subscription with the exception
+     * @return a publisher of the matching samples
+     */
+    public Flow.Publisher<YaraifyMetadata> queryImportHashes(Iterable<String> importHashes, int limit, boolean suppressExceptions) {
+        return new DemandPublisher<>(importHashes, importHash -> api.queryImportHash(importHash, limit), executor, suppressExceptions);
+    }
+
+    /**
+     * Queries the given TLSH hashes, and publishes each matching sample
+     *
+     * @param tlshHashes the TLSH hashes to query
+     * @param limit the limit to use per hash, between 0 and 1000
+     * @param suppressExceptions true to skip hashes that cannot be queried,
+     * false to end the subscription with the exception
+     * @return a publisher of the matching samples
+     */
+    public Flow.Publisher<YaraifyMetadata> queryTlshHashes(Iterable<String> tlshHashes, int limit, boolean suppressExceptions) {
+        return new DemandPublisher<>(tlshHashes, tlsh -> api.queryTlsh(tlsh, limit), executor, suppressExceptions);
+    }
+
+    /**
+     * Queries the given TELF hashes, and publishes each matching sample
+     *
+     * @param telfHashes the TELF hashes to query
+     * @param limit the limit to use per hash, between 0 and 1000
+     * @param suppressExceptions true to skip hashes that cannot be queried,
+     * false to end the subscription with the exception
+     * @return a publisher of the matching samples
+     */
+    public Flow.Publisher<YaraifyMetadata> queryTelfHashes(Iterable<String> telfHashes, int limit, boolean suppressExceptions) {
+        return new DemandPublisher<>(telfHashes, telfHash -> api.queryTelfHash(telfHash, limit), executor, suppressExceptions);
+    }
+
+    /**
+     * Queries the given GoLang import hashes, and publishes each matching
+     * sample
+     *
+     * @param gimpHashes the GoLang import hashes to query
+     * @param limit the limit to use per hash, between 0 and 1000
+     * @param suppressExceptions true to skip hashes that cannot be queried,
+     * false to end the subscription with the exception
+     * @return a publisher of the matching samples
+     */
+    public Flow.Publisher<YaraifyMetadata> queryGimpHashes(Iterable<String> gimpHashes, int limit, boolean suppressExceptions) {
+        return new DemandPublisher<>(gimpHashes, gimpHash -> api.queryGimpHash(gimpHash, limit), executor, suppressExceptions);
+    }
+
+    /**
+     * Queries the given icon dhashes, and publishes each matching sample
+     *
+     * @param iconDhashes the icon dhashes to query
+     * @param limit the limit to use per hash, between 0 and 1000
+     * @param suppressExceptions true to skip hashes that cannot be queried,
+     * false to end the subscription with the exception
+     * @return a publisher of the matching samples
+     */
+    public Flow.Publisher<YaraifyMetadata> queryIconDhashes(Iterable<String> iconDhashes, int limit, boolean suppressExceptions) {
+        return new DemandPublisher<>(iconDhashes, iconDhash -> api.queryIconDhash(iconDhash, limit), executor, suppressExceptions);
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.reactive;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A single call to the Yaraify API, which turns one input into zero or more
+ * results
+ *
+ * @param <T> the type of the input
+ * @param <R> the type of the results
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public interface YaraifyCall<T, R> {
+
+    /**
+     * Performs the call for the given input
+     *
+     * @param input the input of the call
+     * @return the results of the call, which can be empty but not null
+     * @throws IOException if the call fails
+     */
+    List<R> call(T input) throws IOException;
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.rules;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The header and meta data of a single Yara rule, as parsed from its source.
+ * The source itself is not copied, but referenced by its offsets in the file
+ * that contains the rule.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class YaraRule {
+
+    private final String name;
+    private final List<String> tags;
+    private final boolean privateRule;
+    private final boolean globalRule;
+    private final Map<String, List<String>> meta;
+    private final String file;
+    private final int start;
+    private final int end;
+    private final int stringsStart;
+    private final int stringsEnd;
+    private final int conditionStart;
+    private final int conditionEnd;
+
+    public YaraRule(String name, List<String> tags, boolean privateRule, boolean globalRule, Map<String, List<String>> meta, String file, int start, int end, int stringsStart, int stringsEnd, int conditionStart, int conditionEnd) {
+        this.name = name;
+        this.tags = tags;
+        this.privateRule = privateRule;
+        this.globalRule = globalRule;
+        this.meta = meta;
+        this.file = file;
+        this.start = start;
+        this.end = end;
+        this.stringsStart = stringsStart;
+        this.stringsEnd = stringsEnd;
+        this.conditionStart = conditionStart;
+        this.conditionEnd = conditionEnd;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<String> getTags() {
+        return tags;
+    }
+
+    public boolean isPrivate() {
+        return privateRule;
+    }
+
+    public boolean isGlobal() {
+        return globalRule;
+    }
+
+    /**
+     * Gets all meta fields of the rule. A field can occur more than once, in
+     * which case all of its values are listed in the order of the source.
+     * String values are unescaped, other values are kept as written.
+     *
+     * @return the values per meta field
+     */
+    public Map<String, List<String>> getMeta() {
+        return meta;
+    }
+
+    /**
+     * Gets the first value of the given meta field
+     *
+     * @param key the name of the field
+     * @return the first value of the field, or null if the rule does not have
+     * the field
+     */
+    public String getMeta(String key) {
+        List<String> values = meta.get(key);
+        if (values == null || values.isEmpty()) {
+            return null;
+        }
+        return values.get(0);
+    }
+
+    /**
+     * Gets all values of the given meta field
+     *
+     * @param key the name of the field
+     * @return the values of the field, which is empty if the rule does not
+     * have the field
+     */
+    public List<String> getMetaValues(String key) {
+        List<String> values = meta.get(key);
+        if (values == null) {
+            return Collections.emptyList();
+        }
+        return values;
+    }
+
+    /**
+     * Gets the authors of the rule, based on the "author" meta field
+     *
+     * @return the authors of the rule
+     */
+    public List<String> getAuthors() {
+        return getMetaValues("author");
+    }
+
+    /**
+     * Gets the YARAhub UUID of the rule, based on the "yarahub_uuid" meta
+     * field
+     *
+     * @return the UUID, or null if the rule does not have one
+     */
+    public String getYaraHubUuid() {
+        return getMeta("yarahub_uuid");
+    }
+
+    /**
+     * Gets the Malpedia family of the rule, based on the "malpedia_family"
+     * meta field
+     *
+     * @return the Malpedia family, or null if the rule does not have one
+     */
+    public String getMalpediaFamily() {
+        return getMeta("malpedia_family");
+    }
+
+    /**
+     * Gets the complete source of the rule, from its modifiers (if any) up to
+     * and including its closing brace
+     *
+     * @return the source of the rule
+     */
+    public String getSource() {
+        return file.substring(start, end);
+    }
+
+    /**
+     * Gets the strings section of the rule, excluding the "strings:" keyword
+     *
+     * @return the strings section, or an empty string if the rule has none
+     */
+    public String getStringsSection() {
+        if (stringsStart == -1 || stringsEnd == -1) {
+            return "";
+        }
+        return file.substring(stringsStart, stringsEnd);
+    }
+
+    /**
+     * Gets the condition of the rule, excluding the "condition:" keyword
+     *
+     * @return the condition, or an empty string if the rule has none
+     */
+    public String getCondition() {
+        if (conditionStart == -1 || conditionEnd == -1) {
+            return "";
+        }
+        return file.substring(conditionStart, conditionEnd);
+    }
+
+    /**
+     * Gets the complete file the rule was parsed from, which can contain other
+     * rules and imports as well
+     *
+     * @return the source of the file
+     */
+    public String getFile() {
+        return file;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.rules;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The changes to the rule set since the previous synchronisation. Rules are
+ * identified by the name of their file in the rule archive.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class YaraRuleDelta {
+
+    private final Map<String, String> added;
+    private final Map<String, String> changed;
+    private final Set<String> removed;
+    private final int ruleCount;
+
+    public YaraRuleDelta(Map<String, String> added, Map<String, String> changed, Set<String> removed, int ruleCount) {
+        this.added = added;
+        this.changed = changed;
+        this.removed = removed;
+        this.ruleCount = ruleCount;
+    }
+
+    /**
+     * Gets the rules which were added since the previous synchronisation
+     *
+     * @return the added rules, keyed by their file name
+     */
+    public Map<String, String> getAdded() {
+        return added;
+    }
+
+    /**
+     * Gets the rules of which the content changed since the previous
+     * synchronisation
+     *
+     * @return the new content of the changed rules, keyed by their file name
+     */
+    public Map<String, String> getChanged() {
+        return changed;
+    }
+
+    /**
+     * Gets the rules which were removed since the previous synchronisation
+     *
+     * @return the file names of the removed rules
+     */
+    public Set<String> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Gets the total number of rules in the archive, including unchanged rules
+     *
+     * @return the number of rules
+     */
+    public int getRuleCount() {
+        return ruleCount;
+    }
+
+    /**
+     * Checks if the rule set did not change
+     *
+     * @return true if no rule was added, changed, or removed, false if not
+     */
+    public boolean isEmpty() {
+        return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.rules;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import yaraifyapi.YaraifyApi;
+import yaraifyapi.model.YaraifyYaraRuleMetadata;
+
+/**
+ * A feed of newly deployed Yara rules. Each poll requests the recently
+ * deployed rules, and skips the rules of which the YARAhub UUID was seen
+ * before. Only the bodies of the new rules are downloaded, in parallel, after
+ * which they are reported to the listeners. If the API instance has a cache
+ * or a rule store, rule bodies which were downloaded before are served from
+ * it.<br>
+ * <br>
+ * The UUIDs of the rules that were seen are persisted in an append-only file,
+ * with one UUID per line, meaning rules are not reported again after a
+ * restart. A rule of which the download failed is retried during the next
+ * polls, until the maximum number of attempts is reached, after which it is
+ * marked as seen regardless. This avoids requesting rules of which the
+ * TLP-level does not allow the download over and over again.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class YaraRuleFeed {
+
+    /**
+     * The API instance to make the requests with
+     */
+    private final YaraifyApi api;
+
+    /**
+     * The file in which the UUIDs of the seen rules are persisted
+     */
+    private final Path seenFile;
+
+    /**
+     * The UUIDs of the rules which were reported and will not be reported
+     * again
+     */
+    private final Set<String> seen;
+
+    /**
+     * The number of failed downloads per UUID, for rules which are retried
+     */
+    private final Map<String, Integer> attempts;
+
+    /**
+     * The listeners to notify of each new rule
+     */
+    private final List<YaraRuleFeedListener> listeners;
+
+    /**
+     * The threads that download the rule bodies
+     */
+    private final ExecutorService downloaders;
+
+    /**
+     * The thread that polls the feed, if polling is scheduled
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * The scheduled polling, or null if polling is not scheduled
+     */
+    private ScheduledFuture<?> scheduledPoll;
+
+    /**
+     * The maximum number of times the download of a single rule is attempted
+     */
+    private volatile int maximumAttempts;
+
+    /**
+     * Creates a feed, and loads the UUIDs of the seen rules from the given
+     * file if it exists. By default, the download of a rule is attempted
+     * three times.
+     *
+     * @param api the API instance to make the requests with
+     * @param seenFile the file to persist the UUIDs of the seen rules in
+     * @param downloadThreads the maximum number of rules that are downloaded
+     * concurrently
+     * @throws IOException if the file exists but cannot be read
+     */
+    public YaraRuleFeed(YaraifyApi api, Path seenFile, int downloadThreads) throws IOException {
+        this.api = api;
+        this.seenFile = seenFile;
+        this.seen = ConcurrentHashMap.newKeySet();
+        this.attempts = new ConcurrentHashMap<>();
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.maximumAttempts = 3;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.downloaders = Executors.newFixedThreadPool(Math.max(1, downloadThreads), runnable -> {
+            Thread thread = new Thread(runnable, "yaraify-rule-feed-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "yaraify-rule-feed-poller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        load();
+    }
+
+    public void addListener(YaraRuleFeedListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(YaraRuleFeedListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Polls the feed once. The rules which were not seen before are
+     * downloaded, reported to the listeners, and returned. The seen rules are
+     * persisted before the listeners are notified.
+     *
+     * @return an event for each new rule, in the order in which Yaraify lists
+     * them
+     * @throws IOException if the recently deployed rules cannot be requested,
+     * or if the seen rules cannot be persisted
+     * @throws InterruptedException if the calling thread is interrupted while
+     * waiting for the downloads to finish
+     */
+    public synchronized List<YaraRuleFeedEvent> poll() throws IOException, InterruptedException {
+        List<YaraifyYaraRuleMetadata> recent = api.getRecentlyDeployedYaraRuleMetadatas();
+        if (recent == null) {
+            return new ArrayList<>();
+        }
+
+        //The same rule can be listed more than once, but is only downloaded once
+        Map<String, YaraifyYaraRuleMetadata> fresh = new LinkedHashMap<>();
+        for (YaraifyYaraRuleMetadata metadata : recent) {
+            String uuid = metadata.getYaraHubUuid();
+            if (uuid == null || uuid.isBlank() || seen.contains(uuid)) {
+                continue;
+            }
+            fresh.putIfAbsent(uuid, metadata);
+        }
+
+        Map<String, Future<String>> downloads = new LinkedHashMap<>();
+        for (String uuid : fresh.keySet()) {
+            downloads.put(uuid, downloaders.submit(() -> api.downloadYaraRule(uuid)));
+        }
+
+        List<YaraRuleFeedEvent> events = new ArrayList<>();
+        List<String> finished = new ArrayList<>();
+        for (Map.Entry<String, Future<String>> download : downloads.entrySet()) {
+            String uuid = download.getKey();
+            YaraifyYaraRuleMetadata metadata = fresh.get(uuid);
+            try {
+                String rule = download.getValue().get();
+                int attempt = attempts.getOrDefault(uuid, 0) + 1;
+                events.add(new YaraRuleFeedEvent(metadata, rule, null, attempt, false));
+                finished.add(uuid);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                IOException exception = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                int attempt = attempts.merge(uuid, 1, Integer::sum);
+                boolean abandoned = attempt >= maximumAttempts;
+                events.add(new YaraRuleFeedEvent(metadata, null, exception, attempt, abandoned));
+                if (abandoned) {
+                    finished.add(uuid);
+                }
+            }
+        }
+
+        persist(finished);
+        seen.addAll(finished);
+        for (String uuid : finished) {
+            attempts.remove(uuid);
+        }
+
+        for (YaraRuleFeedEvent event : events) {
+            for (YaraRuleFeedListener listener : listeners) {
+                try {
+                    listener.onRuleDeployed(event);
+                } catch (RuntimeException e) {
+                    //A failing listener must not keep the event from the other listeners
+                }
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Polls the feed at a fixed interval, starting immediately. The results of
+     * each poll are only reported to the listeners. Any previously scheduled
+     * polling is replaced.
+     *
+     * @param intervalMillis the time between the end of a poll and the start
+     * of the next, in milliseconds
+     */
+    public synchronized void start(long intervalMillis) {
+        if (intervalMillis < 1) {
+            throw new IllegalArgumentException("The interval must be at least one millisecond!");
+        }
+        stop();
+        scheduledPoll = scheduler.scheduleWithFixedDelay(this::scheduledPoll, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the scheduled polling, if any. A poll which is in progress is
+     * completed.
+     */
+    public synchronized void stop() {
+        if (scheduledPoll != null) {
+            scheduledPoll.cancel(false);
+            scheduledPoll = null;
+        }
+    }
+
+    /**
+     * Checks if the rule with the given UUID was seen, meaning it is not
+     * reported again
+     *
+     * @param uuid the UUID of the rule
+     * @return true if the rule was seen, false if not
+     */
+    public boolean isSeen(String uuid) {
+        return uuid != null && seen.contains(uuid);
+    }
+
+    public int getSeenCount() {
+        return seen.size();
+    }
+
+    public int getMaximumAttempts() {
+        return maximumAttempts;
+    }
+
+    public void setMaximumAttempts(int maximumAttempts) {
+        this.maximumAttempts = Math.max(1, maximumAttempts);
+    }
+
+    /**
+     * Forgets all seen rules, meaning the next poll reports all recently
+     * deployed rules again
+     *
+     * @throws IOException if the file with the seen rules cannot be deleted
+     */
+    public synchronized void reset() throws IOException {
+        seen.clear();
+        attempts.clear();
+        Files.deleteIfExists(seenFile);
+    }
+
+    /**
+     * Stops the scheduled polling, and the threads that download the rules
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+        downloaders.shutdownNow();
+    }
+
+    /**
+     * Polls the feed on the scheduler's thread, reporting a failed poll to the
+     * listeners rather than cancelling the scheduled polling. Any exception
+     * that escapes this function would suppress all later polls.
+     */
+    private void scheduledPoll() {
+        try {
+            poll();
+        } catch (IOException e) {
+            reportPollFailure(e);
+        } catch (RuntimeException e) {
+            //Unexpected failures, such as a malformed response, are reported in the same way
+            reportPollFailure(new IOException(e));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reports a failed poll to each listener
+     *
+     * @param exception the cause of the failure
+     */
+    private void reportPollFailure(IOException exception) {
+        for (YaraRuleFeedListener listener : listeners) {
+            try {
+                listener.onPollFailed(exception);
+            } catch (RuntimeException e) {
+                //A failing listener must not keep the failure from the other listeners
+            }
+        }
+    }
+
+    /**
+     * Loads the UUIDs of the seen rules from the file, if it exists
+     *
+     * @throws IOException if the file cannot be read
+     */
+    private void load() throws IOException {
+        if (Files.exists(seenFile) == false) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(seenFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String uuid = line.trim();
+                if (uuid.isEmpty() == false) {
+                    seen.add(uuid);
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends the given UUIDs to the file with the seen rules
+     *
+     * @param uuids the UUIDs to append
+     * @throws IOException if the file cannot be written
+     */
+    private void persist(List<String> uuids) throws IOException {
+        if (uuids.isEmpty()) {
+            return;
+        }
+        if (seenFile.getParent() != null) {
+            Files.createDirectories(seenFile.getParent());
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(seenFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (String uuid : uuids) {
+                writer.write(uuid);
+                writer.newLine();
+            }
+        }
+    }
+}
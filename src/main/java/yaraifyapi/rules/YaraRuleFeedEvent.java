@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.rules;
+
+import java.io.IOException;
+import yaraifyapi.model.YaraifyYaraRuleMetadata;
+
+/**
+ * A newly deployed Yara rule, as reported by the rule feed. The event either
+ * contains the rule, or the exception that occurred when downloading it.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class YaraRuleFeedEvent {
+
+    private final YaraifyYaraRuleMetadata metadata;
+    private final String rule;
+    private final IOException exception;
+    private final int attempt;
+    private final boolean abandoned;
+
+    public YaraRuleFeedEvent(YaraifyYaraRuleMetadata metadata, String rule, IOException exception, int attempt, boolean abandoned) {
+        this.metadata = metadata;
+        this.rule = rule;
+        this.exception = exception;
+        this.attempt = attempt;
+        this.abandoned = abandoned;
+    }
+
+    public YaraifyYaraRuleMetadata getMetadata() {
+        return metadata;
+    }
+
+    public String getUuid() {
+        return metadata.getYaraHubUuid();
+    }
+
+    /**
+     * Gets the downloaded rule
+     *
+     * @return the rule, or null if the download failed
+     */
+    public String getRule() {
+        return rule;
+    }
+
+    /**
+     * Gets the exception that occurred when downloading the rule
+     *
+     * @return the exception, or null if the download succeeded
+     */
+    public IOException getException() {
+        return exception;
+    }
+
+    public boolean isSuccessful() {
+        return exception == null;
+    }
+
+    /**
+     * Gets the number of the attempt to download this rule, starting at one
+     *
+     * @return the attempt number
+     */
+    public int getAttempt() {
+        return attempt;
+    }
+
+    /**
+     * Checks if the feed gave up on this rule, meaning it is marked as seen
+     * without having been downloaded. Failed downloads which are not abandoned
+     * are retried during the next poll.
+     *
+     * @return true if the rule will not be retried, false if it will be
+     * retried or if the download succeeded
+     */
+    public boolean isAbandoned() {
+        return abandoned;
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.rules;
+
+import java.io.IOException;
+
+/**
+ * A listener which is notified of the rules that the rule feed finds. It is
+ * called from the thread that polls the feed.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public interface YaraRuleFeedListener {
+
+    /**
+     * Called once for each newly deployed rule, after its download finished,
+     * regardless if it succeeded. A rule of which the download failed is
+     * reported again when it is retried.
+     *
+     * @param event the rule and its metadata
+     */
+    void onRuleDeployed(YaraRuleFeedEvent event);
+
+    /**
+     * Called if a scheduled poll failed to obtain the recently deployed rules
+     *
+     * @param exception the exception that occurred
+     */
+    void onPollFailed(IOException exception);
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.rules;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import yaraifyapi.model.YaraifyYaraRuleMetadata;
+
+/**
+ * A searchable index over a set of Yara rules, i.e. the rules returned by
+ * {@link yaraifyapi.YaraifyApi#downloadAllYaraRules()}. Each rule is parsed
+ * once, after which rules can be looked up by name, tag, author, meta field,
+ * YARAhub UUID, and Malpedia family using hash lookups, rather than by
+ * scanning the source of every rule.<br>
+ * <br>
+ * The index can be enriched with the metadata that Yaraify provides for its
+ * rules (i.e. from
+ * {@link yaraifyapi.YaraifyApi#getRecentlyDeployedYaraRuleMetadatas()}),
+ * which is matched to the rules based on their YARAhub UUID, or on their name
+ * if the rule has no UUID.<br>
+ * <br>
+ * Building the index and adding metadata is not thread safe, but concurrent
+ * lookups are, once the index is no longer modified.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class YaraRuleIndex {
+
+    private final List<YaraRule> rules;
+    private final Map<String, List<YaraRule>> byName;
+    private final Map<String, List<YaraRule>> byTag;
+    private final Map<String, List<YaraRule>> byAuthor;
+    private final Map<String, List<YaraRule>> byMalpediaFamily;
+    private final Map<String, YaraRule> byYaraHubUuid;
+    private final Map<String, YaraifyYaraRuleMetadata> metadataByUuid;
+    private final Map<String, YaraifyYaraRuleMetadata> metadataByName;
+
+    /**
+     * Creates an index over the rules in the given sources
+     *
+     * @param sources the sources of the Yara files, each of which can contain
+     * any number of rules
+     */
+    public YaraRuleIndex(Collection<String> sources) {
+        this.rules = new ArrayList<>();
+        this.byName = new HashMap<>();
+        this.byTag = new HashMap<>();
+        this.byAuthor = new HashMap<>();
+        this.byMalpediaFamily = new HashMap<>();
+        this.byYaraHubUuid = new HashMap<>();
+        this.metadataByUuid = new HashMap<>();
+        this.metadataByName = new HashMap<>();
+
+        YaraRuleParser parser = new YaraRuleParser();
+        for (String source : sources) {
+            for (YaraRule rule : parser.parse(source)) {
+                add(rule);
+            }
+        }
+    }
+
+    /**
+     * Adds the given rule to all lookups
+     *
+     * @param rule the rule to add
+     */
+    private void add(YaraRule rule) {
+        rules.add(rule);
+        put(byName, rule.getName(), rule);
+        for (String tag : rule.getTags()) {
+            put(byTag, tag.toLowerCase(Locale.ROOT), rule);
+        }
+        for (String author : rule.getAuthors()) {
+            put(byAuthor, author.trim().toLowerCase(Locale.ROOT), rule);
+        }
+        if (rule.getMalpediaFamily() != null) {
+            put(byMalpediaFamily, rule.getMalpediaFamily().toLowerCase(Locale.ROOT), rule);
+        }
+        if (rule.getYaraHubUuid() != null) {
+            byYaraHubUuid.putIfAbsent(rule.getYaraHubUuid().toLowerCase(Locale.ROOT), rule);
+        }
+    }
+
+    /**
+     * Adds the given rule to the list of the given key in the given lookup
+     *
+     * @param lookup the lookup to add the rule to
+     * @param key the key of the rule
+     * @param rule the rule to add
+     */
+    private void put(Map<String, List<YaraRule>> lookup, String key, YaraRule rule) {
+        lookup.computeIfAbsent(key, k -> new ArrayList<>(1)).add(rule);
+    }
+
+    /**
+     * Gets the rules in the given lookup under the given key
+     *
+     * @param lookup the lookup to read from
+     * @param key the key to look up
+     * @return the rules, or an empty list if there are none
+     */
+    private List<YaraRule> get(Map<String, List<YaraRule>> lookup, String key) {
+        if (key == null) {
+            return Collections.emptyList();
+        }
+        List<YaraRule> found = lookup.get(key);
+        if (found == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(found);
+    }
+
+    /**
+     * Adds the given metadata to the index. Metadata of which the YARAhub
+     * UUID (or rule name) matches a Malpedia family is also used to look up
+     * rules by their Malpedia family, in case the rule itself does not list
+     * it.
+     *
+     * @param metadatas the metadata to add
+     */
+    public void addMetadata(Collection<YaraifyYaraRuleMetadata> metadatas) {
+        for (YaraifyYaraRuleMetadata metadata : metadatas) {
+            if (metadata.getYaraHubUuid() != null && metadata.getYaraHubUuid().isEmpty() == false) {
+                metadataByUuid.put(metadata.getYaraHubUuid().toLowerCase(Locale.ROOT), metadata);
+            }
+            if (metadata.getRuleName() != null && metadata.getRuleName().isEmpty() == false) {
+                metadataByName.put(metadata.getRuleName(), metadata);
+            }
+
+            String family = metadata.getMalpediaFamily();
+            if (family == null || family.isEmpty()) {
+                continue;
+            }
+            for (YaraRule rule : resolve(metadata)) {
+                List<YaraRule> familyRules = byMalpediaFamily.computeIfAbsent(family.toLowerCase(Locale.ROOT), k -> new ArrayList<>(1));
+                if (familyRules.contains(rule) == false) {
+                    familyRules.add(rule);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the rules which the given metadata describes
+     *
+     * @param metadata the metadata to resolve
+     * @return the rule with the same YARAhub UUID if there is one, otherwise
+     * the rules with the same name
+     */
+    public List<YaraRule> resolve(YaraifyYaraRuleMetadata metadata) {
+        if (metadata.getYaraHubUuid() != null) {
+            YaraRule rule = getByYaraHubUuid(metadata.getYaraHubUuid());
+            if (rule != null) {
+                return Collections.singletonList(rule);
+            }
+        }
+        return findByName(metadata.getRuleName());
+    }
+
+    /**
+     * Gets the metadata of the given rule, based on its YARAhub UUID, or on
+     * its name if it has no UUID (or if there is no metadata for its UUID)
+     *
+     * @param rule the rule to get the metadata for
+     * @return the metadata, or null if there is none
+     */
+    public YaraifyYaraRuleMetadata getMetadata(YaraRule rule) {
+        if (rule.getYaraHubUuid() != null) {
+            YaraifyYaraRuleMetadata metadata = metadataByUuid.get(rule.getYaraHubUuid().toLowerCase(Locale.ROOT));
+            if (metadata != null) {
+                return metadata;
+            }
+        }
+        return metadataByName.get(rule.getName());
+    }
+
+    /**
+     * Gets the metadata of the rule with the given name, i.e. the name of a
+     * rule that matched in a task result
+     *
+     * @param ruleName the name of the rule
+     * @return the metadata, or null if there is none
+     */
+    public YaraifyYaraRuleMetadata getMetadata(String ruleName) {
+        List<YaraRule> found = findByName(ruleName);
+        if (found.isEmpty() == false) {
+            return getMetadata(found.get(0));
+        }
+        return metadataByName.get(ruleName);
+    }
+
+    /**
+     * Gets the rules with the given name. Rule names are case sensitive, and
+     * are usually unique, but rules in different files can share a name.
+     *
+     * @param name the name of the rule
+     * @return the rules with the given name
+     */
+    public List<YaraRule> findByName(String name) {
+        return get(byName, name);
+    }
+
+    /**
+     * Gets the rules with the given tag, ignoring the case
+     *
+     * @param tag the tag to look up
+     * @return the rules with the given tag
+     */
+    public List<YaraRule> findByTag(String tag) {
+        return get(byTag, tag == null ? null : tag.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Gets the rules with the given author, ignoring the case
+     *
+     * @param author the author to look up, which has to match the "author"
+     * meta field exactly (apart from the case)
+     * @return the rules with the given author
+     */
+    public List<YaraRule> findByAuthor(String author) {
+        return get(byAuthor, author == null ? null : author.trim().toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Gets the rules of the given Malpedia family, ignoring the case. Both
+     * the "malpedia_family" meta field of the rules and the added metadata
+     * are used.
+     *
+     * @param family the Malpedia family to look up
+     * @return the rules of the given family
+     */
+    public List<YaraRule> findByMalpediaFamily(String family) {
+        return get(byMalpediaFamily, family == null ? null : family.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Gets the rule with the given YARAhub UUID, ignoring the case
+     *
+     * @param uuid the YARAhub UUID to look up
+     * @return the rule, or null if there is none
+     */
+    public YaraRule getByYaraHubUuid(String uuid) {
+        if (uuid == null) {
+            return null;
+        }
+        return byYaraHubUuid.get(uuid.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Gets the rules of which the given meta field has the given value. This
+     * lookup is not indexed, and scans the meta data of all rules.
+     *
+     * @param key the name of the meta field
+     * @param value the value to look for, which has to match exactly
+     * @return the rules with the given meta value
+     */
+    public List<YaraRule> findByMeta(String key, String value) {
+        List<YaraRule> found = new ArrayList<>();
+        for (YaraRule rule : rules) {
+            if (rule.getMetaValues(key).contains(value)) {
+                found.add(rule);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Gets all rules in the index, in the order in which they were parsed
+     *
+     * @return all rules
+     */
+    public List<YaraRule> getRules() {
+        return Collections.unmodifiableList(rules);
+    }
+
+    /**
+     * Gets the number of rules in the index
+     *
+     * @return the number of rules
+     */
+    public int size() {
+        return rules.size();
+    }
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.rules;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses the headers and meta sections of Yara rules. The strings and
+ * conditions are not interpreted, but scanned over while respecting string
+ * literals, regular expressions, hexadecimal strings, and comments, to find
+ * the end of each rule. The parser is lenient: text which cannot be
+ * interpreted is skipped, and parsing continues with the next rule.<br>
+ * <br>
+ * Recurring names (i.e. tags and meta keys) are shared between all rules
+ * which are parsed by the same parser instance, to keep the parsed rules
+ * compact. Instances are therefore not thread safe.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class YaraRuleParser {
+
+    /**
+     * The shared instance of each recurring name
+     */
+    private final Map<String, String> names;
+
+    private String source;
+    private int position;
+
+    /**
+     * Creates a parser
+     */
+    public YaraRuleParser() {
+        this.names = new HashMap<>();
+    }
+
+    /**
+     * Parses all rules in the given source
+     *
+     * @param source the source of a Yara file, which can contain any number
+     * of rules
+     * @return the rules in the given source, in the order of the source
+     */
+    public List<YaraRule> parse(String source) {
+        this.source = source;
+        this.position = 0;
+        List<YaraRule> rules = new ArrayList<>();
+
+        while (true) {
+            skipWhitespaceAndComments();
+            if (position >= source.length()) {
+                break;
+            }
+            int start = position;
+            String word = readIdentifier();
+            if (word == null) {
+                //Skip anything that cannot start a statement
+                if (source.charAt(position) == '"') {
+                    readString();
+                } else {
+                    position++;
+                }
+                continue;
+            }
+
+            if (word.equals("import") || word.equals("include")) {
+                skipWhitespaceAndComments();
+                if (peek() == '"') {
+                    readString();
+                }
+                continue;
+            }
+
+            boolean privateRule = false;
+            boolean globalRule = false;
+            while (word != null && (word.equals("private") || word.equals("global"))) {
+                privateRule |= word.equals("private");
+                globalRule |= word.equals("global");
+                skipWhitespaceAndComments();
+                word = readIdentifier();
+            }
+            if (word == null || word.equals("rule") == false) {
+                continue;
+            }
+
+            YaraRule rule = parseRule(start, privateRule, globalRule);
+            if (rule != null) {
+                rules.add(rule);
+            }
+        }
+
+        this.source = null;
+        return rules;
+    }
+
+    /**
+     * Parses a rule, of which the "rule" keyword has just been read
+     *
+     * @param start the offset of the rule's first modifier or keyword
+     * @param privateRule true if the rule is private
+     * @param globalRule true if the rule is global
+     * @return the rule, or null if it is malformed
+     */
+    private YaraRule parseRule(int start, boolean privateRule, boolean globalRule) {
+        skipWhitespaceAndComments();
+        String name = readIdentifier();
+        if (name == null) {
+            return null;
+        }
+
+        List<String> tags = new ArrayList<>();
+        skipWhitespaceAndComments();
+        if (peek() == ':') {
+            position++;
+            while (true) {
+                skipWhitespaceAndComments();
+                String tag = readIdentifier();
+                if (tag == null) {
+                    break;
+                }
+                tags.add(intern(tag));
+            }
+        }
+
+        skipWhitespaceAndComments();
+        if (peek() != '{') {
+            return null;
+        }
+        position++;
+
+        Map<String, List<String>> meta = new LinkedHashMap<>();
+        int depth = 1;
+        boolean inMeta = false;
+        //The start and end offsets of the strings and condition sections, or -1 if the rule lacks them
+        int[] sections = {-1, -1, -1, -1};
+        //The previous token, which determines if a slash starts a regular expression
+        String previous = "{";
+        while (depth > 0) {
+            skipWhitespaceAndComments();
+            if (position >= source.length()) {
+                return null;
+            }
+            char c = source.charAt(position);
+
+            if (inMeta && depth == 1 && isIdentifierStart(c)) {
+                int mark = position;
+                String key = readIdentifier();
+                skipWhitespaceAndComments();
+                if (peek() == ':' && isSection(key)) {
+                    position++;
+                    inMeta = key.equals("meta");
+                    enterSection(sections, key, mark);
+                    previous = ":";
+                    continue;
+                }
+                if (peek() == '=') {
+                    position++;
+                    skipWhitespaceAndComments();
+                    String value = readMetaValue();
+                    if (value != null) {
+                        meta.computeIfAbsent(intern(key), k -> new ArrayList<>(1)).add(value);
+                    }
+                    previous = "=";
+                    continue;
+                }
+                //Not a meta field, leave the meta section to avoid misinterpreting the remainder
+                position = mark;
+                inMeta = false;
+                continue;
+            }
+
+            if (c == '"') {
+                readString();
+                previous = "\"";
+            } else if (c == '/' && (previous.equals("=") || previous.equals("matches"))) {
+                skipRegularExpression();
+                previous = "/";
+            } else if (c == '{') {
+                depth++;
+                position++;
+                previous = "{";
+            } else if (c == '}') {
+                depth--;
+                if (depth == 0) {
+                    enterSection(sections, null, position);
+                }
+                position++;
+                previous = "}";
+            } else if (isIdentifierStart(c)) {
+                int wordStart = position;
+                String word = readIdentifier();
+                skipWhitespaceAndComments();
+                if (depth == 1 && peek() == ':' && isSection(word)) {
+                    position++;
+                    inMeta = word.equals("meta");
+                    enterSection(sections, word, wordStart);
+                    previous = ":";
+                } else {
+                    previous = word;
+                }
+            } else {
+                position++;
+                previous = String.valueOf(c);
+            }
+        }
+
+        for (Map.Entry<String, List<String>> entry : meta.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+        return new YaraRule(name, Collections.unmodifiableList(tags), privateRule, globalRule, Collections.unmodifiableMap(meta), source, start, position, sections[0], sections[1], sections[2], sections[3]);
+    }
+
+    /**
+     * Ends the section that is currently open (if it is the strings or the
+     * condition section), and starts the given section
+     *
+     * @param sections the start and end offsets of the strings and condition
+     * sections
+     * @param section the section that starts, or null if the rule ends
+     * @param offset the offset at which the current section ends
+     */
+    private void enterSection(int[] sections, String section, int offset) {
+        if (sections[0] != -1 && sections[1] == -1) {
+            sections[1] = offset;
+        }
+        if (sections[2] != -1 && sections[3] == -1) {
+            sections[3] = offset;
+        }
+        if ("strings".equals(section)) {
+            sections[0] = position;
+        } else if ("condition".equals(section)) {
+            sections[2] = position;
+        }
+    }
+
+    /**
+     * Reads the value of a meta field, which is either a string, a (possibly
+     * negative) number, or a boolean
+     *
+     * @return the value, or null if there is no value
+     */
+    private String readMetaValue() {
+        if (peek() == '"') {
+            return readString();
+        }
+        int start = position;
+        if (peek() == '-') {
+            position++;
+        }
+        while (position < source.length() && (Character.isLetterOrDigit(source.charAt(position)) || source.charAt(position) == '_')) {
+            position++;
+        }
+        if (position == start) {
+            return null;
+        }
+        return intern(source.substring(start, position));
+    }
+
+    /**
+     * Reads a string literal, of which the opening quote is at the current
+     * position, and unescapes it
+     *
+     * @return the unescaped value of the string
+     */
+    private String readString() {
+        StringBuilder value = new StringBuilder();
+        position++;
+        while (position < source.length()) {
+            char c = source.charAt(position++);
+            if (c == '"') {
+                break;
+            }
+            if (c == '\\' && position < source.length()) {
+                char escaped = source.charAt(position++);
+                switch (escaped) {
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'x':
+                        if (position + 2 <= source.length()) {
+                            try {
+                                value.append((char) Integer.parseInt(source.substring(position, position + 2), 16));
+                                position += 2;
+                            } catch (NumberFormatException e) {
+                                value.append("\\x");
+                            }
+                        }
+                        break;
+                    default:
+                        value.append(escaped);
+                        break;
+                }
+                continue;
+            }
+            value.append(c);
+        }
+        return value.toString();
+    }
+
+    /**
+     * Skips a regular expression, of which the opening slash is at the
+     * current position, including its modifiers
+     */
+    private void skipRegularExpression() {
+        position++;
+        while (position < source.length()) {
+            char c = source.charAt(position++);
+            if (c == '\\') {
+                position++;
+            } else if (c == '/' || c == '\n') {
+                break;
+            }
+        }
+        while (position < source.length() && Character.isLetter(source.charAt(position))) {
+            position++;
+        }
+    }
+
+    /**
+     * Skips whitespace, single line comments, and multi line comments
+     */
+    private void skipWhitespaceAndComments() {
+        while (position < source.length()) {
+            char c = source.charAt(position);
+            if (Character.isWhitespace(c)) {
+                position++;
+            } else if (c == '/' && position + 1 < source.length() && source.charAt(position + 1) == '/') {
+                int end = source.indexOf('\n', position);
+                position = end == -1 ? source.length() : end + 1;
+            } else if (c == '/' && position + 1 < source.length() && source.charAt(position + 1) == '*') {
+                int end = source.indexOf("*/", position + 2);
+                position = end == -1 ? source.length() : end + 2;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads an identifier at the current position
+     *
+     * @return the identifier, or null if there is no identifier at the current
+     * position
+     */
+    private String readIdentifier() {
+        if (position >= source.length() || isIdentifierStart(source.charAt(position)) == false) {
+            return null;
+        }
+        int start = position;
+        while (position < source.length() && (Character.isLetterOrDigit(source.charAt(position)) || source.charAt(position) == '_')) {
+            position++;
+        }
+        return source.substring(start, position);
+    }
+
+    /**
+     * Gets the character at the current position
+     *
+     * @return the current character, or zero at the end of the source
+     */
+    private char peek() {
+        return position < source.length() ? source.charAt(position) : 0;
+    }
+
+    private boolean isIdentifierStart(char c) {
+        return Character.isLetter(c) || c == '_';
+    }
+
+    private boolean isSection(String word) {
+        return word.equals("meta") || word.equals("strings") || word.equals("condition");
+    }
+
+    /**
+     * Gets the shared instance of the given name
+     *
+     * @param name the name
+     * @return the shared instance of the name
+     */
+    private String intern(String name) {
+        String shared = names.putIfAbsent(name, name);
+        return shared == null ? name : shared;
+    }
+}
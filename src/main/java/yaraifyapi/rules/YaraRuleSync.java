@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.rules;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import yaraifyapi.YaraifyApi;
+import yaraifyapi.zip.YaraifyArchiveEntry;
+import yaraifyapi.zip.YaraifyArchiveIterator;
+
+/**
+ * Synchronises a local copy of the rule set with the rule archive that
+ * Yaraify regenerates every 5 minutes. The name, CRC-32, and size of each
+ * rule file are remembered, and compared to those in the archive's central
+ * directory. Only the rules which were added or changed are decoded, and the
+ * differences are reported as a delta, allowing scanners to reload only the
+ * rules that changed.<br>
+ * <br>
+ * The remembered state can be persisted to a file, in which case the first
+ * synchronisation after a restart only reports the changes since the last
+ * synchronisation before the restart.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class YaraRuleSync {
+
+    /**
+     * The fingerprint (CRC-32 and size) of a rule file
+     */
+    private static class Fingerprint {
+
+        private final long crc32;
+        private final long size;
+
+        Fingerprint(long crc32, long size) {
+            this.crc32 = crc32;
+            this.size = size;
+        }
+
+        boolean matches(YaraifyArchiveEntry entry) {
+            return crc32 == entry.getCrc32() && size == entry.getSize();
+        }
+    }
+
+    /**
+     * The API instance to download the rule archive with
+     */
+    private final YaraifyApi api;
+
+    /**
+     * The file in which the fingerprints are persisted, or null if they are
+     * only kept in memory
+     */
+    private final Path stateFile;
+
+    /**
+     * The fingerprint of each known rule file, keyed by its name
+     */
+    private Map<String, Fingerprint> fingerprints;
+
+    /**
+     * Creates a rule synchroniser, and loads the fingerprints from the given
+     * file if it exists
+     *
+     * @param api the API instance to download the rule archive with
+     * @param stateFile the file to persist the fingerprints in, or null to
+     * only keep them in memory
+     * @throws IOException if the state file exists but cannot be read
+     */
+    public YaraRuleSync(YaraifyApi api, Path stateFile) throws IOException {
+        this.api = api;
+        this.stateFile = stateFile;
+        this.fingerprints = new HashMap<>();
+        load();
+    }
+
+    /**
+     * Downloads the rule archive (conditionally, see
+     * {@link YaraifyApi#downloadAllYaraRulesAsArchive()}), and compares it to
+     * the known rules. Only the rules which were added or changed are
+     * decoded. The first synchronisation reports all rules as added.
+     *
+     * @return the changes since the previous synchronisation
+     * @throws IOException if the archive cannot be downloaded or read, or if
+     * the state file cannot be written
+     */
+    public synchronized YaraRuleDelta sync() throws IOException {
+        byte[] archive = api.downloadAllYaraRulesAsArchive();
+
+        Map<String, String> added = new LinkedHashMap<>();
+        Map<String, String> changed = new LinkedHashMap<>();
+        Map<String, Fingerprint> current = new HashMap<>();
+
+        try (YaraifyArchiveIterator iterator = new YaraifyArchiveIterator(archive, null)) {
+            while (iterator.hasNext()) {
+                YaraifyArchiveEntry entry = iterator.next();
+                String name = entry.getName();
+                current.put(name, new Fingerprint(entry.getCrc32(), entry.getSize()));
+
+                Fingerprint previous = fingerprints.get(name);
+                if (previous != null && previous.matches(entry)) {
+                    //Unchanged rules are not inflated nor decoded
+                    continue;
+                }
+                String rule = new String(entry.readAllBytes(), StandardCharsets.UTF_8);
+                if (previous == null) {
+                    added.put(name, rule);
+                } else {
+                    changed.put(name, rule);
+                }
+            }
+        }
+
+        Set<String> removed = new HashSet<>(fingerprints.keySet());
+        removed.removeAll(current.keySet());
+
+        YaraRuleDelta delta = new YaraRuleDelta(added, changed, removed, current.size());
+        if (delta.isEmpty() == false) {
+            fingerprints = current;
+            persist();
+        }
+        return delta;
+    }
+
+    /**
+     * Gets the number of known rules
+     *
+     * @return the number of rules as of the last synchronisation
+     */
+    public synchronized int getRuleCount() {
+        return fingerprints.size();
+    }
+
+    /**
+     * Forgets all known rules, meaning the next synchronisation reports all
+     * rules as added. The state file, if any, is removed.
+     *
+     * @throws IOException if the state file cannot be removed
+     */
+    public synchronized void reset() throws IOException {
+        fingerprints = new HashMap<>();
+        if (stateFile != null) {
+            Files.deleteIfExists(stateFile);
+        }
+    }
+
+    /**
+     * Loads the fingerprints from the state file, if it exists
+     *
+     * @throws IOException if the file cannot be read
+     */
+    private void load() throws IOException {
+        if (stateFile == null || Files.exists(stateFile) == false) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(stateFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                //The name comes first, as it is the only field that may contain a tab
+                int sizeSeparator = line.lastIndexOf('\t');
+                int crcSeparator = sizeSeparator <= 0 ? -1 : line.lastIndexOf('\t', sizeSeparator - 1);
+                if (crcSeparator <= 0) {
+                    continue;
+                }
+                try {
+                    long crc32 = Long.parseLong(line.substring(crcSeparator + 1, sizeSeparator));
+                    long size = Long.parseLong(line.substring(sizeSeparator + 1));
+                    fingerprints.put(line.substring(0, crcSeparator), new Fingerprint(crc32, size));
+                } catch (NumberFormatException e) {
+                    //Ignore damaged lines, the rule is then reported as added during the next synchronisation
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the fingerprints to the state file, if there is one. The file is
+     * written to a temporary file first, and then moved in place.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    private void persist() throws IOException {
+        if (stateFile == null) {
+            return;
+        }
+        if (stateFile.getParent() != null) {
+            Files.createDirectories(stateFile.getParent());
+        }
+        Path temporaryFile = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temporaryFile, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Fingerprint> entry : fingerprints.entrySet()) {
+                writer.write(entry.getKey() + "\t" + entry.getValue().crc32 + "\t" + entry.getValue().size);
+                writer.newLine();
+            }
+        }
+        Files.move(temporaryFile, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
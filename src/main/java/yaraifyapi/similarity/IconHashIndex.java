@@ -0,0 +1,599 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.similarity;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import yaraifyapi.model.YaraifyMetadata;
+import yaraifyapi.store.YaraifyMetadataStore;
+import yaraifyapi.util.HashUtil;
+
+/**
+ * A BK-tree over the icon hashes (<code>dhash_icon</code>) of samples, which
+ * finds all samples of which the icon hash is within a given Hamming distance
+ * of a queried icon hash. Each node of the tree is a distinct icon hash, of
+ * which the children are keyed by their distance to that hash. Due to the
+ * triangle inequality, a search only descends into the children of which the
+ * distance is within the radius of the distance between the node and the
+ * queried hash.<br>
+ * <br>
+ * To hold millions of samples, the tree is stored in flat arrays rather than
+ * as separate objects. The samples of each node form a linked list, and the
+ * SHA-256 hashes are kept as raw bytes. An open addressing table over the
+ * samples ensures each sample is only inserted once. Samples can be inserted
+ * at any time, and the whole index can be written to (and read from) a
+ * snapshot file. Searches run concurrently, and insertions block searches for
+ * a short time only.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class IconHashIndex {
+
+    /**
+     * The magic value at the start of a snapshot, which reads "YDHI"
+     */
+    private static final int SNAPSHOT_MAGIC = 0x59444849;
+
+    /**
+     * The version of the snapshot format
+     */
+    private static final int SNAPSHOT_VERSION = 1;
+
+    /**
+     * The number of bytes of a raw SHA-256 hash
+     */
+    private static final int SHA256_SIZE = 32;
+
+    /**
+     * The value of a reference that does not refer to a node or sample
+     */
+    private static final int NONE = -1;
+
+    private long[] nodeHashes;
+    private int[] nodeFirstChilds;
+    private int[] nodeNextSiblings;
+
+    /**
+     * The distance of each node to its parent
+     */
+    private byte[] nodeDistances;
+    private int[] nodeFirstSamples;
+    private int nodeCount;
+
+    /**
+     * The raw SHA-256 hash of each sample, in groups of {@link #SHA256_SIZE}
+     * bytes
+     */
+    private byte[] sampleHashes;
+    private int[] sampleNextSamples;
+    private int[] sampleNodes;
+    private int sampleCount;
+
+    /**
+     * The open addressing table over the samples, which contains the index of
+     * each sample plus one, and zero for empty slots
+     */
+    private int[] sampleTable;
+
+    private final ReentrantReadWriteLock lock;
+
+    /**
+     * Creates an empty index
+     */
+    public IconHashIndex() {
+        this(1024, 1024);
+    }
+
+    private IconHashIndex(int nodeCapacity, int sampleCapacity) {
+        this.nodeHashes = new long[nodeCapacity];
+        this.nodeFirstChilds = new int[nodeCapacity];
+        this.nodeNextSiblings = new int[nodeCapacity];
+        this.nodeDistances = new byte[nodeCapacity];
+        this.nodeFirstSamples = new int[nodeCapacity];
+        this.nodeCount = 0;
+        this.sampleHashes = new byte[sampleCapacity * SHA256_SIZE];
+        this.sampleNextSamples = new int[sampleCapacity];
+        this.sampleNodes = new int[sampleCapacity];
+        this.sampleCount = 0;
+        this.sampleTable = new int[Integer.highestOneBit(sampleCapacity) * 4];
+        this.lock = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Creates an index with the icon hashes of all metadata in the given
+     * store
+     *
+     * @param store the store to read the metadata from
+     * @return the filled index
+     * @throws IOException if the store cannot be read
+     */
+    public static IconHashIndex fromStore(YaraifyMetadataStore store) throws IOException {
+        IconHashIndex index = new IconHashIndex();
+        store.forEachMetadata(index::add);
+        return index;
+    }
+
+    /**
+     * Adds the icon hash of the given sample. A sample which was added before
+     * is ignored, even if its icon hash differs.
+     *
+     * @param sha256 the SHA-256 hash of the sample
+     * @param dhashIcon the icon hash of the sample, as up to 16 hexadecimal
+     * characters
+     * @return true if the sample was added, false if it was added before, or
+     * if the hash or the icon hash is not valid
+     */
+    public boolean add(String sha256, String dhashIcon) {
+        Long hash = parse(dhashIcon);
+        if (hash == null || HashUtil.isSha256(sha256) == false) {
+            return false;
+        }
+        byte[] rawSha256 = HashUtil.fromHex(sha256);
+
+        lock.writeLock().lock();
+        try {
+            if (findSample(rawSha256) != NONE) {
+                return false;
+            }
+            int node = insertNode(hash);
+            insertSample(rawSha256, node);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the icon hash of the given sample, if it has one
+     *
+     * @param metadata the metadata of the sample
+     * @return true if the sample was added, false if it was added before, or
+     * if it has no valid icon hash
+     */
+    public boolean add(YaraifyMetadata metadata) {
+        if (metadata == null) {
+            return false;
+        }
+        return add(metadata.getSha256(), metadata.getDhashIcon());
+    }
+
+    /**
+     * Adds the icon hashes of the given samples, skipping samples without a
+     * valid icon hash
+     *
+     * @param metadatas the metadata of the samples
+     * @return the number of added samples
+     */
+    public int addAll(Collection<YaraifyMetadata> metadatas) {
+        int added = 0;
+        for (YaraifyMetadata metadata : metadatas) {
+            if (add(metadata)) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Finds all samples of which the icon hash is within the given Hamming
+     * distance of the given icon hash
+     *
+     * @param dhashIcon the icon hash to search for
+     * @param radius the maximum number of differing bits
+     * @return the matching samples, ordered by their distance
+     * @throws IOException if the given icon hash is not valid
+     */
+    public List<IconHashMatch> search(String dhashIcon, int radius) throws IOException {
+        Long hash = parse(dhashIcon);
+        if (hash == null) {
+            throw new IOException("The given icon hash is not valid!");
+        }
+        return search(hash, radius, null);
+    }
+
+    /**
+     * Finds all samples of which the icon hash is within the given Hamming
+     * distance of the icon hash of the given sample, excluding the sample
+     * itself
+     *
+     * @param sha256 the SHA-256 hash of an indexed sample
+     * @param radius the maximum number of differing bits
+     * @return the matching samples, ordered by their distance
+     * @throws IOException if the given sample is not indexed
+     */
+    public List<IconHashMatch> findSimilar(String sha256, int radius) throws IOException {
+        if (HashUtil.isSha256(sha256) == false) {
+            throw new IOException("The given hash is not a valid SHA-256 hash!");
+        }
+        byte[] rawSha256 = HashUtil.fromHex(sha256);
+        long hash;
+        lock.readLock().lock();
+        try {
+            int sample = findSample(rawSha256);
+            if (sample == NONE) {
+                throw new IOException("The given sample is not indexed!");
+            }
+            hash = nodeHashes[sampleNodes[sample]];
+        } finally {
+            lock.readLock().unlock();
+        }
+        return search(hash, radius, rawSha256);
+    }
+
+    /**
+     * Gets the number of indexed samples
+     *
+     * @return the number of indexed samples
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return sampleCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of distinct icon hashes, which is the number of nodes in
+     * the tree
+     *
+     * @return the number of distinct icon hashes
+     */
+    public int getIconHashCount() {
+        lock.readLock().lock();
+        try {
+            return nodeCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes a snapshot of the index to the given file. The snapshot is
+     * written next to the file, and then moved in place, meaning an existing
+     * snapshot is only replaced once the new snapshot is complete.
+     *
+     * @param path the file to write the snapshot to
+     * @throws IOException if the snapshot cannot be written
+     */
+    public void save(Path path) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        lock.readLock().lock();
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+            output.writeInt(SNAPSHOT_MAGIC);
+            output.writeInt(SNAPSHOT_VERSION);
+            output.writeInt(nodeCount);
+            output.writeInt(sampleCount);
+            for (int i = 0; i < nodeCount; i++) {
+                output.writeLong(nodeHashes[i]);
+                output.writeInt(nodeFirstChilds[i]);
+                output.writeInt(nodeNextSiblings[i]);
+                output.writeByte(nodeDistances[i]);
+                output.writeInt(nodeFirstSamples[i]);
+            }
+            for (int i = 0; i < sampleCount; i++) {
+                output.write(sampleHashes, i * SHA256_SIZE, SHA256_SIZE);
+                output.writeInt(sampleNextSamples[i]);
+                output.writeInt(sampleNodes[i]);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads an index from a snapshot file, as written by
+     * {@link #save(java.nio.file.Path)}
+     *
+     * @param path the snapshot file to read
+     * @return the index
+     * @throws IOException if the file cannot be read, or is not a valid
+     * snapshot
+     */
+    public static IconHashIndex load(Path path) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            if (input.readInt() != SNAPSHOT_MAGIC || input.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("The given file is not a valid icon hash index snapshot!");
+            }
+            int nodeCount = input.readInt();
+            int sampleCount = input.readInt();
+            if (nodeCount < 0 || sampleCount < 0 || nodeCount > sampleCount) {
+                throw new IOException("The given file is not a valid icon hash index snapshot!");
+            }
+
+            IconHashIndex index = new IconHashIndex(Math.max(1024, nodeCount), Math.max(1024, sampleCount));
+            for (int i = 0; i < nodeCount; i++) {
+                index.nodeHashes[i] = input.readLong();
+                index.nodeFirstChilds[i] = checkReference(input.readInt(), nodeCount);
+                index.nodeNextSiblings[i] = checkReference(input.readInt(), nodeCount);
+                index.nodeDistances[i] = input.readByte();
+                index.nodeFirstSamples[i] = checkReference(input.readInt(), sampleCount);
+            }
+            index.nodeCount = nodeCount;
+            for (int i = 0; i < sampleCount; i++) {
+                input.readFully(index.sampleHashes, i * SHA256_SIZE, SHA256_SIZE);
+                index.sampleNextSamples[i] = checkReference(input.readInt(), sampleCount);
+                index.sampleNodes[i] = checkReference(input.readInt(), nodeCount);
+                if (index.sampleNodes[i] == NONE) {
+                    throw new IOException("The given file is not a valid icon hash index snapshot!");
+                }
+                index.sampleCount = i + 1;
+                index.indexSample(i);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Searches the tree for icon hashes within the given radius. The caller
+     * must not hold the lock.
+     *
+     * @param hash the icon hash to search for
+     * @param radius the maximum number of differing bits
+     * @param excluded the raw SHA-256 hash of the sample to exclude, or null
+     * @return the matching samples, ordered by their distance
+     */
+    private List<IconHashMatch> search(long hash, int radius, byte[] excluded) {
+        List<IconHashMatch> matches = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            if (nodeCount == 0) {
+                return matches;
+            }
+            int[] stack = new int[64];
+            int depth = 0;
+            stack[depth++] = 0;
+            while (depth > 0) {
+                int node = stack[--depth];
+                int distance = Long.bitCount(nodeHashes[node] ^ hash);
+                if (distance <= radius) {
+                    String dhashIcon = format(nodeHashes[node]);
+                    for (int sample = nodeFirstSamples[node]; sample != NONE; sample = sampleNextSamples[sample]) {
+                        if (excluded != null && Arrays.equals(sampleHashes, sample * SHA256_SIZE, (sample + 1) * SHA256_SIZE, excluded, 0, SHA256_SIZE)) {
+                            continue;
+                        }
+                        matches.add(new IconHashMatch(HashUtil.toHex(Arrays.copyOfRange(sampleHashes, sample * SHA256_SIZE, (sample + 1) * SHA256_SIZE)), dhashIcon, distance));
+                    }
+                }
+                //Only the children within the radius of the distance to this node can contain matches
+                for (int child = nodeFirstChilds[node]; child != NONE; child = nodeNextSiblings[child]) {
+                    if (Math.abs(nodeDistances[child] - distance) <= radius) {
+                        if (depth == stack.length) {
+                            stack = Arrays.copyOf(stack, depth * 2);
+                        }
+                        stack[depth++] = child;
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        matches.sort(Comparator.comparingInt(IconHashMatch::getDistance).thenComparing(IconHashMatch::getSha256));
+        return matches;
+    }
+
+    /**
+     * Gets the node of the given icon hash, and inserts it into the tree if
+     * there is none. The caller must hold the write lock.
+     *
+     * @param hash the icon hash
+     * @return the index of the node
+     */
+    private int insertNode(long hash) {
+        if (nodeCount == 0) {
+            return createNode(hash, 0);
+        }
+        int node = 0;
+        while (true) {
+            int distance = Long.bitCount(nodeHashes[node] ^ hash);
+            if (distance == 0) {
+                return node;
+            }
+            int child = nodeFirstChilds[node];
+            while (child != NONE && nodeDistances[child] != distance) {
+                child = nodeNextSiblings[child];
+            }
+            if (child == NONE) {
+                child = createNode(hash, distance);
+                nodeNextSiblings[child] = nodeFirstChilds[node];
+                nodeFirstChilds[node] = child;
+                return child;
+            }
+            node = child;
+        }
+    }
+
+    /**
+     * Creates a node without children or samples. The caller must hold the
+     * write lock.
+     *
+     * @param hash the icon hash of the node
+     * @param distance the distance to the parent of the node
+     * @return the index of the node
+     */
+    private int createNode(long hash, int distance) {
+        if (nodeCount == nodeHashes.length) {
+            int capacity = nodeCount * 2;
+            nodeHashes = Arrays.copyOf(nodeHashes, capacity);
+            nodeFirstChilds = Arrays.copyOf(nodeFirstChilds, capacity);
+            nodeNextSiblings = Arrays.copyOf(nodeNextSiblings, capacity);
+            nodeDistances = Arrays.copyOf(nodeDistances, capacity);
+            nodeFirstSamples = Arrays.copyOf(nodeFirstSamples, capacity);
+        }
+        int node = nodeCount++;
+        nodeHashes[node] = hash;
+        nodeFirstChilds[node] = NONE;
+        nodeNextSiblings[node] = NONE;
+        nodeDistances[node] = (byte) distance;
+        nodeFirstSamples[node] = NONE;
+        return node;
+    }
+
+    /**
+     * Appends a sample to the given node. The caller must hold the write
+     * lock.
+     *
+     * @param rawSha256 the raw SHA-256 hash of the sample
+     * @param node the node of the sample's icon hash
+     */
+    private void insertSample(byte[] rawSha256, int node) {
+        if (sampleCount == sampleNodes.length) {
+            int capacity = sampleCount * 2;
+            sampleHashes = Arrays.copyOf(sampleHashes, capacity * SHA256_SIZE);
+            sampleNextSamples = Arrays.copyOf(sampleNextSamples, capacity);
+            sampleNodes = Arrays.copyOf(sampleNodes, capacity);
+        }
+        int sample = sampleCount++;
+        System.arraycopy(rawSha256, 0, sampleHashes, sample * SHA256_SIZE, SHA256_SIZE);
+        sampleNextSamples[sample] = nodeFirstSamples[node];
+        sampleNodes[sample] = node;
+        nodeFirstSamples[node] = sample;
+        indexSample(sample);
+    }
+
+    /**
+     * Adds the given sample to the open addressing table, which is doubled
+     * once it is half full. The caller must hold the write lock.
+     *
+     * @param sample the index of the sample
+     */
+    private void indexSample(int sample) {
+        if (sampleCount * 2 > sampleTable.length) {
+            sampleTable = new int[sampleTable.length * 2];
+            for (int i = 0; i < sampleCount; i++) {
+                place(i);
+            }
+        } else {
+            place(sample);
+        }
+    }
+
+    /**
+     * Puts the given sample in the first free slot of the open addressing
+     * table
+     *
+     * @param sample the index of the sample
+     */
+    private void place(int sample) {
+        int mask = sampleTable.length - 1;
+        int slot = slotOf(sampleHashes, sample * SHA256_SIZE) & mask;
+        while (sampleTable[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        sampleTable[slot] = sample + 1;
+    }
+
+    /**
+     * Finds the given sample in the open addressing table. The caller must
+     * hold the lock.
+     *
+     * @param rawSha256 the raw SHA-256 hash of the sample
+     * @return the index of the sample, or {@link #NONE} if it is not indexed
+     */
+    private int findSample(byte[] rawSha256) {
+        int mask = sampleTable.length - 1;
+        int slot = slotOf(rawSha256, 0) & mask;
+        while (sampleTable[slot] != 0) {
+            int sample = sampleTable[slot] - 1;
+            if (Arrays.equals(sampleHashes, sample * SHA256_SIZE, (sample + 1) * SHA256_SIZE, rawSha256, 0, SHA256_SIZE)) {
+                return sample;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NONE;
+    }
+
+    /**
+     * Computes the slot of a raw SHA-256 hash. The first and last eight bytes
+     * are mixed, so that hashes which are not uniformly distributed (such as
+     * padded test values) are still spread over the table.
+     *
+     * @param bytes the array that contains the hash
+     * @param offset the offset of the hash
+     * @return the slot, prior to masking it
+     */
+    private static int slotOf(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | ((bytes[offset + i] ^ bytes[offset + SHA256_SIZE - 8 + i]) & 0xFF);
+        }
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        return (int) value;
+    }
+
+    /**
+     * Checks that the given reference from a snapshot is within bounds
+     *
+     * @param reference the reference to check
+     * @param count the number of nodes or samples that can be referred to
+     * @return the reference
+     * @throws IOException if the reference is out of bounds
+     */
+    private static int checkReference(int reference, int count) throws IOException {
+        if (reference < NONE || reference >= count) {
+            throw new IOException("The given file is not a valid icon hash index snapshot!");
+        }
+        return reference;
+    }
+
+    /**
+     * Parses the given icon hash
+     *
+     * @param dhashIcon the icon hash, as up to 16 hexadecimal characters
+     * @return the icon hash as a 64-bit value, or null if it is not valid
+     */
+    private static Long parse(String dhashIcon) {
+        if (dhashIcon == null) {
+            return null;
+        }
+        String hex = dhashIcon.trim();
+        if (hex.isEmpty() || hex.length() > 16) {
+            return null;
+        }
+        try {
+            return Long.parseUnsignedLong(hex, 16);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Formats the given icon hash as 16 lower case hexadecimal characters
+     *
+     * @param hash the icon hash
+     * @return the formatted icon hash
+     */
+    private static String format(long hash) {
+        return String.format("%016x", hash);
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.similarity;
+
+/**
+ * A sample of which the icon hash is within the queried Hamming distance
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class IconHashMatch {
+
+    private final String sha256;
+    private final String dhashIcon;
+    private final int distance;
+
+    public IconHashMatch(String sha256, String dhashIcon, int distance) {
+        this.sha256 = sha256;
+        this.dhashIcon = dhashIcon;
+        this.distance = distance;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    public String getDhashIcon() {
+        return dhashIcon;
+    }
+
+    /**
+     * Gets the number of bits in which the icon hash differs from the queried
+     * icon hash
+     *
+     * @return the Hamming distance
+     */
+    public int getDistance() {
+        return distance;
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.similarity;
+
+import java.util.Arrays;
+
+/**
+ * A parsed ssdeep signature (i.e. <code>blocksize:part1:part2</code>). Runs of
+ * more than three identical characters are shortened to three characters
+ * when the signature is parsed, as the reference implementation does prior to
+ * a comparison. The score between two signatures is computed as the
+ * reference implementation does.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class SsdeepHash {
+
+    /**
+     * The length of the sequences that two parts need to have in common to be
+     * compared
+     */
+    static final int ROLLING_WINDOW = 7;
+
+    /**
+     * The maximum length of a part that is compared
+     */
+    private static final int SPAMSUM_LENGTH = 64;
+
+    /**
+     * The smallest block size
+     */
+    private static final long MIN_BLOCKSIZE = 3;
+
+    /**
+     * The characters of a part
+     */
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    private final String signature;
+    private final long blockSize;
+    private final String part1;
+    private final String part2;
+
+    /**
+     * The distinct sequences of {@link #ROLLING_WINDOW} characters of each
+     * part, encoded with six bits per character, in ascending order
+     */
+    private final long[] grams1;
+    private final long[] grams2;
+
+    private SsdeepHash(String signature, long blockSize, String part1, String part2) {
+        this.signature = signature;
+        this.blockSize = blockSize;
+        this.part1 = part1;
+        this.part2 = part2;
+        this.grams1 = grams(part1);
+        this.grams2 = grams(part2);
+    }
+
+    /**
+     * Parses the given ssdeep signature. A file name after the signature
+     * (separated by a comma) is ignored.
+     *
+     * @param signature the signature to parse
+     * @return the parsed signature, or null if the signature is null or not
+     * valid
+     */
+    public static SsdeepHash parse(String signature) {
+        if (signature == null) {
+            return null;
+        }
+        String trimmed = signature.trim();
+        int comma = trimmed.indexOf(',');
+        if (comma != -1) {
+            trimmed = trimmed.substring(0, comma);
+        }
+        String[] parts = trimmed.split(":", -1);
+        if (parts.length != 3) {
+            return null;
+        }
+        long blockSize;
+        try {
+            blockSize = Long.parseLong(parts[0]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        //Block sizes are the minimum block size times a power of two
+        if (blockSize < MIN_BLOCKSIZE || blockSize % MIN_BLOCKSIZE != 0 || Long.bitCount(blockSize / MIN_BLOCKSIZE) != 1) {
+            return null;
+        }
+        if (isValidPart(parts[1]) == false || isValidPart(parts[2]) == false) {
+            return null;
+        }
+        return new SsdeepHash(trimmed, blockSize, eliminateSequences(parts[1]), eliminateSequences(parts[2]));
+    }
+
+    /**
+     * Computes the similarity between this signature and the given signature
+     *
+     * @param other the signature to compare with
+     * @return the score between 0 (no similarity) and 100 (identical)
+     */
+    public int compare(SsdeepHash other) {
+        long blockSize1 = blockSize;
+        long blockSize2 = other.blockSize;
+        if (blockSize1 == blockSize2) {
+            if (part1.equals(other.part1) && part2.equals(other.part2)) {
+                return 100;
+            }
+            int score1 = scoreParts(part1, grams1, other.part1, other.grams1, blockSize1);
+            int score2 = scoreParts(part2, grams2, other.part2, other.grams2, blockSize1 * 2);
+            return Math.max(score1, score2);
+        } else if (blockSize1 * 2 == blockSize2) {
+            return scoreParts(other.part1, other.grams1, part2, grams2, blockSize2);
+        } else if (blockSize2 * 2 == blockSize1) {
+            return scoreParts(part1, grams1, other.part2, other.grams2, blockSize1);
+        }
+        return 0;
+    }
+
+    public String getSignature() {
+        return signature;
+    }
+
+    public long getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Gets the first part, which is computed with the block size, after long
+     * runs of identical characters are shortened
+     *
+     * @return the first part
+     */
+    public String getPart1() {
+        return part1;
+    }
+
+    /**
+     * Gets the second part, which is computed with twice the block size, after
+     * long runs of identical characters are shortened
+     *
+     * @return the second part
+     */
+    public String getPart2() {
+        return part2;
+    }
+
+    long[] getGrams1() {
+        return grams1;
+    }
+
+    long[] getGrams2() {
+        return grams2;
+    }
+
+    @Override
+    public String toString() {
+        return signature;
+    }
+
+    /**
+     * Computes the score of two parts, which were computed with the same
+     * block size
+     *
+     * @param a the first part
+     * @param aGrams the sequences of the first part
+     * @param b the second part
+     * @param bGrams the sequences of the second part
+     * @param blockSize the block size both parts were computed with
+     * @return the score between 0 and 100
+     */
+    private static int scoreParts(String a, long[] aGrams, String b, long[] bGrams, long blockSize) {
+        if (a.length() > SPAMSUM_LENGTH || b.length() > SPAMSUM_LENGTH) {
+            return 0;
+        }
+        //Parts without a sequence in common are not similar enough to be compared
+        if (hasCommonGram(aGrams, bGrams) == false) {
+            return 0;
+        }
+
+        long score = editDistance(a, b);
+        score = (score * SPAMSUM_LENGTH) / (a.length() + b.length());
+        score = (100 * score) / SPAMSUM_LENGTH;
+        if (score >= 100) {
+            return 0;
+        }
+        score = 100 - score;
+
+        //Small block sizes are capped, as short inputs match easily
+        if (blockSize >= (99 + ROLLING_WINDOW) / ROLLING_WINDOW * MIN_BLOCKSIZE) {
+            return (int) score;
+        }
+        long cap = blockSize / MIN_BLOCKSIZE * Math.min(a.length(), b.length());
+        return (int) Math.min(score, cap);
+    }
+
+    /**
+     * Computes the edit distance between two parts, where an insertion and a
+     * deletion cost one, and a substitution costs two
+     *
+     * @param a the first part
+     * @param b the second part
+     * @return the edit distance
+     */
+    private static int editDistance(String a, String b) {
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            char c = a.charAt(i - 1);
+            for (int j = 1; j <= b.length(); j++) {
+                int substitution = previous[j - 1] + (c == b.charAt(j - 1) ? 0 : 2);
+                int insertion = current[j - 1] + 1;
+                int deletion = previous[j] + 1;
+                current[j] = Math.min(substitution, Math.min(insertion, deletion));
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()];
+    }
+
+    /**
+     * Checks if two sorted arrays of sequences have a sequence in common
+     *
+     * @param a the first sorted array
+     * @param b the second sorted array
+     * @return true if there is a common sequence, false if not
+     */
+    private static boolean hasCommonGram(long[] a, long[] b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] == b[j]) {
+                return true;
+            } else if (a[i] < b[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Computes the distinct sequences of {@link #ROLLING_WINDOW} characters of
+     * the given part
+     *
+     * @param part the part to compute the sequences of
+     * @return the sorted sequences, encoded with six bits per character
+     */
+    private static long[] grams(String part) {
+        if (part.length() < ROLLING_WINDOW) {
+            return new long[0];
+        }
+        long[] grams = new long[part.length() - ROLLING_WINDOW + 1];
+        long mask = (1L << (6 * ROLLING_WINDOW)) - 1;
+        long gram = 0;
+        for (int i = 0; i < part.length(); i++) {
+            gram = ((gram << 6) | ALPHABET.indexOf(part.charAt(i))) & mask;
+            if (i >= ROLLING_WINDOW - 1) {
+                grams[i - ROLLING_WINDOW + 1] = gram;
+            }
+        }
+        Arrays.sort(grams);
+        int distinct = 0;
+        for (int i = 0; i < grams.length; i++) {
+            if (i == 0 || grams[i] != grams[i - 1]) {
+                grams[distinct++] = grams[i];
+            }
+        }
+        return Arrays.copyOf(grams, distinct);
+    }
+
+    /**
+     * Checks if the given part only contains characters of the alphabet
+     *
+     * @param part the part to check
+     * @return true if the part is valid, false if not
+     */
+    private static boolean isValidPart(String part) {
+        for (int i = 0; i < part.length(); i++) {
+            if (ALPHABET.indexOf(part.charAt(i)) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Shortens runs of more than three identical characters to three
+     * characters
+     *
+     * @param part the part to shorten
+     * @return the shortened part
+     */
+    private static String eliminateSequences(String part) {
+        StringBuilder builder = new StringBuilder(part.length());
+        for (int i = 0; i < part.length(); i++) {
+            char c = part.charAt(i);
+            if (i >= 3 && c == part.charAt(i - 1) && c == part.charAt(i - 2) && c == part.charAt(i - 3)) {
+                continue;
+            }
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,531 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.similarity;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import yaraifyapi.model.YaraifyMetadata;
+import yaraifyapi.store.YaraifyMetadataStore;
+import yaraifyapi.util.HashUtil;
+
+/**
+ * A local index of ssdeep signatures, which finds the samples that are
+ * similar to a given signature without making any requests. Two parts are
+ * only compared by ssdeep if they were computed with the same block size, and
+ * if they have a sequence of seven characters in common. The index therefore
+ * maps every such sequence, together with the block size of its part, to the
+ * samples that contain it. Only the samples that share a sequence at a
+ * compatible block size are scored, which gives the same results as scoring
+ * every sample.<br>
+ * <br>
+ * Besides single queries, all similar pairs among the indexed samples can be
+ * computed in parallel, and be grouped into clusters. Queries run
+ * concurrently, and additions block queries for a short time only.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class SsdeepIndex {
+
+    /**
+     * A growable list of sample IDs
+     */
+    private static class IdList {
+
+        private int[] ids;
+        private int size;
+
+        IdList() {
+            this.ids = new int[4];
+            this.size = 0;
+        }
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+    }
+
+    /**
+     * The number of bits that a sequence occupies in a key, where the bits
+     * above it hold the block size
+     */
+    private static final int GRAM_BITS = 6 * SsdeepHash.ROLLING_WINDOW;
+
+    /**
+     * The number of samples that a thread scores at once when all pairs are
+     * computed
+     */
+    private static final int PAIR_CHUNK_SIZE = 256;
+
+    private final List<String> sha256s;
+    private final List<SsdeepHash> signatures;
+
+    /**
+     * The ID of each sample, where the key is the lower case SHA-256 hash of
+     * the sample
+     */
+    private final Map<String, Integer> ids;
+
+    /**
+     * The samples per sequence and block size
+     */
+    private final Map<Long, IdList> postings;
+
+    /**
+     * The samples of which neither part is long enough to contain a sequence,
+     * where the key is the block size and both parts. Such samples are only
+     * similar to identical signatures.
+     */
+    private final Map<String, IdList> shortSignatures;
+
+    private final ReentrantReadWriteLock lock;
+
+    /**
+     * Creates an empty index
+     */
+    public SsdeepIndex() {
+        this.sha256s = new ArrayList<>();
+        this.signatures = new ArrayList<>();
+        this.ids = new HashMap<>();
+        this.postings = new HashMap<>();
+        this.shortSignatures = new HashMap<>();
+        this.lock = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Creates an index with the ssdeep signatures of all metadata in the
+     * given store
+     *
+     * @param store the store to read the metadata from
+     * @return the filled index
+     * @throws IOException if the store cannot be read
+     */
+    public static SsdeepIndex fromStore(YaraifyMetadataStore store) throws IOException {
+        SsdeepIndex index = new SsdeepIndex();
+        store.forEachMetadata(index::add);
+        return index;
+    }
+
+    /**
+     * Adds the ssdeep signature of the given sample. A sample which was added
+     * before is ignored, even if its signature differs.
+     *
+     * @param sha256 the SHA-256 hash of the sample
+     * @param ssdeep the ssdeep signature of the sample
+     * @return true if the sample was added, false if it was added before, or
+     * if the hash or the signature is not valid
+     */
+    public boolean add(String sha256, String ssdeep) {
+        SsdeepHash signature = SsdeepHash.parse(ssdeep);
+        if (signature == null || HashUtil.isSha256(sha256) == false) {
+            return false;
+        }
+        String key = sha256.toLowerCase(Locale.ROOT);
+
+        lock.writeLock().lock();
+        try {
+            if (ids.containsKey(key)) {
+                return false;
+            }
+            int id = signatures.size();
+            sha256s.add(key);
+            signatures.add(signature);
+            ids.put(key, id);
+
+            int exponent = exponentOf(signature.getBlockSize());
+            for (long gram : signature.getGrams1()) {
+                postings.computeIfAbsent(key(exponent, gram), k -> new IdList()).add(id);
+            }
+            for (long gram : signature.getGrams2()) {
+                postings.computeIfAbsent(key(exponent + 1, gram), k -> new IdList()).add(id);
+            }
+            if (signature.getGrams1().length == 0 && signature.getGrams2().length == 0) {
+                shortSignatures.computeIfAbsent(shortKey(signature), k -> new IdList()).add(id);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the ssdeep signature of the given sample, if it has one
+     *
+     * @param metadata the metadata of the sample
+     * @return true if the sample was added, false if it was added before, or
+     * if it has no valid signature
+     */
+    public boolean add(YaraifyMetadata metadata) {
+        if (metadata == null) {
+            return false;
+        }
+        return add(metadata.getSha256(), metadata.getSsdeep());
+    }
+
+    /**
+     * Adds the ssdeep signatures of the given samples, skipping samples
+     * without a valid signature
+     *
+     * @param metadatas the metadata of the samples
+     * @return the number of added samples
+     */
+    public int addAll(Collection<YaraifyMetadata> metadatas) {
+        int added = 0;
+        for (YaraifyMetadata metadata : metadatas) {
+            if (add(metadata)) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Gets the ssdeep signature of the given sample
+     *
+     * @param sha256 the SHA-256 hash of the sample
+     * @return the signature, or null if the sample is not indexed
+     */
+    public SsdeepHash get(String sha256) {
+        if (sha256 == null) {
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            Integer id = ids.get(sha256.toLowerCase(Locale.ROOT));
+            return id == null ? null : signatures.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of indexed samples
+     *
+     * @return the number of indexed samples
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return signatures.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the indexed samples which are similar to the given signature
+     *
+     * @param ssdeep the ssdeep signature to search for
+     * @param minimumScore the minimum score of a returned sample, which is
+     * raised to one if it is lower
+     * @return the similar samples, ordered by their score, starting with the
+     * most similar sample
+     * @throws IOException if the given signature is not valid
+     */
+    public List<SsdeepMatch> search(String ssdeep, int minimumScore) throws IOException {
+        SsdeepHash signature = SsdeepHash.parse(ssdeep);
+        if (signature == null) {
+            throw new IOException("The given ssdeep signature is not valid!");
+        }
+        return search(signature, minimumScore, -1);
+    }
+
+    /**
+     * Finds the indexed samples which are similar to the given indexed
+     * sample, excluding the sample itself
+     *
+     * @param sha256 the SHA-256 hash of an indexed sample
+     * @param minimumScore the minimum score of a returned sample, which is
+     * raised to one if it is lower
+     * @return the similar samples, ordered by their score, starting with the
+     * most similar sample
+     * @throws IOException if the given sample is not indexed
+     */
+    public List<SsdeepMatch> findSimilar(String sha256, int minimumScore) throws IOException {
+        SsdeepHash signature;
+        int id;
+        lock.readLock().lock();
+        try {
+            Integer known = sha256 == null ? null : ids.get(sha256.toLowerCase(Locale.ROOT));
+            if (known == null) {
+                throw new IOException("The given sample is not indexed!");
+            }
+            id = known;
+            signature = signatures.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return search(signature, minimumScore, id);
+    }
+
+    /**
+     * Computes all pairs of indexed samples which are similar to each other.
+     * The samples are divided over the given number of threads, which only
+     * exist for the duration of this call.
+     *
+     * @param minimumScore the minimum score of a returned pair, which is
+     * raised to one if it is lower
+     * @param threads the number of threads to use
+     * @return the similar pairs, ordered by their score, starting with the
+     * most similar pair
+     * @throws InterruptedException if the calling thread is interrupted while
+     * waiting for the threads to finish
+     */
+    public List<SsdeepPair> findPairs(int minimumScore, int threads) throws InterruptedException {
+        int threshold = Math.max(1, minimumScore);
+        List<SsdeepPair> pairs = new ArrayList<>();
+
+        lock.readLock().lock();
+        try {
+            int count = signatures.size();
+            AtomicInteger nextChunk = new AtomicInteger();
+            AtomicInteger threadCount = new AtomicInteger();
+            int threadTotal = Math.max(1, Math.min(threads, (count + PAIR_CHUNK_SIZE - 1) / PAIR_CHUNK_SIZE));
+            ExecutorService scorers = Executors.newFixedThreadPool(threadTotal, runnable -> {
+                Thread thread = new Thread(runnable, "yaraify-ssdeep-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            try {
+                //The workers read the index without taking the lock, as the read lock of the calling thread keeps writers out
+                List<Future<List<SsdeepPair>>> futures = new ArrayList<>();
+                for (int i = 0; i < threadTotal; i++) {
+                    futures.add(scorers.submit(() -> {
+                        List<SsdeepPair> found = new ArrayList<>();
+                        int[] marks = new int[count];
+                        IdList candidates = new IdList();
+                        int start;
+                        while ((start = nextChunk.getAndAdd(PAIR_CHUNK_SIZE)) < count) {
+                            for (int id = start; id < Math.min(count, start + PAIR_CHUNK_SIZE); id++) {
+                                SsdeepHash signature = signatures.get(id);
+                                collectCandidates(signature, marks, id + 1, id + 1, -1, candidates);
+                                for (int c = 0; c < candidates.size; c++) {
+                                    int other = candidates.ids[c];
+                                    int score = signature.compare(signatures.get(other));
+                                    if (score >= threshold) {
+                                        found.add(new SsdeepPair(sha256s.get(id), sha256s.get(other), score));
+                                    }
+                                }
+                            }
+                        }
+                        return found;
+                    }));
+                }
+                for (Future<List<SsdeepPair>> future : futures) {
+                    pairs.addAll(future.get());
+                }
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            } finally {
+                scorers.shutdownNow();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        pairs.sort(Comparator.comparingInt(SsdeepPair::getScore).reversed().thenComparing(SsdeepPair::getSha256).thenComparing(SsdeepPair::getOtherSha256));
+        return pairs;
+    }
+
+    /**
+     * Groups the indexed samples into clusters, where each sample is similar
+     * to at least one other sample in its cluster. Samples which are not
+     * similar to any other sample are omitted.
+     *
+     * @param minimumScore the minimum score of two similar samples, which is
+     * raised to one if it is lower
+     * @param threads the number of threads to compute the similar pairs with
+     * @return the clusters, ordered by their size, starting with the largest
+     * cluster, of which the SHA-256 hashes are sorted
+     * @throws InterruptedException if the calling thread is interrupted while
+     * waiting for the threads to finish
+     */
+    public List<List<String>> cluster(int minimumScore, int threads) throws InterruptedException {
+        List<SsdeepPair> pairs = findPairs(minimumScore, threads);
+
+        Map<String, String> parents = new HashMap<>();
+        for (SsdeepPair pair : pairs) {
+            String root = findRoot(parents, pair.getSha256());
+            String otherRoot = findRoot(parents, pair.getOtherSha256());
+            if (root.equals(otherRoot) == false) {
+                parents.put(root, otherRoot);
+            }
+        }
+
+        Map<String, List<String>> clusters = new HashMap<>();
+        for (String sha256 : parents.keySet()) {
+            clusters.computeIfAbsent(findRoot(parents, sha256), root -> new ArrayList<>()).add(sha256);
+        }
+        List<List<String>> results = new ArrayList<>(clusters.values());
+        for (List<String> cluster : results) {
+            cluster.sort(null);
+        }
+        results.sort(Comparator.comparingInt((List<String> cluster) -> cluster.size()).reversed().thenComparing(cluster -> cluster.get(0)));
+        return results;
+    }
+
+    /**
+     * Scores the candidates of the given signature
+     *
+     * @param signature the signature to search for
+     * @param minimumScore the minimum score of a returned sample
+     * @param excluded the ID of the sample to exclude, or -1
+     * @return the similar samples, ordered by their score
+     */
+    private List<SsdeepMatch> search(SsdeepHash signature, int minimumScore, int excluded) {
+        int threshold = Math.max(1, minimumScore);
+        List<SsdeepMatch> matches = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            IdList candidates = new IdList();
+            collectCandidates(signature, new int[signatures.size()], 1, 0, excluded, candidates);
+            for (int c = 0; c < candidates.size; c++) {
+                int id = candidates.ids[c];
+                int score = signature.compare(signatures.get(id));
+                if (score >= threshold) {
+                    matches.add(new SsdeepMatch(sha256s.get(id), signatures.get(id), score));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        matches.sort(Comparator.comparingInt(SsdeepMatch::getScore).reversed().thenComparing(SsdeepMatch::getSha256));
+        return matches;
+    }
+
+    /**
+     * Collects the samples which share a sequence with the given signature at
+     * a compatible block size. The caller must hold the read lock.
+     *
+     * @param signature the signature to collect the candidates of
+     * @param marks an array with an element per sample, which holds the mark
+     * of the last collection a sample was collected in
+     * @param mark the mark of this collection, which must be positive and
+     * differ from that of the previous collection with the same marks
+     * @param minimumId the lowest ID of a collected sample
+     * @param excluded the ID of the sample to exclude, or -1
+     * @param candidates the list to replace with the candidates
+     */
+    private void collectCandidates(SsdeepHash signature, int[] marks, int mark, int minimumId, int excluded, IdList candidates) {
+        candidates.size = 0;
+        int exponent = exponentOf(signature.getBlockSize());
+        for (long gram : signature.getGrams1()) {
+            collect(postings.get(key(exponent, gram)), marks, mark, minimumId, excluded, candidates);
+        }
+        for (long gram : signature.getGrams2()) {
+            collect(postings.get(key(exponent + 1, gram)), marks, mark, minimumId, excluded, candidates);
+        }
+        if (signature.getGrams1().length == 0 && signature.getGrams2().length == 0) {
+            collect(shortSignatures.get(shortKey(signature)), marks, mark, minimumId, excluded, candidates);
+        }
+    }
+
+    /**
+     * Adds the samples of the given list to the candidates, unless they were
+     * added before in the same collection
+     *
+     * @param list the samples to add, or null
+     * @param marks the marks of the collection
+     * @param mark the mark of the collection
+     * @param minimumId the lowest ID of a collected sample
+     * @param excluded the ID of the sample to exclude, or -1
+     * @param candidates the candidates to add to
+     */
+    private void collect(IdList list, int[] marks, int mark, int minimumId, int excluded, IdList candidates) {
+        if (list == null) {
+            return;
+        }
+        for (int i = 0; i < list.size; i++) {
+            int id = list.ids[i];
+            if (id < minimumId || id == excluded || marks[id] == mark) {
+                continue;
+            }
+            marks[id] = mark;
+            candidates.add(id);
+        }
+    }
+
+    /**
+     * Finds the root of the given sample in the union-find forest, and
+     * shortens the path to it
+     *
+     * @param parents the parent of each sample which is not a root
+     * @param sha256 the sample to find the root of
+     * @return the root
+     */
+    private static String findRoot(Map<String, String> parents, String sha256) {
+        parents.putIfAbsent(sha256, sha256);
+        String root = sha256;
+        while (parents.get(root).equals(root) == false) {
+            root = parents.get(root);
+        }
+        String current = sha256;
+        while (current.equals(root) == false) {
+            String next = parents.get(current);
+            parents.put(current, root);
+            current = next;
+        }
+        return root;
+    }
+
+    /**
+     * Gets the power of two by which the minimum block size is multiplied to
+     * obtain the given block size
+     *
+     * @param blockSize the block size
+     * @return the exponent
+     */
+    private static int exponentOf(long blockSize) {
+        return Long.numberOfTrailingZeros(blockSize / 3);
+    }
+
+    /**
+     * Combines a block size and a sequence into a key
+     *
+     * @param exponent the exponent of the block size
+     * @param gram the encoded sequence
+     * @return the key
+     */
+    private static long key(int exponent, long gram) {
+        return ((long) exponent << GRAM_BITS) | gram;
+    }
+
+    /**
+     * Gets the key of a signature of which neither part contains a sequence
+     *
+     * @param signature the signature
+     * @return the key
+     */
+    private static String shortKey(SsdeepHash signature) {
+        return signature.getBlockSize() + ":" + signature.getPart1() + ":" + signature.getPart2();
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.similarity;
+
+/**
+ * A sample of which the ssdeep signature is similar to a queried signature
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class SsdeepMatch {
+
+    private final String sha256;
+    private final SsdeepHash ssdeep;
+    private final int score;
+
+    public SsdeepMatch(String sha256, SsdeepHash ssdeep, int score) {
+        this.sha256 = sha256;
+        this.ssdeep = ssdeep;
+        this.score = score;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    public SsdeepHash getSsdeep() {
+        return ssdeep;
+    }
+
+    /**
+     * Gets the similarity to the queried signature
+     *
+     * @return the score between 1 and 100
+     */
+    public int getScore() {
+        return score;
+    }
+}
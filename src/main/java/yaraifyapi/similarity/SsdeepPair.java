@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.similarity;
+
+/**
+ * Two indexed samples of which the ssdeep signatures are similar
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class SsdeepPair {
+
+    private final String sha256;
+    private final String otherSha256;
+    private final int score;
+
+    public SsdeepPair(String sha256, String otherSha256, int score) {
+        this.sha256 = sha256;
+        this.otherSha256 = otherSha256;
+        this.score = score;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    public String getOtherSha256() {
+        return otherSha256;
+    }
+
+    /**
+     * Gets the similarity between both samples
+     *
+     * @return the score between 1 and 100
+     */
+    public int getScore() {
+        return score;
+    }
+}
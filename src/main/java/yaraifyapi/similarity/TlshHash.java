@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.similarity;
+
+/**
+ * A parsed TLSH digest, in the standard format with a one byte checksum and
+ * 128 buckets (i.e. <code>T1</code> followed by 70 hexadecimal characters).
+ * The distance between two digests is computed as the reference
+ * implementation does, including the difference in length.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class TlshHash {
+
+    /**
+     * The number of bytes in the body of a digest
+     */
+    static final int BODY_SIZE = 32;
+
+    /**
+     * The number of hexadecimal characters in a digest, without the version
+     * prefix
+     */
+    private static final int HEX_LENGTH = 70;
+
+    /**
+     * The distance between every two bytes of a body, where each byte
+     * consists of four buckets of two bits. A difference of three between two
+     * buckets is counted as six.
+     */
+    static final byte[] BYTE_DISTANCES = createByteDistances();
+
+    private final String digest;
+    private final int checksum;
+    private final int lValue;
+    private final int q1Ratio;
+    private final int q2Ratio;
+    private final byte[] body;
+
+    private TlshHash(String digest, int checksum, int lValue, int q1Ratio, int q2Ratio, byte[] body) {
+        this.digest = digest;
+        this.checksum = checksum;
+        this.lValue = lValue;
+        this.q1Ratio = q1Ratio;
+        this.q2Ratio = q2Ratio;
+        this.body = body;
+    }
+
+    /**
+     * Parses the given TLSH digest, with or without the <code>T1</code>
+     * prefix
+     *
+     * @param digest the digest to parse
+     * @return the parsed digest, or null if the given digest is null, empty,
+     * or not in the standard format (such as <code>TNULL</code>)
+     */
+    public static TlshHash parse(String digest) {
+        if (digest == null) {
+            return null;
+        }
+        String hex = digest.trim();
+        if (hex.length() == HEX_LENGTH + 2 && (hex.charAt(0) == 'T' || hex.charAt(0) == 't') && hex.charAt(1) == '1') {
+            hex = hex.substring(2);
+        }
+        if (hex.length() != HEX_LENGTH) {
+            return null;
+        }
+
+        byte[] raw = new byte[HEX_LENGTH / 2];
+        for (int i = 0; i < raw.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            raw[i] = (byte) ((high << 4) | low);
+        }
+
+        //The nibbles of the header bytes are swapped in the hexadecimal representation
+        int checksum = swap(raw[0]);
+        int lValue = swap(raw[1]);
+        int q = swap(raw[2]);
+        byte[] body = new byte[BODY_SIZE];
+        System.arraycopy(raw, 3, body, 0, BODY_SIZE);
+        return new TlshHash("T1" + hex.toUpperCase(), checksum, lValue, q & 0x0F, (q >> 4) & 0x0F, body);
+    }
+
+    /**
+     * Computes the distance between this digest and the given digest, where
+     * zero means the digests are identical. The difference in length is
+     * included.
+     *
+     * @param other the digest to compare with
+     * @return the distance between both digests
+     */
+    public int distance(TlshHash other) {
+        int distance = headerDistance(lValue, q1Ratio, q2Ratio, checksum, other.lValue, other.q1Ratio, other.q2Ratio, other.checksum);
+        return distance + bodyDistance(body, 0, other.body, 0, Integer.MAX_VALUE);
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public int getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Gets the L-value, which is the logarithm of the length of the hashed
+     * data
+     *
+     * @return the L-value, between 0 and 255
+     */
+    public int getLValue() {
+        return lValue;
+    }
+
+    public int getQ1Ratio() {
+        return q1Ratio;
+    }
+
+    public int getQ2Ratio() {
+        return q2Ratio;
+    }
+
+    byte[] getBody() {
+        return body;
+    }
+
+    @Override
+    public String toString() {
+        return digest;
+    }
+
+    /**
+     * Computes the part of the distance that stems from the L-values
+     *
+     * @param lDifference the circular difference between both L-values
+     * @return the distance
+     */
+    static int lValueDistance(int lDifference) {
+        return lDifference <= 1 ? lDifference : lDifference * 12;
+    }
+
+    /**
+     * Computes the part of the distance that stems from the header of two
+     * digests, which is everything but the body
+     *
+     * @param lValue the L-value of the first digest
+     * @param q1Ratio the first quartile ratio of the first digest
+     * @param q2Ratio the second quartile ratio of the first digest
+     * @param checksum the checksum of the first digest
+     * @param otherLValue the L-value of the second digest
+     * @param otherQ1Ratio the first quartile ratio of the second digest
+     * @param otherQ2Ratio the second quartile ratio of the second digest
+     * @param otherChecksum the checksum of the second digest
+     * @return the distance between both headers
+     */
+    static int headerDistance(int lValue, int q1Ratio, int q2Ratio, int checksum, int otherLValue, int otherQ1Ratio, int otherQ2Ratio, int otherChecksum) {
+        int distance = lValueDistance(circularDifference(lValue, otherLValue, 256));
+        int q1Difference = circularDifference(q1Ratio, otherQ1Ratio, 16);
+        distance += q1Difference <= 1 ? q1Difference : (q1Difference - 1) * 12;
+        int q2Difference = circularDifference(q2Ratio, otherQ2Ratio, 16);
+        distance += q2Difference <= 1 ? q2Difference : (q2Difference - 1) * 12;
+        if (checksum != otherChecksum) {
+            distance++;
+        }
+        return distance;
+    }
+
+    /**
+     * Computes the distance between two bodies, and stops early once the
+     * distance exceeds the given limit
+     *
+     * @param a the array that contains the first body
+     * @param aOffset the offset of the first body
+     * @param b the array that contains the second body
+     * @param bOffset the offset of the second body
+     * @param limit the distance after which the computation may stop
+     * @return the distance, or a value larger than the limit if the distance
+     * exceeds the limit
+     */
+    static int bodyDistance(byte[] a, int aOffset, byte[] b, int bOffset, int limit) {
+        int distance = 0;
+        for (int i = 0; i < BODY_SIZE; i += 8) {
+            for (int j = i; j < i + 8; j++) {
+                distance += BYTE_DISTANCES[((a[aOffset + j] & 0xFF) << 8) | (b[bOffset + j] & 0xFF)];
+            }
+            if (distance > limit) {
+                return distance;
+            }
+        }
+        return distance;
+    }
+
+    /**
+     * Computes the circular difference between two values
+     *
+     * @param x the first value
+     * @param y the second value
+     * @param range the number of possible values
+     * @return the smallest distance between both values on the circle
+     */
+    private static int circularDifference(int x, int y, int range) {
+        int difference = Math.abs(x - y);
+        return Math.min(difference, range - difference);
+    }
+
+    /**
+     * Swaps the nibbles of the given byte
+     *
+     * @param value the byte to swap
+     * @return the swapped byte, as an unsigned value
+     */
+    private static int swap(byte value) {
+        int unsigned = value & 0xFF;
+        return ((unsigned & 0x0F) << 4) | (unsigned >> 4);
+    }
+
+    /**
+     * Creates the table with the distance between every two bytes of a body
+     *
+     * @return the table, indexed by the first byte times 256 plus the second
+     * byte
+     */
+    private static byte[] createByteDistances() {
+        byte[] distances = new byte[256 * 256];
+        for (int a = 0; a < 256; a++) {
+            for (int b = 0; b < 256; b++) {
+                int distance = 0;
+                int x = a;
+                int y = b;
+                for (int bucket = 0; bucket < 4; bucket++) {
+                    int difference = Math.abs((x & 3) - (y & 3));
+                    distance += difference == 3 ? 6 : difference;
+                    x >>= 2;
+                    y >>= 2;
+                }
+                distances[(a << 8) | b] = (byte) distance;
+            }
+        }
+        return distances;
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.similarity;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import yaraifyapi.model.YaraifyMetadata;
+import yaraifyapi.store.YaraifyMetadataStore;
+import yaraifyapi.util.HashUtil;
+
+/**
+ * A local index of TLSH digests, which finds the samples that are most
+ * similar to a given digest without making any requests. The digests are
+ * bucketed by their L-value, which reflects the length of the hashed data. As
+ * the difference between two L-values adds twelve to the distance per step
+ * (beyond the first), a query only scans the buckets of which the L-value is
+ * close enough to that of the queried digest. Within a bucket, the rest of
+ * the header is compared before the body, and the comparison of the body
+ * stops as soon as the distance exceeds the current limit. The results are
+ * exact, as only candidates which cannot be within the limit are
+ * skipped.<br>
+ * <br>
+ * Each bucket stores the digests in flat arrays, rather than as separate
+ * objects, to keep a scan within the CPU cache. The index can be filled from
+ * the metadata store, or from any collection of metadata. Queries run
+ * concurrently, and additions block queries for a short time only.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class TlshIndex {
+
+    /**
+     * The digests with the same L-value
+     */
+    private static class Bucket {
+
+        private int size;
+        private String[] sha256s;
+
+        /**
+         * The checksum, first quartile ratio, and second quartile ratio of
+         * each digest, in groups of three bytes
+         */
+        private byte[] headers;
+
+        /**
+         * The body of each digest, in groups of {@link TlshHash#BODY_SIZE}
+         * bytes
+         */
+        private byte[] bodies;
+
+        Bucket() {
+            this.size = 0;
+            this.sha256s = new String[16];
+            this.headers = new byte[16 * 3];
+            this.bodies = new byte[16 * TlshHash.BODY_SIZE];
+        }
+
+        void add(String sha256, TlshHash tlsh) {
+            if (size == sha256s.length) {
+                int capacity = size * 2;
+                sha256s = Arrays.copyOf(sha256s, capacity);
+                headers = Arrays.copyOf(headers, capacity * 3);
+                bodies = Arrays.copyOf(bodies, capacity * TlshHash.BODY_SIZE);
+            }
+            sha256s[size] = sha256;
+            headers[size * 3] = (byte) tlsh.getChecksum();
+            headers[size * 3 + 1] = (byte) tlsh.getQ1Ratio();
+            headers[size * 3 + 2] = (byte) tlsh.getQ2Ratio();
+            System.arraycopy(tlsh.getBody(), 0, bodies, size * TlshHash.BODY_SIZE, TlshHash.BODY_SIZE);
+            size++;
+        }
+
+        void remove(String sha256) {
+            for (int i = 0; i < size; i++) {
+                if (sha256s[i].equals(sha256)) {
+                    //Move the last digest into the gap, as the order within a bucket is irrelevant
+                    int last = size - 1;
+                    sha256s[i] = sha256s[last];
+                    System.arraycopy(headers, last * 3, headers, i * 3, 3);
+                    System.arraycopy(bodies, last * TlshHash.BODY_SIZE, bodies, i * TlshHash.BODY_SIZE, TlshHash.BODY_SIZE);
+                    sha256s[last] = null;
+                    size--;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * The buckets, indexed by L-value
+     */
+    private final Bucket[] buckets;
+
+    /**
+     * The digest of each indexed sample, where the key is the lower case
+     * SHA-256 hash of the sample
+     */
+    private final Map<String, TlshHash> digests;
+
+    private final ReentrantReadWriteLock lock;
+
+    /**
+     * Creates an empty index
+     */
+    public TlshIndex() {
+        this.buckets = new Bucket[256];
+        this.digests = new HashMap<>();
+        this.lock = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Creates an index with the TLSH digests of all metadata in the given
+     * store
+     *
+     * @param store the store to read the metadata from
+     * @return the filled index
+     * @throws IOException if the store cannot be read
+     */
+    public static TlshIndex fromStore(YaraifyMetadataStore store) throws IOException {
+        TlshIndex index = new TlshIndex();
+        store.forEachMetadata(index::add);
+        return index;
+    }
+
+    /**
+     * Adds the TLSH digest of the given sample. If the sample was indexed
+     * before, its digest is replaced.
+     *
+     * @param sha256 the SHA-256 hash of the sample
+     * @param tlsh the TLSH digest of the sample
+     * @return true if the digest was added, false if the hash or the digest is
+     * not valid
+     */
+    public boolean add(String sha256, String tlsh) {
+        TlshHash parsed = TlshHash.parse(tlsh);
+        if (parsed == null || HashUtil.isSha256(sha256) == false) {
+            return false;
+        }
+        String key = sha256.toLowerCase(Locale.ROOT);
+
+        lock.writeLock().lock();
+        try {
+            TlshHash previous = digests.put(key, parsed);
+            if (previous != null) {
+                buckets[previous.getLValue()].remove(key);
+            }
+            Bucket bucket = buckets[parsed.getLValue()];
+            if (bucket == null) {
+                bucket = new Bucket();
+                buckets[parsed.getLValue()] = bucket;
+            }
+            bucket.add(key, parsed);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the TLSH digest of the given sample, if it has one
+     *
+     * @param metadata the metadata of the sample
+     * @return true if the digest was added, false if the metadata has no
+     * valid digest
+     */
+    public boolean add(YaraifyMetadata metadata) {
+        if (metadata == null) {
+            return false;
+        }
+        return add(metadata.getSha256(), metadata.getTlsh());
+    }
+
+    /**
+     * Adds the TLSH digests of the given samples, skipping samples without a
+     * valid digest
+     *
+     * @param metadatas the metadata of the samples
+     * @return the number of added digests
+     */
+    public int addAll(Collection<YaraifyMetadata> metadatas) {
+        int added = 0;
+        for (YaraifyMetadata metadata : metadatas) {
+            if (add(metadata)) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Gets the TLSH digest of the given sample
+     *
+     * @param sha256 the SHA-256 hash of the sample
+     * @return the digest, or null if the sample is not indexed
+     */
+    public TlshHash get(String sha256) {
+        if (sha256 == null) {
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            return digests.get(sha256.toLowerCase(Locale.ROOT));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of indexed samples
+     *
+     * @return the number of indexed samples
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return digests.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the indexed samples which are nearest to the given digest
+     *
+     * @param tlsh the TLSH digest to search for
+     * @param limit the maximum number of samples to return, or zero (or less)
+     * to return all samples within the maximum distance
+     * @param maximumDistance the maximum distance of a returned sample
+     * @return the nearest samples, ordered by their distance
+     * @throws IOException if the given digest is not a valid TLSH digest
+     */
+    public List<TlshMatch> findNearest(String tlsh, int limit, int maximumDistance) throws IOException {
+        TlshHash parsed = TlshHash.parse(tlsh);
+        if (parsed == null) {
+            throw new IOException("The given TLSH digest is not valid!");
+        }
+        return findNearest(parsed, limit, maximumDistance, null);
+    }
+
+    /**
+     * Finds the indexed samples which are nearest to the given indexed sample,
+     * excluding the sample itself
+     *
+     * @param sha256 the SHA-256 hash of an indexed sample
+     * @param limit the maximum number of samples to return, or zero (or less)
+     * to return all samples within the maximum distance
+     * @param maximumDistance the maximum distance of a returned sample
+     * @return the nearest samples, ordered by their distance
+     * @throws IOException if the given sample is not indexed
+     */
+    public List<TlshMatch> findSimilar(String sha256, int limit, int maximumDistance) throws IOException {
+        TlshHash tlsh = get(sha256);
+        if (tlsh == null) {
+            throw new IOException("The given sample is not indexed!");
+        }
+        return findNearest(tlsh, limit, maximumDistance, sha256.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Finds the indexed samples which are nearest to the given digest. The
+     * buckets are visited in order of their L-value difference, and the
+     * search ends once the distance that stems from the L-values alone
+     * exceeds the limit.
+     *
+     * @param tlsh the digest to search for
+     * @param limit the maximum number of samples to return, or zero (or less)
+     * for no maximum
+     * @param maximumDistance the maximum distance of a returned sample
+     * @param excluded the key of the sample to exclude, or null
+     * @return the nearest samples, ordered by their distance
+     */
+    private List<TlshMatch> findNearest(TlshHash tlsh, int limit, int maximumDistance, String excluded) {
+        //The farthest match is at the head, so it can be replaced once a nearer sample is found
+        Comparator<TlshMatch> nearestFirst = Comparator.comparingInt(TlshMatch::getDistance).thenComparing(TlshMatch::getSha256);
+        PriorityQueue<TlshMatch> matches = new PriorityQueue<>(nearestFirst.reversed());
+        int bound = maximumDistance;
+
+        lock.readLock().lock();
+        try {
+            for (int lDifference = 0; lDifference <= 128; lDifference++) {
+                int lDistance = TlshHash.lValueDistance(lDifference);
+                if (lDistance > bound) {
+                    break;
+                }
+                int lower = (tlsh.getLValue() - lDifference) & 0xFF;
+                int upper = (tlsh.getLValue() + lDifference) & 0xFF;
+                bound = scan(buckets[lower], tlsh, lDistance, excluded, matches, limit, bound);
+                if (upper != lower) {
+                    bound = scan(buckets[upper], tlsh, lDistance, excluded, matches, limit, bound);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        List<TlshMatch> results = new ArrayList<>(matches);
+        results.sort(nearestFirst);
+        return results;
+    }
+
+    /**
+     * Compares all digests in the given bucket with the given digest, and
+     * keeps those within the bound. The caller must hold the read lock.
+     *
+     * @param bucket the bucket to scan, or null if it is empty
+     * @param tlsh the digest to search for
+     * @param lDistance the distance that stems from the L-values
+     * @param excluded the key of the sample to exclude, or null
+     * @param matches the matches so far, with the farthest match at the head
+     * @param limit the maximum number of matches, or zero (or less) for no
+     * maximum
+     * @param bound the maximum distance of a new match
+     * @return the maximum distance of a new match after this bucket
+     */
+    private int scan(Bucket bucket, TlshHash tlsh, int lDistance, String excluded, PriorityQueue<TlshMatch> matches, int limit, int bound) {
+        if (bucket == null) {
+            return bound;
+        }
+        byte[] body = tlsh.getBody();
+        for (int i = 0; i < bucket.size; i++) {
+            int distance = lDistance + TlshHash.headerDistance(0, tlsh.getQ1Ratio(), tlsh.getQ2Ratio(), tlsh.getChecksum(),
+                    0, bucket.headers[i * 3 + 1], bucket.headers[i * 3 + 2], bucket.headers[i * 3] & 0xFF);
+            if (distance > bound) {
+                continue;
+            }
+            distance += TlshHash.bodyDistance(body, 0, bucket.bodies, i * TlshHash.BODY_SIZE, bound - distance);
+            if (distance > bound || bucket.sha256s[i].equals(excluded)) {
+                continue;
+            }
+
+            matches.add(new TlshMatch(bucket.sha256s[i], digests.get(bucket.sha256s[i]), distance));
+            if (limit > 0 && matches.size() >= limit) {
+                if (matches.size() > limit) {
+                    matches.poll();
+                }
+                //Only samples which are nearer than the farthest match can improve the result
+                bound = matches.peek().getDistance() - 1;
+            }
+        }
+        return bound;
+    }
+}
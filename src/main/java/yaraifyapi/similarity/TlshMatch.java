@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.similarity;
+
+/**
+ * A sample which is similar to a queried TLSH digest
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class TlshMatch {
+
+    private final String sha256;
+    private final TlshHash tlsh;
+    private final int distance;
+
+    public TlshMatch(String sha256, TlshHash tlsh, int distance) {
+        this.sha256 = sha256;
+        this.tlsh = tlsh;
+        this.distance = distance;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    public TlshHash getTlsh() {
+        return tlsh;
+    }
+
+    /**
+     * Gets the TLSH distance to the queried digest, where zero means the
+     * digests are identical
+     *
+     * @return the distance
+     */
+    public int getDistance() {
+        return distance;
+    }
+}
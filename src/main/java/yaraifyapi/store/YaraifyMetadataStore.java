@@ -0,0 +1,778 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import org.json.JSONException;
+import org.json.JSONObject;
+import yaraifyapi.json.JsonParser;
+import yaraifyapi.json.JsonSerializer;
+import yaraifyapi.model.YaraifyMetadata;
+import yaraifyapi.model.YaraifyTaskResult;
+
+/**
+ * A persistent, local store for metadata and task results, keyed by the
+ * SHA-256 hash of the sample or by the task ID. The data is written to an
+ * append-only log, and located using an open addressing hash table which is
+ * stored in a memory-mapped index file. A lookup therefore costs a few reads
+ * from the memory-mapped index and a single read from the log.<br>
+ * <br>
+ * The index records the length of the log it covers. When the store is
+ * opened, records that were appended after that point are indexed, and a
+ * partially written record at the end of the log (i.e. due to a crash) is
+ * truncated. A missing or damaged index is rebuilt from the log.<br>
+ * <br>
+ * Updates and removals append new records, which leaves the superseded
+ * records in the log until the store is compacted. If a maximum size is given,
+ * the store compacts itself once the log exceeds it, and removes the oldest
+ * records if compaction alone does not free enough space.<br>
+ * <br>
+ * All functions are thread safe.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class YaraifyMetadataStore {
+
+    /**
+     * The magic value at the start of each record in the log
+     */
+    private static final int RECORD_MAGIC = 0x59524c47;
+
+    /**
+     * The size of a record's header: magic (4), type (1), flags (1), key
+     * length (2), value length (4), and CRC-32 (4)
+     */
+    private static final int RECORD_HEADER_SIZE = 16;
+
+    /**
+     * The flag of a record that marks the removal of its key
+     */
+    private static final byte FLAG_TOMBSTONE = 1;
+
+    /**
+     * The magic value at the start of the index
+     */
+    private static final int INDEX_MAGIC = 0x59524958;
+
+    /**
+     * The version of the index layout
+     */
+    private static final int INDEX_VERSION = 1;
+
+    /**
+     * The size of the index header: magic (4), version (4), capacity (4),
+     * count (4), and the length of the log that is covered by the index (8),
+     * followed by 8 reserved bytes
+     */
+    private static final int INDEX_HEADER_SIZE = 32;
+
+    /**
+     * The size of a slot in the index: the hash of the key (8) and the offset
+     * of the record in the log (8). A hash of zero marks an empty slot.
+     */
+    private static final int SLOT_SIZE = 16;
+
+    /**
+     * The number of slots in a new index, which must be a power of two
+     */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * A record as read from the log
+     */
+    private static class LogRecord {
+
+        private final YaraifyStoreRecordType type;
+        private final byte flags;
+        private final String key;
+        private final String value;
+        private final int length;
+
+        LogRecord(YaraifyStoreRecordType type, byte flags, String key, String value, int length) {
+            this.type = type;
+            this.flags = flags;
+            this.key = key;
+            this.value = value;
+            this.length = length;
+        }
+
+        boolean isTombstone() {
+            return (flags & FLAG_TOMBSTONE) != 0;
+        }
+    }
+
+    private final Path logPath;
+    private final Path indexPath;
+    private final long maximumSizeBytes;
+    private final JsonParser jsonParser;
+    private final JsonSerializer jsonSerializer;
+
+    private FileChannel log;
+    private long logSize;
+    private FileChannel indexChannel;
+    private MappedByteBuffer index;
+    private int capacity;
+    private int count;
+
+    private volatile long fileHashMaximumAgeMillis;
+
+    /**
+     * Opens the store in the given folder, or creates it if it does not exist
+     * yet. By default, file hash lookups are kept for a day, as new tasks for
+     * the same file are not reflected in a stored lookup.
+     *
+     * @param directory the folder to store the log and the index in
+     * @param maximumSizeBytes the maximum size of the log in bytes, or zero
+     * (or less) for no maximum
+     * @throws IOException if the store cannot be opened or recovered
+     */
+    public YaraifyMetadataStore(Path directory, long maximumSizeBytes) throws IOException {
+        Files.createDirectories(directory);
+        this.logPath = directory.resolve("yaraify-store.log");
+        this.indexPath = directory.resolve("yaraify-store.index");
+        this.maximumSizeBytes = maximumSizeBytes;
+        this.jsonParser = new JsonParser();
+        this.jsonSerializer = new JsonSerializer();
+        this.fileHashMaximumAgeMillis = 24 * 60 * 60 * 1000L;
+        open();
+    }
+
+    /**
+     * Stores the given metadata, using its SHA-256 hash as the key
+     *
+     * @param metadata the metadata to store
+     * @throws IOException if the metadata has no SHA-256 hash, or if it cannot
+     * be written
+     */
+    public void putMetadata(YaraifyMetadata metadata) throws IOException {
+        if (metadata == null || metadata.getSha256() == null || metadata.getSha256().isEmpty()) {
+            throw new IOException("The given metadata is null or has no SHA-256 hash!");
+        }
+        put(YaraifyStoreRecordType.METADATA, metadata.getSha256().toLowerCase(), jsonSerializer.toJson(metadata).toString());
+    }
+
+    /**
+     * Gets the metadata of the sample with the given SHA-256 hash
+     *
+     * @param sha256 the SHA-256 hash of the sample
+     * @return the stored metadata, or null if there is none
+     * @throws IOException if the store cannot be read
+     */
+    public YaraifyMetadata getMetadata(String sha256) throws IOException {
+        String value = get(YaraifyStoreRecordType.METADATA, sha256.toLowerCase());
+        return value == null ? null : jsonParser.getMetadata(new JSONObject(value));
+    }
+
+    /**
+     * Stores the given result of a task
+     *
+     * @param taskId the ID of the task
+     * @param result the result to store
+     * @throws IOException if the result cannot be written
+     */
+    public void putTaskResult(String taskId, YaraifyTaskResult result) throws IOException {
+        put(YaraifyStoreRecordType.TASK_RESULT, taskId, jsonSerializer.toJson(result).toString());
+    }
+
+    /**
+     * Gets the stored result of the given task
+     *
+     * @param taskId the ID of the task
+     * @return the stored result, or null if there is none
+     * @throws IOException if the store cannot be read
+     */
+    public YaraifyTaskResult getTaskResult(String taskId) throws IOException {
+        String value = get(YaraifyStoreRecordType.TASK_RESULT, taskId);
+        return value == null ? null : jsonParser.getTaskResult(new JSONObject(value), null);
+    }
+
+    /**
+     * Stores the given result of a file hash lookup
+     *
+     * @param sha256 the SHA-256 hash that was looked up
+     * @param result the result to store
+     * @throws IOException if the result cannot be written
+     */
+    public void putFileHashResult(String sha256, YaraifyTaskResult result) throws IOException {
+        JSONObject record = new JSONObject();
+        record.put("stored_at", System.currentTimeMillis());
+        record.put("result", jsonSerializer.toJson(result));
+        put(YaraifyStoreRecordType.FILE_HASH_RESULT, sha256.toLowerCase(), record.toString());
+    }
+
+    /**
+     * Gets the stored result of a file hash lookup. A result that is older
+     * than the maximum age is treated as absent.
+     *
+     * @param sha256 the SHA-256 hash that was looked up
+     * @return the stored result, or null if there is none, or if it has
+     * expired
+     * @throws IOException if the store cannot be read
+     */
+    public YaraifyTaskResult getFileHashResult(String sha256) throws IOException {
+        String value = get(YaraifyStoreRecordType.FILE_HASH_RESULT, sha256.toLowerCase());
+        if (value == null) {
+            return null;
+        }
+        JSONObject record = new JSONObject(value);
+        //Records without a storage time predate the maximum age, and are treated as expired
+        if (record.has("stored_at") == false || record.has("result") == false) {
+            return null;
+        }
+        long maximumAge = fileHashMaximumAgeMillis;
+        if (maximumAge > 0 && System.currentTimeMillis() - record.getLong("stored_at") > maximumAge) {
+            return null;
+        }
+        return jsonParser.getTaskResult(record.getJSONObject("result"), null);
+    }
+
+    public long getFileHashMaximumAgeMillis() {
+        return fileHashMaximumAgeMillis;
+    }
+
+    /**
+     * Sets the maximum age of a stored file hash lookup, after which it is
+     * treated as absent. Metadata and task results do not expire, as they do
+     * not change once a task has been processed.
+     *
+     * @param fileHashMaximumAgeMillis the maximum age in milliseconds, or zero
+     * (or less) to keep lookups indefinitely
+     */
+    public void setFileHashMaximumAgeMillis(long fileHashMaximumAgeMillis) {
+        this.fileHashMaximumAgeMillis = fileHashMaximumAgeMillis;
+    }
+
+    /**
+     * Removes the record of the given type and key, if present
+     *
+     * @param type the type of the record
+     * @param key the key of the record, being the SHA-256 hash or the task ID
+     * @throws IOException if the removal cannot be written
+     */
+    public synchronized void remove(YaraifyStoreRecordType type, String key) throws IOException {
+        if (type != YaraifyStoreRecordType.TASK_RESULT) {
+            key = key.toLowerCase();
+        }
+        if (findSlot(type, key, hash(type, key)) < 0) {
+            return;
+        }
+        append(type, FLAG_TOMBSTONE, key, "");
+    }
+
+    /**
+     * Passes all stored metadata to the given consumer, in no particular
+     * order. Records that cannot be parsed are skipped.
+     *
+     * @param consumer the consumer to pass the metadata to
+     * @throws IOException if the store cannot be read
+     */
+    public synchronized void forEachMetadata(Consumer<YaraifyMetadata> consumer) throws IOException {
+        for (int slot = 0; slot < capacity; slot++) {
+            int position = INDEX_HEADER_SIZE + slot * SLOT_SIZE;
+            if (index.getLong(position) == 0) {
+                continue;
+            }
+            LogRecord record = readRecord(index.getLong(position + 8));
+            if (record == null || record.isTombstone() || record.type != YaraifyStoreRecordType.METADATA) {
+                continue;
+            }
+            try {
+                consumer.accept(jsonParser.getMetadata(new JSONObject(record.value)));
+            } catch (JSONException e) {
+                //Skip damaged records
+            }
+        }
+    }
+
+    /**
+     * Rewrites the log with only the current records, which removes all
+     * superseded and removed records
+     *
+     * @throws IOException if the log cannot be rewritten
+     */
+    public synchronized void compact() throws IOException {
+        compact(Long.MAX_VALUE);
+    }
+
+    /**
+     * Gets the size of the log in bytes, including superseded records
+     *
+     * @return the size of the log
+     */
+    public synchronized long getSize() {
+        return logSize;
+    }
+
+    /**
+     * Gets the number of keys in the index, including removed keys that have
+     * not been compacted yet
+     *
+     * @return the number of keys
+     */
+    public synchronized int getKeyCount() {
+        return count;
+    }
+
+    /**
+     * Forces all changes to the log and the index onto the storage device
+     *
+     * @throws IOException if the changes cannot be written
+     */
+    public synchronized void flush() throws IOException {
+        log.force(false);
+        index.force();
+    }
+
+    /**
+     * Flushes and closes the store
+     *
+     * @throws IOException if the store cannot be flushed
+     */
+    public synchronized void close() throws IOException {
+        flush();
+        log.close();
+        indexChannel.close();
+    }
+
+    /**
+     * Stores the given value, and compacts the store if it exceeds its
+     * maximum size
+     *
+     * @param type the type of the record
+     * @param key the key of the record
+     * @param value the value to store
+     * @throws IOException if the record cannot be written
+     */
+    private synchronized void put(YaraifyStoreRecordType type, String key, String value) throws IOException {
+        append(type, (byte) 0, key, value);
+        if (maximumSizeBytes > 0 && logSize > maximumSizeBytes) {
+            //Compacting to three quarters of the maximum avoids compacting after every write
+            compact(maximumSizeBytes / 4 * 3);
+        }
+    }
+
+    /**
+     * Gets the value of the record with the given type and key
+     *
+     * @param type the type of the record
+     * @param key the key of the record
+     * @return the value, or null if the key is not present or removed
+     * @throws IOException if the log cannot be read
+     */
+    private synchronized String get(YaraifyStoreRecordType type, String key) throws IOException {
+        int slot = findSlot(type, key, hash(type, key));
+        if (slot < 0) {
+            return null;
+        }
+        LogRecord record = readRecord(index.getLong(INDEX_HEADER_SIZE + slot * SLOT_SIZE + 8));
+        if (record == null || record.isTombstone()) {
+            return null;
+        }
+        return record.value;
+    }
+
+    /**
+     * Appends a record to the log, and points the index to it
+     *
+     * @param type the type of the record
+     * @param flags the flags of the record
+     * @param key the key of the record
+     * @param value the value of the record
+     * @throws IOException if the record cannot be written
+     */
+    private void append(YaraifyStoreRecordType type, byte flags, String key, String value) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length > Short.MAX_VALUE) {
+            throw new IOException("The given key is too long to be stored!");
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(type.getId());
+        crc.update(flags);
+        crc.update(keyBytes);
+        crc.update(valueBytes);
+
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + keyBytes.length + valueBytes.length);
+        buffer.putInt(RECORD_MAGIC);
+        buffer.put(type.getId());
+        buffer.put(flags);
+        buffer.putShort((short) keyBytes.length);
+        buffer.putInt(valueBytes.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(keyBytes);
+        buffer.put(valueBytes);
+        buffer.flip();
+
+        long offset = logSize;
+        while (buffer.hasRemaining()) {
+            log.write(buffer, offset + buffer.position());
+        }
+        logSize += buffer.limit();
+
+        index(type, key, offset);
+        index.putLong(16, logSize);
+    }
+
+    /**
+     * Reads the record at the given offset in the log
+     *
+     * @param offset the offset of the record
+     * @return the record, or null if there is no valid record at the given
+     * offset
+     * @throws IOException if the log cannot be read
+     */
+    private LogRecord readRecord(long offset) throws IOException {
+        if (offset < 0 || offset + RECORD_HEADER_SIZE > logSize) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(header, offset);
+        header.flip();
+        if (header.getInt() != RECORD_MAGIC) {
+            return null;
+        }
+        YaraifyStoreRecordType type = YaraifyStoreRecordType.fromId(header.get());
+        byte flags = header.get();
+        int keyLength = header.getShort();
+        int valueLength = header.getInt();
+        int checksum = header.getInt();
+        if (type == null || keyLength < 0 || valueLength < 0 || offset + RECORD_HEADER_SIZE + keyLength + valueLength > logSize) {
+            return null;
+        }
+
+        ByteBuffer body = ByteBuffer.allocate(keyLength + valueLength);
+        readFully(body, offset + RECORD_HEADER_SIZE);
+        byte[] bytes = body.array();
+
+        CRC32 crc = new CRC32();
+        crc.update(type.getId());
+        crc.update(flags);
+        crc.update(bytes);
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+
+        String key = new String(bytes, 0, keyLength, StandardCharsets.UTF_8);
+        String value = new String(bytes, keyLength, valueLength, StandardCharsets.UTF_8);
+        return new LogRecord(type, flags, key, value, RECORD_HEADER_SIZE + keyLength + valueLength);
+    }
+
+    /**
+     * Fills the given buffer with bytes from the log, starting at the given
+     * offset
+     *
+     * @param buffer the buffer to fill
+     * @param offset the offset in the log
+     * @throws IOException if the log ends before the buffer is filled
+     */
+    private void readFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = log.read(buffer, offset + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of the store's log!");
+            }
+        }
+    }
+
+    /**
+     * Computes the 64-bit FNV-1a hash of the given type and key. Zero is
+     * reserved for empty slots, and is never returned.
+     *
+     * @param type the type of the record
+     * @param key the key of the record
+     * @return the hash of the type and key
+     */
+    private long hash(YaraifyStoreRecordType type, String key) {
+        long hash = 0xcbf29ce484222325L;
+        hash ^= type.getId();
+        hash *= 0x100000001b3L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= (b & 0xFF);
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Finds the slot of the given key in the index. Slots with the same hash
+     * are verified against the key in the log, to rule out collisions.
+     *
+     * @param type the type of the record
+     * @param key the key of the record
+     * @param hash the hash of the type and key
+     * @return the slot of the key, or the negative value of the first empty
+     * slot minus one if the key is not present
+     * @throws IOException if the log cannot be read
+     */
+    private int findSlot(YaraifyStoreRecordType type, String key, long hash) throws IOException {
+        int mask = capacity - 1;
+        int slot = (int) (hash ^ (hash >>> 32)) & mask;
+        while (true) {
+            int position = INDEX_HEADER_SIZE + slot * SLOT_SIZE;
+            long slotHash = index.getLong(position);
+            if (slotHash == 0) {
+                return -slot - 1;
+            }
+            if (slotHash == hash) {
+                LogRecord record = readRecord(index.getLong(position + 8));
+                if (record != null && record.type == type && record.key.equals(key)) {
+                    return slot;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Points the index entry of the given key to the given offset, and grows
+     * the index if it becomes too full
+     *
+     * @param type the type of the record
+     * @param key the key of the record
+     * @param offset the offset of the record in the log
+     * @throws IOException if the index cannot be grown
+     */
+    private void index(YaraifyStoreRecordType type, String key, long offset) throws IOException {
+        long hash = hash(type, key);
+        int slot = findSlot(type, key, hash);
+        if (slot < 0) {
+            slot = -slot - 1;
+            count++;
+            index.putInt(12, count);
+        }
+        int position = INDEX_HEADER_SIZE + slot * SLOT_SIZE;
+        index.putLong(position, hash);
+        index.putLong(position + 8, offset);
+
+        //Keep the load factor below 70% to keep the probe sequences short
+        if (count * 10L > capacity * 7L) {
+            grow();
+        }
+    }
+
+    /**
+     * Doubles the capacity of the index. The new index is written next to the
+     * existing one, and then moved in place.
+     *
+     * @throws IOException if the new index cannot be written
+     */
+    private void grow() throws IOException {
+        int newCapacity = capacity * 2;
+        Path temporary = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        Files.deleteIfExists(temporary);
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer newIndex = channel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER_SIZE + (long) newCapacity * SLOT_SIZE);
+            writeIndexHeader(newIndex, newCapacity, count, logSize);
+            int mask = newCapacity - 1;
+            for (int slot = 0; slot < capacity; slot++) {
+                int position = INDEX_HEADER_SIZE + slot * SLOT_SIZE;
+                long hash = index.getLong(position);
+                if (hash == 0) {
+                    continue;
+                }
+                //All existing slots contain distinct keys, so no verification is required
+                int newSlot = (int) (hash ^ (hash >>> 32)) & mask;
+                while (newIndex.getLong(INDEX_HEADER_SIZE + newSlot * SLOT_SIZE) != 0) {
+                    newSlot = (newSlot + 1) & mask;
+                }
+                newIndex.putLong(INDEX_HEADER_SIZE + newSlot * SLOT_SIZE, hash);
+                newIndex.putLong(INDEX_HEADER_SIZE + newSlot * SLOT_SIZE + 8, index.getLong(position + 8));
+            }
+            newIndex.force();
+        }
+        indexChannel.close();
+        Files.move(temporary, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        mapIndex();
+    }
+
+    /**
+     * Writes the header of an index
+     *
+     * @param buffer the index to write the header in
+     * @param indexCapacity the number of slots in the index
+     * @param keyCount the number of keys in the index
+     * @param indexedLength the length of the log that the index covers
+     */
+    private void writeIndexHeader(MappedByteBuffer buffer, int indexCapacity, int keyCount, long indexedLength) {
+        buffer.putInt(0, INDEX_MAGIC);
+        buffer.putInt(4, INDEX_VERSION);
+        buffer.putInt(8, indexCapacity);
+        buffer.putInt(12, keyCount);
+        buffer.putLong(16, indexedLength);
+    }
+
+    /**
+     * Maps the existing index file, and reads its header
+     *
+     * @throws IOException if the index cannot be mapped
+     */
+    private void mapIndex() throws IOException {
+        indexChannel = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        int indexCapacity = 0;
+        if (indexChannel.size() >= INDEX_HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+            indexChannel.read(header, 0);
+            indexCapacity = header.getInt(8);
+        }
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER_SIZE + (long) indexCapacity * SLOT_SIZE);
+        capacity = indexCapacity;
+        count = index.getInt(12);
+    }
+
+    /**
+     * Creates a new, empty index
+     *
+     * @throws IOException if the index cannot be written
+     */
+    private void createIndex() throws IOException {
+        if (indexChannel != null && indexChannel.isOpen()) {
+            indexChannel.close();
+        }
+        Files.deleteIfExists(indexPath);
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer newIndex = channel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER_SIZE + (long) INITIAL_CAPACITY * SLOT_SIZE);
+            writeIndexHeader(newIndex, INITIAL_CAPACITY, 0, 0);
+            newIndex.force();
+        }
+        mapIndex();
+    }
+
+    /**
+     * Checks if the index file exists, and if its header is valid
+     *
+     * @return true if the index can be used, false if it must be rebuilt
+     * @throws IOException if the index cannot be read
+     */
+    private boolean isIndexValid() throws IOException {
+        if (Files.exists(indexPath) == false || Files.size(indexPath) < INDEX_HEADER_SIZE) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            channel.read(header, 0);
+            int indexCapacity = header.getInt(8);
+            return header.getInt(0) == INDEX_MAGIC
+                    && header.getInt(4) == INDEX_VERSION
+                    && indexCapacity > 0
+                    && Integer.bitCount(indexCapacity) == 1
+                    && channel.size() == INDEX_HEADER_SIZE + (long) indexCapacity * SLOT_SIZE
+                    && header.getLong(16) <= Files.size(logPath);
+        }
+    }
+
+    /**
+     * Opens the log and the index, and brings the index up to date with the
+     * log
+     *
+     * @throws IOException if the log or the index cannot be opened
+     */
+    private void open() throws IOException {
+        log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        logSize = log.size();
+
+        long indexedLength = 0;
+        if (isIndexValid()) {
+            mapIndex();
+            indexedLength = index.getLong(16);
+        } else {
+            createIndex();
+        }
+
+        //Index all records that were written after the index was last updated
+        long offset = indexedLength;
+        while (offset < logSize) {
+            LogRecord record = readRecord(offset);
+            if (record == null) {
+                //A damaged or partially written record ends the log, as nothing after it can be trusted
+                log.truncate(offset);
+                logSize = offset;
+                break;
+            }
+            index(record.type, record.key, offset);
+            offset += record.length;
+        }
+        index.putLong(16, logSize);
+    }
+
+    /**
+     * Rewrites the log with only the current records, after which the index
+     * is rebuilt. If the current records exceed the given size, the oldest
+     * records are dropped.
+     *
+     * @param targetBytes the maximum size of the rewritten log
+     * @throws IOException if the log cannot be rewritten
+     */
+    private void compact(long targetBytes) throws IOException {
+        //Collect the offset and length of all current records
+        List<long[]> live = new ArrayList<>();
+        long liveBytes = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            int position = INDEX_HEADER_SIZE + slot * SLOT_SIZE;
+            if (index.getLong(position) == 0) {
+                continue;
+            }
+            long offset = index.getLong(position + 8);
+            LogRecord record = readRecord(offset);
+            if (record == null || record.isTombstone()) {
+                continue;
+            }
+            live.add(new long[]{offset, record.length});
+            liveBytes += record.length;
+        }
+        //Sorting on the offset keeps the records in the order in which they were written
+        live.sort((a, b) -> Long.compare(a[0], b[0]));
+
+        int first = 0;
+        while (liveBytes > targetBytes && first < live.size()) {
+            liveBytes -= live.get(first)[1];
+            first++;
+        }
+
+        Path temporary = logPath.resolveSibling(logPath.getFileName() + ".tmp");
+        Files.deleteIfExists(temporary);
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for (int i = first; i < live.size(); i++) {
+                long[] record = live.get(i);
+                long transferred = 0;
+                while (transferred < record[1]) {
+                    transferred += log.transferTo(record[0] + transferred, record[1] - transferred, channel);
+                }
+            }
+            channel.force(false);
+        }
+
+        log.close();
+        indexChannel.close();
+        Files.move(temporary, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        //The offsets changed, so the index is rebuilt from the new log
+        Files.deleteIfExists(indexPath);
+        open();
+    }
+}
@@ -0,0 +1,503 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.store;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import yaraifyapi.util.HashUtil;
+
+/**
+ * A persistent store for downloaded Yara rules, keyed by their YARAhub UUID.
+ * The rules themselves are content-addressed: each rule is stored as a file
+ * which is named after the SHA-256 hash of its content, meaning rules with an
+ * identical body are only stored once. An index maps each UUID to the hash of
+ * its rule, and to the time at which it was stored.<br>
+ * <br>
+ * Rules are written to a temporary file that is moved in place once it is
+ * complete, and the index is an append-only file in which later lines
+ * supersede earlier lines. A removal is recorded as a tombstone line, rather
+ * than by rewriting the index. The index is rewritten once it contains many
+ * superseded lines, at which point the rules that are no longer referenced
+ * are removed. By default, rules are verified against their hash when they
+ * are read, and damaged rules are removed.<br>
+ * <br>
+ * Published rules rarely change, but they can be updated by their author. A
+ * rule which was stored longer than the maximum age ago is therefore treated
+ * as absent, so that it is downloaded (and stored) again. All functions are
+ * thread safe.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class YaraifyRuleStore {
+
+    /**
+     * The hash of a stored rule, and the time at which it was stored
+     */
+    private static class StoredRule {
+
+        private final String sha256;
+        private final long storedAt;
+
+        StoredRule(String sha256, long storedAt) {
+            this.sha256 = sha256;
+            this.storedAt = storedAt;
+        }
+    }
+
+    /**
+     * The name of the index file
+     */
+    private static final String INDEX_FILE = "index.tsv";
+
+    /**
+     * The name of the folder that contains the rules
+     */
+    private static final String RULE_FOLDER = "rules";
+
+    /**
+     * The suffix of stored rules
+     */
+    private static final String RULE_SUFFIX = ".yar";
+
+    /**
+     * The suffix of rules which are being written
+     */
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /**
+     * The value in the hash column of the index which marks the UUID as
+     * removed
+     */
+    private static final String TOMBSTONE = "-";
+
+    /**
+     * The characters a UUID may consist of, which excludes the separators of
+     * the index
+     */
+    private static final Pattern UUID_PATTERN = Pattern.compile("[A-Za-z0-9_-]{1,128}");
+
+    private final Path indexFile;
+    private final Path ruleFolder;
+
+    /**
+     * The stored rule per UUID
+     */
+    private final Map<String, StoredRule> entries;
+
+    /**
+     * The number of UUIDs that refer to each stored rule, where the key is the
+     * hash of the rule
+     */
+    private final Map<String, Integer> references;
+
+    /**
+     * The number of lines in the index file
+     */
+    private long lineCount;
+
+    private volatile long maximumAgeMillis;
+    private volatile boolean verifyOnRead;
+
+    /**
+     * Opens the store in the given folder, or creates it if it does not exist
+     * yet. Left over temporary files from interrupted writes are removed. By
+     * default, rules are kept for a week.
+     *
+     * @param directory the folder to store the rules in
+     * @throws IOException if the folder cannot be created or read
+     */
+    public YaraifyRuleStore(Path directory) throws IOException {
+        this.indexFile = directory.resolve(INDEX_FILE);
+        this.ruleFolder = directory.resolve(RULE_FOLDER);
+        Files.createDirectories(ruleFolder);
+        this.entries = new HashMap<>();
+        this.references = new HashMap<>();
+        this.lineCount = 0;
+        this.maximumAgeMillis = 7 * 24 * 60 * 60 * 1000L;
+        this.verifyOnRead = true;
+        open();
+    }
+
+    /**
+     * Gets the rule with the given UUID from the store
+     *
+     * @param uuid the UUID of the rule
+     * @return the rule, or null if it is not stored, if it is older than the
+     * maximum age, or if the stored copy was damaged
+     * @throws IOException if the rule cannot be read
+     */
+    public String get(String uuid) throws IOException {
+        StoredRule entry;
+        synchronized (this) {
+            entry = entries.get(uuid);
+        }
+        if (entry == null || isExpired(entry)) {
+            return null;
+        }
+
+        byte[] data;
+        try {
+            data = Files.readAllBytes(resolve(entry.sha256));
+        } catch (NoSuchFileException e) {
+            synchronized (this) {
+                //The rule may have been replaced after the lookup, in which case the new entry is kept
+                if (entries.get(uuid) == entry) {
+                    remove(uuid);
+                }
+            }
+            return null;
+        }
+
+        if (verifyOnRead && entry.sha256.equals(HashUtil.sha256(data)) == false) {
+            synchronized (this) {
+                //Every UUID that refers to the damaged rule is affected
+                List<String> affected = new ArrayList<>();
+                for (Map.Entry<String, StoredRule> stored : entries.entrySet()) {
+                    if (stored.getValue().sha256.equals(entry.sha256)) {
+                        affected.add(stored.getKey());
+                    }
+                }
+                for (String affectedUuid : affected) {
+                    remove(affectedUuid);
+                }
+            }
+            return null;
+        }
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Checks if a rule with the given UUID is stored, and is not older than
+     * the maximum age
+     *
+     * @param uuid the UUID of the rule
+     * @return true if the rule is stored, false if not
+     */
+    public synchronized boolean contains(String uuid) {
+        StoredRule entry = entries.get(uuid);
+        return entry != null && isExpired(entry) == false;
+    }
+
+    /**
+     * Gets the SHA-256 hash of the stored rule with the given UUID, regardless
+     * of its age. This can be used to detect if a rule changed when it is
+     * downloaded again.
+     *
+     * @param uuid the UUID of the rule
+     * @return the lower case SHA-256 hash of the rule's content, or null if
+     * the rule is not stored
+     */
+    public synchronized String getSha256(String uuid) {
+        StoredRule entry = entries.get(uuid);
+        return entry == null ? null : entry.sha256;
+    }
+
+    /**
+     * Stores the given rule, replacing the rule that was stored for the given
+     * UUID (if any)
+     *
+     * @param uuid the UUID of the rule
+     * @param rule the rule
+     * @throws IOException if the UUID or the rule is null, if the UUID
+     * contains characters other than letters, digits, dashes, and underscores,
+     * or if the rule cannot be written
+     */
+    public synchronized void put(String uuid, String rule) throws IOException {
+        if (uuid == null || UUID_PATTERN.matcher(uuid).matches() == false) {
+            throw new IOException("The given UUID is not valid!");
+        }
+        if (rule == null) {
+            throw new IOException("The given rule is null!");
+        }
+        byte[] data = rule.getBytes(StandardCharsets.UTF_8);
+        String sha256 = HashUtil.sha256(data);
+
+        Path path = resolve(sha256);
+        if (Files.exists(path) == false) {
+            Path temporaryPath = Files.createTempFile(ruleFolder, sha256, TEMPORARY_SUFFIX);
+            try {
+                try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ByteBuffer buffer = ByteBuffer.wrap(data);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    channel.force(true);
+                }
+                Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporaryPath);
+            }
+        }
+
+        StoredRule entry = new StoredRule(sha256, System.currentTimeMillis());
+        append(uuid, entry);
+        release(entries.put(uuid, entry));
+        references.merge(sha256, 1, Integer::sum);
+        compactIfNeeded();
+    }
+
+    /**
+     * Removes the rule with the given UUID from the store, if it is stored.
+     * The rule itself is removed if no other UUID refers to it.
+     *
+     * @param uuid the UUID of the rule
+     * @throws IOException if the index cannot be written
+     */
+    public synchronized void remove(String uuid) throws IOException {
+        StoredRule entry = entries.get(uuid);
+        if (entry == null) {
+            return;
+        }
+        appendTombstone(uuid);
+        entries.remove(uuid);
+        release(entry);
+        if (references.containsKey(entry.sha256) == false) {
+            Files.deleteIfExists(resolve(entry.sha256));
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Removes all rules from the store
+     *
+     * @throws IOException if a rule cannot be removed
+     */
+    public synchronized void clear() throws IOException {
+        for (String sha256 : references.keySet()) {
+            Files.deleteIfExists(resolve(sha256));
+        }
+        entries.clear();
+        references.clear();
+        compact();
+    }
+
+    /**
+     * Gets the number of UUIDs of which a rule is stored, regardless of their
+     * age
+     *
+     * @return the number of stored UUIDs
+     */
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the number of distinct rules which are stored, which is lower than
+     * the number of UUIDs if several UUIDs share an identical rule
+     *
+     * @return the number of stored rules
+     */
+    public synchronized int getRuleCount() {
+        return references.size();
+    }
+
+    public long getMaximumAgeMillis() {
+        return maximumAgeMillis;
+    }
+
+    /**
+     * Sets the maximum age of a stored rule, after which it is treated as
+     * absent
+     *
+     * @param maximumAgeMillis the maximum age in milliseconds, or zero (or
+     * less) to keep rules indefinitely
+     */
+    public void setMaximumAgeMillis(long maximumAgeMillis) {
+        this.maximumAgeMillis = maximumAgeMillis;
+    }
+
+    public boolean isVerifyOnRead() {
+        return verifyOnRead;
+    }
+
+    /**
+     * Sets if rules are verified against their hash when they are read
+     *
+     * @param verifyOnRead true to verify rules when they are read, false to
+     * skip the verification
+     */
+    public void setVerifyOnRead(boolean verifyOnRead) {
+        this.verifyOnRead = verifyOnRead;
+    }
+
+    /**
+     * Checks if the given entry is older than the maximum age
+     *
+     * @param entry the entry to check
+     * @return true if the entry is expired, false if not
+     */
+    private boolean isExpired(StoredRule entry) {
+        long maximumAge = maximumAgeMillis;
+        return maximumAge > 0 && System.currentTimeMillis() - entry.storedAt > maximumAge;
+    }
+
+    /**
+     * Gets the path of the rule with the given hash
+     *
+     * @param sha256 the hash of the rule
+     * @return the path of the rule
+     */
+    private Path resolve(String sha256) {
+        return ruleFolder.resolve(sha256 + RULE_SUFFIX);
+    }
+
+    /**
+     * Decrements the number of references to the rule of the given entry. The
+     * rule itself is removed when the index is rewritten. The caller must hold
+     * the lock of this store.
+     *
+     * @param entry the entry which no longer refers to its rule, or null
+     */
+    private void release(StoredRule entry) {
+        if (entry == null) {
+            return;
+        }
+        references.computeIfPresent(entry.sha256, (sha256, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * Appends the given entry to the index. The caller must hold the lock of
+     * this store.
+     *
+     * @param uuid the UUID of the rule
+     * @param entry the entry to append
+     * @throws IOException if the index cannot be written
+     */
+    private void append(String uuid, StoredRule entry) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(uuid + "\t" + entry.sha256 + "\t" + entry.storedAt);
+            writer.newLine();
+        }
+        lineCount++;
+    }
+
+    /**
+     * Appends a tombstone for the given UUID to the index, which marks it as
+     * removed. The caller must hold the lock of this store.
+     *
+     * @param uuid the UUID of the removed rule
+     * @throws IOException if the index cannot be written
+     */
+    private void appendTombstone(String uuid) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(uuid + "\t" + TOMBSTONE);
+            writer.newLine();
+        }
+        lineCount++;
+    }
+
+    /**
+     * Rewrites the index once it contains more than twice as many lines as
+     * there are entries. The caller must hold the lock of this store.
+     *
+     * @throws IOException if the index cannot be written
+     */
+    private void compactIfNeeded() throws IOException {
+        if (lineCount > entries.size() * 2L + 16) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites the index with only the current entries, and removes the rules
+     * which are no longer referenced. The new index is written next to the old
+     * one, and then moved in place. The caller must hold the lock of this
+     * store.
+     *
+     * @throws IOException if the index cannot be written
+     */
+    private void compact() throws IOException {
+        Path temporary = indexFile.resolveSibling(INDEX_FILE + TEMPORARY_SUFFIX);
+        try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, StoredRule> entry : entries.entrySet()) {
+                writer.write(entry.getKey() + "\t" + entry.getValue().sha256 + "\t" + entry.getValue().storedAt);
+                writer.newLine();
+            }
+        }
+        Files.move(temporary, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lineCount = entries.size();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(ruleFolder)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(RULE_SUFFIX) && references.containsKey(name.substring(0, name.length() - RULE_SUFFIX.length())) == false) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the index, and removes left over temporary files. Entries of which
+     * a tombstone follows, or of which the rule is missing, are dropped.
+     *
+     * @throws IOException if the index or the folder cannot be read
+     */
+    private synchronized void open() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(ruleFolder)) {
+            for (Path file : files) {
+                if (file.getFileName().toString().endsWith(TEMPORARY_SUFFIX)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+
+        if (Files.exists(indexFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lineCount++;
+                    String[] parts = line.split("\t");
+                    if (parts.length == 2 && TOMBSTONE.equals(parts[1])) {
+                        entries.remove(parts[0]);
+                        continue;
+                    }
+                    //Ignore incomplete lines, which can be the result of an interrupted write
+                    if (parts.length != 3 || HashUtil.isSha256(parts[1]) == false) {
+                        continue;
+                    }
+                    try {
+                        entries.put(parts[0], new StoredRule(parts[1], Long.parseLong(parts[2])));
+                    } catch (NumberFormatException e) {
+                        //Treated as an incomplete line
+                    }
+                }
+            }
+        }
+
+        entries.values().removeIf(entry -> Files.exists(resolve(entry.sha256)) == false);
+        for (StoredRule entry : entries.values()) {
+            references.merge(entry.sha256, 1, Integer::sum);
+        }
+        compactIfNeeded();
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import yaraifyapi.util.HashUtil;
+
+/**
+ * A persistent, content-addressed store for samples, keyed by their SHA-256
+ * hash. Each sample is stored as a single file, which is named after its hash.
+ * To avoid folders with a large number of files, the files are sharded over
+ * two levels of sub folders, which are based on the first four characters of
+ * the hash (i.e. <code>ab/cd/abcd...</code>).<br>
+ * <br>
+ * Each sample is verified against the given hash before it is stored, and
+ * written to a temporary file that is moved in place once it is complete.
+ * Readers therefore never observe a partially written sample. By default,
+ * samples are verified again when they are read, and damaged samples are
+ * removed.<br>
+ * <br>
+ * If a maximum size is given, the least recently used samples are removed
+ * once the total size of the stored samples exceeds it. The time of use is
+ * kept as the modification time of each file, meaning the order is retained
+ * when the store is opened again.<br>
+ * <br>
+ * All functions are thread safe.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class YaraifySampleStore {
+
+    /**
+     * The suffix of samples which are being written
+     */
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final long maximumSizeBytes;
+
+    /**
+     * The size of each stored sample, in order of use, starting with the least
+     * recently used sample
+     */
+    private final LinkedHashMap<String, Long> entries;
+
+    private long size;
+    private volatile boolean verifyOnRead;
+
+    /**
+     * Opens the store in the given folder, or creates it if it does not exist
+     * yet. Left over temporary files from interrupted writes are removed.
+     *
+     * @param directory the folder to store the samples in
+     * @param maximumSizeBytes the maximum total size of the stored samples in
+     * bytes, or zero (or less) for no maximum
+     * @throws IOException if the folder cannot be created or read
+     */
+    public YaraifySampleStore(Path directory, long maximumSizeBytes) throws IOException {
+        Files.createDirectories(directory);
+        this.directory = directory;
+        this.maximumSizeBytes = maximumSizeBytes;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.verifyOnRead = true;
+        open();
+    }
+
+    /**
+     * Gets the sample with the given hash from the store
+     *
+     * @param sha256 the SHA-256 hash of the sample
+     * @return the sample, or null if it is not stored (or if the stored copy
+     * was damaged)
+     * @throws IOException if the sample cannot be read
+     */
+    public byte[] get(String sha256) throws IOException {
+        String key = normalise(sha256);
+        if (key == null) {
+            return null;
+        }
+        synchronized (this) {
+            if (entries.get(key) == null) {
+                return null;
+            }
+        }
+
+        Path path = resolve(key);
+        byte[] data;
+        try {
+            data = Files.readAllBytes(path);
+        } catch (NoSuchFileException e) {
+            //The sample was evicted or removed after the lookup
+            synchronized (this) {
+                forget(key);
+            }
+            return null;
+        }
+
+        if (verifyOnRead && key.equals(HashUtil.sha256(data)) == false) {
+            remove(key);
+            return null;
+        }
+
+        try {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            //The order of use is only lost when the store is opened again, which is harmless
+        }
+        return data;
+    }
+
+    /**
+     * Checks if the sample with the given hash is stored. This does not count
+     * as a use of the sample.
+     *
+     * @param sha256 the SHA-256 hash of the sample
+     * @return true if the sample is stored, false if not
+     */
+    public synchronized boolean contains(String sha256) {
+        String key = normalise(sha256);
+        return key != null && entries.containsKey(key);
+    }
+
+    /**
+     * Stores the given sample. Samples which are larger than the maximum size
+     * of the store are not stored.
+     *
+     * @param sha256 the SHA-256 hash of the sample
+     * @param data the sample
+     * @return true if the sample is stored, false if it is too large
+     * @throws IOException if the hash is not a valid SHA-256 hash, if the
+     * sample does not match the given hash, or if the sample cannot be written
+     */
+    public boolean put(String sha256, byte[] data) throws IOException {
+        String key = normalise(sha256);
+        if (key == null) {
+            throw new IOException("The given hash is not a valid SHA-256 hash!");
+        }
+        if (key.equals(HashUtil.sha256(data)) == false) {
+            throw new IOException("The given sample does not match its SHA-256 hash!");
+        }
+        if (maximumSizeBytes > 0 && data.length > maximumSizeBytes) {
+            return false;
+        }
+
+        Path path = resolve(key);
+        Files.createDirectories(path.getParent());
+        Path temporaryPath = Files.createTempFile(path.getParent(), key, TEMPORARY_SUFFIX);
+        try {
+            try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporaryPath);
+        }
+
+        synchronized (this) {
+            forget(key);
+            entries.put(key, (long) data.length);
+            size += data.length;
+            evict();
+        }
+        return true;
+    }
+
+    /**
+     * Removes the sample with the given hash from the store, if it is stored
+     *
+     * @param sha256 the SHA-256 hash of the sample
+     * @throws IOException if the sample cannot be removed
+     */
+    public synchronized void remove(String sha256) throws IOException {
+        String key = normalise(sha256);
+        if (key == null) {
+            return;
+        }
+        forget(key);
+        Files.deleteIfExists(resolve(key));
+    }
+
+    /**
+     * Removes all samples from the store
+     *
+     * @throws IOException if a sample cannot be removed
+     */
+    public synchronized void clear() throws IOException {
+        List<String> keys = new ArrayList<>(entries.keySet());
+        for (String key : keys) {
+            remove(key);
+        }
+    }
+
+    /**
+     * Gets the total size of the stored samples
+     *
+     * @return the total size in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the number of stored samples
+     *
+     * @return the number of stored samples
+     */
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the maximum total size of the stored samples
+     *
+     * @return the maximum size in bytes, or zero (or less) if there is no
+     * maximum
+     */
+    public long getMaximumSizeBytes() {
+        return maximumSizeBytes;
+    }
+
+    /**
+     * Checks if samples are verified against their hash when they are read
+     *
+     * @return true if samples are verified when they are read, false if not
+     */
+    public boolean isVerifyOnRead() {
+        return verifyOnRead;
+    }
+
+    /**
+     * Sets if samples are verified against their hash when they are read.
+     * Samples are always verified before they are stored, but verifying them
+     * when they are read as well detects damage to the files on the disk.
+     *
+     * @param verifyOnRead true to verify samples when they are read, false to
+     * skip the verification
+     */
+    public void setVerifyOnRead(boolean verifyOnRead) {
+        this.verifyOnRead = verifyOnRead;
+    }
+
+    /**
+     * Converts the given hash into the key which is used in the store
+     *
+     * @param sha256 the hash to convert
+     * @return the lower case hash, or null if the hash is not a valid SHA-256
+     * hash
+     */
+    private String normalise(String sha256) {
+        if (HashUtil.isSha256(sha256) == false) {
+            return null;
+        }
+        return sha256.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Gets the path of the sample with the given key
+     *
+     * @param key the key of the sample
+     * @return the path of the sample
+     */
+    private Path resolve(String key) {
+        return directory.resolve(key.substring(0, 2)).resolve(key.substring(2, 4)).resolve(key);
+    }
+
+    /**
+     * Removes the given key from the administration of the store, without
+     * removing the file. The caller must hold the lock of this store.
+     *
+     * @param key the key to remove
+     */
+    private void forget(String key) {
+        Long previous = entries.remove(key);
+        if (previous != null) {
+            size -= previous;
+        }
+    }
+
+    /**
+     * Removes the least recently used samples until the total size is within
+     * the maximum size. The caller must hold the lock of this store.
+     *
+     * @throws IOException if a sample cannot be removed
+     */
+    private void evict() throws IOException {
+        if (maximumSizeBytes <= 0) {
+            return;
+        }
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (size > maximumSizeBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            iterator.remove();
+            size -= entry.getValue();
+            Files.deleteIfExists(resolve(entry.getKey()));
+        }
+    }
+
+    /**
+     * Reads the stored samples from the disk, in order of their modification
+     * time, and removes left over temporary files
+     *
+     * @throws IOException if the folder cannot be read
+     */
+    private void open() throws IOException {
+        List<Path> samples = new ArrayList<>();
+        List<FileTime> times = new ArrayList<>();
+        try (DirectoryStream<Path> firstLevel = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            for (Path first : firstLevel) {
+                try (DirectoryStream<Path> secondLevel = Files.newDirectoryStream(first, Files::isDirectory)) {
+                    for (Path second : secondLevel) {
+                        try (DirectoryStream<Path> files = Files.newDirectoryStream(second)) {
+                            for (Path file : files) {
+                                String name = file.getFileName().toString();
+                                if (name.endsWith(TEMPORARY_SUFFIX)) {
+                                    Files.deleteIfExists(file);
+                                } else if (HashUtil.isSha256(name) && Files.isRegularFile(file)) {
+                                    samples.add(file);
+                                    times.add(Files.getLastModifiedTime(file));
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        //Sort the samples by their time of use, so the least recently used sample is inserted first
+        Integer[] order = new Integer[samples.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> times.get(a).compareTo(times.get(b)));
+
+        synchronized (this) {
+            for (Integer i : order) {
+                Path file = samples.get(i);
+                long length = Files.size(file);
+                entries.put(file.getFileName().toString().toLowerCase(Locale.ROOT), length);
+                size += length;
+            }
+            evict();
+        }
+    }
+}
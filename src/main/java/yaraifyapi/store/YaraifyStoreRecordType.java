@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.store;
+
+/**
+ * The types of records in the metadata store, each of which has its own key
+ * space
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public enum YaraifyStoreRecordType {
+    /**
+     * The metadata of a sample, keyed by its SHA-256 hash
+     */
+    METADATA(1),
+    /**
+     * The result of a task, keyed by the task ID
+     */
+    TASK_RESULT(2),
+    /**
+     * The result of a file hash lookup, keyed by the SHA-256 hash
+     */
+    FILE_HASH_RESULT(3);
+
+    /**
+     * The value that is written in the log to identify this type
+     */
+    private final byte id;
+
+    YaraifyStoreRecordType(int id) {
+        this.id = (byte) id;
+    }
+
+    public byte getId() {
+        return id;
+    }
+
+    /**
+     * Gets the type that corresponds with the given identifier
+     *
+     * @param id the identifier as written in the log
+     * @return the matching type, or null if there is none
+     */
+    public static YaraifyStoreRecordType fromId(byte id) {
+        for (YaraifyStoreRecordType type : values()) {
+            if (type.id == id) {
+                return type;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.task;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import yaraifyapi.model.YaraifyIdentifierResult;
+import yaraifyapi.model.YaraifyTaskResult;
+
+/**
+ * The outcome of a single harvest of an identifier, which only contains the
+ * tasks that changed since the previous harvest
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class IdentifierHarvest {
+
+    private final String identifier;
+    private final List<YaraifyIdentifierResult> changedTasks;
+    private final Map<String, YaraifyTaskResult> results;
+    private final Map<String, IOException> failures;
+
+    public IdentifierHarvest(String identifier, List<YaraifyIdentifierResult> changedTasks, Map<String, YaraifyTaskResult> results, Map<String, IOException> failures) {
+        this.identifier = identifier;
+        this.changedTasks = changedTasks;
+        this.results = results;
+        this.failures = failures;
+    }
+
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    /**
+     * Gets the tasks which are new, or of which the status changed, since the
+     * previous harvest
+     *
+     * @return the changed tasks
+     */
+    public List<YaraifyIdentifierResult> getChangedTasks() {
+        return changedTasks;
+    }
+
+    /**
+     * Gets the full results of the tasks which were processed since the
+     * previous harvest, where the key is the task ID
+     *
+     * @return the results of the newly processed tasks
+     */
+    public Map<String, YaraifyTaskResult> getResults() {
+        return results;
+    }
+
+    /**
+     * Gets the exceptions that occurred when fetching the results of newly
+     * processed tasks, where the key is the task ID. These tasks are not
+     * recorded in the watermark, and are included again in the next harvest.
+     *
+     * @return the failed fetches
+     */
+    public Map<String, IOException> getFailures() {
+        return failures;
+    }
+}
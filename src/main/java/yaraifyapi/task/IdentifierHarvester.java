@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.task;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import yaraifyapi.YaraifyApi;
+import yaraifyapi.model.YaraifyIdentifierFilter;
+import yaraifyapi.model.YaraifyIdentifierResult;
+import yaraifyapi.model.YaraifyTaskResult;
+
+/**
+ * Harvests the tasks of identifiers incrementally. The status of every task
+ * that was seen is kept as a watermark per identifier, which is persisted in a
+ * file. Each harvest only returns the tasks that are new or of which the
+ * status changed, and only fetches the full results of tasks that were
+ * processed since the previous harvest. The results are fetched in parallel.
+ * <br>
+ * <br>
+ * The watermark file is an append-only log with one line per status change,
+ * which is rewritten once it contains many superseded lines. This class is
+ * thread safe, but a single identifier should not be harvested concurrently.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class IdentifierHarvester {
+
+    /**
+     * The status that Yaraify uses for processed tasks
+     */
+    private static final String PROCESSED = "processed";
+
+    /**
+     * The API instance to make the requests with
+     */
+    private final YaraifyApi api;
+
+    /**
+     * The file in which the watermarks are persisted
+     */
+    private final Path watermarkFile;
+
+    /**
+     * The known status per task ID, per identifier
+     */
+    private final Map<String, Map<String, String>> watermarks;
+
+    /**
+     * The threads that fetch the results of newly processed tasks
+     */
+    private final ExecutorService fetchers;
+
+    /**
+     * The number of lines in the watermark file
+     */
+    private long lineCount;
+
+    /**
+     * Creates a harvester, and loads the watermarks from the given file if it
+     * exists
+     *
+     * @param api the API instance to make the requests with
+     * @param watermarkFile the file to persist the watermarks in
+     * @param fetchThreads the maximum number of results that are fetched
+     * concurrently
+     * @throws IOException if the watermark file exists but cannot be read
+     */
+    public IdentifierHarvester(YaraifyApi api, Path watermarkFile, int fetchThreads) throws IOException {
+        this.api = api;
+        this.watermarkFile = watermarkFile;
+        this.watermarks = new ConcurrentHashMap<>();
+        this.lineCount = 0;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.fetchers = Executors.newFixedThreadPool(Math.max(1, fetchThreads), runnable -> {
+            Thread thread = new Thread(runnable, "yaraify-harvester-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        load();
+    }
+
+    /**
+     * Harvests the given identifier. The returned harvest contains the tasks
+     * which changed since the previous harvest, and the results of the tasks
+     * which were processed since then. The watermark is updated and persisted
+     * before this function returns.
+     *
+     * @param identifier the identifier to harvest
+     * @return the changes since the previous harvest
+     * @throws IOException if the identifier cannot be queried, or if the
+     * watermark cannot be persisted
+     * @throws InterruptedException if the calling thread is interrupted while
+     * waiting for the results to be fetched
+     */
+    public IdentifierHarvest harvest(String identifier) throws IOException, InterruptedException {
+        if (identifier == null || identifier.isBlank()) {
+            throw new IOException("The given identifier is null or empty!");
+        }
+        Map<String, String> known = watermarks.computeIfAbsent(identifier, key -> new ConcurrentHashMap<>());
+
+        List<YaraifyIdentifierResult> changed = api.queryIdentifier(identifier, YaraifyIdentifierFilter.ALL, known);
+
+        Map<String, Future<YaraifyTaskResult>> fetches = new LinkedHashMap<>();
+        for (YaraifyIdentifierResult task : changed) {
+            if (PROCESSED.equalsIgnoreCase(task.getTaskStatus())) {
+                fetches.put(task.getTaskId(), fetchers.submit(() -> api.queryTaskId(task.getTaskId())));
+            }
+        }
+
+        Map<String, YaraifyTaskResult> results = new HashMap<>();
+        Map<String, IOException> failures = new HashMap<>();
+        for (Map.Entry<String, Future<YaraifyTaskResult>> entry : fetches.entrySet()) {
+            try {
+                results.put(entry.getKey(), entry.getValue().get());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                failures.put(entry.getKey(), cause instanceof IOException ? (IOException) cause : new IOException(cause));
+            }
+        }
+
+        //Only advance the watermark for tasks which were handled completely, failed fetches are retried next time
+        Map<String, String> updates = new LinkedHashMap<>();
+        for (YaraifyIdentifierResult task : changed) {
+            if (failures.containsKey(task.getTaskId()) == false) {
+                updates.put(task.getTaskId(), task.getTaskStatus());
+            }
+        }
+        persist(identifier, updates);
+        known.putAll(updates);
+
+        return new IdentifierHarvest(identifier, changed, results, failures);
+    }
+
+    /**
+     * Gets the number of tasks that are recorded in the watermark of the given
+     * identifier
+     *
+     * @param identifier the identifier to check
+     * @return the number of known tasks
+     */
+    public int getKnownTaskCount(String identifier) {
+        Map<String, String> known = watermarks.get(identifier);
+        return known == null ? 0 : known.size();
+    }
+
+    /**
+     * Removes the watermark of the given identifier, meaning the next harvest
+     * returns all of its tasks again
+     *
+     * @param identifier the identifier to reset
+     * @throws IOException if the watermark file cannot be rewritten
+     */
+    public synchronized void reset(String identifier) throws IOException {
+        watermarks.remove(identifier);
+        compact();
+    }
+
+    /**
+     * Stops the threads that fetch the results
+     */
+    public void shutdown() {
+        fetchers.shutdownNow();
+    }
+
+    /**
+     * Loads the watermarks from the watermark file, if it exists. Later lines
+     * supersede earlier lines for the same task.
+     *
+     * @throws IOException if the file cannot be read
+     */
+    private void load() throws IOException {
+        if (Files.exists(watermarkFile) == false) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(watermarkFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineCount++;
+                String[] parts = line.split("\t");
+                //Ignore incomplete lines, which can be the result of an interrupted write
+                if (parts.length != 3) {
+                    continue;
+                }
+                watermarks.computeIfAbsent(parts[0], key -> new ConcurrentHashMap<>()).put(parts[1], parts[2]);
+            }
+        }
+    }
+
+    /**
+     * Appends the given status changes to the watermark file, and rewrites the
+     * file if it contains more than twice as many lines as there are known
+     * tasks
+     *
+     * @param identifier the identifier the changes belong to
+     * @param updates the new status per task ID
+     * @throws IOException if the file cannot be written
+     */
+    private synchronized void persist(String identifier, Map<String, String> updates) throws IOException {
+        if (updates.isEmpty()) {
+            return;
+        }
+        if (watermarkFile.getParent() != null) {
+            Files.createDirectories(watermarkFile.getParent());
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(watermarkFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (Map.Entry<String, String> entry : updates.entrySet()) {
+                writer.write(identifier + "\t" + entry.getKey() + "\t" + entry.getValue());
+                writer.newLine();
+                lineCount++;
+            }
+        }
+
+        long knownCount = updates.size();
+        for (Map<String, String> known : watermarks.values()) {
+            knownCount += known.size();
+        }
+        if (lineCount > knownCount * 2) {
+            watermarks.get(identifier).putAll(updates);
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites the watermark file with only the current status of each task.
+     * The new file is written next to the old one, and then moved in place.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    private synchronized void compact() throws IOException {
+        Path temporary = watermarkFile.resolveSibling(watermarkFile.getFileName() + ".tmp");
+        long lines = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Map<String, String>> identifier : new ArrayList<>(watermarks.entrySet())) {
+                for (Map.Entry<String, String> entry : identifier.getValue().entrySet()) {
+                    writer.write(identifier.getKey() + "\t" + entry.getKey() + "\t" + entry.getValue());
+                    writer.newLine();
+                    lines++;
+                }
+            }
+        }
+        Files.move(temporary, watermarkFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lineCount = lines;
+    }
+}
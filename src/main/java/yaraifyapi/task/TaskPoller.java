@@ -0,0 +1,446 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.task;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import yaraifyapi.YaraifyApi;
+import yaraifyapi.model.YaraifyIdentifierFilter;
+import yaraifyapi.model.YaraifyIdentifierResult;
+import yaraifyapi.model.YaraifyTaskResult;
+
+/**
+ * Tracks pending tasks and polls Yaraify until their results are available.
+ * Rather than polling each task at a fixed rate, the poller estimates how long
+ * tasks take to be processed, based on the completion times it observed. The
+ * first poll of a task is scheduled around the estimated completion time, and
+ * every unsuccessful poll increases the interval of that task, up until the
+ * maximum interval.<br>
+ * <br>
+ * If an identifier is given, all uploads are expected to be bound to it. In
+ * that case, a single request to list the processed tasks of the identifier
+ * is made per poll round, and the results are only requested for the tasks
+ * that are processed. Without an identifier, the results of each due task are
+ * requested individually.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class TaskPoller {
+
+    /**
+     * A task which has not been completed yet
+     */
+    private static class PendingTask {
+
+        private final String taskId;
+        private final CompletableFuture<YaraifyTaskResult> future;
+        private final long submittedAt;
+        private volatile long nextPollAt;
+        private volatile long interval;
+        private volatile boolean fetching;
+        private volatile int failures;
+
+        PendingTask(String taskId, long submittedAt, long firstPollAt, long interval) {
+            this.taskId = taskId;
+            this.future = new CompletableFuture<>();
+            this.submittedAt = submittedAt;
+            this.nextPollAt = firstPollAt;
+            this.interval = interval;
+            this.fetching = false;
+            this.failures = 0;
+        }
+    }
+
+    /**
+     * The weight of a new observation in the estimated completion time
+     */
+    private static final double ESTIMATE_WEIGHT = 0.2;
+
+    /**
+     * The API instance to make the requests with
+     */
+    private final YaraifyApi api;
+
+    /**
+     * The identifier to which all uploads are bound, or null if there is none
+     */
+    private final String identifier;
+
+    /**
+     * All tasks which have not been completed yet, where the key is the task
+     * ID
+     */
+    private final Map<String, PendingTask> pending;
+
+    /**
+     * The thread that determines which tasks are due, once per tick
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * The threads that request the results of tasks
+     */
+    private final ExecutorService fetchers;
+
+    /**
+     * The estimated time it takes to process a task, in milliseconds
+     */
+    private volatile double estimatedCompletionMillis;
+
+    private volatile long minimumIntervalMillis;
+    private volatile long maximumIntervalMillis;
+    private volatile double backoffFactor;
+    private volatile long timeoutMillis;
+    private volatile int maximumFailures;
+
+    /**
+     * The number of requests that were made to Yaraify
+     */
+    private final AtomicLong requestCount;
+
+    /**
+     * Creates a poller, which starts polling immediately. By default, tasks
+     * are expected to take 30 seconds, the interval between polls of a single
+     * task is between 5 seconds and 5 minutes, tasks time out after an hour,
+     * and tasks fail after 3 consecutive failed requests.
+     *
+     * @param api the API instance to make the requests with
+     * @param identifier the identifier to which all uploads are bound, or null
+     * if the uploads are not bound to a single identifier
+     * @param fetchThreads the maximum number of results that are requested
+     * concurrently
+     */
+    public TaskPoller(YaraifyApi api, String identifier, int fetchThreads) {
+        this.api = api;
+        this.identifier = identifier;
+        this.pending = new ConcurrentHashMap<>();
+        this.estimatedCompletionMillis = 30_000;
+        this.minimumIntervalMillis = 5_000;
+        this.maximumIntervalMillis = 300_000;
+        this.backoffFactor = 1.5;
+        this.timeoutMillis = 3_600_000;
+        this.maximumFailures = 3;
+        this.requestCount = new AtomicLong();
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "yaraify-task-poller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger threadCount = new AtomicInteger();
+        this.fetchers = Executors.newFixedThreadPool(Math.max(1, fetchThreads), runnable -> {
+            Thread thread = new Thread(runnable, "yaraify-task-fetcher-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::tick, 250, 250, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts tracking the given task. The returned future is completed with
+     * the results once the task has been processed, or completed
+     * exceptionally if the task times out or its results cannot be requested.
+     * Requesting the same task more than
+     * once returns the same future.
+     *
+     * @param taskId the ID of the task, as returned by an upload
+     * @return a future which is completed with the task's results
+     */
+    public CompletableFuture<YaraifyTaskResult> await(String taskId) {
+        if (taskId == null || taskId.isEmpty()) {
+            CompletableFuture<YaraifyTaskResult> future = new CompletableFuture<>();
+            future.completeExceptionally(new IOException("The given task ID is null or empty!"));
+            return future;
+        }
+        long now = System.currentTimeMillis();
+        long estimate = (long) estimatedCompletionMillis;
+        PendingTask task = pending.computeIfAbsent(taskId, id -> new PendingTask(id, now, now + Math.max(minimumIntervalMillis, estimate), initialInterval()));
+        return task.future;
+    }
+
+    /**
+     * Stops tracking the given task, and cancels its future
+     *
+     * @param taskId the ID of the task to stop tracking
+     */
+    public void cancel(String taskId) {
+        PendingTask task = pending.remove(taskId);
+        if (task != null) {
+            task.future.cancel(false);
+        }
+    }
+
+    /**
+     * Gets the number of tasks that have not been completed yet
+     *
+     * @return the number of pending tasks
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Gets the number of requests that were made to Yaraify by this poller
+     *
+     * @return the number of requests
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Gets the current estimate of the time it takes to process a task, based
+     * on the observed completion times
+     *
+     * @return the estimated completion time in milliseconds
+     */
+    public long getEstimatedCompletionMillis() {
+        return (long) estimatedCompletionMillis;
+    }
+
+    /**
+     * Sets the initial estimate of the time it takes to process a task, which
+     * is refined with every observed completion
+     *
+     * @param estimatedCompletionMillis the estimated completion time in
+     * milliseconds
+     */
+    public void setEstimatedCompletionMillis(long estimatedCompletionMillis) {
+        this.estimatedCompletionMillis = estimatedCompletionMillis;
+    }
+
+    public long getMinimumIntervalMillis() {
+        return minimumIntervalMillis;
+    }
+
+    public void setMinimumIntervalMillis(long minimumIntervalMillis) {
+        this.minimumIntervalMillis = minimumIntervalMillis;
+    }
+
+    public long getMaximumIntervalMillis() {
+        return maximumIntervalMillis;
+    }
+
+    public void setMaximumIntervalMillis(long maximumIntervalMillis) {
+        this.maximumIntervalMillis = maximumIntervalMillis;
+    }
+
+    /**
+     * Gets the factor with which the interval of a task is multiplied after
+     * each unsuccessful poll
+     *
+     * @return the backoff factor
+     */
+    public double getBackoffFactor() {
+        return backoffFactor;
+    }
+
+    public void setBackoffFactor(double backoffFactor) {
+        this.backoffFactor = backoffFactor;
+    }
+
+    /**
+     * Gets the maximum time a task can be pending, after which its future is
+     * completed exceptionally
+     *
+     * @return the timeout in milliseconds
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Gets the number of consecutive failed requests for the results of a
+     * task, other than the task not being processed yet, after which its
+     * future is completed exceptionally
+     *
+     * @return the maximum number of consecutive failures
+     */
+    public int getMaximumFailures() {
+        return maximumFailures;
+    }
+
+    public void setMaximumFailures(int maximumFailures) {
+        this.maximumFailures = maximumFailures;
+    }
+
+    /**
+     * Stops polling. All pending futures are cancelled.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+        fetchers.shutdownNow();
+        for (PendingTask task : pending.values()) {
+            task.future.cancel(false);
+        }
+        pending.clear();
+    }
+
+    /**
+     * Gets the interval to wait after the first unsuccessful poll, which is a
+     * quarter of the estimated completion time, within the configured bounds
+     *
+     * @return the initial interval in milliseconds
+     */
+    private long initialInterval() {
+        long interval = (long) (estimatedCompletionMillis / 4);
+        return Math.min(maximumIntervalMillis, Math.max(minimumIntervalMillis, interval));
+    }
+
+    /**
+     * Determines which tasks are due, and polls them. Runs on the scheduler
+     * thread.
+     */
+    private void tick() {
+        try {
+            long now = System.currentTimeMillis();
+            List<PendingTask> due = new ArrayList<>();
+            for (PendingTask task : pending.values()) {
+                if (task.fetching) {
+                    continue;
+                }
+                if (now - task.submittedAt > timeoutMillis) {
+                    pending.remove(task.taskId);
+                    task.future.completeExceptionally(new IOException("Task " + task.taskId + " was not processed within " + timeoutMillis + " milliseconds!"));
+                } else if (task.nextPollAt <= now) {
+                    due.add(task);
+                }
+            }
+
+            if (due.isEmpty()) {
+                return;
+            }
+
+            if (identifier == null) {
+                //Without an identifier, there is no way to check the status of multiple tasks at once
+                for (PendingTask task : due) {
+                    fetch(task);
+                }
+                return;
+            }
+
+            Set<String> processed = new HashSet<>();
+            try {
+                requestCount.incrementAndGet();
+                for (YaraifyIdentifierResult result : api.queryIdentifier(identifier, YaraifyIdentifierFilter.PROCESSED)) {
+                    processed.add(result.getTaskId());
+                }
+            } catch (IOException e) {
+                //The status is unknown, so all due tasks are rescheduled
+                for (PendingTask task : due) {
+                    reschedule(task, now);
+                }
+                return;
+            }
+
+            //Tasks which are processed, but not due yet, are fetched right away as well
+            for (PendingTask task : pending.values()) {
+                if (task.fetching == false && processed.contains(task.taskId)) {
+                    fetch(task);
+                }
+            }
+            for (PendingTask task : due) {
+                if (processed.contains(task.taskId) == false) {
+                    reschedule(task, now);
+                }
+            }
+        } catch (RuntimeException e) {
+            //An exception would cancel all future ticks, so the round is skipped instead
+        }
+    }
+
+    /**
+     * Requests the results of the given task on one of the fetcher threads.
+     * If the task is not processed yet, it is rescheduled. Any other failure
+     * is retried as well, until the maximum number of consecutive failures is
+     * reached, after which the task's future is completed exceptionally.
+     *
+     * @param task the task to fetch
+     */
+    private void fetch(PendingTask task) {
+        task.fetching = true;
+        fetchers.execute(() -> {
+            YaraifyTaskResult result = null;
+            Exception failure = null;
+            try {
+                requestCount.incrementAndGet();
+                result = api.queryTaskId(task.taskId);
+            } catch (IOException e) {
+                //A queued task results in "no_results", which is not a failure
+                if ("no_results".equals(e.getMessage()) == false) {
+                    failure = e;
+                }
+            } catch (RuntimeException e) {
+                //An unparsable response would otherwise leave the task marked as being fetched forever
+                failure = e;
+            }
+
+            long now = System.currentTimeMillis();
+            if (result != null) {
+                pending.remove(task.taskId);
+                observe(now - task.submittedAt);
+                task.future.complete(result);
+            } else if (failure != null && ++task.failures >= maximumFailures) {
+                pending.remove(task.taskId);
+                task.future.completeExceptionally(failure);
+            } else {
+                if (failure == null) {
+                    task.failures = 0;
+                }
+                reschedule(task, now);
+            }
+            task.fetching = false;
+        });
+    }
+
+    /**
+     * Schedules the next poll of the given task, and increases its interval
+     *
+     * @param task the task to reschedule
+     * @param now the current time in milliseconds
+     */
+    private void reschedule(PendingTask task, long now) {
+        //A task is never rescheduled concurrently, as the tick skips tasks which are being fetched
+        task.nextPollAt = now + task.interval;
+        task.interval = Math.min(maximumIntervalMillis, Math.max(minimumIntervalMillis, (long) (task.interval * backoffFactor)));
+    }
+
+    /**
+     * Refines the estimated completion time with an observed completion time
+     *
+     * @param completionMillis the time it took to complete a task
+     */
+    private synchronized void observe(long completionMillis) {
+        estimatedCompletionMillis = ESTIMATE_WEIGHT * completionMillis + (1 - ESTIMATE_WEIGHT) * estimatedCompletionMillis;
+    }
+}
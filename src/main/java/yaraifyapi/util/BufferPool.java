@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of fixed size I/O buffers, which are reused instead of allocating
+ * new buffers for every response and every archive extraction. Heap buffers
+ * are kept per thread, meaning they are acquired and released without any
+ * synchronisation. Direct buffers, which are more expensive to allocate, are
+ * kept in a number of stripes, each of which is guarded by its own lock, and
+ * is selected based on the current thread.<br>
+ * <br>
+ * A buffer is acquired, used, and then released again. A buffer which is not
+ * released is simply collected, after which a new buffer is allocated for the
+ * next acquisition. The pool also creates size hinted output sinks, which
+ * avoid growing and copying the collected data if the size is known in
+ * advance.<br>
+ * <br>
+ * All functions are thread safe.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class BufferPool {
+
+    /**
+     * The size of the buffers of the shared pool
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 128 * 1024;
+
+    /**
+     * The pool which is shared by the connector and the ZIP extraction
+     */
+    private static final BufferPool SHARED = new BufferPool(DEFAULT_BUFFER_SIZE, 8, 4);
+
+    private final int bufferSize;
+    private final int maximumPerStripe;
+    private final ThreadLocal<byte[]> heapBuffers;
+    private final ArrayDeque<ByteBuffer>[] directStripes;
+    private final LongAdder heapAcquisitions;
+    private final LongAdder heapAllocations;
+    private final LongAdder directAcquisitions;
+    private final LongAdder directAllocations;
+    private final LongAdder sizedSinks;
+    private final LongAdder exactlySizedSinks;
+
+    /**
+     * Creates a buffer pool
+     *
+     * @param bufferSize the size of each buffer in bytes
+     * @param stripeCount the number of stripes for direct buffers, which is
+     * rounded up to a power of two
+     * @param maximumPerStripe the maximum number of idle direct buffers that
+     * are kept per stripe
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int bufferSize, int stripeCount, int maximumPerStripe) {
+        this.bufferSize = Math.max(1024, bufferSize);
+        this.maximumPerStripe = Math.max(1, maximumPerStripe);
+        this.heapBuffers = new ThreadLocal<>();
+        int stripes = Integer.highestOneBit(Math.max(1, stripeCount) * 2 - 1);
+        this.directStripes = new ArrayDeque[stripes];
+        for (int i = 0; i < stripes; i++) {
+            directStripes[i] = new ArrayDeque<>();
+        }
+        this.heapAcquisitions = new LongAdder();
+        this.heapAllocations = new LongAdder();
+        this.directAcquisitions = new LongAdder();
+        this.directAllocations = new LongAdder();
+        this.sizedSinks = new LongAdder();
+        this.exactlySizedSinks = new LongAdder();
+    }
+
+    /**
+     * Gets the pool which is shared by the connector and the ZIP extraction
+     *
+     * @return the shared pool
+     */
+    public static BufferPool getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Acquires a heap buffer, which is reused from the current thread if
+     * possible
+     *
+     * @return a heap buffer of the pool's buffer size
+     */
+    public byte[] acquireHeap() {
+        heapAcquisitions.increment();
+        byte[] buffer = heapBuffers.get();
+        if (buffer != null) {
+            //Take the buffer out of the slot, so a nested acquisition on the same thread gets its own buffer
+            heapBuffers.set(null);
+            return buffer;
+        }
+        heapAllocations.increment();
+        return new byte[bufferSize];
+    }
+
+    /**
+     * Releases a heap buffer, which must not be used by the caller afterwards
+     *
+     * @param buffer the buffer to release
+     */
+    public void releaseHeap(byte[] buffer) {
+        if (buffer != null && buffer.length == bufferSize && heapBuffers.get() == null) {
+            heapBuffers.set(buffer);
+        }
+    }
+
+    /**
+     * Acquires a direct buffer from the stripe of the current thread, or
+     * allocates a new one if the stripe is empty. The buffer is cleared.
+     *
+     * @return a direct buffer of the pool's buffer size
+     */
+    public ByteBuffer acquireDirect() {
+        directAcquisitions.increment();
+        ArrayDeque<ByteBuffer> stripe = stripe();
+        ByteBuffer buffer;
+        synchronized (stripe) {
+            buffer = stripe.pollFirst();
+        }
+        if (buffer != null) {
+            buffer.clear();
+            return buffer;
+        }
+        directAllocations.increment();
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Releases a direct buffer, which must not be used by the caller
+     * afterwards. If the stripe of the current thread is full, the buffer is
+     * left to be collected.
+     *
+     * @param buffer the buffer to release
+     */
+    public void releaseDirect(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() == false || buffer.capacity() != bufferSize) {
+            return;
+        }
+        ArrayDeque<ByteBuffer> stripe = stripe();
+        synchronized (stripe) {
+            if (stripe.size() < maximumPerStripe) {
+                stripe.addFirst(buffer);
+            }
+        }
+    }
+
+    /**
+     * Creates an output sink for data of the given size
+     *
+     * @param sizeHint the expected size of the data, or a negative number if
+     * it is unknown
+     * @return a new output sink
+     */
+    public SizedByteArrayOutputStream newSink(long sizeHint) {
+        if (sizeHint > 0) {
+            sizedSinks.increment();
+        }
+        return new SizedByteArrayOutputStream(this, sizeHint);
+    }
+
+    /**
+     * Reads the given stream until its end, using a pooled buffer and a size
+     * hinted sink. The stream is not closed.
+     *
+     * @param inputStream the stream to read
+     * @param sizeHint the expected size of the data, or a negative number if
+     * it is unknown
+     * @return the data that was read
+     * @throws IOException if the stream cannot be read
+     */
+    public byte[] readFully(InputStream inputStream, long sizeHint) throws IOException {
+        SizedByteArrayOutputStream sink = newSink(sizeHint);
+        byte[] buffer = acquireHeap();
+        try {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                sink.write(buffer, 0, read);
+            }
+        } finally {
+            releaseHeap(buffer);
+        }
+        return sink.toByteArray();
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Gets a snapshot of the statistics of this pool
+     *
+     * @return the statistics of this pool
+     */
+    public BufferPoolStatistics getStatistics() {
+        return new BufferPoolStatistics(heapAcquisitions.sum(), heapAllocations.sum(), directAcquisitions.sum(), directAllocations.sum(), sizedSinks.sum(), exactlySizedSinks.sum());
+    }
+
+    /**
+     * Records a size hinted sink of which the hint matched the written data
+     */
+    void recordExactSink() {
+        exactlySizedSinks.increment();
+    }
+
+    /**
+     * Gets the stripe of direct buffers of the current thread
+     *
+     * @return the stripe of the current thread
+     */
+    private ArrayDeque<ByteBuffer> stripe() {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return directStripes[(hash >>> 16) & (directStripes.length - 1)];
+    }
+}
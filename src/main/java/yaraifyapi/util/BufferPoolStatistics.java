@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.util;
+
+/**
+ * A snapshot of the statistics of a buffer pool, taken at the moment the
+ * statistics were requested. The difference between the number of
+ * acquisitions and allocations is the number of buffers that were reused,
+ * rather than allocated (and later collected) again.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class BufferPoolStatistics {
+
+    private final long heapAcquisitions;
+    private final long heapAllocations;
+    private final long directAcquisitions;
+    private final long directAllocations;
+    private final long sizedSinks;
+    private final long exactlySizedSinks;
+
+    public BufferPoolStatistics(long heapAcquisitions, long heapAllocations, long directAcquisitions, long directAllocations, long sizedSinks, long exactlySizedSinks) {
+        this.heapAcquisitions = heapAcquisitions;
+        this.heapAllocations = heapAllocations;
+        this.directAcquisitions = directAcquisitions;
+        this.directAllocations = directAllocations;
+        this.sizedSinks = sizedSinks;
+        this.exactlySizedSinks = exactlySizedSinks;
+    }
+
+    public long getHeapAcquisitions() {
+        return heapAcquisitions;
+    }
+
+    public long getHeapAllocations() {
+        return heapAllocations;
+    }
+
+    public long getDirectAcquisitions() {
+        return directAcquisitions;
+    }
+
+    public long getDirectAllocations() {
+        return directAllocations;
+    }
+
+    /**
+     * Gets the number of output sinks that were created with a size hint
+     *
+     * @return the number of size hinted sinks
+     */
+    public long getSizedSinks() {
+        return sizedSinks;
+    }
+
+    /**
+     * Gets the number of size hinted output sinks of which the hint matched
+     * the written data exactly, meaning their data was returned without
+     * growing or trimming the underlying array
+     *
+     * @return the number of exactly sized sinks
+     */
+    public long getExactlySizedSinks() {
+        return exactlySizedSinks;
+    }
+
+    /**
+     * Gets the fraction of buffer acquisitions (heap and direct) that reused
+     * a pooled buffer
+     *
+     * @return the reuse ratio, between 0 and 1
+     */
+    public double getReuseRatio() {
+        long acquisitions = heapAcquisitions + directAcquisitions;
+        if (acquisitions == 0) {
+            return 0;
+        }
+        return (double) (acquisitions - heapAllocations - directAllocations) / acquisitions;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A helper class to compute the SHA-256 hashes that Yaraify uses to identify
+ * files with. All hashes are returned as lower case hexadecimal strings, which
+ * is the format that the API endpoints use.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class HashUtil {
+
+    /**
+     * The characters used to convert bytes into a hexadecimal string
+     */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * This class only contains static helper functions
+     */
+    private HashUtil() {
+    }
+
+    /**
+     * Creates a new SHA-256 message digest
+     *
+     * @return a new SHA-256 message digest
+     */
+    public static MessageDigest newSha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            //Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Computes the SHA-256 hash of the given bytes
+     *
+     * @param data the data to hash
+     * @return the lower case hexadecimal SHA-256 hash
+     */
+    public static String sha256(byte[] data) {
+        return toHex(newSha256Digest().digest(data));
+    }
+
+    /**
+     * Computes the SHA-256 hash of the file at the given path. The file is
+     * read in chunks, meaning it is never fully loaded in memory.
+     *
+     * @param path the file to hash
+     * @return the lower case hexadecimal SHA-256 hash
+     * @throws IOException if the file cannot be read
+     */
+    public static String sha256(Path path) throws IOException {
+        MessageDigest digest = newSha256Digest();
+        byte[] buffer = BufferPool.getShared().acquireHeap();
+        try (InputStream inputStream = Files.newInputStream(path)) {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            BufferPool.getShared().releaseHeap(buffer);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Converts the given bytes into a lower case hexadecimal string
+     *
+     * @param bytes the bytes to convert
+     * @return the hexadecimal representation of the given bytes
+     */
+    public static String toHex(byte[] bytes) {
+        char[] output = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            output[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            output[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(output);
+    }
+
+    /**
+     * Converts the given hexadecimal string, in either lower or upper case,
+     * into bytes
+     *
+     * @param hex the hexadecimal string to convert
+     * @return the bytes the given string represents
+     * @throws IllegalArgumentException if the string has an odd length, or
+     * contains characters which are not hexadecimal
+     */
+    public static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("The given hexadecimal string has an odd length!");
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high == -1 || low == -1) {
+                throw new IllegalArgumentException("The given string contains characters which are not hexadecimal!");
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
+    /**
+     * Checks if the given string is a valid SHA-256 hash, in either lower or
+     * upper case
+     *
+     * @param sha256 the string to check
+     * @return true if the string consists of 64 hexadecimal characters, false
+     * if not
+     */
+    public static boolean isSha256(String sha256) {
+        if (sha256 == null || sha256.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < sha256.length(); i++) {
+            if (Character.digit(sha256.charAt(i), 16) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
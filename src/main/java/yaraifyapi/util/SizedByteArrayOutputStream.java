@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.util;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * An output stream which collects the written data in a byte array, like
+ * {@link java.io.ByteArrayOutputStream}. If the size of the data is known in
+ * advance (i.e. from a Content-Length header or a ZIP entry's header), the
+ * array is allocated at that size, and returned as is once it is filled. This
+ * avoids both the repeated growing of the array, and the final copy.<br>
+ * <br>
+ * This class is not thread safe.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class SizedByteArrayOutputStream extends OutputStream {
+
+    /**
+     * The capacity of a sink without a size hint
+     */
+    private static final int DEFAULT_CAPACITY = 8 * 1024;
+
+    /**
+     * The largest size hint that is used to presize the array, to avoid
+     * allocating huge arrays based on a forged header
+     */
+    public static final long MAXIMUM_SIZE_HINT = 64 * 1024 * 1024;
+
+    private final BufferPool pool;
+    private final int sizeHint;
+    private byte[] buffer;
+    private int count;
+
+    /**
+     * Creates a sink for data of the given size
+     *
+     * @param pool the pool which keeps the statistics of the sinks
+     * @param sizeHint the expected size of the data, or a negative number if
+     * it is unknown
+     */
+    SizedByteArrayOutputStream(BufferPool pool, long sizeHint) {
+        this.pool = pool;
+        this.sizeHint = sizeHint > 0 && sizeHint <= MAXIMUM_SIZE_HINT ? (int) sizeHint : -1;
+        this.buffer = new byte[this.sizeHint > 0 ? this.sizeHint : DEFAULT_CAPACITY];
+        this.count = 0;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buffer[count] = (byte) b;
+        count++;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) {
+        ensureCapacity(count + length);
+        System.arraycopy(data, offset, buffer, count, length);
+        count += length;
+    }
+
+    /**
+     * Grows the array to hold at least the given number of bytes
+     *
+     * @param required the number of bytes the array has to hold
+     */
+    private void ensureCapacity(int required) {
+        if (required < 0) {
+            throw new OutOfMemoryError("The data exceeds the maximum size of an array!");
+        }
+        if (required > buffer.length) {
+            int capacity = Math.max(required, buffer.length * 2);
+            if (capacity < 0) {
+                capacity = Integer.MAX_VALUE - 8;
+            }
+            buffer = Arrays.copyOf(buffer, capacity);
+        }
+    }
+
+    /**
+     * Gets the number of bytes that were written
+     *
+     * @return the number of written bytes
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Gets the written data. If the size hint matched the written data, the
+     * underlying array is returned without copying it, after which this sink
+     * should no longer be written to.
+     *
+     * @return the written data
+     */
+    public byte[] toByteArray() {
+        if (count == buffer.length) {
+            if (sizeHint == count) {
+                pool.recordExactSink();
+            }
+            return buffer;
+        }
+        return Arrays.copyOf(buffer, count);
+    }
+}
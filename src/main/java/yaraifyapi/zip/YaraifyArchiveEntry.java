@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.zip;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import net.lingala.zip4j.io.inputstream.ZipInputStream;
+import yaraifyapi.util.BufferPool;
+
+/**
+ * A file in a ZIP archive, which is only decrypted and inflated once its
+ * stream is read. Obtained from a {@link YaraifyArchiveIterator}.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class YaraifyArchiveEntry {
+
+    private final YaraifyArchiveIterator iterator;
+    private final ZipCentralDirectoryEntry entry;
+
+    YaraifyArchiveEntry(YaraifyArchiveIterator iterator, ZipCentralDirectoryEntry entry) {
+        this.iterator = iterator;
+        this.entry = entry;
+    }
+
+    public String getName() {
+        return entry.getName();
+    }
+
+    /**
+     * Gets the size of the file, as stored in the archive
+     *
+     * @return the size of the file in bytes
+     */
+    public long getSize() {
+        return entry.getSize();
+    }
+
+    public long getCompressedSize() {
+        return entry.getCompressedSize();
+    }
+
+    /**
+     * Gets the CRC-32 of the file, as stored in the archive's central
+     * directory. This allows changes to be detected without reading the file.
+     *
+     * @return the CRC-32 of the file
+     */
+    public long getCrc32() {
+        return entry.getCrc32();
+    }
+
+    /**
+     * Opens a stream which decrypts and inflates the file as it is read. Each
+     * call opens a new stream, starting at the beginning of the file. The
+     * stream is closed when the iterator moves to the next entry, or when the
+     * iterator is closed.
+     *
+     * @return the contents of the file
+     * @throws IOException if the iterator is closed, or if the file cannot be
+     * located in the archive
+     */
+    public InputStream getInputStream() throws IOException {
+        return iterator.open(entry);
+    }
+
+    /**
+     * Reads the complete file into memory. The output is allocated at the size
+     * that the archive lists for the file.
+     *
+     * @return the contents of the file
+     * @throws IOException if the file cannot be read, decrypted, or inflated
+     */
+    public byte[] readAllBytes() throws IOException {
+        try (InputStream inputStream = getInputStream()) {
+            return BufferPool.getShared().readFully(inputStream, entry.getSize());
+        }
+    }
+
+    /**
+     * Creates a stream which reads the ZIP archive from the local file header
+     * of the given entry, and positions it at the start of the entry's data
+     *
+     * @param zip the ZIP archive
+     * @param entry the entry to open
+     * @param password the password of the archive, or null if there is none
+     * @param zipExtractor the extractor to create the stream with
+     * @return the stream of the entry's data
+     * @throws IOException if the entry's offset lies outside of the archive,
+     * or if the entry cannot be located
+     */
+    static ZipInputStream openEntry(byte[] zip, ZipCentralDirectoryEntry entry, String password, ZipExtractor zipExtractor) throws IOException {
+        //The offset is taken from the central directory, which can be crafted
+        long localHeaderOffset = entry.getLocalHeaderOffset();
+        if (localHeaderOffset < 0 || localHeaderOffset > zip.length) {
+            throw new IOException("The local header offset of the entry \"" + entry.getName() + "\" lies outside of the ZIP archive!");
+        }
+        int offset = (int) localHeaderOffset;
+        ZipInputStream zipInputStream = zipExtractor.open(new ByteArrayInputStream(zip, offset, zip.length - offset), password);
+        if (zipInputStream.getNextEntry() == null) {
+            zipInputStream.close();
+            throw new IOException("The entry \"" + entry.getName() + "\" cannot be found in the ZIP archive!");
+        }
+        return zipInputStream;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.zip;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A lazy iterator over the files in a (password protected) ZIP archive. The
+ * entries are listed from the archive's central directory, meaning no file is
+ * decrypted or inflated until its stream is read. Files which are not needed
+ * can be skipped at no cost, and the other files can be processed one at a
+ * time, rather than all at once. Directory entries are skipped.<br>
+ * <br>
+ * Only the archive itself (which is compressed) is kept in memory. It is
+ * released once the iterator is closed. This class is not thread safe.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class YaraifyArchiveIterator implements Iterator<YaraifyArchiveEntry>, Closeable {
+
+    private final String password;
+    private final ZipExtractor zipExtractor;
+    private final List<ZipCentralDirectoryEntry> entries;
+    private final List<InputStream> openStreams;
+    private byte[] zip;
+    private int index;
+
+    /**
+     * Creates an iterator over the files in the given ZIP archive
+     *
+     * @param zip the ZIP archive as a byte array
+     * @param password the password with which the ZIP archive is protected, or
+     * null if it is not protected
+     * @throws IOException if the central directory of the archive cannot be
+     * read
+     */
+    public YaraifyArchiveIterator(byte[] zip, String password) throws IOException {
+        this.zip = zip;
+        this.password = password;
+        this.zipExtractor = new ZipExtractor();
+        this.entries = new ArrayList<>();
+        this.openStreams = new ArrayList<>();
+        this.index = 0;
+
+        for (ZipCentralDirectoryEntry entry : new ZipCentralDirectoryParser().parse(zip)) {
+            if (entry.isDirectory() == false) {
+                entries.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of files in the archive, excluding directories
+     *
+     * @return the number of files in the archive
+     */
+    public int getEntryCount() {
+        return entries.size();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return zip != null && index < entries.size();
+    }
+
+    /**
+     * Moves to the next file in the archive, and closes the streams of the
+     * previous file
+     *
+     * @return the next file in the archive
+     */
+    @Override
+    public YaraifyArchiveEntry next() {
+        if (hasNext() == false) {
+            throw new NoSuchElementException();
+        }
+        closeStreams();
+        ZipCentralDirectoryEntry entry = entries.get(index);
+        index++;
+        return new YaraifyArchiveEntry(this, entry);
+    }
+
+    /**
+     * Closes the streams of the current file, and releases the archive. The
+     * iterator has no next element once it is closed.
+     */
+    @Override
+    public void close() {
+        closeStreams();
+        zip = null;
+    }
+
+    /**
+     * Opens a stream for the given entry of this iterator's archive
+     *
+     * @param entry the entry to open
+     * @return the stream of the entry's data
+     * @throws IOException if the iterator is closed, or if the entry cannot be
+     * located
+     */
+    InputStream open(ZipCentralDirectoryEntry entry) throws IOException {
+        if (zip == null) {
+            throw new IOException("The archive iterator is closed!");
+        }
+        InputStream inputStream = YaraifyArchiveEntry.openEntry(zip, entry, password, zipExtractor);
+        openStreams.add(inputStream);
+        return inputStream;
+    }
+
+    /**
+     * Closes all streams which were opened for the current file
+     */
+    private void closeStreams() {
+        for (InputStream inputStream : openStreams) {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                //The streams read from memory, closing them cannot fail in a meaningful way
+            }
+        }
+        openStreams.clear();
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.zip;
+
+/**
+ * An entry in the central directory of a ZIP archive
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class ZipCentralDirectoryEntry {
+
+    private final String name;
+    private final long size;
+    private final long compressedSize;
+    private final long crc32;
+    private final long localHeaderOffset;
+    private final boolean encrypted;
+
+    public ZipCentralDirectoryEntry(String name, long size, long compressedSize, long crc32, long localHeaderOffset, boolean encrypted) {
+        this.name = name;
+        this.size = size;
+        this.compressedSize = compressedSize;
+        this.crc32 = crc32;
+        this.localHeaderOffset = localHeaderOffset;
+        this.encrypted = encrypted;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getCompressedSize() {
+        return compressedSize;
+    }
+
+    /**
+     * Gets the CRC-32 of the entry's uncompressed data, as stored in the
+     * archive. Entries which are encrypted with AES may store zero instead.
+     *
+     * @return the CRC-32 of the entry
+     */
+    public long getCrc32() {
+        return crc32;
+    }
+
+    /**
+     * Gets the offset of the entry's local file header, counted from the
+     * start of the archive
+     *
+     * @return the offset of the local file header
+     */
+    public long getLocalHeaderOffset() {
+        return localHeaderOffset;
+    }
+
+    public boolean isEncrypted() {
+        return encrypted;
+    }
+
+    /**
+     * Checks if the entry is a directory, which is the case if its name ends
+     * with a slash
+     *
+     * @return true if the entry is a directory, false if not
+     */
+    public boolean isDirectory() {
+        return name.endsWith("/") || name.endsWith("\\");
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.zip;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the central directory of a ZIP archive, which lists the name, sizes,
+ * CRC-32, and location of every entry in the archive. As the central
+ * directory is stored at the end of the archive, the entries can be listed
+ * (and located) without reading or inflating any of them. ZIP64 archives are
+ * supported.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class ZipCentralDirectoryParser {
+
+    /**
+     * The signature of the end of central directory record
+     */
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+
+    /**
+     * The signature of the ZIP64 end of central directory locator
+     */
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    /**
+     * The signature of the ZIP64 end of central directory record
+     */
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+
+    /**
+     * The signature of a central directory file header
+     */
+    private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+
+    /**
+     * The size of the end of central directory record, excluding the comment
+     */
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+
+    /**
+     * The size of the ZIP64 end of central directory locator
+     */
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+
+    /**
+     * The size of a central directory file header, excluding the variable
+     * length fields
+     */
+    private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+
+    /**
+     * The ID of the extra field which contains the ZIP64 sizes and offset
+     */
+    private static final int ZIP64_EXTRA_FIELD_ID = 0x0001;
+
+    /**
+     * The flag that marks the name of an entry as UTF-8
+     */
+    private static final int UTF8_FLAG = 1 << 11;
+
+    /**
+     * The flag that marks an entry as encrypted
+     */
+    private static final int ENCRYPTED_FLAG = 1;
+
+    /**
+     * Lists the entries in the central directory of the given ZIP archive, in
+     * the order in which they are stored in the central directory
+     *
+     * @param zip the ZIP archive as a byte array
+     * @return the entries of the archive
+     * @throws IOException if the archive has no (valid) central directory
+     */
+    public List<ZipCentralDirectoryEntry> parse(byte[] zip) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(zip).order(ByteOrder.LITTLE_ENDIAN);
+        int end = findEndOfCentralDirectory(buffer);
+
+        long entryCount = buffer.getShort(end + 10) & 0xFFFF;
+        long directorySize = buffer.getInt(end + 12) & 0xFFFFFFFFL;
+        long directoryOffset = buffer.getInt(end + 16) & 0xFFFFFFFFL;
+
+        //The ZIP64 locator directly precedes the end of central directory record, if the archive uses ZIP64
+        int locator = end - ZIP64_LOCATOR_SIZE;
+        if (locator >= 0 && buffer.getInt(locator) == ZIP64_LOCATOR_SIGNATURE) {
+            long zip64End = buffer.getLong(locator + 8);
+            checkRange(zip, zip64End, 56);
+            if (buffer.getInt((int) zip64End) != ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                throw new IOException("Invalid ZIP64 end of central directory record!");
+            }
+            entryCount = buffer.getLong((int) zip64End + 32);
+            directorySize = buffer.getLong((int) zip64End + 40);
+            directoryOffset = buffer.getLong((int) zip64End + 48);
+        }
+        checkRange(zip, directoryOffset, directorySize);
+
+        List<ZipCentralDirectoryEntry> entries = new ArrayList<>();
+        int position = (int) directoryOffset;
+        for (long i = 0; i < entryCount; i++) {
+            checkRange(zip, position, CENTRAL_DIRECTORY_HEADER_SIZE);
+            if (buffer.getInt(position) != CENTRAL_DIRECTORY_SIGNATURE) {
+                throw new IOException("Invalid central directory file header!");
+            }
+            int flags = buffer.getShort(position + 8) & 0xFFFF;
+            long crc32 = buffer.getInt(position + 16) & 0xFFFFFFFFL;
+            long compressedSize = buffer.getInt(position + 20) & 0xFFFFFFFFL;
+            long size = buffer.getInt(position + 24) & 0xFFFFFFFFL;
+            int nameLength = buffer.getShort(position + 28) & 0xFFFF;
+            int extraLength = buffer.getShort(position + 30) & 0xFFFF;
+            int commentLength = buffer.getShort(position + 32) & 0xFFFF;
+            long localHeaderOffset = buffer.getInt(position + 42) & 0xFFFFFFFFL;
+            checkRange(zip, position, CENTRAL_DIRECTORY_HEADER_SIZE + nameLength + extraLength + commentLength);
+
+            Charset charset = (flags & UTF8_FLAG) != 0 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1;
+            String name = new String(zip, position + CENTRAL_DIRECTORY_HEADER_SIZE, nameLength, charset);
+
+            //The ZIP64 extra field only contains the values which do not fit in the header, in this order
+            int extra = position + CENTRAL_DIRECTORY_HEADER_SIZE + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = buffer.getShort(extra) & 0xFFFF;
+                int length = buffer.getShort(extra + 2) & 0xFFFF;
+                if (id == ZIP64_EXTRA_FIELD_ID) {
+                    int field = extra + 4;
+                    if (size == 0xFFFFFFFFL && field + 8 <= extraEnd) {
+                        size = buffer.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == 0xFFFFFFFFL && field + 8 <= extraEnd) {
+                        compressedSize = buffer.getLong(field);
+                        field += 8;
+                    }
+                    if (localHeaderOffset == 0xFFFFFFFFL && field + 8 <= extraEnd) {
+                        localHeaderOffset = buffer.getLong(field);
+                    }
+                    break;
+                }
+                extra += 4 + length;
+            }
+
+            checkRange(zip, localHeaderOffset, 4);
+            entries.add(new ZipCentralDirectoryEntry(name, size, compressedSize, crc32, localHeaderOffset, (flags & ENCRYPTED_FLAG) != 0));
+            position += CENTRAL_DIRECTORY_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return entries;
+    }
+
+    /**
+     * Finds the end of central directory record, which is located at the end
+     * of the archive, followed by a comment of at most 65535 bytes
+     *
+     * @param buffer the archive
+     * @return the offset of the end of central directory record
+     * @throws IOException if the archive does not contain the record
+     */
+    private int findEndOfCentralDirectory(ByteBuffer buffer) throws IOException {
+        int last = buffer.capacity() - END_OF_CENTRAL_DIRECTORY_SIZE;
+        int first = Math.max(0, last - 0xFFFF);
+        for (int i = last; i >= first; i--) {
+            if (buffer.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                return i;
+            }
+        }
+        throw new IOException("No end of central directory record found, the data is not a ZIP archive!");
+    }
+
+    /**
+     * Checks if the given range lies within the archive
+     *
+     * @param zip the archive
+     * @param offset the start of the range
+     * @param length the length of the range
+     * @throws IOException if the range (partially) lies outside of the archive
+     */
+    private void checkRange(byte[] zip, long offset, long length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > zip.length) {
+            throw new IOException("The ZIP archive is truncated or damaged!");
+        }
+    }
+}
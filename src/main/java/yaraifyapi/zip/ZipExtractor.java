@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.zip;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import net.lingala.zip4j.exception.ZipException;
+import net.lingala.zip4j.io.inputstream.ZipInputStream;
+import net.lingala.zip4j.model.LocalFileHeader;
+import yaraifyapi.util.BufferPool;
+import yaraifyapi.util.SizedByteArrayOutputStream;
+
+/**
+ * Extracts (optionally password protected) ZIP archives without writing them
+ * to the disk. The archive is read sequentially from a stream, meaning it can
+ * be extracted from a byte array in memory, or straight from the body of a
+ * response. As nothing is written to a shared location, concurrent
+ * extractions do not interfere with one another.
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class ZipExtractor {
+
+    /**
+     * The pool from which the buffers to read and write the entries are taken
+     */
+    private final BufferPool bufferPool;
+
+    /**
+     * Creates an extractor which uses the shared buffer pool
+     */
+    public ZipExtractor() {
+        this.bufferPool = BufferPool.getShared();
+    }
+
+    /**
+     * Extracts all files from the given ZIP archive. Directory entries are
+     * skipped.
+     *
+     * @param zip the ZIP archive as a byte array
+     * @param password the password with which the ZIP archive is protected, or
+     * null if it is not protected
+     * @return a list of byte arrays, one for each of the files in the archive,
+     * in the order in which they are stored
+     * @throws IOException if something goes wrong with the ZIP archive
+     * extraction
+     */
+    public List<byte[]> extract(byte[] zip, String password) throws IOException {
+        return extract(new ByteArrayInputStream(zip), password);
+    }
+
+    /**
+     * Extracts all files from the ZIP archive in the given stream. Directory
+     * entries are skipped. The stream is read until the end of the last entry,
+     * but it is not closed.
+     *
+     * @param inputStream the stream which contains the ZIP archive
+     * @param password the password with which the ZIP archive is protected, or
+     * null if it is not protected
+     * @return a list of byte arrays, one for each of the files in the archive,
+     * in the order in which they are stored
+     * @throws IOException if something goes wrong with the ZIP archive
+     * extraction
+     */
+    public List<byte[]> extract(InputStream inputStream, String password) throws IOException {
+        List<byte[]> files = new ArrayList<>();
+        ZipInputStream zipInputStream = open(inputStream, password);
+        byte[] buffer = bufferPool.acquireHeap();
+        try {
+            LocalFileHeader header;
+            while ((header = zipInputStream.getNextEntry()) != null) {
+                if (header.isDirectory()) {
+                    skipEntry(zipInputStream, buffer);
+                    continue;
+                }
+                files.add(readEntry(zipInputStream, header, buffer));
+            }
+            return files;
+        } catch (ZipException e) {
+            throw new IOException("Error whilst handling the ZIP archive:\n" + e.getMessage());
+        } finally {
+            bufferPool.releaseHeap(buffer);
+        }
+    }
+
+    /**
+     * Extracts the first file from the ZIP archive in the given stream, and
+     * writes it to the given channel. The file is decrypted and inflated while
+     * it is read from the stream, and passes through pooled buffers, meaning
+     * it is never fully held in memory. Directory entries are skipped,
+     * and the remainder of the archive is not read.
+     *
+     * @param inputStream the stream which contains the ZIP archive
+     * @param password the password with which the ZIP archive is protected, or
+     * null if it is not protected
+     * @param channel the channel to write the file to
+     * @param digest the digest to update with the contents of the file, or
+     * null if the file does not need to be hashed
+     * @return the size of the file in bytes
+     * @throws IOException if the archive does not contain a file, or if
+     * something goes wrong with the ZIP archive extraction or the channel
+     */
+    public long extractFirst(InputStream inputStream, String password, WritableByteChannel channel, MessageDigest digest) throws IOException {
+        ZipInputStream zipInputStream = open(inputStream, password);
+        byte[] array = bufferPool.acquireHeap();
+        //Channels copy heap buffers into a temporary direct buffer, so a pooled direct buffer is used instead
+        ByteBuffer buffer = bufferPool.acquireDirect();
+        try {
+            LocalFileHeader header;
+            while ((header = zipInputStream.getNextEntry()) != null) {
+                if (header.isDirectory()) {
+                    skipEntry(zipInputStream, array);
+                    continue;
+                }
+
+                long size = 0;
+                int read;
+                while ((read = zipInputStream.read(array, 0, Math.min(array.length, buffer.capacity()))) != -1) {
+                    if (digest != null) {
+                        digest.update(array, 0, read);
+                    }
+                    buffer.clear();
+                    buffer.put(array, 0, read);
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    size += read;
+                }
+                return size;
+            }
+        } catch (ZipException e) {
+            throw new IOException("Error whilst handling the ZIP archive:\n" + e.getMessage());
+        } finally {
+            bufferPool.releaseDirect(buffer);
+            bufferPool.releaseHeap(array);
+        }
+        throw new IOException("No such file found in the downloaded ZIP archive!");
+    }
+
+    /**
+     * Creates a stream which reads the ZIP archive from the given stream
+     *
+     * @param inputStream the stream which contains the ZIP archive
+     * @param password the password with which the ZIP archive is protected, or
+     * null if it is not protected
+     * @return the ZIP stream
+     */
+    public ZipInputStream open(InputStream inputStream, String password) {
+        if (password != null && password.isEmpty() == false) {
+            return new ZipInputStream(inputStream, password.toCharArray());
+        }
+        return new ZipInputStream(inputStream);
+    }
+
+    /**
+     * Skips the remainder of the current entry in the given ZIP stream. The
+     * stream does not skip unread data when the next entry is requested, so
+     * any entry that is not read has to be skipped explicitly.
+     *
+     * @param zipInputStream the stream to skip the current entry in
+     * @param buffer the buffer to read with
+     * @throws IOException if the entry cannot be read or decrypted
+     */
+    public void skipEntry(ZipInputStream zipInputStream, byte[] buffer) throws IOException {
+        while (zipInputStream.read(buffer) != -1) {
+            //Discard the data
+        }
+    }
+
+    /**
+     * Reads the remainder of the current entry from the given ZIP stream
+     *
+     * @param zipInputStream the stream to read from
+     * @param header the header of the current entry
+     * @param buffer the buffer to read with
+     * @return the raw bytes of the entry
+     * @throws IOException if the entry cannot be read or decrypted
+     */
+    private byte[] readEntry(ZipInputStream zipInputStream, LocalFileHeader header, byte[] buffer) throws IOException {
+        //The size is unknown (-1 or 0) if the archive uses data descriptors, in which case the sink grows as needed
+        SizedByteArrayOutputStream outputStream = bufferPool.newSink(header.getUncompressedSize());
+
+        int read;
+        while ((read = zipInputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, read);
+        }
+        return outputStream.toByteArray();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.filter;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import yaraifyapi.util.HashUtil;
+
+/**
+ * Tests building a known hash set from a hash list, and looking hashes up in
+ * the resulting file
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class KnownHashSetTest {
+
+    @TempDir
+    Path folder;
+
+    @Test
+    public void readsPlainCsvAndSha256sumLines() throws Exception {
+        String plain = HashUtil.sha256(ascii("plain"));
+        String csv = HashUtil.sha256(ascii("csv"));
+        String sha256sum = HashUtil.sha256(ascii("sha256sum"));
+        String upper = HashUtil.sha256(ascii("upper"));
+        List<String> lines = new ArrayList<>();
+        lines.add("# sha256,file_name");
+        lines.add(plain);
+        lines.add(csv + ",dropper.exe");
+        lines.add(sha256sum + "  /usr/bin/ls");
+        lines.add(upper.toUpperCase(Locale.ROOT));
+        lines.add(plain);
+        lines.add(plain + "trailing");
+        lines.add("not a hash");
+
+        KnownHashSet set = build(lines);
+        assertEquals(4, set.size());
+        assertTrue(set.contains(plain));
+        assertTrue(set.contains(csv));
+        assertTrue(set.contains(sha256sum));
+        assertTrue(set.contains(upper));
+        assertTrue(set.contains(plain.toUpperCase(Locale.ROOT)));
+        assertFalse(set.contains(HashUtil.sha256(ascii("absent"))));
+        assertFalse(set.contains("not a hash"));
+    }
+
+    @Test
+    public void buildsAnEmptySet() throws Exception {
+        KnownHashSet set = build(new ArrayList<>());
+        assertEquals(0, set.size());
+        assertFalse(set.contains(HashUtil.sha256(ascii("absent"))));
+    }
+
+    @Test
+    public void containsEveryBuiltHash() throws Exception {
+        Random random = new Random(49);
+        List<String> hashes = new ArrayList<>();
+        byte[] raw = new byte[32];
+        for (int i = 0; i < 5000; i++) {
+            random.nextBytes(raw);
+            //Hashes which share their first two bytes end up in the same range
+            if (i % 10 == 0) {
+                raw[0] = 0x12;
+                raw[1] = 0x34;
+            }
+            hashes.add(HashUtil.toHex(raw));
+        }
+
+        KnownHashSet set = build(hashes);
+        assertEquals(hashes.size(), set.size());
+        for (String hash : hashes) {
+            assertTrue(set.contains(hash));
+        }
+        for (int i = 0; i < 1000; i++) {
+            random.nextBytes(raw);
+            assertFalse(set.contains(HashUtil.toHex(raw)));
+        }
+    }
+
+    private KnownHashSet build(List<String> lines) throws Exception {
+        Path hashList = Files.write(folder.resolve("hashes.txt"), lines, StandardCharsets.UTF_8);
+        Path path = folder.resolve("known.bin");
+        long count = KnownHashSet.build(hashList, path);
+        KnownHashSet set = new KnownHashSet(path);
+        assertEquals(count, set.size());
+        return set;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.filter;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import yaraifyapi.util.HashUtil;
+
+/**
+ * Tests that the submitted hash filter retains its hashes when it grows, and
+ * when it is reopened from its journal or its snapshot
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class SubmittedHashFilterTest {
+
+    @TempDir
+    Path folder;
+
+    @Test
+    public void containsEveryHashAfterGrowing() throws Exception {
+        SubmittedHashFilter filter = new SubmittedHashFilter(folder.resolve("submitted.bin"), 100, 0.01);
+        List<String> hashes = hashes("grown", 1000);
+        //A hash is not added if it is a false positive already
+        long added = 0;
+        for (String hash : hashes) {
+            if (filter.add(hash)) {
+                added++;
+            }
+        }
+        assertTrue(filter.getFilterCount() > 1);
+        assertEquals(added, filter.size());
+        assertTrue(added > hashes.size() * 0.95);
+        assertContainsAll(filter, hashes);
+        assertFalse(filter.add(hashes.get(0)));
+        assertFalse(filter.mightContain("not a hash"));
+    }
+
+    @Test
+    public void replaysTheJournalWhenReopened() throws Exception {
+        Path path = folder.resolve("submitted.bin");
+        List<String> hashes = hashes("journal", 1000);
+        SubmittedHashFilter filter = new SubmittedHashFilter(path, 100, 0.01);
+        for (String hash : hashes) {
+            filter.add(hash);
+        }
+
+        SubmittedHashFilter reopened = new SubmittedHashFilter(path, 100, 0.01);
+        assertEquals(filter.getFilterCount(), reopened.getFilterCount());
+        assertEquals(filter.size(), reopened.size());
+        assertContainsAll(reopened, hashes);
+    }
+
+    @Test
+    public void readsTheSnapshotAndTheJournalWhenReopened() throws Exception {
+        Path path = folder.resolve("submitted.bin");
+        List<String> before = hashes("before", 500);
+        List<String> after = hashes("after", 500);
+        SubmittedHashFilter filter = new SubmittedHashFilter(path, 100, 0.01);
+        for (String hash : before) {
+            filter.add(hash);
+        }
+        filter.compact();
+        for (String hash : after) {
+            filter.add(hash);
+        }
+
+        //The stored capacity and rate take precedence over the given ones
+        SubmittedHashFilter reopened = new SubmittedHashFilter(path, 5000, 0.5);
+        assertEquals(100, reopened.getInitialCapacity());
+        assertEquals(0.01, reopened.getFalsePositiveRate());
+        assertEquals(filter.size(), reopened.size());
+        assertContainsAll(reopened, before);
+        assertContainsAll(reopened, after);
+    }
+
+    @Test
+    public void discardsATruncatedJournalEntry() throws Exception {
+        Path path = folder.resolve("submitted.bin");
+        Path journal = folder.resolve("submitted.bin.journal");
+        List<String> hashes = hashes("truncated", 3);
+        SubmittedHashFilter filter = new SubmittedHashFilter(path, 100, 0.01);
+        filter.add(hashes.get(0));
+        filter.add(hashes.get(1));
+        //An interrupted append leaves part of an entry behind
+        Files.write(journal, HashUtil.fromHex(hashes.get(2)), StandardOpenOption.APPEND);
+        Files.write(journal, new byte[10], StandardOpenOption.APPEND);
+
+        SubmittedHashFilter reopened = new SubmittedHashFilter(path, 100, 0.01);
+        assertEquals(3, reopened.size());
+        assertEquals(3 * 32, Files.size(journal));
+        String added = HashUtil.sha256("added".getBytes(StandardCharsets.US_ASCII));
+        assertTrue(reopened.add(added));
+
+        //The entry that is appended after the truncated entry is read back as well
+        SubmittedHashFilter again = new SubmittedHashFilter(path, 100, 0.01);
+        assertEquals(4, again.size());
+        assertContainsAll(again, hashes);
+        assertTrue(again.mightContain(added));
+    }
+
+    private static List<String> hashes(String prefix, int count) {
+        List<String> hashes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            hashes.add(HashUtil.sha256((prefix + i).getBytes(StandardCharsets.US_ASCII)));
+        }
+        return hashes;
+    }
+
+    private static void assertContainsAll(SubmittedHashFilter filter, List<String> hashes) {
+        for (String hash : hashes) {
+            assertTrue(filter.mightContain(hash), hash);
+        }
+    }
+}
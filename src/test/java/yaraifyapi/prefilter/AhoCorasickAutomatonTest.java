@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.prefilter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the Aho-Corasick automaton against overlapping, case folded, binary,
+ * and randomly generated patterns
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class AhoCorasickAutomatonTest {
+
+    @Test
+    public void findsOverlappingPatterns() {
+        AhoCorasickAutomaton automaton = new AhoCorasickAutomaton(patterns("he", "she", "his", "hers"));
+        assertEquals(bits(0, 1, 3), scan(automaton, "ushers".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    public void ignoresAsciiCase() {
+        AhoCorasickAutomaton automaton = new AhoCorasickAutomaton(patterns("CreateRemoteThread", "kernel32"));
+        assertEquals(bits(0, 1), scan(automaton, "xxCREATEremotethreadxxKERNEL32.DLL".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    public void findsWideAndBinaryPatterns() {
+        List<byte[]> patterns = new ArrayList<>();
+        patterns.add(new byte[]{'a', 0, 'b', 0, 'c', 0});
+        patterns.add(new byte[]{(byte) 0xFF, 0x00, (byte) 0x90, (byte) 0xCC});
+        AhoCorasickAutomaton automaton = new AhoCorasickAutomaton(patterns);
+
+        assertEquals(bits(0), scan(automaton, new byte[]{1, 'A', 0, 'B', 0, 'C', 0, 2}));
+        assertEquals(bits(1), scan(automaton, new byte[]{(byte) 0xFF, (byte) 0xFF, 0x00, (byte) 0x90, (byte) 0xCC}));
+        //The ASCII form of a wide pattern must not match
+        assertEquals(bits(), scan(automaton, "abc".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    public void scansOnlyBetweenPositionAndLimit() {
+        AhoCorasickAutomaton automaton = new AhoCorasickAutomaton(patterns("abc"));
+        ByteBuffer buffer = ByteBuffer.wrap("abcxxabc".getBytes(StandardCharsets.US_ASCII));
+        buffer.position(1).limit(7);
+        BitSet found = new BitSet();
+        automaton.scan(buffer, found);
+        assertEquals(bits(), found);
+        assertEquals(1, buffer.position());
+    }
+
+    @Test
+    public void matchesBruteForceOnRandomData() {
+        Random random = new Random(0);
+        List<byte[]> patterns = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            byte[] pattern = new byte[3 + random.nextInt(6)];
+            for (int j = 0; j < pattern.length; j++) {
+                pattern[j] = (byte) ('a' + random.nextInt(4));
+            }
+            patterns.add(pattern);
+        }
+        AhoCorasickAutomaton automaton = new AhoCorasickAutomaton(patterns);
+
+        for (int round = 0; round < 50; round++) {
+            byte[] data = new byte[500];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) ((random.nextBoolean() ? 'a' : 'A') + random.nextInt(5));
+            }
+            BitSet expected = new BitSet();
+            String folded = new String(data, StandardCharsets.US_ASCII).toLowerCase();
+            for (int id = 0; id < patterns.size(); id++) {
+                if (folded.contains(new String(patterns.get(id), StandardCharsets.US_ASCII))) {
+                    expected.set(id);
+                }
+            }
+            assertEquals(expected, scan(automaton, data));
+        }
+    }
+
+    private static List<byte[]> patterns(String... patterns) {
+        List<byte[]> bytes = new ArrayList<>();
+        for (String pattern : patterns) {
+            bytes.add(pattern.getBytes(StandardCharsets.US_ASCII));
+        }
+        return bytes;
+    }
+
+    private static BitSet scan(AhoCorasickAutomaton automaton, byte[] data) {
+        BitSet found = new BitSet();
+        automaton.scan(ByteBuffer.wrap(data), found);
+        return found;
+    }
+
+    private static BitSet bits(int... ids) {
+        BitSet bits = new BitSet();
+        Arrays.stream(ids).forEach(bits::set);
+        return bits;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.prefilter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import yaraifyapi.rules.YaraRule;
+import yaraifyapi.rules.YaraRuleParser;
+
+/**
+ * Tests the extraction of atoms from the strings of Yara rules, and the
+ * detection of conditions which can be satisfied without any string
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class YaraLiteralExtractorTest {
+
+    private final YaraLiteralExtractor extractor = new YaraLiteralExtractor();
+
+    @Test
+    public void extractsTextAtoms() {
+        YaraLiteralExtractor.RuleLiterals literals = extract("$a = \"evil\\x00tag\"", "$a");
+        assertTrue(literals.isFilterable());
+        assertEquals(1, literals.getAtoms().size());
+        assertArrayEquals(new byte[]{'e', 'v', 'i', 'l', 0, 't', 'a', 'g'}, literals.getAtoms().get(0));
+    }
+
+    @Test
+    public void extractsWideAtoms() {
+        List<byte[]> wide = extract("$a = \"abc\" wide", "$a").getAtoms();
+        assertEquals(1, wide.size());
+        assertArrayEquals(new byte[]{'a', 0, 'b', 0, 'c', 0}, wide.get(0));
+
+        List<byte[]> both = extract("$a = \"abc\" ascii wide", "$a").getAtoms();
+        assertEquals(2, both.size());
+        assertArrayEquals(ascii("abc"), both.get(0));
+        assertArrayEquals(new byte[]{'a', 0, 'b', 0, 'c', 0}, both.get(1));
+    }
+
+    @Test
+    public void keepsNocaseAtomsAsWritten() {
+        //The automaton folds the case of ASCII letters, which covers the nocase modifier
+        YaraLiteralExtractor.RuleLiterals literals = extract("$a = \"MiMiKaTz\" nocase", "$a");
+        assertTrue(literals.isFilterable());
+        assertArrayEquals(ascii("MiMiKaTz"), literals.getAtoms().get(0));
+    }
+
+    @Test
+    public void extractsLongestFixedRunFromHexStrings() {
+        YaraLiteralExtractor.RuleLiterals literals = extract("$a = { 4D 5A ?? 00 [2-4] E8 00 00 00 00 5D ( 01 | 02 ) 90 }", "$a");
+        assertTrue(literals.isFilterable());
+        assertArrayEquals(new byte[]{(byte) 0xE8, 0, 0, 0, 0, 0x5D}, literals.getAtoms().get(0));
+    }
+
+    @Test
+    public void extractsMandatoryLiteralsFromRegularExpressions() {
+        assertArrayEquals(ascii("https://"), extract("$a = /https:\\/\\/[a-z]+\\.onion/", "$a").getAtoms().get(0));
+        assertFalse(extract("$a = /(abc|def)ghi?/", "$a").isFilterable());
+    }
+
+    @Test
+    public void rejectsStringsWithoutUsableAtoms() {
+        assertFalse(extract("$a = \"ab\"", "$a").isFilterable());
+        assertFalse(extract("$a = { ?? ?? 4D ?? }", "$a").isFilterable());
+        assertFalse(extract("$a = \"secret\" xor", "$a").isFilterable());
+        assertFalse(extract("$a = \"secret\" base64", "$a").isFilterable());
+    }
+
+    @Test
+    public void acceptsConditionsThatRequireAMatch() {
+        String strings = "$a = \"first\" $b = \"second\"";
+        assertTrue(extract(strings, "$a").isFilterable());
+        assertTrue(extract(strings, "any of them").isFilterable());
+        assertTrue(extract(strings, "all of ($a, $b)").isFilterable());
+        assertTrue(extract(strings, "$a and filesize < 1MB").isFilterable());
+        assertTrue(extract(strings, "#a > 0").isFilterable());
+        assertTrue(extract(strings, "#a >= 1 and #b > 2").isFilterable());
+        assertTrue(extract(strings, "uint16(0) == 0x5A4D and (#a >= 3)").isFilterable());
+    }
+
+    @Test
+    public void rejectsConditionsThatHoldWithoutAMatch() {
+        String strings = "$a = \"first\" $b = \"second\"";
+        assertFalse(extract(strings, "$a or $b").isFilterable());
+        assertFalse(extract(strings, "not $a").isFilterable());
+        assertFalse(extract(strings, "none of them").isFilterable());
+        assertFalse(extract(strings, "0 of them").isFilterable());
+        assertFalse(extract(strings, "($a) == false").isFilterable());
+        assertFalse(extract(strings, "uint16(0) == 0x5A4D").isFilterable());
+        assertFalse(extract(strings, "#a == 0").isFilterable());
+        assertFalse(extract(strings, "#a < 2").isFilterable());
+        assertFalse(extract(strings, "#a >= 0").isFilterable());
+        assertFalse(extract(strings, "0 <= #a").isFilterable());
+        assertFalse(extract(strings, "0 < #a and $b").isFilterable());
+        assertFalse(extract(strings, "1 + #a > 1").isFilterable());
+        assertFalse(extract(strings, "#a * 2 > 1").isFilterable());
+        assertFalse(extract(strings, "#a in (0..100) > 0").isFilterable());
+        assertFalse(extract(strings, "for all i in (1..#a) : (@a[i] < 100)").isFilterable());
+        assertFalse(extract(strings, "$b and for all i in (1..#a) : (@a[i] < 100)").isFilterable());
+    }
+
+    private YaraLiteralExtractor.RuleLiterals extract(String strings, String condition) {
+        String source = "rule test {\n    strings:\n        " + strings.replace(" $", "\n        $") + "\n    condition:\n        " + condition + "\n}\n";
+        List<YaraRule> rules = new YaraRuleParser().parse(source);
+        assertEquals(1, rules.size());
+        return extractor.extract(rules.get(0));
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
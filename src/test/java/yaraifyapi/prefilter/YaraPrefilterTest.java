@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.prefilter;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import yaraifyapi.rules.YaraRuleParser;
+
+/**
+ * Tests the prefilter on files, including atoms that cross the boundary of
+ * the segments in which large files are scanned
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class YaraPrefilterTest {
+
+    private static final String RULES = ""
+            + "rule text { strings: $a = \"dropper.exe\" condition: $a }\n"
+            + "rule wide { strings: $a = \"Global\\\\Mutex\" wide condition: $a }\n"
+            + "rule nocase { strings: $a = \"powershell -enc\" nocase condition: $a }\n"
+            + "rule hex { strings: $a = { 6A 40 68 00 30 00 00 ?? 00 } condition: $a }\n"
+            + "rule count { strings: $a = \"beacon\" condition: #a > 1 }\n"
+            + "rule loop { strings: $a = \"payload\" condition: for all i in (1..#a) : (@a[i] < 10) }\n";
+
+    @TempDir
+    Path folder;
+
+    private YaraPrefilter prefilter;
+
+    @BeforeEach
+    public void createPrefilter() {
+        prefilter = new YaraPrefilter(new YaraRuleParser().parse(RULES), 2);
+    }
+
+    @AfterEach
+    public void shutdownPrefilter() {
+        prefilter.shutdown();
+    }
+
+    @Test
+    public void reportsUnfilterableRulesAsCandidates() throws Exception {
+        assertEquals(Arrays.asList("loop"), prefilter.getUnfilterableRules());
+        YaraPrefilterResult result = prefilter.scan(write("empty", new byte[0]));
+        assertNull(result.getException());
+        assertEquals(Arrays.asList(), result.getMatchedRules());
+        assertEquals(Arrays.asList("loop"), result.getCandidateRules());
+    }
+
+    @Test
+    public void matchesTextWideNocaseAndHexAtoms() throws Exception {
+        byte[] wide = "Global\\Mutex".getBytes(StandardCharsets.UTF_16LE);
+        byte[] hex = {0x6A, 0x40, 0x68, 0x00, 0x30, 0x00, 0x00};
+        byte[] data = concat(ascii("xx dropper.exe xx"), wide, ascii("POWERSHELL -ENC"), hex, ascii("beacon"));
+
+        YaraPrefilterResult result = prefilter.scan(write("all", data));
+        assertEquals(Arrays.asList("text", "wide", "nocase", "hex", "count"), result.getMatchedRules());
+        assertEquals(Arrays.asList("text", "wide", "nocase", "hex", "count", "loop"), result.getCandidateRules());
+    }
+
+    @Test
+    public void doesNotMatchTheAsciiFormOfWideStrings() throws Exception {
+        YaraPrefilterResult result = prefilter.scan(write("ascii", ascii("Global\\Mutex")));
+        assertEquals(Arrays.asList(), result.getMatchedRules());
+    }
+
+    @Test
+    public void matchesAtomsAcrossSegmentBoundaries() throws Exception {
+        byte[] atom = ascii("dropper.exe");
+        byte[] wide = "Global\\Mutex".getBytes(StandardCharsets.UTF_16LE);
+        Path file = folder.resolve("large");
+        try (RandomAccessFile output = new RandomAccessFile(file.toFile(), "rw")) {
+            output.setLength(YaraPrefilter.SEGMENT_SIZE * 2 + 1024);
+            //Both atoms start in one segment and end in the next
+            output.seek(YaraPrefilter.SEGMENT_SIZE - 4);
+            output.write(atom);
+            output.seek(YaraPrefilter.SEGMENT_SIZE * 2 - 1);
+            output.write(wide);
+        }
+
+        YaraPrefilterResult result = prefilter.scan(file);
+        assertNull(result.getException());
+        assertEquals(Arrays.asList("text", "wide"), result.getMatchedRules());
+    }
+
+    @Test
+    public void matchesAtomsAtTheEndOfAFile() throws Exception {
+        Path file = folder.resolve("tail");
+        try (RandomAccessFile output = new RandomAccessFile(file.toFile(), "rw")) {
+            output.setLength(YaraPrefilter.SEGMENT_SIZE + 100);
+            output.seek(YaraPrefilter.SEGMENT_SIZE + 100 - 9);
+            output.write(ascii("a beacon!"));
+        }
+        assertEquals(Arrays.asList("count"), prefilter.scan(file).getMatchedRules());
+    }
+
+    @Test
+    public void reportsUnreadableFiles() throws Exception {
+        YaraPrefilterResult result = prefilter.scan(folder.resolve("missing"));
+        assertNotNull(result.getException());
+        assertEquals(Arrays.asList("loop"), result.getCandidateRules());
+    }
+
+    private Path write(String name, byte[] data) throws IOException {
+        return Files.write(folder.resolve(name), data);
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] data = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, data, offset, part.length);
+            offset += part.length;
+        }
+        return data;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2022 Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package yaraifyapi.store;
+
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import yaraifyapi.model.YaraifyMetadata;
+import yaraifyapi.util.HashUtil;
+
+/**
+ * Tests that the metadata store recovers from a log of which the end was not
+ * written completely, or was damaged
+ *
+ * @author Max 'Libra' Kersten [@Libranalysis, https://maxkersten.nl]
+ */
+public class YaraifyMetadataStoreTest {
+
+    @TempDir
+    Path folder;
+
+    @Test
+    public void truncatesAPartiallyWrittenRecord() throws Exception {
+        YaraifyMetadataStore store = new YaraifyMetadataStore(folder, 0);
+        store.putMetadata(metadata("first"));
+        store.putMetadata(metadata("second"));
+        long size = store.getSize();
+        store.close();
+
+        //An interrupted append leaves the start of a record behind
+        Path log = folder.resolve("yaraify-store.log");
+        byte[] start = Arrays.copyOf(Files.readAllBytes(log), 20);
+        Files.write(log, start, StandardOpenOption.APPEND);
+
+        store = new YaraifyMetadataStore(folder, 0);
+        assertEquals(size, store.getSize());
+        assertEquals(size, Files.size(log));
+        assertMetadata(store, "first");
+        assertMetadata(store, "second");
+
+        //A record that is appended after the recovery is read back as well
+        store.putMetadata(metadata("third"));
+        store.close();
+        store = new YaraifyMetadataStore(folder, 0);
+        assertMetadata(store, "first");
+        assertMetadata(store, "second");
+        assertMetadata(store, "third");
+        store.close();
+    }
+
+    @Test
+    public void dropsEverythingFromADamagedRecordWhenRebuilding() throws Exception {
+        YaraifyMetadataStore store = new YaraifyMetadataStore(folder, 0);
+        store.putMetadata(metadata("first"));
+        long firstSize = store.getSize();
+        store.putMetadata(metadata("second"));
+        store.putMetadata(metadata("third"));
+        store.close();
+
+        //Damage the value of the second record, and force the index to be rebuilt from the log
+        try (RandomAccessFile log = new RandomAccessFile(folder.resolve("yaraify-store.log").toFile(), "rw")) {
+            long position = firstSize + 100;
+            log.seek(position);
+            int value = log.read();
+            log.seek(position);
+            log.write(value ^ 0xFF);
+        }
+        Files.delete(folder.resolve("yaraify-store.index"));
+
+        store = new YaraifyMetadataStore(folder, 0);
+        assertEquals(firstSize, store.getSize());
+        assertMetadata(store, "first");
+        assertNull(store.getMetadata(sha256("second")));
+        assertNull(store.getMetadata(sha256("third")));
+        store.close();
+    }
+
+    private static void assertMetadata(YaraifyMetadataStore store, String name) throws Exception {
+        YaraifyMetadata metadata = store.getMetadata(sha256(name));
+        assertNotNull(metadata, name);
+        assertEquals(name + ".exe", metadata.getFileName());
+        assertEquals(sha256(name), metadata.getSha256());
+    }
+
+    private static YaraifyMetadata metadata(String name) {
+        return new YaraifyMetadata(name + ".exe", 1024, "application/x-dosexec", "2022-01-01 00:00:00", "2022-01-02 00:00:00", 1, sha256(name), "", "", "", "", "", "", "", "", "");
+    }
+
+    private static String sha256(String name) {
+        return HashUtil.sha256(name.getBytes(StandardCharsets.US_ASCII));
+    }
+}